@@ -0,0 +1,165 @@
+package edu.mit.csail.cgs.deepseq;
+
+import java.util.List;
+
+import cern.colt.list.FloatArrayList;
+import cern.colt.list.IntArrayList;
+
+/**
+ * The stranded bases of a region, as arrays of coordinates and counts instead of one StrandedBase per base. <br>
+ * The bases are indexed with the plus strand bases first, then the minus strand bases, each sorted by coordinate,
+ * which is the order of the StrandedBase lists loaded for a region.
+ * Each strand is a range of a coordinate array and a count array. The arrays may be the arrays of a ReadCache,
+ * so a slice is read-only, the methods that change the counts return a new slice.
+ */
+public class BaseSlice {
+	private int[] plusCoords;
+	private float[] plusCounts;
+	private int plusFrom;
+	private int plusSize;
+	private int[] minusCoords;
+	private float[] minusCounts;
+	private int minusFrom;
+	private int minusSize;
+
+	/**
+	 * @param plusFrom, plusTo	the range of the plus strand bases in the arrays, end exclusive
+	 * @param minusFrom, minusTo	the range of the minus strand bases in the arrays, end exclusive
+	 */
+	public BaseSlice(int[] plusCoords, float[] plusCounts, int plusFrom, int plusTo,
+			int[] minusCoords, float[] minusCounts, int minusFrom, int minusTo){
+		this.plusCoords = plusCoords;
+		this.plusCounts = plusCounts;
+		this.plusFrom = plusFrom;
+		this.plusSize = plusTo-plusFrom;
+		this.minusCoords = minusCoords;
+		this.minusCounts = minusCounts;
+		this.minusFrom = minusFrom;
+		this.minusSize = minusTo-minusFrom;
+	}
+
+	public int size(){
+		return plusSize+minusSize;
+	}
+	public int getPlusSize(){
+		return plusSize;
+	}
+	public char getStrand(int i){
+		return i<plusSize?'+':'-';
+	}
+	public int getCoordinate(int i){
+		return i<plusSize ? plusCoords[plusFrom+i] : minusCoords[minusFrom+i-plusSize];
+	}
+	public float getCount(int i){
+		return i<plusSize ? plusCounts[plusFrom+i] : minusCounts[minusFrom+i-plusSize];
+	}
+
+	/** total count of the bases, summed in index order as StrandedBase.countBaseHits() */
+	public float countHits(){
+		float count = 0;
+		for (int i=0;i<plusSize;i++)
+			count += plusCounts[plusFrom+i];
+		for (int i=0;i<minusSize;i++)
+			count += minusCounts[minusFrom+i];
+		return count;
+	}
+
+	/** the bases of one strand, sharing the arrays of this slice */
+	public BaseSlice strandView(char strand){
+		if (strand=='+')
+			return new BaseSlice(plusCoords, plusCounts, plusFrom, plusFrom+plusSize, minusCoords, minusCounts, minusFrom, minusFrom);
+		else
+			return new BaseSlice(plusCoords, plusCounts, plusFrom, plusFrom, minusCoords, minusCounts, minusFrom, minusFrom+minusSize);
+	}
+
+	/**
+	 * Merge the bases of each strand into bins of the given width. <br>
+	 * A bin starts at the first base not in the previous bin, and is located at the center of the bin.
+	 * Empty bins are not kept.
+	 */
+	public BaseSlice bin(int binWidth){
+		IntArrayList pc = new IntArrayList();
+		FloatArrayList pn = new FloatArrayList();
+		IntArrayList mc = new IntArrayList();
+		FloatArrayList mn = new FloatArrayList();
+		int numBases = size();
+		if (numBases!=0){
+			char strand = '+';
+			int pos = getCoordinate(0)+binWidth/2;
+			float count = 0;
+			for (int i=0;i<numBases;i++){
+				int coord = getCoordinate(i);
+				if (getStrand(i)!=strand){
+					if (count!=0)
+						addBin(strand, pos, count, pc, pn, mc, mn);
+					strand = '-';
+					pos = coord+binWidth/2;
+					count = 0;
+				}
+				if (coord>=pos-binWidth/2 && coord<=pos+binWidth-binWidth/2-1){
+					count += getCount(i);
+				}else{
+					if (count!=0)
+						addBin(strand, pos, count, pc, pn, mc, mn);
+					count = getCount(i);
+					pos = coord+binWidth/2;
+				}
+			}
+			if (count!=0)
+				addBin(strand, pos, count, pc, pn, mc, mn);
+		}
+		pc.trimToSize(); pn.trimToSize(); mc.trimToSize(); mn.trimToSize();
+		return new BaseSlice(pc.elements(), pn.elements(), 0, pc.size(), mc.elements(), mn.elements(), 0, mc.size());
+	}
+
+	private static void addBin(char strand, int pos, float count, IntArrayList pc, FloatArrayList pn, IntArrayList mc, FloatArrayList mn){
+		if (strand=='+'){
+			pc.add(pos);
+			pn.add(count);
+		}
+		else{
+			mc.add(pos);
+			mn.add(count);
+		}
+	}
+
+	/**
+	 * The coordinates of all the bases of the slices (both strands), merged in ascending order
+	 */
+	public static int[] mergeCoordinates(List<BaseSlice> slices){
+		int total = 0;
+		for (BaseSlice s: slices)
+			total += s.size();
+		int[] merged = new int[total];
+		int size = 0;
+		for (BaseSlice s: slices){
+			size = mergeInto(merged, size, s.plusCoords, s.plusFrom, s.plusSize);
+			size = mergeInto(merged, size, s.minusCoords, s.minusFrom, s.minusSize);
+		}
+		return merged;
+	}
+
+	/* merge the sorted range of coords into the sorted merged[0..size), from the back, return the new size */
+	private static int mergeInto(int[] merged, int size, int[] coords, int from, int length){
+		int i = size-1;
+		int j = from+length-1;
+		for (int k=size+length-1;j>=from;k--){
+			if (i>=0 && merged[i]>coords[j])
+				merged[k] = merged[i--];
+			else
+				merged[k] = coords[j--];
+		}
+		return size+length;
+	}
+
+	/** a slice of the stranded bases, the plus strand bases are taken before the minus strand bases */
+	public static BaseSlice fromStrandedBases(List<StrandedBase> bases){
+		IntArrayList pc = new IntArrayList();
+		FloatArrayList pn = new FloatArrayList();
+		IntArrayList mc = new IntArrayList();
+		FloatArrayList mn = new FloatArrayList();
+		for (StrandedBase b: bases)
+			addBin(b.getStrand(), b.getCoordinate(), b.getCount(), pc, pn, mc, mn);
+		return new BaseSlice(pc.elements(), pn.elements(), 0, pc.size(), mc.elements(), mn.elements(), 0, mc.size());
+	}
+}
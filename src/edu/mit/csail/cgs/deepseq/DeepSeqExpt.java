@@ -48,7 +48,11 @@ public class DeepSeqExpt {
 	
 	
 	public DeepSeqExpt(Genome g, List<ChipSeqLocator> locs, String db, int readLen){this(g,locs,db,readLen,false);}
-	public DeepSeqExpt(Genome g, List<ChipSeqLocator> locs, String db, int readLen, boolean pairedEnd){
+	public DeepSeqExpt(Genome g, List<ChipSeqLocator> locs, String db, int readLen, boolean pairedEnd){this(g,locs,db,readLen,pairedEnd,null);}
+	/**
+	 * @param readdbDir for "readdb", the data directory to read directly instead of connecting to the ReadDB server, or null
+	 */
+	public DeepSeqExpt(Genome g, List<ChipSeqLocator> locs, String db, int readLen, boolean pairedEnd, String readdbDir){
 		if(g==null){
 			System.err.println("Error: the genome must be defined in order to use the Gifford Lab DB"); System.exit(1);
 		}
@@ -59,7 +63,7 @@ public class DeepSeqExpt {
 			if(db.equals("db"))
 				loader = new DBReadLoader(gen, locs, rLen, pairedEndData);
 			else if(db.equals("readdb"))
-				loader = new ReadDBReadLoader(gen, locs, rLen, pairedEndData);
+				loader = new ReadDBReadLoader(gen, locs, rLen, pairedEndData, readdbDir);
 			else{
 				System.err.println("Database type must be \"db\" or \"readdb\"");System.exit(1);
 			}
@@ -78,10 +82,17 @@ public class DeepSeqExpt {
 		this(g,files,useNonUnique, format,readLen, 1);
 	}
 	public DeepSeqExpt(Genome g, List<File> files, boolean useNonUnique, String format,int readLen, int idStart){
+		this(g,files,useNonUnique, format,readLen, idStart, false, 1);
+	}
+	/**
+	 * @param startsOnly if true, only the 5' positions of the reads are loaded for <tt>getAllStarts()</tt> (streaming SAM/BAM files)
+	 * @param numThreads number of threads to decode the files
+	 */
+	public DeepSeqExpt(Genome g, List<File> files, boolean useNonUnique, String format,int readLen, int idStart, boolean startsOnly, int numThreads){
 		gen = g;
 		rLen = readLen;
 		useNonUniqueReads=useNonUnique;
-		loader = new FileReadLoader(gen, files, format,maxMismatches,useNonUniqueReads, rLen, idStart);
+		loader = new FileReadLoader(gen, files, format,maxMismatches,useNonUniqueReads, rLen, idStart, startsOnly, numThreads);
 		if(gen==null)
 			gen = loader.getGenome();
 		rLen = loader.getReadLen();
@@ -149,6 +160,17 @@ public class DeepSeqExpt {
 			return null;
 	}
 	
+	// load base coordinates (sorted) and counts of many regions, with one ReadDB request
+	public List<Pair<ArrayList<Integer>,ArrayList<Float>>> loadStrandedBaseCounts(List<Region> regions, char strand){
+		if (loader instanceof ReadDBReadLoader){
+			return ((ReadDBReadLoader)loader).loadStrandedBaseCounts(regions, strand);
+		}
+		List<Pair<ArrayList<Integer>,ArrayList<Float>>> results = new ArrayList<Pair<ArrayList<Integer>,ArrayList<Float>>>();
+		for (Region r: regions)
+			results.add(loadStrandedBaseCounts(r, strand));
+		return results;
+	}
+	
 	//load base coordinates for paired end only
 	public Pair<Pair<ArrayList<Integer>, ArrayList<ArrayList<Integer>>>, ArrayList<ArrayList<Float>>> loadStrandedBaseCountsPaired(Region r, char strand){
 	    if (loader instanceof FileReadLoader){
@@ -4,8 +4,6 @@ import java.io.File;
 import java.util.ArrayList;
 import java.util.BitSet;
 import java.util.Collections;
-import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Set;
 
 import edu.mit.csail.cgs.datasets.general.Point;
@@ -13,13 +11,13 @@ import edu.mit.csail.cgs.datasets.general.Region;
 import edu.mit.csail.cgs.datasets.species.Genome;
 import edu.mit.csail.cgs.datasets.species.Organism;
 import edu.mit.csail.cgs.deepseq.discovery.kmer.Kmer;
+import edu.mit.csail.cgs.deepseq.discovery.kmer.KmerCounter;
 import edu.mit.csail.cgs.deepseq.utilities.CommonUtils;
 import edu.mit.csail.cgs.ewok.verbs.SequenceGenerator;
 import edu.mit.csail.cgs.tools.utils.Args;
 import edu.mit.csail.cgs.utils.ArgParser;
 import edu.mit.csail.cgs.utils.NotFoundException;
 import edu.mit.csail.cgs.utils.Pair;
-import edu.mit.csail.cgs.utils.sequence.SequenceUtils;
 import edu.mit.csail.cgs.utils.stats.StatUtil;
 
 public class CountKmers {
@@ -77,62 +75,26 @@ public class CountKmers {
 		seqgen.useLocalFiles(!flags.contains("use_db_genome"));
 		
 		String[] seqs = new String[points.length];
-		HashMap<String, HashSet<Integer>> kmerstr2seqs = new HashMap<String, HashSet<Integer>>();
 		for (int i=0;i<points.length;i++){
 			if (points[i]==null)
 				continue;
 			Region r = points[i].expand(window/2);
 			if (r.getWidth()!=2*(window/2)+1)		// if at the end of chromosome, skip
 				continue;
-			String seq = seqgen.execute(r).toUpperCase();
-			seqs[i]=seq;
-			HashSet<String> uniqueKmers = new HashSet<String>();	// only count repeated kmer once in a sequence
-			for (int j=0;j<seq.length()-k;j++){
-				if ((j+k)>seq.length()) 
-					break;
-				String kstring = seq.substring(j, j+k);				// endIndex of substring is exclusive
-				if (kstring.contains("N"))							// ignore 'N', converted from repeat when loading the sequences
-					continue;
-				uniqueKmers.add(kstring);
-			}
-			for (String s: uniqueKmers){
-				if (!kmerstr2seqs.containsKey(s)){
-					 kmerstr2seqs.put(s, new HashSet<Integer>());
-				}
-				kmerstr2seqs.get(s).add(i);
-			}
+			seqs[i] = seqgen.execute(r).toUpperCase();
 		}
 		
-		// Merge kmer and its reverse compliment (RC)	
-		ArrayList<Kmer> kms = new ArrayList<Kmer>();
-		ArrayList<String> kmerStrings = new ArrayList<String>();
-		kmerStrings.addAll(kmerstr2seqs.keySet());
-		
-		// create kmers from its and RC's counts
-		for (String key:kmerStrings){
-			if (!kmerstr2seqs.containsKey(key))		// this kmer has been removed, represented by RC
-				continue;
-			// consolidate kmer and its reverseComplment kmer
-			String key_rc = SequenceUtils.reverseComplement(key);				
-			if (!key_rc.equals(key)){	// if it is not reverse compliment itself
-				if (kmerstr2seqs.containsKey(key_rc)){
-					int kCount = kmerstr2seqs.get(key).size();
-					int rcCount = kmerstr2seqs.get(key_rc).size();
-					String winner = kCount>=rcCount?key:key_rc;
-					String loser = kCount>=rcCount?key_rc:key;
-					kmerstr2seqs.get(winner).addAll(kmerstr2seqs.get(loser));	// winner take all
-					kmerstr2seqs.remove(loser);					// remove the loser kmer because it is represented by its RC
-				}
-			}
-		}
+		// count the sequences that contain each k-mer, then merge kmer and its reverse compliment (RC)
+		KmerCounter counter = new KmerCounter(k);
+		counter.count(seqs, seqs.length, 2*(window/2)+1-k);
+		counter.mergeReverseComplements();
 
 		// create the kmer objects
-		for (String key:kmerstr2seqs.keySet()){	
-			Kmer kmer = new Kmer(key, kmerstr2seqs.get(key));
-			kms.add(kmer);
-		}
+		ArrayList<Kmer> kms = new ArrayList<Kmer>();
+		for (int i=0;i<counter.getKmerCount();i++)
+			kms.add(new Kmer(counter.getKmerString(i), counter.getHits(i)));
 		Collections.sort(kms);
-		kmerstr2seqs=null;
+		counter=null;
 		System.gc();
 		System.out.println("k="+k+", mapped "+kms.size()+" k-mers, "+CommonUtils.timeElapsed(tic));
 		
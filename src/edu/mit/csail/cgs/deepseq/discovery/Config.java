@@ -17,6 +17,7 @@ public class Config {
     public boolean outputJASPAR = false;
     public boolean print_dist_matrix = false;
     public boolean write_RSC_file = false;
+    public boolean write_RSB_file = false;			// binary, memory-mapped version of the RSC file
     public boolean write_genetrack_file = false;
     public boolean kmer_print_hits = false;
     public boolean print_motif_hits = false;
@@ -25,6 +26,7 @@ public class Config {
     public boolean kl_count_adjusted = false;
     public boolean sort_by_location=false;
     public boolean dump_regression = false;
+    public boolean check_em_kernel = false;		// run both EM kernels on every window and report differences
     public boolean use_kmer_strength = false;
     public boolean print_kmer_bPos = false;    
     public boolean discard_subAlpha_components=false;			// discard the component whose strength is less than alpha    
@@ -180,6 +182,9 @@ public class Config {
     public boolean print_stranded_read_distribution = false;	
     public boolean cache_genome = true;			// cache the genome sequence
     public String genome_path = null;
+    public double em_reuse_tol = -1;			// reuse the EM result of a window if the model changed by at most this fraction since the window was run, -1: do not reuse
+    public boolean count_index = false;			// index the cumulative read counts, for fast region counts (8 bytes per read position)
+    public String genome_store = null;			// directory of the memory-mapped 2-bit genome files, built from the FASTA files in genome_path
     
     public int verbose=1;		// BindingMixture verbose mode
     public int base_reset_threshold = 200;	// threshold to set a base read count to 1
@@ -228,11 +233,13 @@ public class Config {
         outputHOMER = flags.contains("outHOMER");
         outputJASPAR = flags.contains("outJASPAR");
         write_RSC_file = flags.contains("writeRSC");
+        write_RSB_file = flags.contains("writeRSB");
         write_genetrack_file = flags.contains("write_genetrack_file");
         testPValues = flags.contains("testP");
         if (testPValues)
         	System.err.println("testP is " + testPValues);
         dump_regression = flags.contains("dump_regression");
+        check_em_kernel = flags.contains("check_em");
         bestIC_PWM_trim = !flags.contains("sc");		// Seed centered PWM positions
         use_kmer_strength = flags.contains("use_kmer_strength");
         kmer_print_hits = flags.contains("kmer_print_hits");
@@ -302,6 +309,9 @@ public class Config {
         
         // Optional input parameter
         genome_path = Args.parseString(args, "genome", genome_path);
+        genome_store = Args.parseString(args, "genome_store", genome_store);
+        count_index = flags.contains("count_index");
+        em_reuse_tol = Args.parseDouble(args, "em_reuse_tol", em_reuse_tol);
         out_name = Args.parseString(args, "out_name", out_name);
         k = Args.parseInteger(args, "k", k);
         if (k==-1){
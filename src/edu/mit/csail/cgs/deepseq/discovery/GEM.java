@@ -135,8 +135,11 @@ public class GEM {
 	
 	            if(expts.size()>0 && rdbexpts.size()==0){
 	                int readLength = -1;	// For file, read length will be obtained from the data
-	                DeepSeqExpt e = new DeepSeqExpt(genome, expts, nonUnique, fileFormat, readLength);
-	                DeepSeqExpt c = new DeepSeqExpt(genome, ctrls, nonUnique, fileFormat, readLength);
+	                // GEM only needs the 5' positions of the reads, SAM/BAM files are streamed
+	                boolean startsOnly = !flags.contains("no_stream");
+	                int numThreads = Args.parseInteger(args,"t",java.lang.Runtime.getRuntime().availableProcessors());
+	                DeepSeqExpt e = new DeepSeqExpt(genome, expts, nonUnique, fileFormat, readLength, 1, startsOnly, numThreads);
+	                DeepSeqExpt c = new DeepSeqExpt(genome, ctrls, nonUnique, fileFormat, readLength, 1, startsOnly, numThreads);
 	                experiments.add(new Pair<DeepSeqExpt,DeepSeqExpt>(e,c));
 	            } else if(rdbexpts.size()>0 && expts.size() == 0){
 	                if(genome==null){
@@ -144,7 +147,9 @@ public class GEM {
 	                    System.exit(1);
 	                }
 	                int readLength = -1;
-	                experiments.add(new Pair<DeepSeqExpt,DeepSeqExpt>(new DeepSeqExpt(genome, rdbexpts, "readdb", readLength),new DeepSeqExpt(genome, rdbctrls, "readdb", readLength)));
+	                // read the ReadDB data directory in this process instead of through the server
+	                String readdbDir = Args.parseString(args, "readdb_dir", null);
+	                experiments.add(new Pair<DeepSeqExpt,DeepSeqExpt>(new DeepSeqExpt(genome, rdbexpts, "readdb", readLength, false, readdbDir),new DeepSeqExpt(genome, rdbctrls, "readdb", readLength, false, readdbDir)));
 	            } else{
 	                System.err.println("Must provide either an aligner output file or Gifford lab DB experiment name for the signal experiment (but not both)");
 	                printError();
@@ -174,17 +179,39 @@ public class GEM {
         int minRight = Args.parseInteger(args,"d_r", 200);
         String kf = Args.parseString(args,"kf", null);
         boolean not_update_model = flags.contains("not_update_model");
+        boolean checkpoint = !flags.contains("no_checkpoint");
+        boolean rerun_motif = flags.contains("rerun_motif");
         
         String filePrefix = mixture.getOutName();
         String prefix = new File(filePrefix).getName();
         File currentFolder = null;
         String path = null;
+        String checkpointFile = filePrefix+"_checkpoint.bin";
+        String gpsCheckpointFile = filePrefix+"_GPS_checkpoint.bin";
+        int gpsRound = Math.max(0, GPS_round-1);		// the last GPS round
+        
         /**
-         ** Simple GPS event finding without sequence information
+         ** Resume from the last completed stage, or from the GPS result to run the motif discovery again
          **/
-        
  	    int round = 0;
- 	    if (kf==null && !not_update_model){
+ 	    int resumeRound = -1;
+ 	    boolean motifDone = false;		// KMAC has been run after the resumed round
+ 	    if (flags.contains("resume") || rerun_motif){
+ 	    	Pair<Integer, Boolean> stage = mixture.loadCheckpoint(rerun_motif?gpsCheckpointFile:checkpointFile, !rerun_motif);
+ 	    	if (stage!=null){
+ 	    		resumeRound = stage.car();
+ 	    		motifDone = stage.cdr();
+ 	    		round = resumeRound;
+ 	    		mixture.setOutName(filePrefix+"_"+round);
+ 	    	}
+ 	    	else
+ 	    		System.err.println("Start the analysis from the beginning.");
+ 	    }
+ 	    
+        /**
+         ** Simple GPS event finding without sequence information
+         **/
+ 	    if (resumeRound==-1 && kf==null && !not_update_model){
 	 	    mixture.setOutName(filePrefix+"_"+round);
 	        System.out.println("\n============================ Round "+round+" ============================");
 	        
@@ -206,6 +233,8 @@ public class GEM {
 	            	mixture.refineRegions();
 	        }
 	        mixture.releaseMemory();
+	        if (checkpoint)
+	        	mixture.saveCheckpoint(checkpointFile, round, false);
  	    }
 
         while (round+1<GPS_round){
@@ -219,13 +248,18 @@ public class GEM {
             mixture.printFilteredFeatures(round);
             mixture.printInsignificantFeatures(round);
 	        mixture.releaseMemory();
+	        if (checkpoint)
+	        	mixture.saveCheckpoint(checkpointFile, round, false);
         }
+        // keep the GPS result, for running the motif discovery again with --rerun_motif
+        if (checkpoint && resumeRound<gpsRound && round==gpsRound)
+        	mixture.saveCheckpoint(gpsCheckpointFile, round, false);
 
     	currentFolder = new File(filePrefix).getParentFile().getParentFile();
     	path = new File(currentFolder, prefix).getAbsolutePath();
-        CommonUtils.copyFile(filePrefix+"_"+round+"_GEM_events.txt", path+"_GPS_events.txt");
+        CommonUtils.copyFile(filePrefix+"_"+gpsRound+"_GEM_events.txt", path+"_GPS_events.txt");
         if (Args.parseFlags(args).contains("outNP"))
-        	CommonUtils.copyFile(filePrefix+"_"+round+"_GEM_events.narrowPeak", path+"_GPS_events.narrowPeak");
+        	CommonUtils.copyFile(filePrefix+"_"+gpsRound+"_GEM_events.narrowPeak", path+"_GPS_events.narrowPeak");
 
     
         /**
@@ -233,7 +267,17 @@ public class GEM {
          **/    	
         if (run_gem){
         	// initialize first set of kmers from GPS result
-	        int returnValue = mixture.initKMAC();	
+	        int returnValue = 0;
+	        if (round==gpsRound && !motifDone){
+	        	returnValue = mixture.initKMAC();
+	        	if (checkpoint && returnValue>=0)
+	        		mixture.saveCheckpoint(checkpointFile, round, true);
+	        }
+	        else if (!motifDone){		// resumed after the events of a GEM round are called
+	        	mixture.runKMAC(Args.parseInteger(args,"k_win", 61));
+	        	if (checkpoint)
+	        		mixture.saveCheckpoint(checkpointFile, round, true);
+	        }
 	        if (returnValue < 0){					// this could happen if no k value can be found to give good motif
 	        	mixture.plotAllReadDistributions(mixture.allModels, mixture.outName);
 	            mixture.closeLogFile();
@@ -256,6 +300,8 @@ public class GEM {
 	        }
 	        	
             for (int i=1;i<GEM_round;i++){
+            	if (gpsRound+i<=round)		// done before resuming
+            		continue;
 				round++;			
 	            System.out.println("\n============================ Round "+round+" ============================");
 	            mixture.setOutName(filePrefix+"_"+round);
@@ -266,7 +312,11 @@ public class GEM {
 		        mixture.printFilteredFeatures(round);
 		        mixture.printInsignificantFeatures(round);
 		        mixture.releaseMemory();
+		        if (checkpoint)
+		        	mixture.saveCheckpoint(checkpointFile, round, false);
 		        mixture.runKMAC(Args.parseInteger(args,"k_win", 61));// Note: KPPMixture also has args parsing, keep default value the same
+		        if (checkpoint)
+		        	mixture.saveCheckpoint(checkpointFile, round, true);
             }
             int winSize = Args.parseInteger(args,"k_win2", -1);
             if (winSize!=-1){
@@ -347,6 +397,12 @@ public class GEM {
                          "      --k_max <max value of k, e.g. 13>\n" +
                          "      --seed <exact k-mer string to jump start k-mer set motif discovery>\n" +
                          "      --genome <the path to the genome sequence directory, for motif finding>\n" +
+                         "      --genome_store <directory to build and map 2-bit genome files, instead of caching the genome sequence>\n" +
+                         "      --count_index <flag to index the cumulative read counts for fast region counts, 8 bytes per read position>\n" +
+                         "      --em_reuse_tol <reuse the EM result of a window without motif prior from the previous round if the model changed by at most this fraction, default -1 (no reuse)>\n" +
+                         "      --resume <flag to continue an interrupted run from the last saved round or motif discovery>\n" +
+                         "      --rerun_motif <flag to run the motif discovery (and GEM rounds) again from the saved GPS result, e.g. with new --k_min/--k_max; use --r_gem 1 to only find motifs>\n" +
+                         "      --no_checkpoint <flag to not save the checkpoints of the rounds>\n" +
                          "   Optional parameters:\n" +
                          "      --ctrlX <aligned reads file for ctrl (for each condition, ctrlX should match exptX)>\n" +
                          "      --g <genome chrom.sizes file with chr name/length pairs>\n" +
@@ -357,6 +413,7 @@ public class GEM {
                          "      --t <maximum number of threads to run GEM in paralell (default=#CPU)>\n" +
                          "      --out <output folder name and file name prefix>\n" +
                          "      --k_seqs <number of binding events to use for motif discovery (default=5000)>\n" +
+                         "      --readdb_dir <ReadDB data directory to read the --rdbexptX alignments from directly instead of through the ReadDB server>\n" +
                          "   Optional flags: \n" +
                          "      --fa use a fixed user-specified alpha value for all the regions\n" +
                          "      --help print this help information and exit\n" +
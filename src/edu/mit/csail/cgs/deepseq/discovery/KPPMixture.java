@@ -6,6 +6,14 @@ package edu.mit.csail.cgs.deepseq.discovery;
  */
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.awt.BasicStroke;
 import java.awt.Color;
 import java.awt.Font;
@@ -14,6 +22,8 @@ import java.awt.RenderingHints;
 import java.awt.image.BufferedImage;
 import javax.imageio.ImageIO;
 
+import cern.colt.list.FloatArrayList;
+import cern.colt.list.IntArrayList;
 import cern.jet.random.Poisson;
 import cern.jet.random.Binomial;
 import cern.jet.random.engine.DRand;
@@ -27,6 +37,7 @@ import edu.mit.csail.cgs.deepseq.discovery.kmer.Kmer;
 import edu.mit.csail.cgs.deepseq.discovery.kmer.KmerSet;
 import edu.mit.csail.cgs.deepseq.discovery.kmer.KMAC.KmerCluster;
 import edu.mit.csail.cgs.deepseq.discovery.kmer.KmerGroup;
+import edu.mit.csail.cgs.deepseq.discovery.kmer.KmerMatcher;
 import edu.mit.csail.cgs.deepseq.discovery.kmer.KMAC.MotifThreshold;
 import edu.mit.csail.cgs.deepseq.discovery.kmer.KMAC;
 import edu.mit.csail.cgs.deepseq.features.*;
@@ -77,7 +88,7 @@ public class KPPMixture extends MultiConditionFeatureFinder {
 	 ****************/
 	private boolean wholeGenomeDataLoaded = false;
 	// memory cache to store all the read data, loaded from DB or file
-	private ArrayList<Pair<ReadCache, ReadCache>> caches;
+	ArrayList<Pair<ReadCache, ReadCache>> caches;
 	private ArrayList<String> conditionNames = new ArrayList<String>();
 	// Do we have matched control data?
 	private boolean controlDataExist = false;
@@ -86,6 +97,10 @@ public class KPPMixture extends MultiConditionFeatureFinder {
 	private double[] ratio_total;
 	private double[] ratio_non_specific_total;
 	private double background_proportion = -1;			//background read proportion in the candidate regions
+	private EMInputs emInputs = null;					// the EM inputs of the current round, if EM results are reused
+	private Map<String, EMCheckpoint> emCheckpoints = new ConcurrentHashMap<String, EMCheckpoint>();	// EM results of the windows in the previous round, by window
+	private Map<String, EMCheckpoint> nextEmCheckpoints = new ConcurrentHashMap<String, EMCheckpoint>();	// EM results of the windows in this round
+	private AtomicInteger reusedWindowCount = new AtomicInteger();
 	/****************
 	 * Prediction
 	 ****************/
@@ -128,6 +143,14 @@ public class KPPMixture extends MultiConditionFeatureFinder {
 	/** Kmer motif engine */
 	private KMAC kmac = null;
 	private boolean kmerPreDefined = false;
+	/** k-mer search engines of the motif clusters for KPP, built for each round of GPS2Threads */
+	private ArrayList<KMAC> kppEngines;
+	/** regions of the KMAC sequence cache, kept so that the cache can be rebuilt when resuming from a checkpoint */
+	private ArrayList<Region> kmacPositiveRegions = null;
+	private ArrayList<Region> kmacNegativeRegions = null;
+	
+	static final int CHECKPOINT_MAGIC = 0x47454d43;		// "GEMC"
+	static final int CHECKPOINT_VERSION = 1;
 	
 	public KPPMixture(Genome g, 
                       ArrayList<Pair<DeepSeqExpt,DeepSeqExpt>> expts,
@@ -289,6 +312,15 @@ public class KPPMixture extends MultiConditionFeatureFinder {
 		// Normalize conditions
 		normExpts(caches);
 		
+		// index the read counts, for the region counts of the scaling and the sliding windows
+		if (config.count_index){
+			for(Pair<ReadCache,ReadCache> e : caches){
+				e.car().buildCountIndex();
+				if (controlDataExist)
+					e.cdr().buildCountIndex();
+			}
+		}
+		
 		// esitimate sparseness minimum value from the whole genome coverage
 		if (config.sparseness==-1){
 			double totalReadCount=0;
@@ -523,37 +555,33 @@ public class KPPMixture extends MultiConditionFeatureFinder {
 		// refresh the total profile sums every round
 		profile_plus_sum = new double[modelWidth];
 		profile_minus_sum = new double[modelWidth];
+		
+		if (config.em_reuse_tol>=0){
+			emInputs = new EMInputs(model, background_proportion);
+			reusedWindowCount.set(0);
+			// only keep the results of the last round, and only those still within the tolerance of the new model
+			emCheckpoints = nextEmCheckpoints;
+			nextEmCheckpoints = new ConcurrentHashMap<String, EMCheckpoint>();
+			for (Iterator<EMCheckpoint> it = emCheckpoints.values().iterator(); it.hasNext();)
+				if (!it.next().inputs.matches(emInputs, config.em_reuse_tol))
+					it.remove();
+		}
 
 		signalFeatures.clear();
         Vector<ComponentFeature> compFeatures = new Vector<ComponentFeature>();
         Vector<ComponentFeature> goodFeatures = new Vector<ComponentFeature>();
 		Vector<KmerPP> allKmerHits = new Vector<KmerPP>();
 		
-        // prepare for progress reporting
-        Vector<Integer> processedRegionCount = new Vector<Integer>();		// for counting how many regions are processed by all threads
-		int displayStep = (int) Math.pow(10, (int) (Math.log10(totalRegionCount)));
-		TreeSet<Integer> reportTriggers = new TreeSet<Integer>();
-		for (int i=1;i<=totalRegionCount/displayStep; i++){
-			reportTriggers.add(i*displayStep);
-		}
-		reportTriggers.add(100);
-		reportTriggers.add(1000);
-		reportTriggers.add(10000);
-		
 		if (kmac!=null && kmac.isInitialized()){
 			log(1,"Running EM with motif positional prior ...");
 		}
 		
-		// create threads and run EM algorithms
-		// the results are put into compFeatures
-        Thread[] threads = new Thread[config.maxThreads];
+		// run EM algorithms on the thread pool, the results are put into compFeatures
         log(1,String.format("Running with %d threads ...\n", config.maxThreads));
-        Vector<Region> regionsRunning = new Vector<Region>();		// object to pass info of currently running regions
 
         if (config.strand_type ==1)
         	log(1, "Calling events in single-strand mode ...\n");
         
-        // regionsToRun is shared by all threads. Each thread will access it exclusively, lock the obj, get first region, remove it, then unlock.
         ArrayList<Region> regionsToRun = new ArrayList<Region>();
         if (!config.process_all_regions){		// first round, only process some of the region, sort to put the strong regions on top
         	int[] idx = StatUtil.findSort(enrichedRegionReadCounts);
@@ -563,78 +591,43 @@ public class KPPMixture extends MultiConditionFeatureFinder {
         	for (int i=skipIdx;i>=0;i--)
         		regionsToRun.add(restrictRegions.get(idx[i]));
         }
-        else
-        	regionsToRun.addAll(restrictRegions);
-        
-        Iterator<Region> iterator = regionsToRun.iterator();
-        for (int i = 0 ; i < threads.length; i++) {
-            Thread t = new Thread(new GPS2Thread(iterator,
-            									processedRegionCount,
-            									regionsRunning,
-                                                compFeatures,
-                                                goodFeatures,
-                                                allKmerHits,
-                                                true));
-            t.start();
-            threads[i] = t;
+        else{	// process all regions, start the most expensive regions first so that they do not hold up the last threads
+        	double[] regionCosts = new double[totalRegionCount];
+        	for (int i=0;i<totalRegionCount;i++)
+        		regionCosts[i] = enrichedRegionReadCounts[i]*restrictRegions.get(i).getWidth();
+        	int[] idx = StatUtil.findSort(regionCosts);
+        	for (int i=totalRegionCount-1;i>=0;i--)
+        		regionsToRun.add(restrictRegions.get(idx[i]));
         }
-        boolean anyrunning = true;
-        int count = 0;
-        HashSet<Region> heavyRegions = new HashSet<Region>();
-        while (anyrunning) {
-            anyrunning = false;
-            try {
-                Thread.sleep(1000);
-            } catch (InterruptedException e) { }
-            for (int i = 0; i < threads.length; i++) {
-                if (threads[i].isAlive()) {
-                    anyrunning = true;
-                    if (count == processedRegionCount.size()){
-                    	try{
-	                    	heavyRegions.addAll(regionsRunning);
-	                    	if (config.verbose>1 && !regionsRunning.isEmpty())
-	                    		System.out.println("Analyzing "+regionsRunning.elementAt(0).toString());
-                    	}
-                    	catch (ConcurrentModificationException e){
-                    		//ignore
-                    	}
-                    }
-                    break;
-                }
-            }    
-            count = processedRegionCount.size();
-//            System.out.println(count);
-            int trigger = totalRegionCount;
-            if (!reportTriggers.isEmpty())
-            	trigger = reportTriggers.first();
-            if (count>trigger){
-				System.out.println(trigger+"\t/"+totalRegionCount+"\t"+CommonUtils.timeElapsed(tic));
-				reportTriggers.remove(reportTriggers.first());
-            }
-        } // while thread running loop
+        
+        RegionProgress progress = new RegionProgress(totalRegionCount, tic);
+        Map<Region, Long> regionTimes = runGPS2Threads(regionsToRun, progress, compFeatures, goodFeatures, allKmerHits, true);
+        if (config.em_reuse_tol>=0)
+        	log(1, String.format("EM results of %d windows are reused from the previous round.", reusedWindowCount.get()));
         
         if (config.process_all_regions)
         	System.out.println(totalRegionCount+"\t/"+totalRegionCount+"\t"+CommonUtils.timeElapsed(tic));
         else
-        	System.out.println(processedRegionCount.size()+"\t/"+totalRegionCount+"\t"+CommonUtils.timeElapsed(tic));
+        	System.out.println(progress.getCount()+"\t/"+totalRegionCount+"\t"+CommonUtils.timeElapsed(tic));
         
         if (compFeatures.isEmpty()){
         	log(1, "No valid binding event was found.");
         	return signalFeatures;
         }
-        processedRegionCount.clear();
         log(3,String.format("%d threads have finished running", config.maxThreads));
         if (config.process_all_regions || goodFeatures.size()<config.top_events*2){
 	        compFeatures.trimToSize();
 	        
-	        // print out the heavy regions
+	        // print out the heavy regions, with the time (ms) spent on each of them
+	        ArrayList<Region> heavyRegions = new ArrayList<Region>();
+	        for (Region r:regionTimes.keySet())
+	        	if (regionTimes.get(r)>=constants.HEAVY_REGION_MS)
+	        		heavyRegions.add(r);
 	        if (!heavyRegions.isEmpty()){
-	        	ArrayList<Region> rs = new ArrayList<Region>();
-	        	rs.addAll(heavyRegions);
-	        	Collections.sort(rs);
+	        	Collections.sort(heavyRegions);
 	        	StringBuilder sb0 = new StringBuilder();
-	        	for (Region r:rs)	
-		        	sb0.append(r.toString()).append("\n");
+	        	for (Region r:heavyRegions)	
+		        	sb0.append(r.toString()).append("\t").append(regionTimes.get(r)).append("\n");
 		        CommonUtils.writeFile(outName+"_zzzzz_heavyRegions.txt", sb0.toString());
 	        }
 	        
@@ -691,6 +684,70 @@ public class KPPMixture extends MultiConditionFeatureFinder {
 		return signalFeatures;
 	}// end of execute method
 
+	/**
+	 * Run EM on the regions with <tt>config.maxThreads</tt> GPS2Thread workers on a thread pool. <br>
+	 * The workers take regions from a shared queue in the given order, 
+	 * the method returns when all the workers have completed.
+	 * @return the time (ms) spent on analyzing each of the processed regions
+	 */
+	private Map<Region, Long> runGPS2Threads(List<Region> regionsToRun, RegionProgress progress,
+			Collection<ComponentFeature> compFeatures, Collection<ComponentFeature> goodFeatures, 
+			Collection<KmerPP> allKmerHits, boolean isIP){
+		kppEngines = buildKppEngines();
+		ConcurrentLinkedQueue<Region> regionQueue = new ConcurrentLinkedQueue<Region>(regionsToRun);
+		Map<Region, Long> regionTimes = new ConcurrentHashMap<Region, Long>();
+		ExecutorService pool = Executors.newFixedThreadPool(config.maxThreads);
+		ArrayList<Future<?>> futures = new ArrayList<Future<?>>();
+		for (int i = 0 ; i < config.maxThreads; i++) {
+			futures.add(pool.submit(new GPS2Thread(regionQueue,
+					progress,
+					regionTimes,
+					compFeatures,
+					goodFeatures,
+					allKmerHits,
+					isIP)));
+		}
+		try{
+			for (Future<?> f: futures)
+				f.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			System.err.println("ERROR: Java Exception when running EM threads.");
+			e.getCause().printStackTrace(System.err);
+			cleanUpDataLoader();
+			System.exit(-1);
+		} finally{
+			pool.shutdownNow();
+		}
+		return regionTimes;
+	}
+	
+	/**
+	 * Build the k-mer search engines of the motif clusters used to set KPP, shared by all the GPS2Threads of a round.
+	 * The engine of a cluster without aligned k-mers is null.
+	 */
+	private ArrayList<KMAC> buildKppEngines(){
+		if (kmac==null || !config.pp_use_kmer)
+			return null;
+		ArrayList<KMAC> engines = new ArrayList<KMAC>();
+		ArrayList<KmerCluster> clusters = kmac.getMotifClusters();
+		int kpp_nmotifs = Math.min(clusters.size(), config.pp_nmotifs);
+		for (int j=0;j<kpp_nmotifs;j++){
+			KmerCluster c = clusters.get(j);
+			if (c.alignedKmers.isEmpty()){
+				engines.add(null);
+				continue;
+			}
+			KMAC kmac_local = new KMAC(config, outName);
+			kmac_local.setTotalSeqCount(kmac.getPosSeqCount(), kmac.getNegSeqCount());
+			kmac_local.setSequenceWeights(kmac.getSequenceWeights());
+			kmac_local.updateEngine(c.alignedKmers);
+			engines.add(kmac_local);
+		}
+		return engines;
+	}
+	
 	/**
 	 * It performs statistical tests for determining significant peaks         <br>
 	 * If a control is used, the current method is used. Otherwise, MACS proposed method is used.
@@ -1058,9 +1115,10 @@ public class KPPMixture extends MultiConditionFeatureFinder {
 		expandedRegion = expandedRegion.combine(peakRegions.get(0)).combine(peakRegions.get(peakRegions.size()-1));
 		double expandedCount = countIpReads(expandedRegion, c);
 		int expandedLength = expandedRegion.getWidth();
-		for (Region r:peakRegions){
-			expandedLength-=r.getWidth();
-			expandedCount-=countIpReads(r, c);
+		float[] peakCounts = countIpReads(peakRegions, c);
+		for (int k=0;k<peakRegions.size();k++){
+			expandedLength-=peakRegions.get(k).getWidth();
+			expandedCount-=peakCounts[k];
 		}
 		if (expandedCount==0||expandedLength==0)		// set to 0, so other local lambda will be picked instead
 			return 0;
@@ -1126,69 +1184,20 @@ public class KPPMixture extends MultiConditionFeatureFinder {
 		int totalRegionCount = regions.size();
 		if (totalRegionCount==0)
 			return null;
-       
-        // prepare for progress reporting
-        Vector<Integer> processRegionCount = new Vector<Integer>();		// for counting how many regions are processed by all threads
-		int displayStep = (int) Math.pow(10, (int) (Math.log10(totalRegionCount)));
-		TreeSet<Integer> reportTriggers = new TreeSet<Integer>();
-		for (int i=1;i<=totalRegionCount/displayStep; i++){
-			reportTriggers.add(i*displayStep);
-		}
-		reportTriggers.add(100);
-		reportTriggers.add(1000);
-		reportTriggers.add(10000);
-
-		// create threads and run EM algorithms
-		// the results are put into compFeatures
+
+		// run EM algorithms on the thread pool, the results are put into ctrlFeatures
 		Collection<KmerPP> allKmerHits = new Vector<KmerPP>();
-        Thread[] threads = new Thread[config.maxThreads];
         log(1,String.format("Running EM on control data: creating %d threads", config.maxThreads));
-        int regionsPerThread = regions.size()/threads.length;
-        TreeSet<Region> regionsToRun = new TreeSet<Region>();
-        regionsToRun.addAll(regions);
-        Vector<Region> regionsRunning = new Vector<Region>();		// object to pass info of currently running regions
-        for (int i = 0 ; i < threads.length; i++) {
-//            ArrayList<Region> threadRegions = new ArrayList<Region>();
-//            int nextStartIndex = (i+1)*regionsPerThread;
-//            if (i==threads.length-1)		// last thread
-//            	nextStartIndex = regions.size();
-//            // get the regions as same chrom as possible, to minimize chrom sequence that each thread need to cache
-//            for (int j = i*regionsPerThread; j < nextStartIndex; j++) {
-//                threadRegions.add(regions.get(j));
-//            }
-            Thread t = new Thread(new GPS2Thread(regionsToRun.iterator(),
-            									processRegionCount,
-            									regionsRunning,
-                                                ctrlFeatures,
-                                                goodFeatures,
-                                                allKmerHits,
-                                                false));
-            t.start();
-            threads[i] = t;
-        }
-        boolean anyrunning = true;
-        while (anyrunning) {
-            anyrunning = false;
-            try {
-                Thread.sleep(1000);
-            } catch (InterruptedException e) { }
-            for (int i = 0; i < threads.length; i++) {
-                if (threads[i].isAlive()) {
-                    anyrunning = true;
-                    break;
-                }
-            }    
-            int count = processRegionCount.size();
-            int trigger = totalRegionCount;
-            if (!reportTriggers.isEmpty())
-            	trigger = reportTriggers.first();
-            if (count>trigger){
-				System.out.println(trigger+"\t/"+totalRegionCount+"\t"+CommonUtils.timeElapsed(tic));
-				reportTriggers.remove(reportTriggers.first());
-            }
-        }
+        // start the most expensive regions first
+        double[] regionCosts = new double[totalRegionCount];
+        for (int i=0;i<totalRegionCount;i++)
+        	regionCosts[i] = countCtrlReads(regions.get(i))*regions.get(i).getWidth();
+        int[] idx = StatUtil.findSort(regionCosts);
+        ArrayList<Region> regionsToRun = new ArrayList<Region>();
+        for (int i=totalRegionCount-1;i>=0;i--)
+        	regionsToRun.add(regions.get(idx[i]));
+        runGPS2Threads(regionsToRun, new RegionProgress(totalRegionCount, tic), ctrlFeatures, goodFeatures, allKmerHits, false);
         System.out.println(totalRegionCount+"\t/"+totalRegionCount+"\t"+CommonUtils.timeElapsed(tic));
-        processRegionCount.clear();
         
         System.out.println(ctrlFeatures.size()+" features found in control data.");
         
@@ -1203,29 +1212,14 @@ public class KPPMixture extends MultiConditionFeatureFinder {
 		if (r.getWidth()<=windowSize)
 			return windows;
 		
-		List<StrandedBase> allBases = new ArrayList<StrandedBase>();
-		for (int c=0; c<caches.size(); c++){
-			ReadCache cache=null;
-			if (isIP)
-				cache = caches.get(c).car();
-			else
-				cache = caches.get(c).cdr();
-			List<StrandedBase> bases = cache.getUnstrandedBases(r);
-			if (bases==null || bases.size()==0)
-				continue;
-			allBases.addAll(bases); // pool all conditions
-		}
-		if (allBases.isEmpty())
+		// pool all conditions, sorted by location
+		int[] coords = BaseSlice.mergeCoordinates(loadSlicesInWindow(r, isIP?"IP":"CTRL"));
+		if (coords.length==0)
 			return windows;
 		
-		Collections.sort(allBases);			
-		int[] distances = new int[allBases.size()-1];
-		int[]coords = new int[allBases.size()];
-		for (int i=0;i<distances.length;i++){
-			distances[i] = allBases.get(i+1).getCoordinate()-allBases.get(i).getCoordinate();
-			coords[i]=allBases.get(i).getCoordinate();
-		}
-		coords[coords.length-1] = allBases.get(coords.length-1).getCoordinate();
+		int[] distances = new int[coords.length-1];
+		for (int i=0;i<distances.length;i++)
+			distances[i] = coords[i+1]-coords[i];
 		TreeSet<Integer> breakPoints = new TreeSet<Integer>();
 		split(distances, coords, breakPoints, windowSize);
 
@@ -1271,15 +1265,15 @@ public class KPPMixture extends MultiConditionFeatureFinder {
 	 * @param w a region
 	 * @return
 	 */
-	private ArrayList<List<StrandedBase>> loadData_checkEnrichment(Region w){
-		ArrayList<List<StrandedBase>> signals = loadBasesInWindow(w, "IP");
+	private ArrayList<BaseSlice> loadData_checkEnrichment(Region w){
+		ArrayList<BaseSlice> signals = loadSlicesInWindow(w, "IP");
 		if (signals==null || signals.isEmpty())
 			return null;
 
 		//initialize count arrays
 		totalSigCount=0;
 		for (int c=0; c<numConditions; c++){
-			sigHitCounts[c]=StrandedBase.countBaseHits(signals.get(c));
+			sigHitCounts[c]=signals.get(c).countHits();
 			totalSigCount+=sigHitCounts[c];
 		}
 		// if less than significant number of reads
@@ -1292,6 +1286,7 @@ public class KPPMixture extends MultiConditionFeatureFinder {
 		// but it can be useful to block out long continuous regions		
 		if (controlDataExist && config.exclude_unenriched){
 			boolean enriched = false;
+			List<Region> windows = new ArrayList<Region>();
 			for (int s=w.getStart(); s<w.getEnd();s+=modelWidth/2){
 				int startPos = s;
 				int endPos = s+modelWidth;
@@ -1299,20 +1294,18 @@ public class KPPMixture extends MultiConditionFeatureFinder {
 					endPos = w.getEnd();
 					startPos = endPos - modelWidth;
 				}
-				Region sw = new Region(gen, w.getChrom(), startPos, endPos);		//sliding window
-				for (int c=0; c<numConditions; c++){
-					float ip = countIpReads(sw, c);
-					float ctrl = countCtrlReads(sw, c);
-					if (ctrl==0)
+				windows.add(new Region(gen, w.getChrom(), startPos, endPos));		//sliding window
+			}
+			for (int c=0; c<numConditions && !enriched; c++){
+				float[] ip = countIpReads(windows, c);
+				float[] ctrl = countCtrlReads(windows, c);
+				for (int k=0;k<windows.size() && !enriched;k++){
+					if (ctrl[k]==0)
 						enriched = true;
 					else
-						if (ip/ctrl/ratio_non_specific_total[c] >= config.fold)
+						if (ip[k]/ctrl[k]/ratio_non_specific_total[c] >= config.fold)
 							enriched = true;
-					if (enriched)
-						break;
 				}
-				if (enriched)
-					break;
 			}
 			if (!enriched && w!=null){
 				excludedRegions.add(w);
@@ -1470,13 +1463,20 @@ public class KPPMixture extends MultiConditionFeatureFinder {
 			for (int i=0;i<numConditions;i++){				
 				try {
 					ReadCache ipCache = new ReadCache(gen, conditionNames.get(i)+"_IP  ", null, null);
-					ipCache.readRSC(Args.parseString(args, "--rfexpt"+conditionNames.get(i), ""));
+					String ipFile = Args.parseString(args, "--rfexpt"+conditionNames.get(i), "");
+					if (ipFile.endsWith(".rsb"))
+						ipCache.readRSB(ipFile);
+					else
+						ipCache.readRSC(ipFile);
 					
 					ReadCache ctrlCache = null;
 					String ctrlFile = Args.parseString(args, "--rfctrl"+conditionNames.get(i), null);
 					if (ctrlFile!=null){
 						ctrlCache = new ReadCache(gen, conditionNames.get(i)+"_CTRL", null, null);
-						ctrlCache.readRSC(ctrlFile);
+						if (ctrlFile.endsWith(".rsb"))
+							ctrlCache.readRSB(ctrlFile);
+						else
+							ctrlCache.readRSC(ctrlFile);
 			    		controlDataExist = true;
 					}
 					this.caches.add(new Pair<ReadCache, ReadCache>(ipCache, ctrlCache));
@@ -1552,17 +1552,21 @@ public class KPPMixture extends MultiConditionFeatureFinder {
 					} // for each chrom
 					wholeGenomeDataLoaded = true;
 				} //if (subsetRegions.isEmpty()){
-				else{	// if subsetRegions notEmpty, only load these regions
-					for (Region region: subsetRegions){
-						Pair<ArrayList<Integer>,ArrayList<Float>> hits = ip.loadStrandedBaseCounts(region, '+');
-						ipCache.addHits(region.getChrom(), '+', hits.car(), hits.cdr());
-						hits = ip.loadStrandedBaseCounts(region, '-');
-						ipCache.addHits(region.getChrom(), '-', hits.car(), hits.cdr());
+				else{	// if subsetRegions notEmpty, only load these regions, all regions in one ReadDB request
+					List<Pair<ArrayList<Integer>,ArrayList<Float>>> ipPlus = ip.loadStrandedBaseCounts(subsetRegions, '+');
+					List<Pair<ArrayList<Integer>,ArrayList<Float>>> ipMinus = ip.loadStrandedBaseCounts(subsetRegions, '-');
+					List<Pair<ArrayList<Integer>,ArrayList<Float>>> ctrlPlus = null, ctrlMinus = null;
+					if (controlDataExist){
+						ctrlPlus = ctrl.loadStrandedBaseCounts(subsetRegions, '+');
+						ctrlMinus = ctrl.loadStrandedBaseCounts(subsetRegions, '-');
+					}
+					for (int r=0;r<subsetRegions.size();r++){
+						Region region = subsetRegions.get(r);
+						ipCache.addHits(region.getChrom(), '+', ipPlus.get(r).car(), ipPlus.get(r).cdr());
+						ipCache.addHits(region.getChrom(), '-', ipMinus.get(r).car(), ipMinus.get(r).cdr());
 						if (controlDataExist){
-							hits = ctrl.loadStrandedBaseCounts(region, '+');
-							ctrlCache.addHits(region.getChrom(), '+', hits.car(), hits.cdr());
-							hits = ctrl.loadStrandedBaseCounts(region, '-');
-							ctrlCache.addHits(region.getChrom(), '-', hits.car(), hits.cdr());
+							ctrlCache.addHits(region.getChrom(), '+', ctrlPlus.get(r).car(), ctrlPlus.get(r).cdr());
+							ctrlCache.addHits(region.getChrom(), '-', ctrlMinus.get(r).car(), ctrlMinus.get(r).cdr());
 						}
 					}
 				}
@@ -1593,6 +1597,15 @@ public class KPPMixture extends MultiConditionFeatureFinder {
 				if (controlDataExist)
 					ctrlCache.writeRSC();
 			}
+			if (config.write_RSB_file){
+				try{
+					ipCache.writeRSB(ipCache.getName().trim()+".rsb");
+					if (controlDataExist)
+						ctrlCache.writeRSB(ctrlCache.getName().trim()+".rsb");
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
 			if (config.write_genetrack_file){
 				ipCache.writeGeneTrack();
 				if (controlDataExist)
@@ -1670,27 +1683,16 @@ public class KPPMixture extends MultiConditionFeatureFinder {
 		return Math.max(1,countThres);
 	}
 
-	// Load the reads from all conditions in the region
-	private ArrayList<List<StrandedBase>> loadBasesInWindow(Region w, String channel){
-		ArrayList<List<StrandedBase>> signals = new ArrayList<List<StrandedBase>>();
+	// Load the reads from all conditions in the region, as views of the cached reads
+	private ArrayList<BaseSlice> loadSlicesInWindow(Region w, String channel){
+		ArrayList<BaseSlice> signals = new ArrayList<BaseSlice>();
 		if(channel.equalsIgnoreCase("IP")) {
-			//Load each condition's read hits
-			for(Pair<ReadCache,ReadCache> e : caches){
-				List<StrandedBase> bases_p= e.car().getStrandedBases(w, '+');  // reads of the current region - IP channel
-				List<StrandedBase> bases_m= e.car().getStrandedBases(w, '-');  // reads of the current region - IP channel
-				bases_p.addAll(bases_m);
-				signals.add(bases_p);
-			} // for loop
+			for(Pair<ReadCache,ReadCache> e : caches)
+				signals.add(e.car().getBaseSlice(w));
 		}
 		else if(channel.equalsIgnoreCase("CTRL")) {
-			//Load each condition's read hits
-			for(Pair<ReadCache,ReadCache> e : caches){
-				List<StrandedBase> bases_p= e.cdr().getStrandedBases(w, '+');  // reads of the current region - Ctrl channel
-				List<StrandedBase> bases_m= e.cdr().getStrandedBases(w, '-');  // reads of the current region - Ctrl channel
-				bases_p.addAll(bases_m);
-				signals.add(bases_p);
-			} // for loop
-
+			for(Pair<ReadCache,ReadCache> e : caches)
+				signals.add(e.cdr().getBaseSlice(w));
 		}
 		else
 			throw new IllegalArgumentException("The only valid values for channel is either IP or CTRL.");
@@ -1704,7 +1706,7 @@ public class KPPMixture extends MultiConditionFeatureFinder {
 	 * @param signals
 	 * @return
 	 */
-	private double estimateAlpha(Region window, ArrayList<List<StrandedBase>> signals){
+	private double estimateAlpha(Region window, ArrayList<BaseSlice> signals){
 		float maxCount = 0;
 		int left = Math.abs(model.getMin());
 		int right = Math.abs(model.getMax());
@@ -1713,16 +1715,16 @@ public class KPPMixture extends MultiConditionFeatureFinder {
 			// i is each possible event position
 			float count=0;
 			for (int c=0;c<signals.size();c++){
-				List<StrandedBase> bases = signals.get(c);
-				for (StrandedBase b: bases){
-					int coor = b.getCoordinate();
-					if (b.getStrand()=='+'){
+				BaseSlice bases = signals.get(c);
+				for (int b=0;b<bases.size();b++){
+					int coor = bases.getCoordinate(b);
+					if (bases.getStrand(b)=='+'){
 						if (coor>i-left && coor<i+right)
-							count += b.getCount();
+							count += bases.getCount(b);
 					}
 					else{
 						if (coor>i-right && coor<i+left)
-							count += b.getCount();
+							count += bases.getCount(b);
 					}
 				}
 			}
@@ -1845,8 +1847,7 @@ public class KPPMixture extends MultiConditionFeatureFinder {
 			}
 		}
 		
-        Poisson poisson = new Poisson(1, new DRand(config.rand_seed));
-        double totalConditionCount[] = new double[caches.size()];
+        final double totalConditionCount[] = new double[caches.size()];
         for (int i = 0; i < caches.size(); i++) {
         	if (isIP)
         		totalConditionCount[i] = caches.get(i).car().getHitCount();
@@ -1854,203 +1855,35 @@ public class KPPMixture extends MultiConditionFeatureFinder {
         		totalConditionCount[i] = caches.get(i).cdr().getHitCount();
         }
         
+        // segment the chromosomes in parallel, then collect the regions in the order of the chromosomes
+        final boolean fIsIP = isIP;
+        final int fMaxSize = maxSize;
+        final int fPad = pad;
+		ExecutorService pool = Executors.newFixedThreadPool(config.maxThreads);
+		ArrayList<Future<List<Region>>> futures = new ArrayList<Future<List<Region>>>();
 		for(String chrom : chr2regions.keySet()) {
-			for(Region focusRegion : chr2regions.get(chrom)) {
-				List<Region> rs = new ArrayList<Region>();
-				HashMap<Region, ArrayList<StrandedBase>> reg2bases = new HashMap<Region, ArrayList<StrandedBase>>();
-				ArrayList<StrandedBase> allBases = new ArrayList<StrandedBase>();
-				for (int c=0; c<caches.size(); c++){
-					List<StrandedBase> bases = null;
-					if (isIP)
-						bases = caches.get(c).car().getUnstrandedBases(focusRegion);
-					else
-						bases = caches.get(c).cdr().getUnstrandedBases(focusRegion);
-					
-					if (bases==null || bases.size()==0){
-						continue;
-					}
-					allBases.addAll(bases); // pool all conditions
-				}
-				allBases.trimToSize();
-				Collections.sort(allBases);	// sort by location
-
-				// cut the pooled reads into independent regions
-				int start=0;
-				for (int i=1;i<allBases.size();i++){
-					int distance = allBases.get(i).getCoordinate()-allBases.get(i-1).getCoordinate();
-					if (distance > modelWidth){ // a large enough gap to cut
-						// only select region with read count larger than minimum count
-						int breakPoint = i-1;
-						float count = 0;
-						for(int m=start;m<=breakPoint;m++){
-							count += allBases.get(m).getCount();
-						}
-						if (count >= config.sparseness){
-							Region r = new Region(gen, chrom, allBases.get(start).getCoordinate(), allBases.get(breakPoint).getCoordinate());
-							rs.add(r);
-							ArrayList<StrandedBase> bases = new ArrayList<StrandedBase>();
-							for (int p=start;p<=breakPoint;p++)
-								bases.add(allBases.get(p));
-							reg2bases.put(r, bases);
-						}
-						start = breakPoint+1;
-					}
-				}
-				// the last region
-				float count = 0;
-				for(int m=start;m<allBases.size();m++){
-					count += allBases.get(m).getCount();
-				}
-				if (count>=config.sparseness){
-					Region r = new Region(gen, chrom, allBases.get(start).getCoordinate(), allBases.get(allBases.size()-1).getCoordinate());
-					rs.add(r);
-					ArrayList<StrandedBase> bases = new ArrayList<StrandedBase>();
-					for (int p=start;p<allBases.size();p++)
-						bases.add(allBases.get(p));
-					reg2bases.put(r, bases);
-				}
-//				System.err.println("Separate by reads.");
-//				for (Region r:rs){
-//					if (r.getWidth()>maxSize_padding)
-//						System.err.println(r.toString()+"\t"+r.getWidth());
-//				}
-//				System.err.println(chrom+ "\t" + allBases.size()+ "\t"+ reg2bases.keySet().size());
-				
-				// check regions, exclude un-enriched regions based on control counts.  If a region is too big (bigger
-                // than modelWidth), break it into smaller pieces, keep the region if any of those pieces are enriched
-				ArrayList<Region> toRemove = new ArrayList<Region>();
-                List<Region> toTest = new ArrayList<Region>();
-				for (Region r: rs){
-//		        	// for testing chrXV   506292  506322
-//					Region r_test = new Region(r.getGenome(), "IV", 217955, 217985 );
-//		        	if (r_test.overlaps(r)){
-//		        		config.sparseness += 0;
-//		        	}
-					if (r.getWidth() < Math.min(config.min_region_width, model.getWidth()/10)){
-						toRemove.add(r);
-						continue;
-					}
-                    boolean enriched = false;
-                    toTest.clear();
-                    if (r.getWidth()<=modelWidth){
-                        toTest.add(r);
-                    } else {
-                        for (start = r.getStart(); start < r.getEnd(); start += modelWidth / 3) {
-                            Region testr = new Region(r.getGenome(), r.getChrom(), start, start + modelWidth);
-                            toTest.add(testr);
-                        }
-                    }
-                    for (Region testr : toTest) {
-                        for (int c=0;c<numConditions;c++){
-                            int readCount = 0;
-                            if (isIP)
-                            	readCount = (int)countIpReads(testr,c); 
-                            else
-                            	readCount = (int)countCtrlReads(testr,c); 
-                         // yg: remove config.minFoldChange * 
-                            poisson.setMean( totalConditionCount[c] * testr.getWidth() / config.mappable_genome_length);
-                            double pval = 1 - poisson.cdf(readCount) + poisson.pdf(readCount);
-                            if (pval <= config.q_value_threshold) {
-                                enriched = true;
-                                break;
-                            }
-                            
-                            if (isIP & controlDataExist) {		
-                                double ctrlreads = countCtrlReads(testr,c);
-                                poisson.setMean(ctrlreads * this.ratio_total[c]); // yg: remove config.minFoldChange * 
-                                pval = 1 - poisson.cdf(readCount) + poisson.pdf(readCount);
-                                if (pval <= config.q_value_threshold) {
-                                    enriched = true;
-                                    break;
-                                }
-                            }                            
-                        }
-                        if (enriched) { break ;}
-                    }
-                    if (!enriched){	// remove this region if it is not enriched in all conditions
-                        toRemove.add(r);
-                        reg2bases.remove(r);
-                    } 
-				}
-				rs.removeAll(toRemove);		
-//				for (Region r:toRemove)
-//					System.err.println(r.toString()+"\t"+r.getWidth());
-	
-				List<Region> subRegions = new ArrayList<Region>();
-				for (Region r:rs){
-					start = r.getStart();
-					int end = r.getEnd();
-					if (r.getWidth()>maxSize){ // if the region is too large, break it further at the lowest coverage point
-						// base count profile
-						float[] profile = new float[end-start+1];
-						for (StrandedBase b: reg2bases.get(r))
-							profile[b.getCoordinate()-start] = profile[b.getCoordinate()-start]+b.getCount();
-						
-						// moving sum
-						float[] movingSum = new float[profile.length];
-						int halfBin = Math.min(100, model.getWidth()/2-1);
-						// fill in the first position (averaging from the first bin = 2*halfBin)
-						for (int p=0;p<=halfBin*2;p++)
-							movingSum[halfBin]=movingSum[halfBin]+profile[p];
-						// fill in the later positions by computing the 1-base-off differences.
-						for (int p=halfBin+1;p<profile.length-halfBin;p++){
-							movingSum[p]=movingSum[p-1]-profile[p-1-halfBin]+profile[p+halfBin];
-						}
-						
-						// for every over-sized region, start from modelWidth, find the lowest movingAvg point to break
-						int subStart = halfBin;	// sub-region start
-						while( subStart<profile.length-maxSize+halfBin){
-							int subEnd=0;
-							float lowest = Float.MAX_VALUE;
-							for (int p=subStart+modelWidth;p<subStart+maxSize-halfBin;p++){
-								if (movingSum[p]<lowest){
-									subEnd = p;
-									lowest = movingSum[p];
-								}
-							}
-							if (subStart==halfBin)
-								subStart=0;
-							if (subEnd==0)
-								subEnd = Math.min(end-start, subStart+maxSize);		
-
-//							System.err.println(String.format("%s: %d - %d, %d<=%d", r.toString(),subStart, subEnd, subEnd+start, end));
-							subRegions.add(new Region(gen, chrom, subStart+start, subEnd+start));
-							if (subEnd+start==end)
-								break;
-							subStart = subEnd+1;
-						}
-						if (subStart+start<end)
-							subRegions.add(new Region(gen, chrom, subStart+start, end));
-					}
-					else
-						subRegions.add(r);
-				} // for each region
-				reg2bases = null;
-				
-				// add padding, such that the width is enough for motif discovery
-				ArrayList<Region> expanded = new ArrayList<Region>();
-				for (int i=0;i<subRegions.size();i++){
-					Region r = subRegions.get(i);
-					if (r.getWidth()<pad){
-						// if the next region is not far away, merge
-						if (i+1<subRegions.size() && (r.distance(subRegions.get(i+1))+r.getWidth())<modelRange){
-							Region r2 = new Region(r.getGenome(),r.getChrom(),r.getStart(),subRegions.get(i+1).getEnd());
-							expanded.add(r2);
-							i++;	// skip i+1
-							continue;
-						}
-						else{
-							expanded.add(r.expand(0, pad-r.getWidth()));
-						}
-					}
-					else
-						expanded.add(r);
+			final List<Region> chromFocusRegions = chr2regions.get(chrom);
+			futures.add(pool.submit(new Callable<List<Region>>(){
+				public List<Region> call(){
+					List<Region> chromRegions = new ArrayList<Region>();
+					for(Region focusRegion : chromFocusRegions)
+						chromRegions.addAll(segmentEnrichedRegions(focusRegion, fIsIP, fMaxSize, fPad, totalConditionCount));
+					return chromRegions;
 				}
-				subRegions = mergeRegions(expanded, false);
-
-				if (!subRegions.isEmpty())
-					regions.addAll(subRegions);
-			}
+			}));
+		}
+		try{
+			for (Future<List<Region>> f: futures)
+				regions.addAll(f.get());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			System.err.println("ERROR: Java Exception when selecting enriched regions.");
+			e.getCause().printStackTrace(System.err);
+			cleanUpDataLoader();
+			System.exit(-1);
+		} finally{
+			pool.shutdownNow();
 		}
 		
 		log(3, "selectEnrichedRegions(): " + CommonUtils.timeElapsed(tic));
@@ -2076,6 +1909,180 @@ public class KPPMixture extends MultiConditionFeatureFinder {
 		return regions;
 	}//end of selectEnrichedRegions method
 
+	/**
+	 * Cut the reads of a focus region into independent regions at the gaps larger than modelWidth,
+	 * keep the regions that pass the read count and enrichment tests, break the large ones, and pad the small ones. <br>
+	 * The sorted reads of all conditions and strands are merged on the fly, in the order of coordinate, 
+	 * then strand (minus first), then condition, which is the order of the sorted pooled reads. 
+	 * Only the reads of the current region are kept.
+	 */
+	private List<Region> segmentEnrichedRegions(Region focusRegion, boolean isIP, int maxSize, int pad, double[] totalConditionCount){
+		String chrom = focusRegion.getChrom();
+        Poisson poisson = new Poisson(1, new DRand(config.rand_seed));
+        
+		// the sorted arrays to merge, minus strands first
+		ArrayList<BaseSlice> slices = loadSlicesInWindow(focusRegion, isIP?"IP":"CTRL");
+		int numSources = slices.size()*2;
+		BaseSlice[] sources = new BaseSlice[numSources];
+		for (int c=0;c<slices.size();c++){
+			sources[c] = slices.get(c).strandView('-');
+			sources[slices.size()+c] = slices.get(c).strandView('+');
+		}
+		int[] next = new int[numSources];
+		
+		List<Region> subRegions = new ArrayList<Region>();
+		IntArrayList coords = new IntArrayList();
+		FloatArrayList counts = new FloatArrayList();
+		float count = 0;
+		while (true){
+			// the next read, ties go to the earlier source
+			int src = -1;
+			int coord = 0;
+			for (int s=0;s<numSources;s++){
+				if (next[s]<sources[s].size() && (src==-1 || sources[s].getCoordinate(next[s])<coord)){
+					src = s;
+					coord = sources[s].getCoordinate(next[s]);
+				}
+			}
+			if (src==-1)
+				break;
+			if (!coords.isEmpty() && coord-coords.get(coords.size()-1) > modelWidth){ // a large enough gap to cut
+				if (count >= config.sparseness)		// only select region with read count larger than minimum count
+					addEnrichedRegion(chrom, coords, counts, isIP, maxSize, totalConditionCount, poisson, subRegions);
+				coords.clear();
+				counts.clear();
+				count = 0;
+			}
+			float c = sources[src].getCount(next[src]++);
+			coords.add(coord);
+			counts.add(c);
+			count += c;
+		}
+		// the last region
+		if (!coords.isEmpty() && count >= config.sparseness)
+			addEnrichedRegion(chrom, coords, counts, isIP, maxSize, totalConditionCount, poisson, subRegions);
+		
+		// add padding, such that the width is enough for motif discovery
+		ArrayList<Region> expanded = new ArrayList<Region>();
+		for (int i=0;i<subRegions.size();i++){
+			Region r = subRegions.get(i);
+			if (r.getWidth()<pad){
+				// if the next region is not far away, merge
+				if (i+1<subRegions.size() && (r.distance(subRegions.get(i+1))+r.getWidth())<modelRange){
+					Region r2 = new Region(r.getGenome(),r.getChrom(),r.getStart(),subRegions.get(i+1).getEnd());
+					expanded.add(r2);
+					i++;	// skip i+1
+					continue;
+				}
+				else{
+					expanded.add(r.expand(0, pad-r.getWidth()));
+				}
+			}
+			else
+				expanded.add(r);
+		}
+		return mergeRegions(expanded, false);
+	}
+	
+	/*
+	 * Check the region of the reads (sorted coordinates and their counts), 
+	 * exclude un-enriched region based on control counts, add it to subRegions if it is enriched.
+	 * If the region is too big (bigger than modelWidth), test its sliding pieces, keep the region if any of those pieces are enriched.
+	 * If the region is larger than maxSize, break it further at the lowest coverage points.
+	 */
+	private void addEnrichedRegion(String chrom, IntArrayList coords, FloatArrayList counts, boolean isIP, int maxSize, 
+			double[] totalConditionCount, Poisson poisson, List<Region> subRegions){
+		Region r = new Region(gen, chrom, coords.get(0), coords.get(coords.size()-1));
+		if (r.getWidth() < Math.min(config.min_region_width, model.getWidth()/10))
+			return;
+		
+        boolean enriched = false;
+        List<Region> toTest = new ArrayList<Region>();
+        if (r.getWidth()<=modelWidth){
+            toTest.add(r);
+        } else {
+            for (int start = r.getStart(); start < r.getEnd(); start += modelWidth / 3) {
+                Region testr = new Region(r.getGenome(), r.getChrom(), start, start + modelWidth);
+                toTest.add(testr);
+            }
+        }
+        for (Region testr : toTest) {
+            for (int c=0;c<numConditions;c++){
+                int readCount = 0;
+                if (isIP)
+                	readCount = (int)countIpReads(testr,c); 
+                else
+                	readCount = (int)countCtrlReads(testr,c); 
+             // yg: remove config.minFoldChange * 
+                poisson.setMean( totalConditionCount[c] * testr.getWidth() / config.mappable_genome_length);
+                double pval = 1 - poisson.cdf(readCount) + poisson.pdf(readCount);
+                if (pval <= config.q_value_threshold) {
+                    enriched = true;
+                    break;
+                }
+                
+                if (isIP & controlDataExist) {		
+                    double ctrlreads = countCtrlReads(testr,c);
+                    poisson.setMean(ctrlreads * this.ratio_total[c]); // yg: remove config.minFoldChange * 
+                    pval = 1 - poisson.cdf(readCount) + poisson.pdf(readCount);
+                    if (pval <= config.q_value_threshold) {
+                        enriched = true;
+                        break;
+                    }
+                }                            
+            }
+            if (enriched) { break ;}
+        }
+        if (!enriched)	// remove this region if it is not enriched in all conditions
+        	return;
+        
+		int start = r.getStart();
+		int end = r.getEnd();
+		if (r.getWidth()>maxSize){ // if the region is too large, break it further at the lowest coverage point
+			// base count profile
+			float[] profile = new float[end-start+1];
+			for (int i=0;i<coords.size();i++)
+				profile[coords.get(i)-start] = profile[coords.get(i)-start]+counts.get(i);
+			
+			// moving sum
+			float[] movingSum = new float[profile.length];
+			int halfBin = Math.min(100, model.getWidth()/2-1);
+			// fill in the first position (averaging from the first bin = 2*halfBin)
+			for (int p=0;p<=halfBin*2;p++)
+				movingSum[halfBin]=movingSum[halfBin]+profile[p];
+			// fill in the later positions by computing the 1-base-off differences.
+			for (int p=halfBin+1;p<profile.length-halfBin;p++){
+				movingSum[p]=movingSum[p-1]-profile[p-1-halfBin]+profile[p+halfBin];
+			}
+			
+			// for every over-sized region, start from modelWidth, find the lowest movingAvg point to break
+			int subStart = halfBin;	// sub-region start
+			while( subStart<profile.length-maxSize+halfBin){
+				int subEnd=0;
+				float lowest = Float.MAX_VALUE;
+				for (int p=subStart+modelWidth;p<subStart+maxSize-halfBin;p++){
+					if (movingSum[p]<lowest){
+						subEnd = p;
+						lowest = movingSum[p];
+					}
+				}
+				if (subStart==halfBin)
+					subStart=0;
+				if (subEnd==0)
+					subEnd = Math.min(end-start, subStart+maxSize);		
+
+				subRegions.add(new Region(gen, chrom, subStart+start, subEnd+start));
+				if (subEnd+start==end)
+					break;
+				subStart = subEnd+1;
+			}
+			if (subStart+start<end)
+				subRegions.add(new Region(gen, chrom, subStart+start, end));
+		}
+		else
+			subRegions.add(r);
+	}
+
 	/* Given the bases data, and the position of events
 	 * run standard EM (no component elimination) to assign bases to events
 	 */
@@ -2646,9 +2653,9 @@ public class KPPMixture extends MultiConditionFeatureFinder {
 		if (printFilterMsg)
 			System.out.println("\nFilter duplicate reads.");
 		for(int c = 0; c < numConditions; c++) {
-			caches.get(c).car().applyPoissonGaussianFilter(10e-3, 20, config.rand_seed);
+			caches.get(c).car().applyPoissonGaussianFilter(10e-3, 20, config.rand_seed, config.maxThreads);
 			if(controlDataExist) {
-				caches.get(c).cdr().applyPoissonGaussianFilter(10e-3, 20, config.rand_seed);
+				caches.get(c).cdr().applyPoissonGaussianFilter(10e-3, 20, config.rand_seed, config.maxThreads);
 			}
 		}	 		
 		
@@ -2818,27 +2825,33 @@ public class KPPMixture extends MultiConditionFeatureFinder {
 			
 			if(flag.equalsIgnoreCase("IP")) {
 				// Estimate the (ipCounts_cond1, ipCounts_cond2) pairs
-				for(Region r:chrom_non_specific_regs) {				
-					double ipCounts_condX = countIpReads(r, condX_idx);
-					double ipCounts_condY = countIpReads(r, condY_idx);
+				float[] countsX = countIpReads(chrom_non_specific_regs, condX_idx);
+				float[] countsY = countIpReads(chrom_non_specific_regs, condY_idx);
+				for(int r=0;r<countsX.length;r++) {				
+					double ipCounts_condX = countsX[r];
+					double ipCounts_condY = countsY[r];
 					if (ipCounts_condX!=0 && ipCounts_condY!=0)	// only for non-zero counts, as PeakSeq Paper
 						scalePairs.add(new PairedCountData(ipCounts_condY, ipCounts_condX));  // we want to see how many time ipCounts_condY are larger from ipCounts_condX
 				}
 			}
 			else if(flag.equalsIgnoreCase("CTRL")) {
 				// Estimate the (ctrlCounts_cond1, ctrlCounts_cond2) pairs
-				for(Region r:chrom_non_specific_regs) {				
-					double ctrlCounts_condX = countCtrlReads(r, condX_idx);
-					double ctrlCounts_condY = countCtrlReads(r, condY_idx);
+				float[] countsX = countCtrlReads(chrom_non_specific_regs, condX_idx);
+				float[] countsY = countCtrlReads(chrom_non_specific_regs, condY_idx);
+				for(int r=0;r<countsX.length;r++) {				
+					double ctrlCounts_condX = countsX[r];
+					double ctrlCounts_condY = countsY[r];
 					if (ctrlCounts_condX!=0 && ctrlCounts_condY!=0)
 						scalePairs.add(new PairedCountData(ctrlCounts_condY, ctrlCounts_condX));  // we want to see how many time ctrlCounts_condY are larger from ctrlCounts_condX
 				}
 			}
 			else {
 				// Estimate the (ctrlCount, ipCount) pairs
-				for(Region r:chrom_non_specific_regs) {
-					double ctrlCounts_X = countCtrlReads(r, condX_idx);
-					double ipCounts_Y   = countIpReads(r, condY_idx);
+				float[] countsX = countCtrlReads(chrom_non_specific_regs, condX_idx);
+				float[] countsY = countIpReads(chrom_non_specific_regs, condY_idx);
+				for(int r=0;r<countsX.length;r++) {
+					double ctrlCounts_X = countsX[r];
+					double ipCounts_Y   = countsY[r];
 					if (ctrlCounts_X!=0 && ipCounts_Y!=0)
 						scalePairs.add(new PairedCountData(ctrlCounts_X, ipCounts_Y));  // we want to see how many time ipCounts are larger from ctrlCounts
 				}
@@ -2934,14 +2947,14 @@ public class KPPMixture extends MultiConditionFeatureFinder {
 			for (ComponentFeature cf: cfs){
 				if (cf.getQValueLog10(c)>config.q_value_threshold){
 					Region region = cf.getPosition().expand(0).expand(left, right);
-					List<StrandedBase> bases = ip.getStrandedBases(region, '+');
-					for (StrandedBase base:bases){
-						newModel_plus[c][base.getCoordinate()-region.getStart()]+=base.getCount();
+					BaseSlice bases = ip.getStrandedBaseSlice(region, '+');
+					for (int k=0;k<bases.size();k++){
+						newModel_plus[c][bases.getCoordinate(k)-region.getStart()]+=bases.getCount(k);
 					}
 					region = cf.getPosition().expand(0).expand(right, left);
-					bases = ip.getStrandedBases(region, '-');
-					for (StrandedBase base:bases){
-						newModel_minus[c][region.getEnd()-base.getCoordinate()]+=base.getCount();
+					bases = ip.getStrandedBaseSlice(region, '-');
+					for (int k=0;k<bases.size();k++){
+						newModel_minus[c][region.getEnd()-bases.getCoordinate(k)]+=bases.getCount(k);
 					}
 					eventCounter++;
 					if (eventCounter>config.top_events-1){	// reach the top counts
@@ -3128,15 +3141,15 @@ public class KPPMixture extends MultiConditionFeatureFinder {
 		for(String chrom:gen.getChromList()){
 
 			Region chromRegion = new Region(gen, chrom, 0, gen.getChromLength(chrom)-1);			
-			List<List<StrandedBase>> ip_chrom_signals = loadBasesInWindow(chromRegion, "IP");
+			List<BaseSlice> ip_chrom_signals = loadSlicesInWindow(chromRegion, "IP");
 	
 			int counts = 0;
 			// Read counts. List 0 for IP, List 1 for CTRL.
 			// Each List contains the read counts for each condition
 			List<List<Integer>> currChromCondCounts = new ArrayList<List<Integer>>();
 			currChromCondCounts.add(new ArrayList<Integer>()); currChromCondCounts.add(new ArrayList<Integer>());
-			for(List<StrandedBase> ip_chrom_signal_cond:ip_chrom_signals) {
-				int currCondHitCounts = (int)StrandedBase.countBaseHits(ip_chrom_signal_cond);
+			for(BaseSlice ip_chrom_signal_cond:ip_chrom_signals) {
+				int currCondHitCounts = (int)ip_chrom_signal_cond.countHits();
 				currChromCondCounts.get(0).add(currCondHitCounts);
 				counts += currCondHitCounts;
 			}
@@ -3405,6 +3418,10 @@ public class KPPMixture extends MultiConditionFeatureFinder {
         return caches.get(cond).car().countStrandedBases(r,'+') + 
             caches.get(cond).car().countStrandedBases(r,'-');
 	}
+	/* counts of sorted regions, in one pass */
+	private float[] countIpReads(List<Region> regions, int cond){
+        return caches.get(cond).car().countHits(regions);
+	}
 	private float countIpReads(Region r, int cond, char strand){
         return caches.get(cond).car().countStrandedBases(r,strand);
 	}
@@ -3421,6 +3438,9 @@ public class KPPMixture extends MultiConditionFeatureFinder {
         return caches.get(cond).cdr().countStrandedBases(r,'+') + 
             caches.get(cond).cdr().countStrandedBases(r,'-');
 	}
+	private float[] countCtrlReads(List<Region> regions, int cond){
+        return caches.get(cond).cdr().countHits(regions);
+	}
 
 
 	// show the message in STDOUT and log file
@@ -3430,11 +3450,13 @@ public class KPPMixture extends MultiConditionFeatureFinder {
 			log_all_msg.append(msg);
 		if ( config.verbose>=mode){
 	    	System.out.println(msg);
-			try{
-				logFileWriter.write(msg+"\n");
-				logFileWriter.flush();
-			} catch (IOException e) {
-				e.printStackTrace();
+			if (logFileWriter!=null){		// not opened when constructed without the read data
+				try{
+					logFileWriter.write(msg+"\n");
+					logFileWriter.flush();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
 			}
 			if (constants.LOG_ALL)
 				log_all_msg.append("\n");
@@ -3560,10 +3582,6 @@ public class KPPMixture extends MultiConditionFeatureFinder {
 				positiveRegions.add(r.expand(config.k_win+modelRange, config.k_win+modelRange));
 			}
 			positiveRegions = Region.mergeRegions(positiveRegions);
-			int totalLength=0;
-			for (Region r: positiveRegions){
-				totalLength+=r.getWidth();
-			}
 			// get negative regions
 			ArrayList<Region> negativeRegions = new ArrayList<Region>();
 
@@ -3589,22 +3607,33 @@ public class KPPMixture extends MultiConditionFeatureFinder {
 			}
 			negativeRegions.removeAll(toRemove);
 			
-			double gc = kmac.setupRegionCache(positiveRegions, negativeRegions, config.k_neg_dist);
-			
-			if (config.gc==-1){
-				config.setGC(gc);
-			}
-			if (config.verbose>1){
-				System.out.println("Compact genome sequence cache to " + totalLength + " bps, "+CommonUtils.timeElapsed(tic));
-			}
-			else
-				System.out.println("Done, "+CommonUtils.timeElapsed(tic));
-			System.out.println(String.format("GC content=%.2f\n", config.gc));
+			setupRegionCache(positiveRegions, negativeRegions, tic);
 		}
 		
 		return runKMAC(config.k_win);		
     }
     
+    /** cache the sequences of the KMAC positive and negative regions */
+    private void setupRegionCache(ArrayList<Region> positiveRegions, ArrayList<Region> negativeRegions, long tic){
+		kmacPositiveRegions = positiveRegions;
+		kmacNegativeRegions = negativeRegions;
+		int totalLength=0;
+		for (Region r: positiveRegions){
+			totalLength+=r.getWidth();
+		}
+		double gc = kmac.setupRegionCache(positiveRegions, negativeRegions, config.k_neg_dist);
+		
+		if (config.gc==-1){
+			config.setGC(gc);
+		}
+		if (config.verbose>1){
+			System.out.println("Compact genome sequence cache to " + totalLength + " bps, "+CommonUtils.timeElapsed(tic));
+		}
+		else
+			System.out.println("Done, "+CommonUtils.timeElapsed(tic));
+		System.out.println(String.format("GC content=%.2f\n", config.gc));
+    }
+    
     private ArrayList<ComponentFeature> getEvents(){
 		ArrayList<ComponentFeature> events = new ArrayList<ComponentFeature>();		
 		int significantCount = signalFeatures.size();
@@ -3705,6 +3734,228 @@ public class KPPMixture extends MultiConditionFeatureFinder {
 		return 0;
     }
     	
+    /**
+     * Save the state needed to continue the analysis after the given round: the read distribution, 
+     * the called events, the regions, the noise estimates and the KMAC motifs. <br>
+     * The file is written to a temp file first, so that the previous checkpoint is kept if the job is killed while writing.
+     * @param motifDone true if KMAC has been run after the round
+     */
+    public void saveCheckpoint(String fileName, int round, boolean motifDone){
+    	long tic = System.currentTimeMillis();
+    	File tmp = new File(fileName+".tmp");
+    	try{
+    		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1<<16));
+    		out.writeInt(CHECKPOINT_MAGIC);
+    		out.writeInt(CHECKPOINT_VERSION);
+    		writeReadFingerprints(out);
+    		out.writeInt(round);
+    		out.writeBoolean(motifDone);
+    		
+    		out.writeInt(config.k);
+    		out.writeInt(config.k_min);
+    		out.writeInt(config.k_max);
+    		out.writeInt(config.k_win);
+    		out.writeBoolean(config.pp_use_kmer);
+    		out.writeBoolean(config.process_all_regions);
+    		out.writeDouble(background_proportion);
+    		out.writeBoolean(hasIpCtrlRatio);
+    		CommonUtils.writeDoubles(out, ratio_non_specific_total);
+    		
+    		writeModel(out, model);
+    		out.writeInt(allModels.size());
+    		for (String label: allModels.keySet()){
+    			out.writeUTF(label);
+    			writeModel(out, allModels.get(label));
+    		}
+    		writeRegions(out, restrictRegions);
+    		writeRegions(out, excludedRegions);
+    		writeFeatures(out, signalFeatures);
+    		writeFeatures(out, insignificantFeatures);
+    		writeFeatures(out, filteredFeatures);
+    		
+    		out.writeBoolean(kmac!=null);
+    		if (kmac!=null){
+    			writeRegions(out, kmacPositiveRegions);
+    			writeRegions(out, kmacNegativeRegions);
+    			kmac.writeMotifs(out);
+    		}
+    		out.close();
+    		File f = new File(fileName);
+    		if (f.exists() && !f.delete() || !tmp.renameTo(f))
+    			throw new IOException("Can not write "+fileName);
+    		log(2, "Checkpoint of round "+round+(motifDone?" (with motifs)":"")+" is saved, "+CommonUtils.timeElapsed(tic)+"\n");
+    	}
+    	catch (IOException e){
+    		System.err.println("Warning: the checkpoint can not be saved. "+e.getMessage());
+    	}
+    }
+    
+    /**
+     * Restore the state saved by saveCheckpoint(). The checkpoint is not used if it is not made from the same read data.
+     * @param restoreMotifs if false, the KMAC motifs and the k values are not restored, 
+     * so that the motif discovery can be run again with new k values
+     * @return the round and whether KMAC has been run after it, or null if the checkpoint can not be used
+     */
+    public Pair<Integer, Boolean> loadCheckpoint(String fileName, boolean restoreMotifs){
+    	File f = new File(fileName);
+    	if (!f.exists()){
+    		System.err.println("Checkpoint "+fileName+" is not found.");
+    		return null;
+    	}
+    	try{
+    		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f), 1<<16));
+    		try{
+	    		if (in.readInt()!=CHECKPOINT_MAGIC || in.readInt()!=CHECKPOINT_VERSION){
+	    			System.err.println(fileName+" is not a GEM checkpoint of this version.");
+	    			return null;
+	    		}
+	    		if (!checkReadFingerprints(in)){
+	    			System.err.println(fileName+" is not made from the same read data.");
+	    			return null;
+	    		}
+	    		int round = in.readInt();
+	    		boolean motifDone = in.readBoolean();
+	    		
+	    		int k = in.readInt();
+	    		int k_min = in.readInt();
+	    		int k_max = in.readInt();
+	    		int k_win = in.readInt();
+	    		boolean pp_use_kmer = in.readBoolean();
+	    		if (restoreMotifs){
+	    			config.k = k;
+	    			config.k_min = k_min;
+	    			config.k_max = k_max;
+	    			config.k_win = k_win;
+	    			config.pp_use_kmer = pp_use_kmer;
+	    		}
+	    		config.process_all_regions = in.readBoolean();
+	    		background_proportion = in.readDouble();
+	    		hasIpCtrlRatio = in.readBoolean();
+	    		ratio_non_specific_total = CommonUtils.readDoubles(in);
+	    		if (hasIpCtrlRatio && controlDataExist)
+	    			ComponentFeature.setNon_specific_ratio(ratio_non_specific_total);
+	    		
+	    		model = readModel(in);
+	    		modelRange = model.getRange();
+	    		modelWidth = model.getWidth();
+	    		allModels.clear();
+	    		int modelCount = in.readInt();
+	    		for (int i=0;i<modelCount;i++){
+	    			String label = in.readUTF();
+	    			allModels.put(label, readModel(in));
+	    		}
+	    		restrictRegions = readRegions(in);
+	    		excludedRegions = readRegions(in);
+	    		signalFeatures = readFeatures(in);
+	    		insignificantFeatures = readFeatures(in);
+	    		filteredFeatures = readFeatures(in);
+	    		
+	    		if (in.readBoolean() && restoreMotifs){
+	    			ArrayList<Region> positiveRegions = readRegions(in);
+	    			ArrayList<Region> negativeRegions = readRegions(in);
+	    	    	System.out.println("Loading genome sequences ...");
+	    			kmac = new KMAC(gen, config.cache_genome, config.use_db_genome, config.genome_path, config, outName);
+	    			if (positiveRegions!=null)
+	    				setupRegionCache(positiveRegions, negativeRegions, System.currentTimeMillis());
+	    			kmac.readMotifs(in);
+	    		}
+	    		else
+	    			motifDone = false;
+	    		log(1, "\nResume from the checkpoint of round "+round+(motifDone?" (with motifs)":"")+": "+fileName+"\n");
+	    		return new Pair<Integer, Boolean>(round, motifDone);
+    		}
+    		finally{
+    			in.close();
+    		}
+    	}
+    	catch (IOException e){
+    		System.err.println("Checkpoint "+fileName+" can not be read. "+e.getMessage());
+    		return null;
+    	}
+    }
+    
+    private void writeReadFingerprints(DataOutputStream out) throws IOException{
+    	out.writeInt(caches.size());
+    	for (Pair<ReadCache, ReadCache> pair: caches){
+    		out.writeLong(pair.car().getFingerprint());
+    		out.writeLong(pair.cdr()==null ? 0 : pair.cdr().getFingerprint());
+    	}
+    }
+    
+    private boolean checkReadFingerprints(DataInputStream in) throws IOException{
+    	if (in.readInt()!=caches.size())
+    		return false;
+    	boolean same = true;
+    	for (Pair<ReadCache, ReadCache> pair: caches){
+    		same &= in.readLong()==pair.car().getFingerprint();
+    		same &= in.readLong()==(pair.cdr()==null ? 0 : pair.cdr().getFingerprint());
+    	}
+    	return same;
+    }
+    
+    /* the model is saved as its data values, so that the same probabilities are made when it is read */
+    private static void writeModel(DataOutputStream out, BindingModel m) throws IOException{
+    	out.writeInt(m.getMin());
+    	out.writeInt(m.getMax());
+    	for (int i=m.getMin();i<=m.getMax();i++)
+    		out.writeDouble(m.dataVal(i));
+    }
+    
+    private static BindingModel readModel(DataInputStream in) throws IOException{
+    	int min = in.readInt();
+    	int max = in.readInt();
+    	List<Pair<Integer, Double>> dist = new ArrayList<Pair<Integer, Double>>(max-min+1);
+    	for (int i=min;i<=max;i++)
+    		dist.add(new Pair<Integer, Double>(i, in.readDouble()));
+    	return new BindingModel(dist);
+    }
+    
+    private static void writeRegions(DataOutputStream out, List<Region> regions) throws IOException{
+    	if (regions==null){
+    		out.writeInt(-1);
+    		return;
+    	}
+    	int count = 0;
+    	for (Region r: regions)
+    		if (r!=null)
+    			count++;
+    	out.writeInt(count);
+    	for (Region r: regions){
+    		if (r==null)
+    			continue;
+    		out.writeUTF(r.getChrom());
+    		out.writeInt(r.getStart());
+    		out.writeInt(r.getEnd());
+    	}
+    }
+    
+    private ArrayList<Region> readRegions(DataInputStream in) throws IOException{
+    	int count = in.readInt();
+    	if (count==-1)
+    		return null;
+    	ArrayList<Region> regions = new ArrayList<Region>(count);
+    	for (int i=0;i<count;i++)
+    		regions.add(new Region(gen, in.readUTF(), in.readInt(), in.readInt()));
+    	return regions;
+    }
+    
+    private static void writeFeatures(DataOutputStream out, List<Feature> features) throws IOException{
+    	out.writeInt(features==null ? -1 : features.size());
+    	if (features!=null)
+    		for (Feature f: features)
+    			((ComponentFeature)f).write(out);
+    }
+    
+    private ArrayList<Feature> readFeatures(DataInputStream in) throws IOException{
+    	int count = in.readInt();
+    	if (count==-1)
+    		return null;
+    	ArrayList<Feature> features = new ArrayList<Feature>(count);
+    	for (int i=0;i<count;i++)
+    		features.add(new ComponentFeature(in, gen));
+    	return features;
+    }
+    
 	public MotifThreshold estimateClusterKgsThreshold(ArrayList<Kmer> clusterKmers){
 		kmac.updateEngine(clusterKmers);
 		return kmac.optimizeKsmThreshold(outName, false);
@@ -3766,14 +4017,53 @@ public class KPPMixture extends MultiConditionFeatureFinder {
         public final boolean BATCH_ELIMINATION = false;
         public final boolean SMART_SPACING = true;		// dynamically determine init comopent spacing
         public final boolean MAKE_HARD_ASSIGNMENT=false;
+        // regions that take longer than this (ms) to analyze are reported as heavy regions
+        public final long HEAVY_REGION_MS = 1000;
+    }
+
+    /**
+     * Counts the regions processed by all the GPS2Thread workers,
+     * and prints the progress when the count passes the report triggers.
+     */
+    class RegionProgress {
+    	private AtomicInteger count = new AtomicInteger();
+    	private TreeSet<Integer> reportTriggers = new TreeSet<Integer>();
+    	private int totalRegionCount;
+    	private long tic;
+    	
+    	RegionProgress(int totalRegionCount, long tic){
+    		this.totalRegionCount = totalRegionCount;
+    		this.tic = tic;
+    		int displayStep = (int) Math.pow(10, (int) (Math.log10(totalRegionCount)));
+    		for (int i=1;i<=totalRegionCount/displayStep; i++){
+    			reportTriggers.add(i*displayStep);
+    		}
+    		reportTriggers.add(100);
+    		reportTriggers.add(1000);
+    		reportTriggers.add(10000);
+    	}
+    	
+    	void regionDone(){
+    		int done = count.incrementAndGet();
+    		synchronized(reportTriggers){
+    			if (!reportTriggers.isEmpty() && done>reportTriggers.first() && reportTriggers.first()<totalRegionCount){
+    				System.out.println(reportTriggers.first()+"\t/"+totalRegionCount+"\t"+CommonUtils.timeElapsed(tic));
+    				reportTriggers.remove(reportTriggers.first());
+    			}
+    		}
+    	}
+    	
+    	int getCount(){
+    		return count.get();
+    	}
     }
 
 
     class GPS2Thread implements Runnable {
     	
-        private Iterator<Region> iterator;
-        private Collection<Integer> processedRegionCount;
-        private Collection<Region> regionsRunning;
+        private Queue<Region> regionQueue;
+        private RegionProgress progress;
+        private Map<Region, Long> regionTimes;
         private Collection<ComponentFeature> compFeatures;		// all the features from EM
         private Collection<ComponentFeature> goodFeatures;		// features that pass p-value test
         private Collection<KmerPP> allKmerHits;
@@ -3796,27 +4086,45 @@ public class KPPMixture extends MultiConditionFeatureFinder {
         private int componentSpacing=1;
         // Maximum number of components determined by the data
         private int componentMax;
-
-        public GPS2Thread (Iterator<Region> iterator,
-        				  Collection<Integer> processedRegionCount,
-        				  Collection<Region> regionsRunning,
+        // reusable buffers of EM_MAP_flat(), [cond][flat component-base entries]
+        private int[][] em_offsets = new int[0][];
+        private int[][] em_bases;
+        private double[][] em_h;
+        private double[][] em_r;
+        private double[] em_totalResp;
+        private double[] em_jsum;
+        private double[] em_contrib;
+        private int[] em_nzComps;
+        // reusable buffer of k-mer matches for KPP
+        private KmerMatcher.Matches kmerMatches = new KmerMatcher.Matches();
+
+        public GPS2Thread (Queue<Region> regionQueue,
+        				  RegionProgress progress,
+        				  Map<Region, Long> regionTimes,
                           Collection<ComponentFeature> compFeatures,
                           Collection<ComponentFeature> goodFeatures,
                           Collection<KmerPP> allKmerHits,
                           boolean isIP) {
-            this.iterator = iterator;
-            this.processedRegionCount = processedRegionCount;
-            this.regionsRunning = regionsRunning;
+            this.regionQueue = regionQueue;
+            this.progress = progress;
+            this.regionTimes = regionTimes;
             this.compFeatures = compFeatures;
             this.goodFeatures = goodFeatures;            
             this.allKmerHits = allKmerHits;
             this.isIP = isIP;
         }
         
+        /** sets the spacing of the components, as the resolution steps of analyzeWindow() do; used by TestEMKernels */
+        void setComponentSpacing(int spacing){
+            componentSpacing = spacing;
+        }
+
         public void simpleRun(List<StrandedBase> bases, Region r) {
             components = new ArrayList<BindingComponent>();
             ArrayList<List<StrandedBase>> signals = new ArrayList<List<StrandedBase>>();
             signals.add(bases);
+            ArrayList<BaseSlice> slices = new ArrayList<BaseSlice>();
+            slices.add(BaseSlice.fromStrandedBases(bases));
 
             Pair<double[][][], int[][][]> result = null;
             if (!doScanning){
@@ -3824,12 +4132,12 @@ public class KPPMixture extends MultiConditionFeatureFinder {
                 initializeComponents(r, numConditions );
                 while(nonZeroComponentNum>0){
                     double alpha = Math.max(Math.sqrt(StrandedBase.countBaseHits(bases))/config.alpha_factor, config.sparseness);
-                    result = EMTrain(signals, null, alpha, new double[r.getWidth()]);
+                    result = EMTrain(slices, null, alpha, new double[r.getWidth()]);
                     if(componentSpacing==1)
                         break;
                     updateComponentResolution(r, 1, componentSpacing);
                 }
-                setComponentResponsibilities(signals, result.car(), result.cdr());
+                setComponentResponsibilities(slices, result.car(), result.cdr());
             } else{		// scan it
                 BindingComponent peak = scanPeak(signals, r);
                 components.add(peak);
@@ -3846,23 +4154,12 @@ public class KPPMixture extends MultiConditionFeatureFinder {
         		seqgen.useLocalFiles(false);
         	if (config.cache_genome)
         		seqgen.useCache(true);
-            while (iterator.hasNext()) {
-            	Region rr = null;
-            	synchronized (iterator){
-	            	if (iterator.hasNext()){
-	            		rr = iterator.next();
-	                	// for testing
-	                	Region r_test = new Region(rr.getGenome(), "V", 239652, 239682 );
-	                	if (r_test.overlaps(rr)){
-	                		config.sparseness += 0;
-	                	}
-            		}
-	            	else
-	            		break;
-            	}
-
+        	if (config.genome_store!=null && !config.use_db_genome)
+        		seqgen.usePackedGenome(config.genome_store);
+            Region rr = null;
+            while ((rr = regionQueue.poll()) != null) {
                 log(3, rr.toString());
-                regionsRunning.add(rr);
+                long regionTic = System.currentTimeMillis();
                 try{
                     ArrayList<BindingComponent> comps= new ArrayList<BindingComponent>();
                     ArrayList<BindingComponent> result = analyzeWindow(rr, seqgen);
@@ -4147,14 +4444,14 @@ public class KPPMixture extends MultiConditionFeatureFinder {
 //                        	} // if only process partial data
                         }
                     }
-                    processedRegionCount.add(1); 
+                    progress.regionDone(); 
                 } catch(Exception e){
                     System.err.println("ERROR: Java Exception when analyzing region "+rr.toString());
                     e.printStackTrace(System.err);
         			cleanUpDataLoader();
                     System.exit(-1);
                 } finally{
-                	regionsRunning.remove(rr);
+                	regionTimes.put(rr, System.currentTimeMillis()-regionTic);
                 }
                 if ((!config.process_all_regions) && goodFeatures.size()>=config.top_events*2)
                 	break;
@@ -4163,13 +4460,13 @@ public class KPPMixture extends MultiConditionFeatureFinder {
 
         private ArrayList<BindingComponent> analyzeWindow(Region w, SequenceGenerator<Region> seqgen){
 
-            ArrayList<List<StrandedBase>> signals = loadData_checkEnrichment(w);
+            ArrayList<BaseSlice> signals = loadData_checkEnrichment(w);
             if (signals==null)
                 return null;
 
-            ArrayList<List<StrandedBase>> bg_signals = null;
+            ArrayList<BaseSlice> bg_signals = null;
             if (controlDataExist && config.noise_distribution==2){		// if want to use control to set bg dist. 
-            	bg_signals = loadBasesInWindow(w, "CTRL");
+            	bg_signals = loadSlicesInWindow(w, "CTRL");
             }
             ArrayList<BindingComponent> results = new ArrayList<BindingComponent>();
             
@@ -4181,24 +4478,14 @@ public class KPPMixture extends MultiConditionFeatureFinder {
             	char[] strands = new char[]{'+','-'};
             	for (char s:strands){
             		// get stranded data
-            		ArrayList<List<StrandedBase>> signals_stranded = new ArrayList<List<StrandedBase>>();
-            		for (List<StrandedBase> l:signals){
-            			List<StrandedBase> l_s = new ArrayList<StrandedBase>();
-            			for (StrandedBase b:l)
-            				if (b.getStrand()==s)
-            					l_s.add(b);
-            			signals_stranded.add(l_s);
-            		}
-            		ArrayList<List<StrandedBase>> bg_signals_stranded = null;
+            		ArrayList<BaseSlice> signals_stranded = new ArrayList<BaseSlice>();
+            		for (BaseSlice l:signals)
+            			signals_stranded.add(l.strandView(s));
+            		ArrayList<BaseSlice> bg_signals_stranded = null;
             		if (bg_signals!=null){
-            			bg_signals_stranded = new ArrayList<List<StrandedBase>>();
-	            		for (List<StrandedBase> l:bg_signals){
-	            			List<StrandedBase> l_s = new ArrayList<StrandedBase>();
-	            			for (StrandedBase b:l)
-	            				if (b.getStrand()==s)
-	            					l_s.add(b);
-	            			bg_signals_stranded.add(l_s);
-	            		}
+            			bg_signals_stranded = new ArrayList<BaseSlice>();
+	            		for (BaseSlice l:bg_signals)
+	            			bg_signals_stranded.add(l.strandView(s));
             		}
             		
             		// run EM on stranded data
@@ -4214,8 +4501,8 @@ public class KPPMixture extends MultiConditionFeatureFinder {
             return results;
         } 
         
-        private ArrayList<BindingComponent> analyzeWindow(Region w, ArrayList<List<StrandedBase>> signals,
-        		ArrayList<List<StrandedBase>> bg_signals, SequenceGenerator<Region> seqgen, char readStrand){
+        private ArrayList<BindingComponent> analyzeWindow(Region w, ArrayList<BaseSlice> signals,
+        		ArrayList<BaseSlice> bg_signals, SequenceGenerator<Region> seqgen, char readStrand){
             // We want to run EM only for potential homotypic regions
             // After first round, if we are sure the region contains unary event, we will just scan for peak
         	
@@ -4225,8 +4512,8 @@ public class KPPMixture extends MultiConditionFeatureFinder {
         		config.sparseness += 0;
         	}
     		int sum = 0;
-    		for (List<StrandedBase> bases: signals)
-    			sum += StrandedBase.countBaseHits(bases);
+    		for (BaseSlice bases: signals)
+    			sum += bases.countHits();
             if (sum==0)
             	return new ArrayList<BindingComponent>();
         	
@@ -4250,11 +4537,23 @@ public class KPPMixture extends MultiConditionFeatureFinder {
             	
 //            	if (kmac!=null && kmac.isInitialized()){
                 if (kmac!=null){
+            		// for RNA (Branch-seq), the motif is on the strand opposite to the reads
+            		boolean flip = false;
+            		if ( config.strand_type==1){
+            			if ( config.is_branch_point_data){	// Branch-seq, reads are on the opposite of motif sequence
+            				flip = readStrand=='+';
+            				seqStrand = flip ? '-' : '+';
+            			}
+            			else
+            				flip = readStrand=='-';		// other RNA data, e.g. CLIP, reads are on the same strand as motifs
+            		}
             		if (kmerPreDefined){		// if kmer is loaded from other sources, get fresh sequence 
             			seq = seqgen.execute(w).toUpperCase();                		
+            			if (flip)
+            				seq = SequenceUtils.reverseComplement(seq);
             		}
-            		else					// otherwise, we have run KMAC, get the cached sequences
-            			seq = kmac.getSequenceUppercase(w);
+            		else					// otherwise, we have run KMAC, get the cached sequences, already flipped
+            			seq = kmac.getSequence(w, true, flip);
             		
 //            		if (readStrand=='-'){
 //            			String s = SequenceUtils.reverseComplement(seq);
@@ -4265,23 +4564,6 @@ public class KPPMixture extends MultiConditionFeatureFinder {
 //            			System.out.println("Plus read - FW: "+seq.contains("TACTAAC")+"\t\tRC: "+s.contains("TACTAAC"));
 //            		}
             		
-            		// for RNA (Branch-seq), the motif is on the strand opposite to the reads
-            		if ( config.strand_type==1){
-            			if ( config.is_branch_point_data){	// Branch-seq, reads are on the opposite of motif sequence
-	            			if (readStrand=='+'){
-		            			// flip the sequence and strand info
-		            			seq = SequenceUtils.reverseComplement(seq);
-		            			seqStrand = '-';
-	            			}
-	            			else
-	            				seqStrand = '+';
-            			}
-            			else{
-            				if (readStrand=='-')	// other RNA data, e.g. CLIP, reads are on the same strand as motifs
-		            			seq = SequenceUtils.reverseComplement(seq); // flip the sequence
-            			}
-            		}
-            		
             		HashMap<Integer, KmerPP> hits = new HashMap<Integer, KmerPP>();
             		
             		if (config.pp_use_kmer){		// use k-mer match to set KPP
@@ -4290,16 +4572,13 @@ public class KPPMixture extends MultiConditionFeatureFinder {
             			int kpp_nmotifs = Math.min(clusters.size(), config.pp_nmotifs);
             			for (int j=0;j<kpp_nmotifs;j++){
             				KmerCluster c = clusters.get(j);
-            				if (c.alignedKmers.isEmpty())
+            				KMAC kmac_local = kppEngines.get(j);
+            				if (kmac_local==null)
             					continue;
-            				KMAC kmac_local = new KMAC(config, outName);
-            				kmac_local.setTotalSeqCount(kmac.getPosSeqCount(), kmac.getNegSeqCount());
-            				kmac_local.setSequenceWeights(kmac.getSequenceWeights());
-            				kmac_local.updateEngine(c.alignedKmers);
             				
 	            			double ksm_threshold = c.ksmThreshold==null?0:c.ksmThreshold.score;
 	
-	                		KmerGroup[] matchPositions = kmac_local.query(seq);
+	                		KmerGroup[] matchPositions = kmac_local.query(seq, kmerMatches);
 		                	if (config.print_PI)	
 		                		System.out.println(seq);
 		                	// Effectively, the top kmers will dominate, because we normalize the pp value
@@ -4441,49 +4720,70 @@ public class KPPMixture extends MultiConditionFeatureFinder {
                 	}
             	}	// done constructing positional prior from motifs
             	
-                //Run EM and increase resolution
-                initializeComponents(w, numConditions);
+                //Run EM and increase resolution, or reuse the EM result of the previous round
+                String checkpointKey = null;
+                EMCheckpoint checkpoint = null;
+                if (config.em_reuse_tol>=0 && emInputs!=null && isZero(pp)){	// only if no positional prior in the window
+                	checkpointKey = (isIP?"":"CTRL:")+w.toString()+readStrand;
+                	checkpoint = emCheckpoints.get(checkpointKey);
+                	if (checkpoint!=null && !checkpoint.matches(emInputs, alpha, config.em_reuse_tol))
+                		checkpoint = null;
+                }
+                if (checkpoint!=null){
+                	nextEmCheckpoints.put(checkpointKey, checkpoint);
+                	components = checkpoint.restoreComponents();
+                	nonZeroComponentNum = components.size();
+                	componentSpacing = checkpoint.componentSpacing;
+                	reusedWindowCount.incrementAndGet();
+                	if (nonZeroComponentNum==0)
+                		return null;
+                }
+                else{
+                    initializeComponents(w, numConditions);
 //                int countIters = 0;
-                while(nonZeroComponentNum>0){                        
-                    int numComp = components.size();
-                    double[] pos_alpha = new double[numComp];						// positional alpha
-                    if (kmac!=null){
-                        for (int i=0;i<numComp;i++){
-                        	BindingComponent b = components.get(i);
-                        	int bIdx = b.getLocation().getLocation()-w.getStart();
-                        	double maxPP = 0;
-                        	for (int j=0;j<componentSpacing;j++){
-                        		int idx = bIdx+j;
-                        		if (idx>=pp.length)
-                        			idx = pp.length-1;
-                        		maxPP = Math.max(maxPP,pp[idx]);
+                    while(nonZeroComponentNum>0){                        
+                        int numComp = components.size();
+                        double[] pos_alpha = new double[numComp];						// positional alpha
+                        if (kmac!=null){
+                            for (int i=0;i<numComp;i++){
+                            	BindingComponent b = components.get(i);
+                            	int bIdx = b.getLocation().getLocation()-w.getStart();
+                            	double maxPP = 0;
+                            	for (int j=0;j<componentSpacing;j++){
+                            		int idx = bIdx+j;
+                            		if (idx>=pp.length)
+                            			idx = pp.length-1;
+                            		maxPP = Math.max(maxPP,pp[idx]);
+                            	}
+                            	pos_alpha[i]=maxPP;
+                            }
+                        }
+                        else{
+                        	for (int i=0;i<numComp;i++){
+                        		pos_alpha[i]=0;
                         	}
-                        	pos_alpha[i]=maxPP;
                         }
-                    }
-                    else{
-                    	for (int i=0;i<numComp;i++){
-                    		pos_alpha[i]=0;
-                    	}
-                    }
-                    // EM learning, components list will only contains non-zero components
-                    result = EMTrain(signals, bg_signals, alpha, pos_alpha);
-                    // log(4, componentSpacing+" bp\t"+(int)nonZeroComponents+" components.");
+                        // EM learning, components list will only contains non-zero components
+                        result = EMTrain(signals, bg_signals, alpha, pos_alpha);
+                        // log(4, componentSpacing+" bp\t"+(int)nonZeroComponents+" components.");
 
 //                    countIters++;
-                    //					System.out.printf("%s\tupdateIter\t%d\tnumComps\t%d\tnumNonZeroComps\t%d%n", w.toString(), countIters, numAllComps, components.size());
-                    // increase resolution
-                    if (componentSpacing==1)
-                        break;
-                    int lastResolution = componentSpacing;
-                    updateComponentResolution(w, numConditions, componentSpacing);
-                    if(componentSpacing==lastResolution)
-                        break;
-                } 	// end of while (resolution)
-                if (nonZeroComponentNum==0)	
-                	return null;
-                
-                setComponentResponsibilities(signals, result.car(), result.cdr());
+                        //					System.out.printf("%s\tupdateIter\t%d\tnumComps\t%d\tnumNonZeroComps\t%d%n", w.toString(), countIters, numAllComps, components.size());
+                        // increase resolution
+                        if (componentSpacing==1)
+                            break;
+                        int lastResolution = componentSpacing;
+                        updateComponentResolution(w, numConditions, componentSpacing);
+                        if(componentSpacing==lastResolution)
+                            break;
+                    } 	// end of while (resolution)
+                    if (nonZeroComponentNum!=0)
+                    	setComponentResponsibilities(signals, result.car(), result.cdr());
+                    if (checkpointKey!=null)
+                    	nextEmCheckpoints.put(checkpointKey, new EMCheckpoint(emInputs, alpha, componentSpacing, components));
+                    if (nonZeroComponentNum==0)	
+                    	return null;
+                }
                 if (kmac!=null)
                 	setEventKmerGroup(pp_kmer, w.getStart(), seq, seqStrand);
 
@@ -4559,7 +4859,7 @@ public class KPPMixture extends MultiConditionFeatureFinder {
          * purely matrix/array operations
          * After EM training, components list will only contains non-zero components
          */
-        private Pair<double[][][], int[][][]>  EMTrain(ArrayList<List<StrandedBase>> signals, ArrayList<List<StrandedBase>> bg_signals, double alpha, double[] pos_alpha){
+        private Pair<double[][][], int[][][]>  EMTrain(ArrayList<BaseSlice> signals, ArrayList<BaseSlice> bg_signals, double alpha, double[] pos_alpha){
             int numComp = components.size();
             // H function and responsibility will be stored using an indirect indexing method
             // Because only the components within the modelRange will have an effect, we only store those components around the reads
@@ -4584,44 +4884,20 @@ public class KPPMixture extends MultiConditionFeatureFinder {
             int minPlus=Integer.MAX_VALUE, maxPlus=Integer.MIN_VALUE,minMinus=Integer.MAX_VALUE, maxMinus=Integer.MIN_VALUE;
 
             for(int c=0; c<numConditions; c++){
-                List<StrandedBase> bases_input = signals.get(c);
-                List<StrandedBase> bases = new ArrayList<StrandedBase>();
+                BaseSlice bases_input = signals.get(c);
+                BaseSlice bases = null;
                 if (componentSpacing==1 || no_data_bin) {
                     bases = bases_input;
                 } else {		// merge read counts into data bin
-                    if (!bases_input.isEmpty()){
-                        char strand = '+';
-                        int pos = bases_input.get(0).getCoordinate()+componentSpacing/2;
-                        float count = 0;
-                        for (StrandedBase bb:bases_input){
-                            if (bb.getStrand()!=strand){
-                                if (count!=0)
-                                    bases.add(new StrandedBase(strand, pos, count));
-                                strand = '-';
-                                pos = bb.getCoordinate()+componentSpacing/2;
-                                count = 0;
-                            }
-                            if( bb.getCoordinate()>=pos-componentSpacing/2 &&
-                                bb.getCoordinate()<=pos+componentSpacing-componentSpacing/2-1){
-                                count += bb.getCount();
-                            }else{
-                                if (count!=0)
-                                    bases.add(new StrandedBase(strand, pos, count));
-                                count=bb.getCount();
-                                pos = bb.getCoordinate()+componentSpacing/2;
-                            }
-                        }
-                        if (count!=0)
-                            bases.add(new StrandedBase(strand, pos, count));
-                    }
+                    bases = bases_input.bin(componentSpacing);
                 }
 				
                 int numBases = bases.size();
 
                 // compute the range of the reads, to estimate the init prob. for bg component
                 for(int i=0;i<numBases;i++){
-                    int coord = bases.get(i).getCoordinate();
-                    if (bases.get(i).getStrand()=='+'){
+                    int coord = bases.getCoordinate(i);
+                    if (bases.getStrand(i)=='+'){
                     	if (coord<minPlus)
                     		minPlus = coord;
                     	if (coord>maxPlus)
@@ -4644,7 +4920,7 @@ public class KPPMixture extends MultiConditionFeatureFinder {
 
                 double[] countc= new double[numBases];
                 for(int i=0;i<numBases;i++)
-                    countc[i]=bases.get(i).getCount();
+                    countc[i]=bases.getCount(i);
                 counts[c]=countc;
 			
                 int[][] c2b_c = new int[numComp][];
@@ -4654,8 +4930,7 @@ public class KPPMixture extends MultiConditionFeatureFinder {
                     BindingComponent comp = components.get(j);
                     ArrayList<Integer> nzBases = new ArrayList<Integer>();
                     for(int i=0;i<numBases;i++){
-                        StrandedBase base = bases.get(i);
-                        int dist = base.getStrand()=='+' ? base.getCoordinate()-comp.getLocation().getLocation(): comp.getLocation().getLocation()-base.getCoordinate();
+                        int dist = bases.getStrand(i)=='+' ? bases.getCoordinate(i)-comp.getLocation().getLocation(): comp.getLocation().getLocation()-bases.getCoordinate(i);
                         prob_comp[i] = model.probability(dist);
                         if (prob_comp[i]>1e-10){
                             nzBases.add(i);
@@ -4685,40 +4960,39 @@ public class KPPMixture extends MultiConditionFeatureFinder {
                 
                 // background probability
                 if (config.noise_distribution==2 && controlDataExist){ //config.noise_distribution==2 smoothed shape using control data
-                	List<StrandedBase> ctrls = bg_signals.get(c);
+                	BaseSlice ctrls = bg_signals.get(c);
                 	double[] plusProfile = new double[Math.max(model.getRange(), maxPlus-minPlus+1)];
-                	for (StrandedBase base_ctrl: ctrls){
-                		if (base_ctrl.getStrand()=='+'){
-	                		int offset = base_ctrl.getCoordinate() - minPlus;
+                	for (int i=0;i<ctrls.size();i++){
+                		if (ctrls.getStrand(i)=='+'){
+	                		int offset = ctrls.getCoordinate(i) - minPlus;
 	                		if (offset>=0 && offset<plusProfile.length)
-	                			plusProfile[offset] = base_ctrl.getCount();
+	                			plusProfile[offset] = ctrls.getCount(i);
                 		}
                 	}
                 	for (int i=0;i<plusProfile.length;i++)			// pseudo-count to deal with 0 ctrl reads
-                		plusProfile[i] += StrandedBase.countBaseHits(ctrls)/plusProfile.length;
+                		plusProfile[i] += ctrls.countHits()/plusProfile.length;
 //                	System.out.println();
 //                	System.out.println(CommonUtils.arrayToString(plusProfile, "%.4f"));
                 	plusProfile = StatUtil.symmetricKernelSmoother(plusProfile, gaussian);
 //                	System.out.println(CommonUtils.arrayToString(plusProfile, "%.4f"));
                 	double[] minusProfile = new double[Math.max(model.getRange(), maxMinus-minMinus+1)];
-                	for (StrandedBase base_ctrl: ctrls){
-                		if (base_ctrl.getStrand()=='-'){
-	                		int offset = base_ctrl.getCoordinate() - minMinus;
+                	for (int i=0;i<ctrls.size();i++){
+                		if (ctrls.getStrand(i)=='-'){
+	                		int offset = ctrls.getCoordinate(i) - minMinus;
 	                		if (offset>=0 && offset<minusProfile.length)
-	                			minusProfile[offset] = base_ctrl.getCount();
+	                			minusProfile[offset] = ctrls.getCount(i);
                 		}
                 	}
                 	for (int i=0;i<minusProfile.length;i++)			// pseudo-count to deal with 0 ctrl reads
-                		minusProfile[i] += StrandedBase.countBaseHits(ctrls)/minusProfile.length;
+                		minusProfile[i] += ctrls.countHits()/minusProfile.length;
                 	minusProfile = StatUtil.symmetricKernelSmoother(minusProfile, gaussian);
                 	
                 	double [] prob_bg_c = new double[numBases];
                 	for(int i=0;i<numBases;i++){
-                		StrandedBase base = bases.get(i);
-                		if (base.getStrand()=='+')
-                			prob_bg_c[i] = plusProfile[base.getCoordinate()-minPlus];
+                		if (bases.getStrand(i)=='+')
+                			prob_bg_c[i] = plusProfile[bases.getCoordinate(i)-minPlus];
                 		else
-                			prob_bg_c[i] = minusProfile[base.getCoordinate()-minMinus];
+                			prob_bg_c[i] = minusProfile[bases.getCoordinate(i)-minMinus];
                 	}
 	                prob_bg[c] = prob_bg_c;
                 }
@@ -4737,7 +5011,11 @@ public class KPPMixture extends MultiConditionFeatureFinder {
             //////////
             // Run EM steps
             //////////
-            Pair<double[][][], Double> result = EM_MAP(counts, h, r, b, c2b, pi, alpha, pos_alpha, prob_bg);
+            Pair<double[][][], Double> result = null;
+            if (config.check_em_kernel)
+            	result = EM_MAP_check(counts, h, r, b, c2b, pi, alpha, pos_alpha, prob_bg);
+            else
+            	result = EM_MAP_flat(counts, h, r, b, c2b, pi, alpha, pos_alpha, prob_bg);
             r = result.car();
             double noiseProb = result.cdr();
             //////////
@@ -4831,7 +5109,7 @@ public class KPPMixture extends MultiConditionFeatureFinder {
          * @param prob_bg Background probability per base for each condition
          * @return responsibilities and pi_bg
          */
-        private Pair<double[][][], Double> EM_MAP(  	double[][]   counts,
+        Pair<double[][][], Double> EM_MAP(  	double[][]   counts,
                                                         double[][][] h,
                                                         double[][][] r,
                                                         double[][]   b,
@@ -5405,6 +5683,611 @@ public class KPPMixture extends MultiConditionFeatureFinder {
             return new Pair<double[][][], Double>(r, pi_bg);
         }//end of EM_MAP method
 
+        /** 
+         * Flat-array version of EM_MAP(), numerically identical to it. <br>
+         * c2b, h and the responsibilities of each condition are packed in CSR style 
+         * (component j owns entries em_offsets[c][j] to em_offsets[c][j+1]-1) into per-thread
+         * buffers that are reused across windows, so the EM iterations do not allocate memory
+         * except for the model selection states. 
+         * The final responsibilities are copied back into r, the other parameters are updated 
+         * in the same way as EM_MAP().
+         */
+        Pair<double[][][], Double> EM_MAP_flat(	double[][]   counts,
+                                                        double[][][] h,
+                                                        double[][][] r,
+                                                        double[][]   b,
+                                                        int[][][] c2b,
+                                                        double[] pi,
+                                                        double alpha,
+                                                        double[] pos_alpha, 
+                                                        double[][] prob_bg) {
+        	
+        	boolean model_noise = config.noise_distribution !=0;
+        	int numComp = pi.length;
+        	
+        	double totalCounts = 0;
+        	for (int i=0;i<counts.length;i++){
+        		for (int j=0;j<counts[i].length;j++)
+        			totalCounts += counts[i][j];
+        	}
+        	
+        	// pack the jagged arrays into the flat buffers
+        	if (em_offsets.length<numConditions){
+        		em_offsets = new int[numConditions][];
+        		em_bases = new int[numConditions][];
+        		em_h = new double[numConditions][];
+        		em_r = new double[numConditions][];
+        	}
+        	int maxBases = 0;
+        	for(int c=0; c<numConditions; c++){
+        		int[] offsets = em_offsets[c] = ensureCapacity(em_offsets[c], numComp+1);
+        		int size = 0;
+        		for (int j=0;j<numComp;j++){
+        			offsets[j] = size;
+        			size += c2b[c][j].length;
+        		}
+        		offsets[numComp] = size;
+        		em_bases[c] = ensureCapacity(em_bases[c], size);
+        		em_h[c] = ensureCapacity(em_h[c], size);
+        		em_r[c] = ensureCapacity(em_r[c], size);
+        		for (int j=0;j<numComp;j++){
+        			System.arraycopy(c2b[c][j], 0, em_bases[c], offsets[j], c2b[c][j].length);
+        			System.arraycopy(h[c][j], 0, em_h[c], offsets[j], c2b[c][j].length);
+        			System.arraycopy(r[c][j], 0, em_r[c], offsets[j], c2b[c][j].length);
+        		}
+        		maxBases = Math.max(maxBases, counts[c].length);
+        	}
+        	em_totalResp = ensureCapacity(em_totalResp, maxBases);
+        	em_jsum = ensureCapacity(em_jsum, maxBases);
+        	em_contrib = ensureCapacity(em_contrib, maxBases);
+        	em_nzComps = ensureCapacity(em_nzComps, numComp);
+        	double[] totalResp = em_totalResp;
+        	double[] jsum = em_jsum;
+        	double[] contrib = em_contrib;
+        	
+            ArrayList<EM_State> models = new  ArrayList<EM_State> ();
+
+            // variable for bg (noise) component
+            double[] b_bg = new double[numConditions];
+            double pi_bg = 0;
+            if (model_noise)
+            	pi_bg = background_proportion;
+            double pi_signal=1-pi_bg;
+            double [][] r_bg = new double[numConditions][];	// [cond][base]
+            for(int c=0; c<numConditions; c++){
+            	r_bg[c] = new double[counts[c].length];
+            	b_bg[c] = 1.0/numConditions;
+            }
+            if (model_noise){
+            	for (int j=0;j<numComp;j++){
+            		pi[j]=pi[j] * pi_signal;
+            	}
+            	for(int c=0; c<numConditions; c++){
+            		double[] rc = em_r[c];
+            		int size = em_offsets[c][numComp];
+            		for(int i=0;i<size;i++)
+            			rc[i] *= pi_signal;
+            	}
+            	for(int c=0; c<numConditions; c++){
+            		for(int i=0;i<r_bg[c].length;i++)
+            			r_bg[c][i] = prob_bg[c][i] * pi_bg * b_bg[c];
+            	}
+            }
+            
+            boolean hasPP = false;
+            for (double p_a:pos_alpha){
+            	if (p_a!=0){
+            		hasPP = true;
+            		break;
+            	}
+            }
+            if (config.print_PI){
+            	System.out.println(alpha+"\t"+CommonUtils.arrayToString(pos_alpha, "%.4f"));
+            	System.out.println(-1+"\t"+CommonUtils.arrayToString(pi, "%.4f")+
+            			(model_noise?String.format("\t%.2f",pi_bg):""));
+            }
+            
+            double lastLAP=0, LAP=0; // log posterior prob
+            int t=0;
+            double currAlpha = alpha/config.gentle_elimination_factor;
+            double effectiveAlpha = 0;	// the real Alpha applied to compute pi (may be different from currAlpha because of the dynamic elimination schedule)
+            
+            double minProb = 1.0/(numComp*2);		// in ML speedup, threshold to eliminate ML components, length*2 to make sure it is smaller than 1/m
+            double maxMinProb = currAlpha / totalCounts;		// the max minProb is bound by alpha
+            
+            boolean minElimination = false;
+            int gentleCounts = 0; 	// count the iterations that we run on gentle mode after last elimination
+            // index of non-zero components, used to iterate components
+            int[] nzComps = em_nzComps;
+            int nzCount = numComp;
+            for (int j=0;j<numComp;j++){
+                nzComps[j] = j;
+            }
+            log(5, nonZeroComponentNum+" ");            
+            
+            // get the background probability if a read is out of range of the event
+            double baselineProb = Math.min(model.probability(model.getMax()),
+                                     model.probability(model.getMin()));
+            
+            //Run EM
+            for(t=0; t<constants.MAX_EM_ITER ; t++){
+                lastLAP=LAP;
+
+                //////////
+                //Semi-E-step (presumes unnormalized responsibilities have been calculated)
+                //Simply normalize responsibilities here
+                //////////
+                for(int c=0; c<numConditions; c++){
+                    int[] offsets = em_offsets[c];
+                    int[] baseIdx = em_bases[c];
+                    double[] rc = em_r[c];
+                    int numBases = counts[c].length;
+                    Arrays.fill(totalResp, 0, numBases, 0);
+                    
+                    // sum
+                    for(int jnz=0;jnz<nzCount;jnz++){
+                    	int j = nzComps[jnz];
+                        for(int i=offsets[j];i<offsets[j+1];i++)
+                            totalResp[baseIdx[i]] += rc[i];
+                    }
+                    if (model_noise && pi_bg!=0){
+	                    for(int i=0;i<numBases;i++){
+	                    	totalResp[i] += r_bg[c][i];
+	                    }
+                	}
+                    
+                    // normalize
+                    for(int jnz=0;jnz<nzCount;jnz++){
+                    	int j = nzComps[jnz];
+                        for(int i=offsets[j];i<offsets[j+1];i++)
+                            if (totalResp[baseIdx[i]]>0)
+                                rc[i] = rc[i]/totalResp[baseIdx[i]];
+                    }
+                    if (model_noise && pi_bg!=0){
+	                    for(int i=0;i<numBases;i++){
+	                    	r_bg[c][i] = r_bg[c][i]/totalResp[i];
+	                    }
+                	}
+                }
+
+                //////////
+                //M-step
+                //////////
+
+                //Pi
+                // ML: standard EM
+                if (t<=config.ML_ITER || currAlpha==0){
+                    for(int jnz=0;jnz<nzCount;jnz++){
+                    	int j = nzComps[jnz];
+                        pi[j]=sumWeightedResponsibility(counts, j);    // standard EM ML
+                    }
+                }
+                // MAP: EM with sparce prior
+                else {
+                    if (constants.BATCH_ELIMINATION){
+                        if (t >config.ML_ITER && t <= constants.ANNEALING_ITER)
+                            currAlpha = alpha * (t-config.ML_ITER)/(constants.ANNEALING_ITER-config.ML_ITER);
+                        else
+                            currAlpha = alpha;
+                        effectiveAlpha = currAlpha;
+                        for(int jnz=0;jnz<nzCount;jnz++){
+                        	int j = nzComps[jnz];
+                            double r_sum=sumWeightedResponsibility(counts, j);
+
+                            // component elimination
+                            pi[j]=Math.max(0,r_sum-currAlpha+pos_alpha[j]);
+
+                            // if component prob becomes 0, clear responsibility
+                            if (pi[j]==0)
+                            	clearResponsibility(j);
+                        }
+                    }else{ 	//batch_elimination is false
+                        // eliminate only the worst cases
+                        // redistribute to boost neighbor component by next round of EM
+                        double r_sum[]=new double[nzCount];
+                        for(int jnz=0;jnz<r_sum.length;jnz++){
+                            r_sum[jnz] = sumWeightedResponsibility(counts, nzComps[jnz]);
+                            r_sum[jnz] += pos_alpha[nzComps[jnz]];	// adding positional prior as pseudo-count
+                        }
+                        if (gentleCounts>=config.gentle_elimination_iterations && currAlpha<alpha )
+                            currAlpha=Math.min(alpha, currAlpha*2);
+            		
+                        // find the worst components
+                        Pair<Double, TreeSet<Integer>> worst=null;	// worst components
+                        if ( (!minElimination) && (componentSpacing!=1))
+                            worst = findSmallestCases(r_sum, currAlpha);
+                        else
+                            worst = StatUtil.findMin(r_sum);
+                        if (worst.car() > currAlpha){
+                            // no component to be eliminated, update pi(j)
+                            for(int jnz=0;jnz<r_sum.length;jnz++)
+                                pi[nzComps[jnz]]=r_sum[jnz]-currAlpha;	// not normailzed yet
+                            // stop Smallest cases elimination, only eliminate min from now on
+                            minElimination = true;
+                            gentleCounts ++;
+                            effectiveAlpha = currAlpha;
+                        }else{
+                            // eliminate worst case components, could be 1 or multiple components
+                            // not apply alpha here, redistribute responsibilities in next E step
+                        	for(int jnz=0;jnz<r_sum.length;jnz++){
+	                            if (worst.cdr().contains(jnz)){
+	                                pi[nzComps[jnz]]=0;                        	
+	                                clearResponsibility(nzComps[jnz]);
+	                            }
+	                            else
+	                            	pi[nzComps[jnz]]=r_sum[jnz];	// not normailzed, not apply alpha
+                        	}
+                        	effectiveAlpha = worst.car();
+                            // keep iterating on this Alpha value, until converge, then we raise it up to eliminate next one
+                            currAlpha = Math.max(worst.car(), alpha/config.gentle_elimination_factor/2);
+                            gentleCounts = 0;
+                        }
+                    }
+                }
+                // BG component computation is the same for either ML or MAP
+                if (model_noise && pi_bg!=0){
+                	double r_bg_sum=0;
+                	for(int c=0; c<numConditions; c++){
+                		for(int i=0;i<r_bg[c].length;i++)
+                			r_bg_sum += r_bg[c][i]*counts[c][i];
+                	}
+                	pi_bg = r_bg_sum-effectiveAlpha;
+                	if (pi_bg<0)
+                		pi_bg = 0;
+                }
+                // normalize pi
+                double totalPi=0;
+                for(int j=0;j<numComp;j++){
+                    if (pi[j]!=0){
+                        totalPi+=pi[j];
+                    }
+                }      
+                if (model_noise && pi_bg!=0){
+                	totalPi+=pi_bg;
+                }
+                if (totalPi!=0){
+                    for(int jnz=0;jnz<nzCount;jnz++){
+                        pi[nzComps[jnz]]=pi[nzComps[jnz]]/totalPi;
+                    }                
+                    if (model_noise && pi_bg!=0){
+                    	pi_bg/=totalPi;
+                    }
+                }
+                // EM speed up, eliminate components with probability less than initial avg prob.
+                // Only do this for coase spacing, which has more components
+                if (t<=config.ML_ITER && componentSpacing!=1 && config.ML_speedup){
+                	boolean eliminated = false;
+                	for(int jnz=0;jnz<nzCount;jnz++){
+                		int j = nzComps[jnz];
+                		if (pi[j]<minProb && pos_alpha[j]==0){
+                			// eliminate component, clear responsibility
+                			pi[j]=0;
+                			eliminated = true;
+                			clearResponsibility(j);
+                		}
+                	}
+                	if (eliminated){
+	                	 // normalize pi here again
+	                    totalPi=0;
+	                    for(int jnz=0;jnz<nzCount;jnz++){
+	                        if (pi[nzComps[jnz]]!=0){
+	                            totalPi+=pi[nzComps[jnz]];
+	                        }
+	                    }      
+	                    if (model_noise){
+	                    	totalPi+=pi_bg;
+	                    }       	
+	                    if (totalPi!=0){
+	                        for(int jnz=0;jnz<nzCount;jnz++){
+	                            pi[nzComps[jnz]]=pi[nzComps[jnz]]/totalPi;
+	                        }
+		                    if (model_noise){
+		                    	pi_bg/=totalPi;
+		                    }
+	                    }
+                	}
+                	else{	// not eliminated, double minProb
+                		if (minProb*2<maxMinProb)
+                			minProb *= 2;
+                	}
+                }
+                
+                // update component count
+                nzCount = 0;
+                for(int j=0;j<numComp;j++){
+                    if (pi[j]!=0){
+                        nzComps[nzCount++] = j;
+                    }
+                }
+                nonZeroComponentNum = nzCount;
+                if (nonZeroComponentNum==0)
+                	break;
+                
+                if (config.print_PI)
+                	System.out.println(t+"\t"+CommonUtils.arrayToString(pi, "%.4f")+
+                			(model_noise?String.format("\t%.4f",pi_bg):""));
+
+                //Beta parameters
+                if(numConditions>1){
+                    for(int jnz=0;jnz<nzCount;jnz++){
+                    	int j = nzComps[jnz];
+                        double b_sum=0;
+                        for(int c=0; c<numConditions; c++){
+                            double sum_i=0;		// sum over i
+                            int[] offsets = em_offsets[c];
+                            int[] baseIdx = em_bases[c];
+                            double[] rc = em_r[c];
+                            for(int i=offsets[j];i<offsets[j+1];i++)
+                                sum_i += rc[i]*counts[c][baseIdx[i]];	
+
+                            b[c][j]=sum_i;
+                            b_sum+=sum_i;
+                        }
+
+                        // normalize across conditions
+                        if (b_sum!=0){
+                            for(int c=0; c<numConditions; c++){
+                                b[c][j] /= b_sum;
+                            }
+                        }
+                    } 
+                    if (model_noise && pi_bg!=0){
+                    	double r_bg_sum=0;
+                    	for(int c=0; c<numConditions; c++){
+                    		double b_bg_c = 0;
+                    		for(int i=0;i<r_bg[c].length;i++)
+                    			b_bg_c += r_bg[c][i]*counts[c][i];
+                    		b_bg[c] = b_bg_c;
+                    		r_bg_sum += b_bg_c;
+                    	}
+                    	// normalize across conditions
+                        if (r_bg_sum!=0){
+                            for(int c=0; c<numConditions; c++){
+                            	b_bg[c] /= r_bg_sum;
+                            }
+                        }
+                    }
+                }
+
+                //Semi-E-step:Calculate next un-normalized responsibilities
+                for(int jnz=0;jnz<nzCount;jnz++){
+                	int j = nzComps[jnz];
+                    for(int c=0; c<numConditions; c++){
+                    	int[] offsets = em_offsets[c];
+                    	double[] rc = em_r[c];
+                    	double[] hc = em_h[c];
+                    	double pb = pi[j]*b[c][j];
+                        for(int i=offsets[j];i<offsets[j+1];i++)
+                            rc[i] = pb*hc[i];
+                    }
+                }
+                if (model_noise && pi_bg!=0){
+	            	for(int c=0; c<numConditions; c++){
+	            		for(int i=0;i<r_bg[c].length;i++)
+	            			r_bg[c][i] = prob_bg[c][i] * pi_bg * b_bg[c];
+	            	}
+                }
+
+                //Log-likelihood calculation
+                // for each read, each event will give a conditional prob or bg prob
+                // the probs are added in the component order for every base, as in EM_MAP()
+                double LL =0;
+                for(int c=0; c<numConditions; c++){
+                	int numBases = counts[c].length;
+                	int[] offsets = em_offsets[c];
+                	int[] baseIdx = em_bases[c];
+                	double[] rc = em_r[c];
+                	Arrays.fill(jsum, 0, numBases, 0);
+                	for(int jnz=0;jnz<nzCount;jnz++){
+                		int j = nzComps[jnz];
+                		Arrays.fill(contrib, 0, numBases, pi[j]*b[c][j]*baselineProb);
+                		for(int i=offsets[j];i<offsets[j+1];i++)
+                			if (rc[i]!=0)
+                				contrib[baseIdx[i]] = rc[i];
+                		for(int i=0;i<numBases;i++)
+                			jsum[i] += contrib[i];
+                	}
+                    for(int i=0;i<numBases;i++){
+                        double j_sum = jsum[i];
+                        if (model_noise && pi_bg!=0){
+                        	j_sum += r_bg[c][i];
+                        }
+                        if (j_sum!=0)
+                            LL += Math.log(j_sum)*counts[c][i];
+                    }
+                }
+                // log prior
+                double LP=0;
+                for(int jnz=0;jnz<nzCount;jnz++)
+                    if (pi[nzComps[jnz]]!=0)
+                        LP+=(pos_alpha[nzComps[jnz]]-currAlpha)*Math.log(pi[nzComps[jnz]]);		// positional prior and sparse prior
+                //add sparse prior for noise component
+                if (model_noise && pi_bg!=0){
+                	LP += -effectiveAlpha * Math.log(pi_bg);
+                }
+                LAP = LL+LP;
+
+                if (t<2 || Math.abs(LAP-lastLAP)>constants.EM_CONVERGENCE){
+                    continue;
+                }
+                else{
+                    // if converge on smallest alpha, raise one level
+                    if (currAlpha<alpha/config.gentle_elimination_factor){
+                        currAlpha = alpha/config.gentle_elimination_factor;
+                        continue;
+                    }
+                    // if converge on a smaller alpha value
+                    if (currAlpha<alpha){
+                        currAlpha = alpha;		// raise alpha, it may come down again after eliminating the next comp
+                        continue;
+                    }
+                    // else: converge on full alpha value
+                    if (componentSpacing==1 && config.do_model_selection && (!constants.BATCH_ELIMINATION)){
+                        // BIC model selection to decide which solution is better
+                        // 1. save the state
+                        EM_State state = new EM_State(numConditions);
+                        state.LAP = LAP;		// LAP for penalized likelihood
+                        state.numComponent = nonZeroComponentNum;
+                        state.resp_flat = new double[numConditions][];
+                        for (int c=0;c<numConditions;c++){
+                            state.resp_flat[c] = Arrays.copyOf(em_r[c], em_offsets[c][numComp]);
+                        }
+                        for (int c=0;c<numConditions;c++){
+                            state.beta[c]=b[c].clone();
+                        }
+                        state.pi = pi.clone();
+                        if (model_noise){
+                        	for (int c=0;c<numConditions;c++){
+                        		state.resp_bg[c]=r_bg[c].clone();
+                        	}
+                            state.beta_bg = b_bg.clone();
+                            state.pi_bg = pi_bg;
+                        }
+
+                        models.add(state);
+                        //2. more than one component left, raise alpha, continue EM
+                        if (nonZeroComponentNum>1){
+                            currAlpha *= 2;
+                            continue;
+                        } else	// single component left, done
+                            break;
+                    } else // if at 5bp resolution step, done with EM
+                        break;
+                }
+            } //LOOP: Run EM while not converged
+
+            if (componentSpacing==1 && config.do_model_selection && models.size()>=1 && (!constants.BATCH_ELIMINATION)){
+                // BIC model selection to decide which solution is better
+                // 3. find best solution
+                double totalBaseCount = 0;
+                for(int c=0; c<numConditions; c++){
+                    totalBaseCount += counts[c].length;
+                }
+
+                int best = 0;
+                double bestBIC = models.get(0).BIC(totalBaseCount, hasPP);
+                for (int i=1;i<models.size();i++){
+                    double bic = models.get(i).BIC(totalBaseCount, hasPP);
+                    if (bestBIC <= bic){
+                        best = i;
+                        bestBIC = bic;
+                    }
+                }
+                // copy the best model state back, as in EM_MAP() the caller's beta are not replaced
+                EM_State bestModel = models.get(best);
+                for (int c=0;c<numConditions; c++){
+                    System.arraycopy(bestModel.resp_flat[c], 0, em_r[c], 0, bestModel.resp_flat[c].length);
+                }
+                nzCount = 0;
+                for (int j=0;j<numComp;j++){
+                    pi[j] = bestModel.pi[j];
+                    if (pi[j]!=0)
+                        nzComps[nzCount++] = j;
+                }
+                nonZeroComponentNum = nzCount;
+                if (model_noise){
+                    pi_bg = bestModel.pi_bg;
+                }
+            }
+            
+            // normalize responsibilities here, with all real components only
+            for(int c=0; c<numConditions; c++){
+                int[] offsets = em_offsets[c];
+                int[] baseIdx = em_bases[c];
+                double[] rc = em_r[c];
+                int numBases = counts[c].length;
+                Arrays.fill(totalResp, 0, numBases, 0);
+                // sum                
+                for(int jnz=0;jnz<nzCount;jnz++){
+                	int j = nzComps[jnz];
+                    for(int i=offsets[j];i<offsets[j+1];i++)
+                        totalResp[baseIdx[i]] += rc[i];
+                }
+                // normalize
+                for(int jnz=0;jnz<nzCount;jnz++){
+                	int j = nzComps[jnz];
+                    for(int i=offsets[j];i<offsets[j+1];i++)
+                        if (totalResp[baseIdx[i]]>0)
+                            rc[i] = rc[i]/totalResp[baseIdx[i]];
+                }
+                // copy back to the jagged responsibilities
+                for (int j=0;j<numComp;j++){
+                	System.arraycopy(rc, offsets[j], r[c][j], 0, r[c][j].length);
+                }
+            }
+
+            log(4, "EM_MAP_flat(): "+"\tt="+t+"\t"+
+                        String.format("%.6f",LAP)+"\t("+nonZeroComponentNum+" events)");
+
+            return new Pair<double[][][], Double>(r, pi_bg);
+        }//end of EM_MAP_flat method
+        
+        // sum of responsibility-weighted read counts of component j over all conditions, from the flat buffers
+        private double sumWeightedResponsibility(double[][] counts, int j){
+        	double r_sum=0;
+        	for(int c=0; c<numConditions; c++){
+        		int[] offsets = em_offsets[c];
+        		int[] baseIdx = em_bases[c];
+        		double[] rc = em_r[c];
+        		for(int i=offsets[j];i<offsets[j+1];i++)
+        			r_sum += rc[i]*counts[c][baseIdx[i]];
+        	}
+        	return r_sum;
+        }
+        
+        // clear the responsibilities of component j in the flat buffers
+        private void clearResponsibility(int j){
+        	for(int c=0; c<numConditions; c++)
+        		Arrays.fill(em_r[c], em_offsets[c][j], em_offsets[c][j+1], 0);
+        }
+        
+        private int[] ensureCapacity(int[] buffer, int size){
+        	if (buffer!=null && buffer.length>=size)
+        		return buffer;
+        	return new int[Math.max(size, buffer==null?0:buffer.length*2)];
+        }
+        
+        private double[] ensureCapacity(double[] buffer, int size){
+        	if (buffer!=null && buffer.length>=size)
+        		return buffer;
+        	return new double[Math.max(size, buffer==null?0:buffer.length*2)];
+        }
+        
+        /**
+         * Regression check of the EM kernels: run EM_MAP() on copies of the inputs, 
+         * then EM_MAP_flat() on the inputs, and report any difference in the results. 
+         * The results of EM_MAP_flat() are returned.
+         */
+        private Pair<double[][][], Double> EM_MAP_check(double[][] counts, double[][][] h, double[][][] r, double[][] b,
+        		int[][][] c2b, double[] pi, double alpha, double[] pos_alpha, double[][] prob_bg) {
+        	double[][][] r_ref = new double[r.length][][];
+        	for (int c=0;c<r.length;c++){
+        		r_ref[c] = new double[r[c].length][];
+        		for (int j=0;j<r[c].length;j++)
+        			r_ref[c][j] = r[c][j].clone();
+        	}
+        	double[][] b_ref = new double[b.length][];
+        	for (int c=0;c<b.length;c++)
+        		b_ref[c] = b[c].clone();
+        	double[] pi_ref = pi.clone();
+        	int nonZeroComponentNum_init = nonZeroComponentNum;
+        	
+        	Pair<double[][][], Double> ref = EM_MAP(counts, h, r_ref, b_ref, c2b, pi_ref, alpha, pos_alpha, prob_bg);
+        	int nonZeroComponentNum_ref = nonZeroComponentNum;
+        	nonZeroComponentNum = nonZeroComponentNum_init;
+        	Pair<double[][][], Double> result = EM_MAP_flat(counts, h, r, b, c2b, pi, alpha, pos_alpha, prob_bg);
+        	
+        	boolean same = nonZeroComponentNum==nonZeroComponentNum_ref && ref.cdr().equals(result.cdr()) && Arrays.equals(pi, pi_ref);
+        	for (int c=0;c<r.length && same;c++){
+        		same = Arrays.equals(b[c], b_ref[c]);
+        		for (int j=0;j<r[c].length && same;j++)
+        			same = Arrays.equals(ref.car()[c][j], result.car()[c][j]);
+        	}
+        	if (!same)
+        		System.err.println("ERROR: EM_MAP_flat() result differs from EM_MAP() with "+pi.length+" components at "+componentSpacing+" bp spacing.");
+        	return result;
+        }
+
         //Update the resolution of the components
         //Add new components in around non-zero components
         private void updateComponentResolution(Region currReg, int numCond, int lastResolution){
@@ -5523,14 +6406,14 @@ public class KPPMixture extends MultiConditionFeatureFinder {
         }
         
         // This is for beta EM method
-        private void setComponentResponsibilities(ArrayList<List<StrandedBase>> signals, 
+        private void setComponentResponsibilities(ArrayList<BaseSlice> signals, 
                                                   double[][][] responsibilities, int[][][] c2b) {
             // Set responsibility profile for each component (for kernel density and KL calculation)
             for(int j=0;j<components.size();j++){
                 BindingComponent comp = components.get(j);
                 int jr = comp.getOld_index();
                 for(int c=0; c<numConditions; c++){
-                    List<StrandedBase> bases = signals.get(c);
+                    BaseSlice bases = signals.get(c);
                     double[][] rc = responsibilities[c];
 
                     // store binding profile (read responsibilities in c condition) of this component
@@ -5538,13 +6421,12 @@ public class KPPMixture extends MultiConditionFeatureFinder {
                     double[] profile_minus = new double[modelWidth];
                     for(int i=0;i<c2b[c][jr].length;i++){
                         int base_idx = c2b[c][jr][i];
-                        StrandedBase base = bases.get(base_idx);
                         if (rc[jr][i]>0){
                             try{
-                                if (base.getStrand()=='+')
-                                    profile_plus[base.getCoordinate()-comp.getLocation().getLocation()-model.getMin()]=rc[jr][i]*base.getCount();
+                                if (bases.getStrand(base_idx)=='+')
+                                    profile_plus[bases.getCoordinate(base_idx)-comp.getLocation().getLocation()-model.getMin()]=rc[jr][i]*bases.getCount(base_idx);
                                 else
-                                    profile_minus[comp.getLocation().getLocation()-base.getCoordinate()-model.getMin()]=rc[jr][i]*base.getCount();
+                                    profile_minus[comp.getLocation().getLocation()-bases.getCoordinate(base_idx)-model.getMin()]=rc[jr][i]*bases.getCount(base_idx);
                             }
                             catch (Exception e){
                             }
@@ -5560,6 +6442,7 @@ public class KPPMixture extends MultiConditionFeatureFinder {
             double[][][] resp;
             double[][]beta;
             double[] pi;
+            double[][] resp_flat;		// [cond][flat component-base entries], used by EM_MAP_flat()
             double[][] resp_bg;
             double[]beta_bg;
             double pi_bg;
@@ -5595,6 +6478,140 @@ public class KPPMixture extends MultiConditionFeatureFinder {
         }
     }
     
+    private static boolean isZero(double[] x){
+    	for (double v: x)
+    		if (v!=0)
+    			return false;
+    	return true;
+    }
+    
+    /**
+     * The inputs of the EM of a round that are shared by all windows: the binding model and the noise proportion
+     */
+    private class EMInputs{
+    	int modelMin;
+    	double[] modelProbs;
+    	double background_proportion;
+    	EMInputs(BindingModel model, double background_proportion){
+    		modelMin = model.getMin();
+    		modelProbs = new double[model.getMax()-model.getMin()+1];
+    		for (int i=0;i<modelProbs.length;i++)
+    			modelProbs[i] = model.probability(modelMin+i);
+    		this.background_proportion = background_proportion;
+    	}
+    	/** 
+    	 * same model range, the model probabilities differ by at most tol of the largest probability, 
+    	 * and the noise proportion differs by at most tol of its value 
+    	 */
+    	boolean matches(EMInputs in, double tol){
+    		if (in==this)
+    			return true;
+    		if (modelMin!=in.modelMin || modelProbs.length!=in.modelProbs.length)
+    			return false;
+    		if (Math.abs(background_proportion-in.background_proportion)>tol*background_proportion)
+    			return false;
+    		double max = 0;
+    		for (int i=0;i<modelProbs.length;i++)
+    			max = Math.max(max, modelProbs[i]);
+    		for (int i=0;i<modelProbs.length;i++)
+    			if (Math.abs(modelProbs[i]-in.modelProbs[i])>tol*max)
+    				return false;
+    		return true;
+    	}
+    }
+    
+    /**
+     * The EM result of a window, before the k-mer groups are assigned, 
+     * kept to be reused in the next round if the inputs of the window have not changed.
+     */
+    private class EMCheckpoint{
+    	EMInputs inputs;
+    	double alpha;
+    	int componentSpacing;
+    	Point[] positions;
+    	Point[] emPositions;
+    	char[] strands;
+    	double[] mixProbs;
+    	double[][] betas;
+    	double[][] sumResps;
+    	double[][][] profiles_plus;
+    	double[][][] profiles_minus;
+    	int[] oldIndexes;
+    	double[] alphas;
+    	double[] noiseFractions;
+    	
+    	EMCheckpoint(EMInputs inputs, double alpha, int componentSpacing, List<BindingComponent> comps){
+    		this.inputs = inputs;
+    		this.alpha = alpha;
+    		this.componentSpacing = componentSpacing;
+    		int n = comps.size();
+    		positions = new Point[n];
+    		emPositions = new Point[n];
+    		strands = new char[n];
+    		mixProbs = new double[n];
+    		betas = new double[n][numConditions];
+    		sumResps = new double[n][];
+    		profiles_plus = new double[n][][];
+    		profiles_minus = new double[n][][];
+    		oldIndexes = new int[n];
+    		alphas = new double[n];
+    		noiseFractions = new double[n];
+    		for (int i=0;i<n;i++){
+    			BindingComponent b = comps.get(i);
+    			positions[i] = b.getLocation();
+    			emPositions[i] = b.getEMPosition();
+    			strands[i] = b.getStrand();
+    			mixProbs[i] = b.getMixProb();
+    			for (int c=0;c<numConditions;c++)
+    				betas[i][c] = b.getConditionBeta(c);
+    			sumResps[i] = b.getSumResponsibility().clone();
+    			profiles_plus[i] = copy(b.getReadProfile_plus());
+    			profiles_minus[i] = copy(b.getReadProfile_minus());
+    			oldIndexes[i] = b.getOld_index();
+    			alphas[i] = b.getAlpha();
+    			noiseFractions[i] = b.getNoiseFraction();
+    		}
+    	}
+    	
+    	boolean matches(EMInputs in, double alpha, double tol){
+    		return this.alpha==alpha && inputs.matches(in, tol);
+    	}
+    	
+    	/** new components with the current binding model */
+    	ArrayList<BindingComponent> restoreComponents(){
+    		ArrayList<BindingComponent> comps = new ArrayList<BindingComponent>();
+    		for (int i=0;i<positions.length;i++){
+    			BindingComponent b = new BindingComponent(model, positions[i], numConditions);
+    			b.setEMPosition(emPositions[i]);
+    			b.setStrand(strands[i]);
+    			b.setMixProb(mixProbs[i]);
+    			for (int c=0;c<numConditions;c++)
+    				b.setConditionBeta(c, betas[i][c]);
+    			b.setSumResponsibility(sumResps[i].clone());
+    			if (profiles_plus[i]!=null){
+    				for (int c=0;c<numConditions;c++){
+    					b.setReadProfile(c, profiles_plus[i][c].clone(), '+');
+    					b.setReadProfile(c, profiles_minus[i][c].clone(), '-');
+    				}
+    			}
+    			b.setOld_index(oldIndexes[i]);
+    			b.setAlpha(alphas[i]);
+    			b.setNoiseFraction(noiseFractions[i]);
+    			comps.add(b);
+    		}
+    		return comps;
+    	}
+    	
+    	private double[][] copy(double[][] x){
+    		if (x==null)
+    			return null;
+    		double[][] y = new double[x.length][];
+    		for (int i=0;i<x.length;i++)
+    			y[i] = x[i].clone();
+    		return y;
+    	}
+    }
+    
     private class KmerPP implements Comparable<KmerPP>{
     	Point coor;
     	KmerGroup kmerMatches;
@@ -0,0 +1,148 @@
+package edu.mit.csail.cgs.deepseq.discovery;
+
+import java.io.*;
+import java.util.*;
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import edu.mit.csail.cgs.datasets.general.Point;
+import edu.mit.csail.cgs.datasets.species.Genome;
+import edu.mit.csail.cgs.deepseq.BindingModel;
+import edu.mit.csail.cgs.deepseq.features.BindingComponent;
+import edu.mit.csail.cgs.deepseq.features.ComponentFeature;
+import edu.mit.csail.cgs.deepseq.features.Feature;
+import edu.mit.csail.cgs.deepseq.utilities.ReadCache;
+import edu.mit.csail.cgs.utils.Pair;
+
+/**
+ * Checks that a GEM checkpoint written by saveCheckpoint() is restored by loadCheckpoint(),
+ * including the events (ComponentFeature.write() and the stream constructor),
+ * and that it is rejected for different read data.
+ */
+public class TestCheckpoint {
+
+	private static File distFile;
+	private static Genome genome;
+	private static BindingModel model;
+
+	@BeforeClass public static void setUp() throws IOException {
+		distFile = File.createTempFile("TestCheckpoint", ".txt");
+		distFile.deleteOnExit();
+		PrintWriter out = new PrintWriter(new FileWriter(distFile));
+		for (int d=-300;d<=300;d++)
+			out.println(d+"\t"+(Math.exp(-d*d/(2.0*50*50))+1e-4));
+		out.close();
+		model = new BindingModel(distFile);
+		genome = new Genome("test", 50000, 30000);
+		ComponentFeature.setConditionNames(new ArrayList<String>(Arrays.asList("IP")));
+	}
+
+	@Test public void testRoundTrip() throws IOException {
+		KPPMixture saved = newMixture(0);
+		saved.signalFeatures.add(newFeature("chr1", 1200, 35.5, 1e-12));
+		saved.signalFeatures.add(newFeature("chr2", 800, 12.25, 3e-5));
+		saved.signalFeatures.add(newFeature("chr1", 9000, 2.0, 0.2));
+		File file = tempFile();
+		saved.saveCheckpoint(file.getAbsolutePath(), 2, false);
+
+		KPPMixture loaded = newMixture(0);
+		Pair<Integer, Boolean> stage = loaded.loadCheckpoint(file.getAbsolutePath(), true);
+		assertNotNull(stage);
+		assertEquals(2, stage.car().intValue());
+		assertFalse(stage.cdr());
+
+		assertEquals(saved.signalFeatures.size(), loaded.signalFeatures.size());
+		for (int i=0;i<saved.signalFeatures.size();i++){
+			ComponentFeature a = (ComponentFeature)saved.signalFeatures.get(i);
+			ComponentFeature b = (ComponentFeature)loaded.signalFeatures.get(i);
+			assertEquals(a.getPosition(), b.getPosition());
+			assertEquals(a.getEMPosition(), b.getEMPosition());
+			assertEquals(a.getTotalEventStrength(), b.getTotalEventStrength(), 0);
+			assertEquals(a.getPValue_wo_ctrl(0), b.getPValue_wo_ctrl(0), 0);
+			assertEquals(a.getBoundSequence(), b.getBoundSequence());
+		}
+
+		// everything that is saved is restored: saving the loaded state gives the same file
+		File again = tempFile();
+		loaded.saveCheckpoint(again.getAbsolutePath(), 2, false);
+		assertArrayEquals(readBytes(file), readBytes(again));
+	}
+
+	@Test public void testDifferentReads() throws IOException {
+		KPPMixture saved = newMixture(0);
+		saved.signalFeatures.add(newFeature("chr1", 1200, 35.5, 1e-12));
+		File file = tempFile();
+		saved.saveCheckpoint(file.getAbsolutePath(), 1, false);
+
+		KPPMixture other = newMixture(1);
+		assertNull(other.loadCheckpoint(file.getAbsolutePath(), true));
+		assertTrue("the state is changed by a rejected checkpoint", other.signalFeatures.isEmpty());
+	}
+
+	@Test public void testNotACheckpoint() throws IOException {
+		File file = tempFile();
+		PrintWriter out = new PrintWriter(new FileWriter(file));
+		out.println("chr1:1200\t35.5");
+		out.close();
+		assertNull(newMixture(0).loadCheckpoint(file.getAbsolutePath(), true));
+	}
+
+	/* a mixture with the same reads each time, plus extraReads reads on chr2 */
+	private KPPMixture newMixture(int extraReads){
+		KPPMixture mixture = new KPPMixture(new String[]{"--d", distFile.getAbsolutePath()}, false);
+		mixture.gen = genome;
+		mixture.caches = new ArrayList<Pair<ReadCache, ReadCache>>();
+		mixture.caches.add(new Pair<ReadCache, ReadCache>(newCache("IP", 200, extraReads), newCache("CTRL", 100, 0)));
+		mixture.signalFeatures = new ArrayList<Feature>();
+		return mixture;
+	}
+
+	private ReadCache newCache(String name, int reads, int extraReads){
+		ReadCache cache = new ReadCache(genome, name, null, null);
+		Random random = new Random(name.hashCode());
+		for (String chrom : new String[]{"chr1", "chr2"}){
+			int n = chrom.equals("chr2") ? reads+extraReads : reads;
+			for (char strand : new char[]{'+', '-'}){
+				TreeSet<Integer> coords = new TreeSet<Integer>();
+				while (coords.size()<n)
+					coords.add(random.nextInt(20000));
+				List<Float> counts = new ArrayList<Float>();
+				for (int i=0;i<coords.size();i++)
+					counts.add((float)(1+random.nextInt(3)));
+				cache.addHits(chrom, strand, coords, counts);
+			}
+		}
+		cache.populateArrays(false);
+		return cache;
+	}
+
+	private ComponentFeature newFeature(String chrom, int pos, double strength, double pValue){
+		BindingComponent b = new BindingComponent(model, new Point(genome, chrom, pos), 1);
+		b.setEMPosition(new Point(genome, chrom, pos+3));
+		b.setSumResponsibility(new double[]{strength});
+		b.setAlpha(4.5);
+		b.setNoiseFraction(0.125);
+		ComponentFeature f = new ComponentFeature(b);
+		f.setPValue_wo_ctrl(pValue, 0);
+		f.setPValue_w_ctrl(pValue*2, 0);
+		f.setQValueLog10(-Math.log10(pValue), 0);
+		f.setCondSignificance(0, pValue<0.01);
+		f.set_mfold(strength/3);
+		f.setBoundSequence("ACGTGACA");
+		return f;
+	}
+
+	private static File tempFile() throws IOException {
+		File f = File.createTempFile("TestCheckpoint", ".bin");
+		f.deleteOnExit();
+		return f;
+	}
+
+	private static byte[] readBytes(File f) throws IOException {
+		DataInputStream in = new DataInputStream(new FileInputStream(f));
+		byte[] bytes = new byte[(int)f.length()];
+		in.readFully(bytes);
+		in.close();
+		return bytes;
+	}
+}
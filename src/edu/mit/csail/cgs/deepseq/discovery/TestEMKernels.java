@@ -0,0 +1,178 @@
+package edu.mit.csail.cgs.deepseq.discovery;
+
+import java.io.*;
+import java.util.*;
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import edu.mit.csail.cgs.deepseq.BaseSlice;
+import edu.mit.csail.cgs.deepseq.BindingModel;
+import edu.mit.csail.cgs.deepseq.StrandedBase;
+import edu.mit.csail.cgs.utils.Pair;
+
+/**
+ * Checks that EM_MAP_flat() gives exactly the same results as EM_MAP() on recorded windows. <br>
+ * The windows are the 5' read positions (strand, offset from the window start and count) of a
+ * strong binding event and of a sparse region of a simulated ChIP-Seq dataset.
+ * The EM inputs are set up in the same way as in EMTrain() for a single condition.
+ */
+public class TestEMKernels {
+
+	// chr1:2110815-2111215, around an event with 234 IP reads
+	private static final String DENSE =
+		"+98:1 +101:1 +121:1 +125:1 +126:2 +129:1 +130:1 +132:3 +133:1 +134:2 +137:3 +138:1 +139:3 " +
+		"+141:3 +142:2 +143:1 +147:1 +148:1 +150:2 +151:1 +152:3 +154:1 +155:1 +156:1 +157:2 " +
+		"+158:1 +159:1 +160:2 +161:2 +162:2 +163:1 +164:1 +166:1 +167:1 +168:3 +169:1 +171:1 " +
+		"+172:2 +173:3 +174:3 +175:3 +179:1 +180:1 +181:1 +182:1 +183:1 +185:2 +186:1 +188:2 " +
+		"+189:2 +190:1 +191:1 +192:3 +193:3 +195:2 -195:3 +196:4 -196:1 +197:1 +198:2 -198:3 " +
+		"-199:2 +200:2 -200:2 -201:4 +202:2 +203:1 -203:1 +204:5 -204:4 -205:2 +206:1 -206:3 " +
+		"-207:2 +208:1 -208:1 -209:2 -210:2 -211:3 -212:2 -213:1 -214:1 -215:1 -216:1 -217:1 " +
+		"-219:2 -220:1 -221:1 -222:3 -223:3 -224:1 -225:1 -226:2 -229:4 -230:1 -231:3 -232:1 " +
+		"-233:1 -234:1 -235:2 -236:3 -237:3 -238:1 -239:2 -240:3 -241:1 -243:3 -245:4 -246:2 " +
+		"-248:2 -251:1 -252:2 -253:4 -254:1 -255:1 -256:3 -257:2 -258:2 -259:1 -263:2 -265:1 " +
+		"-266:1 -267:2 -268:3 -270:1 -272:1 -278:1 -279:1 -282:1 -287:1 -288:1 -294:1";
+	private static final int DENSE_WIDTH = 400;
+	// chr1:607800-608400, a weak enrichment
+	private static final String SPARSE =
+		"+50:1 +146:1 +150:1 +164:1 +166:1 +171:1 +173:1 +174:1 +180:1 +189:1 -212:1 -213:1 -221:1 " +
+		"-231:1 -240:1 -241:1 -258:1 -269:1 +542:1";
+	private static final int SPARSE_WIDTH = 600;
+
+	private static File distFile;
+	private static BindingModel model;
+	private static Config config;
+	private static KPPMixture mixture;
+
+	@BeforeClass public static void setUp() throws IOException {
+		// a Gaussian read distribution, similar to the default one
+		distFile = File.createTempFile("TestEMKernels", ".txt");
+		distFile.deleteOnExit();
+		PrintWriter out = new PrintWriter(new FileWriter(distFile));
+		for (int d=-300;d<=300;d++)
+			out.println(d+"\t"+(Math.exp(-d*d/(2.0*50*50))+1e-4));
+		out.close();
+		model = new BindingModel(distFile);
+		config = new Config();
+		mixture = new KPPMixture(new String[]{"--d", distFile.getAbsolutePath()}, false);
+	}
+
+	@Test public void testDenseWindow() {
+		compareKernels(DENSE, DENSE_WIDTH, 1, false);
+	}
+	@Test public void testDenseWindowCoarse() {
+		compareKernels(DENSE, DENSE_WIDTH, 5, false);
+	}
+	@Test public void testDenseWindowPositionalPrior() {
+		compareKernels(DENSE, DENSE_WIDTH, 1, true);
+	}
+	@Test public void testSparseWindow() {
+		compareKernels(SPARSE, SPARSE_WIDTH, 1, false);
+	}
+	@Test public void testSparseWindowCoarse() {
+		compareKernels(SPARSE, SPARSE_WIDTH, 3, false);
+	}
+
+	/* runs both kernels on the same inputs and compares pi, beta, the responsibilities and the noise */
+	private void compareKernels(String reads, int width, int spacing, boolean positionalPrior){
+		EMInputs ref = new EMInputs(reads, width, spacing, positionalPrior);
+		EMInputs flat = new EMInputs(reads, width, spacing, positionalPrior);
+
+		KPPMixture.GPS2Thread thread = mixture.new GPS2Thread(null, null, null, null, null, null, true);
+		thread.setComponentSpacing(spacing);
+		Pair<double[][][], Double> refResult = thread.EM_MAP(ref.counts, ref.h, ref.r, ref.b, ref.c2b, ref.pi, ref.alpha, ref.pos_alpha, ref.prob_bg);
+		Pair<double[][][], Double> flatResult = thread.EM_MAP_flat(flat.counts, flat.h, flat.r, flat.b, flat.c2b, flat.pi, flat.alpha, flat.pos_alpha, flat.prob_bg);
+
+		int nonZero = 0;
+		for (double p : ref.pi)
+			if (p>0)
+				nonZero++;
+		assertTrue("EM eliminated all the components", nonZero>0);
+		assertTrue("EM did not eliminate any component", nonZero<ref.pi.length);
+
+		assertTrue("pi differs: "+Arrays.toString(ref.pi)+" vs "+Arrays.toString(flat.pi), Arrays.equals(ref.pi, flat.pi));
+		assertEquals(refResult.cdr().doubleValue(), flatResult.cdr().doubleValue(), 0);
+		assertTrue("beta differs", Arrays.equals(ref.b[0], flat.b[0]));
+		for (int j=0;j<ref.pi.length;j++)
+			assertTrue("responsibilities of component "+j+" differ", Arrays.equals(refResult.car()[0][j], flatResult.car()[0][j]));
+	}
+
+	/* the inputs of EM_MAP() for one condition, as EMTrain() sets them up */
+	private static class EMInputs {
+		double[][] counts = new double[1][];
+		double[][][] h = new double[1][][];
+		double[][][] r = new double[1][][];
+		double[][] b = new double[1][];
+		int[][][] c2b = new int[1][][];
+		double[] pi;
+		double alpha;
+		double[] pos_alpha;
+		double[][] prob_bg = new double[1][];
+
+		EMInputs(String reads, int width, int spacing, boolean positionalPrior){
+			List<StrandedBase> list = new ArrayList<StrandedBase>();
+			for (String read : reads.split(" ")){
+				String[] f = read.substring(1).split(":");
+				list.add(new StrandedBase(read.charAt(0), Integer.parseInt(f[0]), Float.parseFloat(f[1])));
+			}
+			BaseSlice bases = BaseSlice.fromStrandedBases(list);
+			alpha = Math.max(Math.sqrt(bases.countHits())/config.alpha_factor, config.sparseness);
+			if (spacing>1)
+				bases = bases.bin(spacing);
+			int numBases = bases.size();
+			int numComp = width/spacing;
+
+			pi = new double[numComp];
+			Arrays.fill(pi, 1.0/numComp);
+			b[0] = new double[numComp];
+			Arrays.fill(b[0], 1.0);
+			pos_alpha = new double[numComp];
+			if (positionalPrior){
+				// a motif match at the event and a weaker one 60bp away
+				pos_alpha[200/spacing] = 0.8*alpha;
+				pos_alpha[260/spacing] = 0.3*alpha;
+			}
+
+			counts[0] = new double[numBases];
+			int minPlus=Integer.MAX_VALUE, maxPlus=Integer.MIN_VALUE, minMinus=Integer.MAX_VALUE, maxMinus=Integer.MIN_VALUE;
+			for (int i=0;i<numBases;i++){
+				counts[0][i] = bases.getCount(i);
+				int coord = bases.getCoordinate(i);
+				if (bases.getStrand(i)=='+'){
+					minPlus = Math.min(minPlus, coord);
+					maxPlus = Math.max(maxPlus, coord);
+				}
+				else{
+					minMinus = Math.min(minMinus, coord);
+					maxMinus = Math.max(maxMinus, coord);
+				}
+			}
+
+			h[0] = new double[numComp][];
+			r[0] = new double[numComp][];
+			c2b[0] = new int[numComp][];
+			for (int j=0;j<numComp;j++){
+				int location = j*spacing;
+				List<Integer> nzBases = new ArrayList<Integer>();
+				for (int i=0;i<numBases;i++){
+					int dist = bases.getStrand(i)=='+' ? bases.getCoordinate(i)-location : location-bases.getCoordinate(i);
+					if (model.probability(dist)>1e-10)
+						nzBases.add(i);
+				}
+				h[0][j] = new double[nzBases.size()];
+				r[0][j] = new double[nzBases.size()];
+				c2b[0][j] = new int[nzBases.size()];
+				for (int i=0;i<nzBases.size();i++){
+					int base = nzBases.get(i);
+					int dist = bases.getStrand(base)=='+' ? bases.getCoordinate(base)-location : location-bases.getCoordinate(base);
+					c2b[0][j][i] = base;
+					h[0][j][i] = model.probability(dist);
+					r[0][j][i] = h[0][j][i]*pi[j]*b[0][j];
+				}
+			}
+
+			int range = Math.max(Math.max(maxPlus-minPlus+1, maxMinus-minMinus+1), model.getRange());
+			prob_bg[0] = new double[numBases];
+			Arrays.fill(prob_bg[0], 1.0/range);
+		}
+	}
+}
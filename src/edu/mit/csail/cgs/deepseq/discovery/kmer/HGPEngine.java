@@ -0,0 +1,264 @@
+package edu.mit.csail.cgs.deepseq.discovery.kmer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Hypergeometric p-values (log10) of k-mer/motif hits in a fixed set of positive and negative sequences. <br>
+ * It computes the same values as KMAC.computeHGP(posSeq, negSeq, posHit, negHit), using a log-factorial table
+ * pre-sized for all the sequences instead of the shared caches of StatUtil. An engine is immutable, so it can be
+ * used by many threads. <br>
+ * The batch method computeHGPs() groups the hit counts that share a hypergeometric distribution,
+ * so that the CDF of each distribution is accumulated only once across consecutive hit counts,
+ * and runs the groups on a shared thread pool.
+ */
+public class HGPEngine {
+	private static final double LOG10_E = Math.log10(Math.exp(1));
+	/* batches smaller than this are computed in the calling thread */
+	private static final int MIN_PARALLEL_BATCH = 64;
+	private static ExecutorService pool;
+
+	private final int posSeq;
+	private final int negSeq;
+	private final int allSeq;
+	private final double[] logFactorials;
+
+	public HGPEngine(int posSeq, int negSeq){
+		this.posSeq = posSeq;
+		this.negSeq = negSeq;
+		allSeq = posSeq + negSeq;
+		logFactorials = new double[allSeq+1];
+		logFactorials[0] = 0;
+		for (int i=1;i<=allSeq;i++)
+			logFactorials[i] = logFactorials[i-1]+Math.log(i);
+	}
+
+	public int getPosSeqCount(){return posSeq;}
+	public int getNegSeqCount(){return negSeq;}
+
+	/**
+	 * Compute hgp (log10) of posHit positive and negHit negative sequence hits
+	 */
+	public double computeHGP(int posHit, int negHit){
+		Query q = new Query(posHit, negHit);
+		q.cdf = cdf(q.x, q.s, q.n);
+		return q.hgp();
+	}
+
+	/**
+	 * Compute hgp (log10) of each pair of positive/negative sequence hit counts, in parallel.
+	 * @param maxThreads maximum number of threads to use
+	 */
+	public double[] computeHGPs(int[] posHits, int[] negHits, int maxThreads){
+		int[] idxs = new int[posHits.length];
+		for (int i=0;i<idxs.length;i++)
+			idxs[i] = i;
+		double[] hgps = new double[posHits.length];
+		computeHGPs(posHits, negHits, idxs, hgps, maxThreads);
+		return hgps;
+	}
+
+	/**
+	 * Compute hgp (log10) of the pairs of positive/negative sequence hit counts at the given indices, in parallel.
+	 * The results are stored in hgps at the same indices, other elements of hgps are not changed.
+	 * @param maxThreads maximum number of threads to use
+	 */
+	public void computeHGPs(int[] posHits, int[] negHits, int[] idxs, double[] hgps, int maxThreads){
+		int count = idxs.length;
+		if (count==0)
+			return;
+		final Query[] queries = new Query[count];
+		for (int i=0;i<count;i++){
+			queries[i] = new Query(posHits[idxs[i]], negHits[idxs[i]]);
+			queries[i].idx = idxs[i];
+		}
+		// the queries that share a distribution are consecutive, in ascending order of x
+		Arrays.sort(queries);
+
+		// split the batch into parts of about equal size, without splitting a distribution
+		int numParts = count<MIN_PARALLEL_BATCH ? 1 : Math.min(maxThreads, count/(MIN_PARALLEL_BATCH/2));
+		ArrayList<int[]> parts = new ArrayList<int[]>();
+		int start = 0;
+		for (int p=1;p<=numParts && start<count;p++){
+			int end = p==numParts ? count : Math.max(start+1, count*p/numParts);
+			while (end<count && queries[end].sameDistribution(queries[end-1]))
+				end++;
+			parts.add(new int[]{start, end});
+			start = end;
+		}
+
+		if (parts.size()==1)
+			computePart(queries, 0, count);
+		else{
+			ArrayList<Future<?>> futures = new ArrayList<Future<?>>();
+			for (final int[] part: parts){
+				futures.add(getPool().submit(new Runnable(){
+					public void run(){
+						computePart(queries, part[0], part[1]);
+					}
+				}));
+			}
+			try{
+				for (Future<?> f: futures)
+					f.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException(e);
+			} catch (ExecutionException e) {
+				throw new RuntimeException(e.getCause());
+			}
+		}
+		for (Query q: queries)
+			hgps[q.idx] = q.hgp();
+	}
+
+	/* accumulate the CDF of each distribution once, from 0 to the largest x of the queries */
+	private void computePart(Query[] queries, int start, int end){
+		int i = start;
+		while (i<end){
+			Query first = queries[i];
+			double v = 0.0;
+			int k = 0;
+			for (;i<end && queries[i].sameDistribution(first);i++){
+				Query q = queries[i];
+				for (;k<=q.x;k++)
+					v += pdf(k, q.s, q.n);
+				q.cdf = v>1.0 ? 1.0 : v;
+			}
+		}
+	}
+
+	/**
+	 * hypergeometric CDF, sum of the density of 0 to x successes in a sample of size n,
+	 * with s successes in the population of all sequences, same as StatUtil.hyperGeometricCDF_cache()
+	 */
+	private double cdf(int x, int s, int n){
+		double v = 0.0;
+		for (int k=0;k<=x;k++)
+			v += pdf(k, s, n);
+		if (v > 1.0)
+			v = 1.0;
+		return v;
+	}
+
+	/* same as StatUtil.hyperGeometricPDF_cache() */
+	private double pdf(int x, int s, int n){
+		if (x+allSeq-s-n<0)
+			return 0;
+		return Math.exp(logPdf(x, s, n));
+	}
+
+	/* natural log of the density, the caller ensures x+allSeq-s-n>=0 */
+	private double logPdf(int x, int s, int n){
+		double kx = logFactorials[s]-logFactorials[x]-logFactorials[s-x];
+		double mknx = logFactorials[allSeq-s]-logFactorials[n-x]-logFactorials[allSeq-s-(n-x)];
+		double mn = logFactorials[allSeq]-logFactorials[n]-logFactorials[allSeq-n];
+		return kx + mknx - mn;
+	}
+
+	/* same as StatUtil.log10_hyperGeometricPDF_cache() */
+	private double log10Pdf(int x, int s, int n){
+		if (x+allSeq-s-n<0)
+			return Double.NEGATIVE_INFINITY;
+		return logPdf(x, s, n)*LOG10_E;
+	}
+
+	/**
+	 * log10 of the hypergeometric CDF, summed in log10 space for very small p-values,
+	 * same as StatUtil.log10_hyperGeometricCDF_cache_appr()
+	 */
+	private double log10CdfTiny(int x, int s, int n){
+		double Lx = log10Pdf(x, s, n);
+		double sum = 1;
+		for (int k=x-1;k>=0;k--)
+			sum += Math.pow(10, log10Pdf(k, s, n)-Lx);
+		return Lx + Math.log10(sum);
+	}
+
+	/**
+	 * One hgp computation, following KMAC.computeHGP(): the CDF of the smaller of the positive hits
+	 * and the negative hits is computed, with a high precision fall back for tiny p-values.
+	 */
+	private class Query implements Comparable<Query>{
+		int idx;
+		int posHit;
+		int negHit;
+		boolean flipped;		// CDF of negative hits
+		int x;
+		int s;
+		int n;
+		double cdf;
+
+		Query(int posHit, int negHit){
+			this.posHit = posHit;
+			this.negHit = negHit;
+			int allHit = posHit + negHit;
+			if (posHit<negHit){
+				flipped = false;
+				x = posHit; s = allHit; n = posSeq;
+			}
+			else{
+				flipped = true;
+				n = negSeq;
+				if (negHit==0){
+					x = 0; s = allHit+2+1;		// add 1 negHit, 2 posHit as pseudo count
+				}
+				else{
+					x = negHit-1; s = allHit;
+				}
+			}
+		}
+
+		boolean sameDistribution(Query q){
+			return flipped==q.flipped && s==q.s;
+		}
+
+		double hgp(){
+			if (!flipped){
+				if (cdf>0.99)
+					return tiny();
+				else
+					return Math.log(1-cdf);
+			}
+			else{
+				if (cdf==0||cdf<=Double.MIN_VALUE)
+					return tiny();
+				else
+					return Math.log10(cdf);
+			}
+		}
+
+		private double tiny(){
+			if (negHit==0)
+				return log10CdfTiny(0, posHit+negHit+2+1, negSeq);
+			else
+				return log10CdfTiny(negHit-1, posHit+negHit, negSeq);
+		}
+
+		public int compareTo(Query q){
+			if (flipped!=q.flipped)
+				return flipped ? 1 : -1;
+			if (s!=q.s)
+				return s<q.s ? -1 : 1;
+			return x<q.x ? -1 : (x==q.x ? 0 : 1);
+		}
+	}
+
+	private static synchronized ExecutorService getPool(){
+		if (pool==null){
+			pool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory(){
+				public Thread newThread(Runnable r){
+					Thread t = new Thread(r, "HGPEngine");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		return pool;
+	}
+}
@@ -7,10 +7,15 @@ import java.awt.Graphics2D;
 import java.awt.RenderingHints;
 import java.awt.image.BufferedImage;
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.BitSet;
@@ -25,6 +30,12 @@ import java.util.Random;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import javax.imageio.ImageIO;
 
@@ -40,6 +51,7 @@ import edu.mit.csail.cgs.datasets.motifs.WeightMatrix;
 import edu.mit.csail.cgs.datasets.species.Genome;
 import edu.mit.csail.cgs.deepseq.features.ComponentFeature;
 import edu.mit.csail.cgs.deepseq.utilities.CommonUtils;
+import edu.mit.csail.cgs.ewok.verbs.RegionSequenceCache;
 import edu.mit.csail.cgs.ewok.verbs.SequenceGenerator;
 import edu.mit.csail.cgs.ewok.verbs.motifs.WeightMatrixScoreProfile;
 import edu.mit.csail.cgs.ewok.verbs.motifs.WeightMatrixScorer;
@@ -55,6 +67,8 @@ public class KMAC {
             Math.max(Math.max('a','c'),Math.max('t','g'))) + 1;
 	
 	private boolean standalone = false;
+	/** false for the selectK() workers, whose output files are rewritten for the selected k */
+	private boolean writeFiles = true;
 	public void setStandalone(){
 		standalone = true;
 	}
@@ -105,15 +119,21 @@ public class KMAC {
 //	}
 	private HashMap<String, Kmer> str2kmer = new HashMap<String, Kmer>();
 	
+	// Aho-Corasick automaton for searching the positions of the kmers (and their RC) in sequences
+	// Pre-processing is to build the automaton with all the patterns (kmers)
+	// Then each individual search can be done in query()
+	private KmerMatcher matcher;
+	private ArrayList<Kmer> matcherKmers;		// the kmers of the matcher patterns, in the same order
 	// AhoCorasick algorithm for multi-pattern search
-	// Pre-processing is to build the tree with all the patters (kmers)
-	// Then each individual search can be done in scan()
-	private AhoCorasick tree;
 	private AhoCorasick tree_negatives;
+	private volatile HGPEngine hgpEngine;
 	
 	public boolean isInitialized(){ return engineInitialized;}
 	
 	private SequenceGenerator<Region> seqgen;
+	/** sequences of the cached regions, read by the GEM threads without locking */
+	private RegionSequenceCache seqCache;
+	public RegionSequenceCache getSequenceCache(){return seqCache;}
 	private long tic;	
 
 	/** motif clusters */
@@ -127,6 +147,139 @@ public class KMAC {
 		return clusters;
 	}
 	
+	/**
+	 * Write the motif clusters (KSMs and PWMs) with the sequence counts and weights they are scored with,
+	 * so that a GEM run can be resumed after KMAC without running it again.
+	 */
+	public void writeMotifs(DataOutputStream out) throws IOException{
+		out.writeInt(k);
+		out.writeInt(posSeqCount);
+		out.writeInt(negSeqCount);
+		CommonUtils.writeDoubles(out, seq_weights);
+		writeKmer(out, primarySeed);
+		out.writeInt(clusters.size());
+		for (KmerCluster c: clusters){
+			out.writeInt(c.clusterId);
+			out.writeInt(c.pos_pwm_seed);
+			out.writeInt(c.pos_BS_seed);
+			out.writeBoolean(c.ksmThreshold!=null);
+			if (c.ksmThreshold!=null){
+				out.writeDouble(c.ksmThreshold.score);
+				out.writeInt(c.ksmThreshold.posHit);
+				out.writeInt(c.ksmThreshold.negHit);
+				out.writeDouble(c.ksmThreshold.hgp);
+			}
+			out.writeBoolean(c.wm!=null);
+			if (c.wm!=null){
+				writeMatrix(out, c.wm.matrix);
+				CommonUtils.writeString(out, c.wm.name);
+				CommonUtils.writeString(out, c.wm.version);
+				CommonUtils.writeString(out, c.wm.type);
+			}
+			writeMatrix(out, c.pfm);
+			out.writeBoolean(c.pwmGoodQuality);
+			out.writeDouble(c.pwmThreshold);
+			out.writeDouble(c.pwmThresholdHGP);
+			out.writeInt(c.pwmPosHitCount);
+			out.writeInt(c.pwmNegHitCount);
+			out.writeInt(c.total_aligned_seqs);
+			out.writeDouble(c.pi);
+			writeKmer(out, c.seedKmer);
+			out.writeInt(c.alignedKmers==null ? -1 : c.alignedKmers.size());
+			if (c.alignedKmers!=null)
+				for (Kmer km: c.alignedKmers)
+					km.write(out);
+		}
+	}
+	
+	/**
+	 * Read the motif clusters written by writeMotifs(), replacing the current clusters.
+	 * The search engine is set up with the k-mers of the primary cluster.
+	 */
+	public void readMotifs(DataInputStream in) throws IOException{
+		k = in.readInt();
+		posSeqCount = in.readInt();
+		negSeqCount = in.readInt();
+		seq_weights = CommonUtils.readDoubles(in);
+		if (config.use_weighted_kmer && seq_weights!=null)
+			Kmer.set_seq_weights(seq_weights);
+		primarySeed = readKmer(in);
+		int count = in.readInt();
+		clusters = new ArrayList<KmerCluster>(count);
+		for (int i=0;i<count;i++){
+			KmerCluster c = new KmerCluster();
+			c.clusterId = in.readInt();
+			c.pos_pwm_seed = in.readInt();
+			c.pos_BS_seed = in.readInt();
+			if (in.readBoolean()){
+				c.ksmThreshold.score = in.readDouble();
+				c.ksmThreshold.posHit = in.readInt();
+				c.ksmThreshold.negHit = in.readInt();
+				c.ksmThreshold.hgp = in.readDouble();
+			}
+			else
+				c.ksmThreshold = null;
+			if (in.readBoolean()){
+				c.wm = new WeightMatrix(readMatrix(in));
+				String name = CommonUtils.readString(in);
+				String version = CommonUtils.readString(in);
+				String type = CommonUtils.readString(in);
+				c.wm.setNameVerType(name, version, type);
+			}
+			c.pfm = readMatrix(in);
+			c.pwmGoodQuality = in.readBoolean();
+			c.pwmThreshold = in.readDouble();
+			c.pwmThresholdHGP = in.readDouble();
+			c.pwmPosHitCount = in.readInt();
+			c.pwmNegHitCount = in.readInt();
+			c.total_aligned_seqs = in.readInt();
+			c.pi = in.readDouble();
+			c.seedKmer = readKmer(in);
+			int kmerCount = in.readInt();
+			if (kmerCount!=-1){
+				c.alignedKmers = new ArrayList<Kmer>(kmerCount);
+				for (int j=0;j<kmerCount;j++)
+					c.alignedKmers.add(Kmer.read(in));
+			}
+			clusters.add(c);
+		}
+		if (!clusters.isEmpty() && clusters.get(0).alignedKmers!=null)
+			updateEngine(clusters.get(0).alignedKmers);
+	}
+	
+	private static void writeKmer(DataOutputStream out, Kmer km) throws IOException{
+		out.writeBoolean(km!=null);
+		if (km!=null)
+			km.write(out);
+	}
+	
+	private static Kmer readKmer(DataInputStream in) throws IOException{
+		return in.readBoolean() ? Kmer.read(in) : null;
+	}
+	
+	private static void writeMatrix(DataOutputStream out, float[][] matrix) throws IOException{
+		if (matrix==null){
+			out.writeInt(-1);
+			return;
+		}
+		out.writeInt(matrix.length);
+		out.writeInt(matrix.length==0 ? 0 : matrix[0].length);
+		for (float[] row: matrix)
+			for (float v: row)
+				out.writeFloat(v);
+	}
+	
+	private static float[][] readMatrix(DataInputStream in) throws IOException{
+		int rows = in.readInt();
+		if (rows==-1)
+			return null;
+		float[][] matrix = new float[rows][in.readInt()];
+		for (float[] row: matrix)
+			for (int j=0;j<row.length;j++)
+				row[j] = in.readFloat();
+		return matrix;
+	}
+	
 	public KMAC(Config config, String outPrefix){
 		setConfig(config, outPrefix);
 	}
@@ -137,6 +290,40 @@ public class KMAC {
 	    Kmer.set_use_weighted_hit_count(config.use_weighted_kmer);
 	}
 
+	/**
+	 * A worker to try one value of k in selectK(). <br>
+	 * It shares the sequences, weights and settings of the kmac, which are not changed by selecting k, 
+	 * but has its own copy of the sequences to mask, its own clusters and its own k-mer search engine.
+	 */
+	private KMAC(KMAC kmac){
+		setConfig(kmac.config, kmac.outName);
+		standalone = kmac.standalone;
+		genome = kmac.genome;
+		k = kmac.k;
+		minHitCount = kmac.minHitCount;
+		numPos = kmac.numPos;
+		bg = kmac.bg;
+		ic_trim = kmac.ic_trim;
+		use_PWM_MM = kmac.use_PWM_MM;
+		use_smart_mm = kmac.use_smart_mm;
+		seedOverrideScoreDifference = kmac.seedOverrideScoreDifference;
+		k_win = kmac.k_win;
+		profile = kmac.profile;
+		isMasked = kmac.isMasked;
+		seqs = kmac.seqs.clone();
+		seq_weights = kmac.seq_weights;
+		totalWeight = kmac.totalWeight;
+		seqsNeg = kmac.seqsNeg;
+		seqsNegList = new ArrayList<String>(kmac.seqsNegList);
+		posSeqCount = kmac.posSeqCount;
+		negSeqCount = kmac.negSeqCount;
+		negRegionDistance = kmac.negRegionDistance;
+		neg_region_map = kmac.neg_region_map;
+		hgpEngine = kmac.getHGPEngine();
+		seqgen = kmac.seqgen;
+		seqCache = kmac.seqCache;
+	}
+	
 	public void updateOutPrefix(String outPrefix){
 	    this.outName = outPrefix;
 	}
@@ -242,6 +429,8 @@ public class KMAC {
 		if (useCache)
 			seqgen.useCache(true);	
 		seqgen.setGenomePath(genomePath);
+		if (config.genome_store!=null && !use_db_genome)
+			seqgen.usePackedGenome(config.genome_store);
 	}
 	
 	/* 
@@ -275,14 +464,16 @@ public class KMAC {
 	
 	/**
 	 * Set up the light weight genome cache. Only load the sequences for the specified regions.<br>
-	 * At the same time, retrieve negative sequences (for only once, no caching)
+	 * At the same time, retrieve negative sequences (for only once, no caching). <br>
+	 * The cache is kept until it is set up with different regions.
 	 * @param regions
 	 */
 	public double setupRegionCache(ArrayList<Region> cacheRegions, ArrayList<Region> negativeRegions, int negRegionDistance){
 		this.negRegionDistance = negRegionDistance;
 		double gcRatio=0;
-		if (!seqgen.isRegionCached()){
-			seqsNeg = seqgen.setupRegionCache_new(cacheRegions, negativeRegions);
+		if (seqCache==null || !seqCache.hasRegions(cacheRegions)){
+			seqCache = new RegionSequenceCache(cacheRegions, negativeRegions, seqgen);
+			seqsNeg = seqCache.getOtherSequences();
 			neg_region_map = new TreeMap<Region, Integer>();
 			for (int i=0;i<negativeRegions.size();i++){
 				neg_region_map.put(negativeRegions.get(i), i);
@@ -319,7 +510,7 @@ public class KMAC {
 			ArrayList<Double> posSeqWeights = new ArrayList<Double>();
 			for(int i=0;i<eventCount;i++){
 				Region posRegion = events.get(i).getPeak().expand(winSize/2);
-				String seq = seqgen.execute(posRegion);
+				String seq = getSequence(posRegion, false, false);
 				if (config.repeat_fraction<1){
 					int count = 0;
 					for (char c:seq.toCharArray())
@@ -478,46 +669,74 @@ public class KMAC {
 		if (k_min==k_max)
 			return k_min;
 		
-		String[] pos_seq_backup = seqs.clone();
-		String[] neg_seqs_backup = new String[seqsNegList.size()];
-		seqsNegList.toArray(neg_seqs_backup);
-		
+		// try the values of k in parallel, each on a worker that is created when its k is started
+		int numK = k_max-k_min+1;
+		int numThreads = Math.max(1, Math.min(config.maxThreads, numK));
+		KMAC template = new KMAC(this);
+		Kmer seed = primarySeed;
+		boolean[] found = new boolean[numK];
+		CountDownLatch[] selected = new CountDownLatch[numK];
+		ByteArrayOutputStream[] logs = new ByteArrayOutputStream[numK];
+		for (int i=0;i<numK;i++){
+			selected[i] = new CountDownLatch(1);
+			logs[i] = new ByteArrayOutputStream();
+		}
+		// the workers print to their own buffers, which are printed in the order of k
+		PrintStream stdout = System.out;
+		WorkerLog log = new WorkerLog(stdout);
+		System.setOut(new PrintStream(log, true));
+		ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+		ArrayList<Future<Pair<KMAC,Boolean>>> results = new ArrayList<Future<Pair<KMAC,Boolean>>>();
+
 		// compare different values of k to select most enriched k value
 		int bestK = 0;
 		double bestAllHGP = 0;
 		ArrayList<KmerCluster> kClusters = new ArrayList<KmerCluster>();
 		StringBuilder sb = new StringBuilder("\n------------------- "+ new File(outName).getName() +" ----------------------\n");
-		for (int i=0;i<k_max-k_min+1;i++){
-			int k = i+k_min;
-			System.out.println("\n----------------------------------------------\nTrying k="+k+" ...\n");
-			ArrayList<Kmer> kmers = selectEnrichedKmers(k);
-			KmerMotifAlignmentClustering(kmers, 2, false, null,"");
-			double bestclusterHGP = 0;
-			KmerCluster bestCluster=null;
-			for (KmerCluster c:clusters){
-				if (bestclusterHGP>c.pwmThresholdHGP){
-					bestclusterHGP=c.pwmThresholdHGP;
-					bestCluster = c;
-				}
-			}
-			if (bestCluster!=null){
-				sb.append(String.format("k=%d\thit=%d+/%d-\thgp=1e%.1f\tW=%d\tPWM=%s.\n", k, bestCluster.pwmPosHitCount, bestCluster.pwmNegHitCount, 
-						bestCluster.pwmThresholdHGP, bestCluster.wm.length(), WeightMatrix.getMaxLetters(bestCluster.wm)));
-				kClusters.add(bestCluster);
+		try{
+			for (int i=0;i<numThreads;i++)
+				results.add(pool.submit(selectKTask(new KMAC(template), i, k_min, seed, found, selected, log, logs[i])));
+			for (int i=0;i<numK;i++){
+				int k = i+k_min;
+				Pair<KMAC,Boolean> result = results.get(i).get();
+				results.set(i, null);
+				byte[] bytes = logs[i].toByteArray();
+				logs[i] = null;
+				stdout.write(bytes, 0, bytes.length);
+				stdout.flush();
+				if (i+numThreads<numK)
+					results.add(pool.submit(selectKTask(new KMAC(template), i+numThreads, k_min, seed, found, selected, log, logs[i+numThreads])));
 				
-				if (bestAllHGP>bestCluster.pwmThresholdHGP)
-					bestAllHGP=bestCluster.pwmThresholdHGP;
-			}
-			else
-				sb.append(String.format("k=%d\tcannot form a PWM.\n", k));
-			
-			// reload non-masked sequences
-			seqs = pos_seq_backup.clone();
-			seqsNegList.clear();
-			for (String s:neg_seqs_backup)
-				seqsNegList.add(s);
+				mergeWorkerState(result.car(), result.cdr());
+				double bestclusterHGP = 0;
+				KmerCluster bestCluster=null;
+				for (KmerCluster c:clusters){
+					if (bestclusterHGP>c.pwmThresholdHGP){
+						bestclusterHGP=c.pwmThresholdHGP;
+						bestCluster = c;
+					}
+				}
+				if (bestCluster!=null){
+					sb.append(String.format("k=%d\thit=%d+/%d-\thgp=1e%.1f\tW=%d\tPWM=%s.\n", k, bestCluster.pwmPosHitCount, bestCluster.pwmNegHitCount,
+							bestCluster.pwmThresholdHGP, bestCluster.wm.length(), WeightMatrix.getMaxLetters(bestCluster.wm)));
+					kClusters.add(bestCluster);
+					
+					if (bestAllHGP>bestCluster.pwmThresholdHGP)
+						bestAllHGP=bestCluster.pwmThresholdHGP;
+				}
+				else
+					sb.append(String.format("k=%d\tcannot form a PWM.\n", k));
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		} finally {
+			pool.shutdownNow();
+			System.setOut(stdout);
 		}
-		
+
 		boolean failToFindK = false;
 		KmerCluster bestCluster=null;
 		if (kClusters.isEmpty()){
@@ -611,6 +830,101 @@ public class KMAC {
 		return bestK;
 	}
 	
+	/**
+	 * The selectK() task that tries the i-th value of k on the worker. <br>
+	 * As if the k values were tried in order, the worker inherits the seed k-mer of the previous round
+	 * unless a smaller k has k-mers to cluster, so it waits for the k-mers of the smaller k values to be selected.
+	 * @return the worker and whether it has k-mers to cluster
+	 */
+	private static Callable<Pair<KMAC,Boolean>> selectKTask(final KMAC worker, final int i, final int k_min, final Kmer seed, 
+			final boolean[] found, final CountDownLatch[] selected, final WorkerLog log, final ByteArrayOutputStream buffer){
+		return new Callable<Pair<KMAC,Boolean>>(){
+			public Pair<KMAC,Boolean> call() throws InterruptedException{
+				log.setBuffer(buffer);
+				try{
+					int k = i+k_min;
+					System.out.println("\n----------------------------------------------\nTrying k="+k+" ...\n");
+					worker.writeFiles = false;
+					ArrayList<Kmer> kmers;
+					try{
+						kmers = worker.selectEnrichedKmers(k);
+						found[i] = !kmers.isEmpty();
+					} finally {
+						selected[i].countDown();
+					}
+					worker.primarySeed = seed;
+					for (int j=0;j<i;j++){
+						selected[j].await();
+						if (found[j])
+							worker.primarySeed = null;
+					}
+					worker.KmerMotifAlignmentClustering(kmers, 2, false, null,"");
+					return new Pair<KMAC,Boolean>(worker, found[i]);
+				} finally {
+					log.setBuffer(null);
+				}
+			}
+		};
+	}
+	
+	/**
+	 * The standard output while selectK() runs. <br>
+	 * A worker thread prints to the buffer of its k value, the other threads print to the original output.
+	 */
+	private static class WorkerLog extends OutputStream{
+		private PrintStream out;
+		private ThreadLocal<ByteArrayOutputStream> buffers = new ThreadLocal<ByteArrayOutputStream>();
+		
+		WorkerLog(PrintStream out){
+			this.out = out;
+		}
+		void setBuffer(ByteArrayOutputStream buffer){
+			if (buffer==null)
+				buffers.remove();
+			else
+				buffers.set(buffer);
+		}
+		public void write(int b){
+			ByteArrayOutputStream buffer = buffers.get();
+			if (buffer!=null)
+				buffer.write(b);
+			else
+				out.write(b);
+		}
+		public void write(byte[] b, int off, int len){
+			ByteArrayOutputStream buffer = buffers.get();
+			if (buffer!=null)
+				buffer.write(b, off, len);
+			else
+				out.write(b, off, len);
+		}
+		public void flush(){
+			out.flush();
+		}
+	}
+	
+	/**
+	 * Take the state that a selectK() worker leaves, in the order of k, as if its k was tried by this kmac. <br>
+	 * The sequences are not changed, the workers mask their own copies.
+	 * @param clustered false if the worker has no k-mer to cluster, then the clustering does not change the clusters
+	 */
+	private void mergeWorkerState(KMAC worker, boolean clustered){
+		k = worker.k;
+		numPos = worker.numPos;
+		if (clustered){
+			clusters = worker.clusters;
+			primarySeed = worker.primarySeed;
+		}
+		if (worker.isMasked)
+			isMasked = true;
+		if (worker.matcher!=null){		// the worker has updated its search engine
+			str2kmer = worker.str2kmer;
+			matcher = worker.matcher;
+			matcherKmers = worker.matcherKmers;
+			engineInitialized = worker.engineInitialized;
+		}
+	}
+	
 	/** 
 	 * Select the value of k <br>
 	 * using the seed family hgp
@@ -816,56 +1130,20 @@ public class KMAC {
 		numPos = k_win-k+1;
 
 		// only derive k-mers from forward sequence, will merge kmer and its RC next if consider both strands
-		HashMap<String, HashSet<Integer>> kmerstr2seqs = new HashMap<String, HashSet<Integer>>();
-		for (int seqId=0;seqId<posSeqCount;seqId++){
-			String seq = seqs[seqId];
-			HashSet<String> uniqueKmers = new HashSet<String>();			// only count repeated kmer once in a sequence
-			for (int i=0;i<numPos;i++){
-				if ((i+k)>seq.length()) // endIndex of substring is exclusive
-					break;
-				String kstring = seq.substring(i, i+k);
-				if (kstring.contains("N"))									// ignore 'N', converted from repeat when loading the sequences
-					continue;
-				uniqueKmers.add(kstring);
-			}
-			for (String s: uniqueKmers){
-				if (!kmerstr2seqs.containsKey(s)){
-					 kmerstr2seqs.put(s, new HashSet<Integer>());
-				}
-				kmerstr2seqs.get(s).add(seqId);
-			}
-		}
-		
-		ArrayList<Kmer> kms = new ArrayList<Kmer>();
-		ArrayList<String> kmerStrings = new ArrayList<String>();
-		kmerStrings.addAll(kmerstr2seqs.keySet());
+		KmerCounter counter = new KmerCounter(k);
+		counter.count(seqs, posSeqCount, numPos);
 		
 		// Merge kmer and its reverse compliment (RC)	
 		if (config.strand_type != 1){
-			// create kmers from its and RC's counts
-			for (String key:kmerStrings){
-				if (!kmerstr2seqs.containsKey(key))		// this kmer has been removed, represented by RC
-					continue;
-				// consolidate kmer and its reverseComplment kmer
-				String key_rc = SequenceUtils.reverseComplement(key);				
-				if (!key_rc.equals(key)){	// if it is not reverse compliment itself
-					if (kmerstr2seqs.containsKey(key_rc)){
-						int kCount = kmerstr2seqs.get(key).size();
-						int rcCount = kmerstr2seqs.get(key_rc).size();
-						String winner = kCount>=rcCount?key:key_rc;
-						String loser = kCount>=rcCount?key_rc:key;
-						kmerstr2seqs.get(winner).addAll(kmerstr2seqs.get(loser));	// winner take all
-						kmerstr2seqs.remove(loser);					// remove the loser kmer because it is represented by its RC
-					}
-				}
-			}
+			counter.mergeReverseComplements();
 		}
-		System.out.println("k="+k+", mapped "+kmerstr2seqs.keySet().size()+" k-mers, "+CommonUtils.timeElapsed(tic));
+		int kmerCount = counter.getKmerCount();
+		System.out.println("k="+k+", mapped "+kmerCount+" k-mers, "+CommonUtils.timeElapsed(tic));
 
 		// compute the smallest PosCount needed to be significant, even with negCount=0
 		int smallestPosCount;
 		for (smallestPosCount=minHitCount;smallestPosCount<posSeqCount;smallestPosCount++){
-			double hgp = computeHGP(posSeqCount, negSeqCount, smallestPosCount, 0);
+			double hgp = getHGPEngine().computeHGP(smallestPosCount, 0);
 			if (hgp<config.kmer_hgp){
 				break;
 			}
@@ -875,25 +1153,24 @@ public class KMAC {
 			expectedCount /= 2;
 		}
 		// the purpose of expectedCount is to limit kmers to run HGP test, if total kmer number is low, it can be relaxed a little
-		if (kmerstr2seqs.keySet().size()<10000){	
+		if (kmerCount<10000){	
 			expectedCount = Math.min(smallestPosCount, expectedCount);
 		}
-		ArrayList<String> kstrs = new ArrayList<String>();
-		for (String key:kmerstr2seqs.keySet()){	
-			if (kmerstr2seqs.get(key).size()< expectedCount)
-				continue;	// skip low count kmers 
-			kstrs.add(key);
-		}		
-		System.out.println("Expected kmer hit count="+expectedCount + ", kmer numbers="+kstrs.size());
-
+		
 		// create the kmer object
-		for (String s:kstrs){	
-			Kmer kmer = new Kmer(s, kmerstr2seqs.get(s));
+		ArrayList<Kmer> kms = new ArrayList<Kmer>();
+		for (int i=0;i<kmerCount;i++){	
+			if (counter.getHitCount(i)< expectedCount)
+				continue;	// skip low count kmers 
+			Kmer kmer = new Kmer(counter.getKmerString(i), counter.getHits(i));
+			if (Kmer.use_weighted_hit_count)
+				kmer.setWeightedPosHitCount();
 			kms.add(kmer);
 		}
+		System.out.println("Expected kmer hit count="+expectedCount + ", kmer numbers="+kms.size());
 		kms.trimToSize();
 		Collections.sort(kms);
-		kmerstr2seqs=null;	// clean up
+		counter=null;	// clean up
 		System.gc();
 		
 		/**
@@ -901,62 +1178,37 @@ public class KMAC {
 		 * Search the kmer counts in the negative sequences, then compare to positive counts
 		 */
 		tic = System.currentTimeMillis();
-		//Aho-Corasick for searching Kmers in negative sequences
-		//ahocorasick_java-1.1.tar.gz is an implementation of Aho-Corasick automata for Java. BSD license.
-		//from <http://hkn.eecs.berkeley.edu/~dyoo/java/index.html> 
-		AhoCorasick tmp = new AhoCorasick();
-		for (String s: kstrs){
-			tmp.add(s.getBytes(), s);
-	    }
-		tmp.prepare();
-		
-		// count hits in the negative sequences
-		HashMap<String, HashSet<Integer>> kmerstr2negSeqs = new HashMap<String, HashSet<Integer>>();
-		for (int negSeqId=0; negSeqId<negSeqCount;negSeqId++){
-			String seq = seqsNegList.get(negSeqId);
-			HashSet<Object> kmerHits = new HashSet<Object>();	// to ensure each sequence is only counted once for each kmer
-			Iterator searcher = tmp.search(seq.getBytes());
-			while (searcher.hasNext()) {
-				SearchResult result = (SearchResult) searcher.next();
-				kmerHits.addAll(result.getOutputs());
-			}
-			if (config.strand_type != 1){	// if not want single strand only 
-				String seq_rc = SequenceUtils.reverseComplement(seq);
-				searcher = tmp.search(seq_rc.getBytes());
-				while (searcher.hasNext()) {
-					SearchResult result = (SearchResult) searcher.next();
-					kmerHits.addAll(result.getOutputs());
-				}
-			}
-			for (Object o: kmerHits){
-				String kmer = (String) o;
-				if (!kmerstr2negSeqs.containsKey(kmer))					
-					kmerstr2negSeqs.put(kmer, new HashSet<Integer>());
-				kmerstr2negSeqs.get(kmer).add(negSeqId);
-			}
-		}
+		long[] packedKmers = new long[kms.size()];
+		for (int i=0;i<packedKmers.length;i++)
+			packedKmers[i] = KmerCounter.encode(kms.get(i).getKmerString());
+		String[] negSeqs = new String[negSeqCount];
+		seqsNegList.subList(0, negSeqCount).toArray(negSeqs);
+		BitSet[] negHits = new KmerCounter(k).findHits(packedKmers, negSeqs, negSeqCount, config.strand_type != 1);
 		
 		// score the kmers, hypergeometric p-value
 		ArrayList<Kmer> highHgpKmers = new ArrayList<Kmer>();
-		for (Kmer kmer:kms){
-			if (kmerstr2negSeqs.containsKey(kmer.getKmerString())){
-				kmer.setNegHits(kmerstr2negSeqs.get(kmer.getKmerString()));				
-			}
+		int[] poshits = new int[kms.size()];
+		int[] neghits = new int[kms.size()];
+		double[] hgps = new double[kms.size()];
+		ArrayList<Integer> idxs = new ArrayList<Integer>();			// the kmers to compute HGP
+		for (int i=0;i<kms.size();i++){
+			Kmer kmer = kms.get(i);
+			kmer.setNegBits(negHits[i]);
 			if (kmer.getPosHitCount() < kmer.getNegHitCount()/get_NP_ratio() * config.k_fold ){
 				highHgpKmers.add(kmer);	
 				continue;
 			}
-			if (config.use_weighted_kmer){
-//				kmer.setWeightedPosHitCount();		//TODO: check if weight is used
-				kmer.setHgp(computeHGP(posSeqCount, negSeqCount, kmer.getWeightedHitCount(), kmer.getNegHitCount()));
-			}
-			else{
-				kmer.setHgp(computeHGP(posSeqCount, negSeqCount, kmer.getPosHitCount(), kmer.getNegHitCount()));
-			}
-			if (kmer.getHgp()>config.kmer_hgp){
+//			if (config.use_weighted_kmer) kmer.setWeightedPosHitCount();		//TODO: check if weight is used
+			poshits[i] = config.use_weighted_kmer ? kmer.getWeightedHitCount() : kmer.getPosHitCount();
+			neghits[i] = kmer.getNegHitCount();
+			idxs.add(i);
+		}
+		computeHGPs(idxs, poshits, neghits, hgps);
+		for (int i:idxs){
+			Kmer kmer = kms.get(i);
+			kmer.setHgp(hgps[i]);
+			if (kmer.getHgp()>config.kmer_hgp)
 				highHgpKmers.add(kmer);		
-				continue;
-			}
 		}
 
 		Collections.sort(kms);
@@ -1451,7 +1703,7 @@ public class KMAC {
 			
 			// median BS position relative to seed k-mer start
 			cluster.pos_BS_seed=(int)Math.ceil(StatUtil.median(bs));		
-			if (config.print_aligned_seqs)
+			if (config.print_aligned_seqs && writeFiles)
 				CommonUtils.writeFile(outName+"_"+clusterID+"_seqs_aligned.txt", sb.toString());
 			sb = null;
 //			if (verbose>1 && cluster.wm!=null){
@@ -1492,7 +1744,8 @@ public class KMAC {
 		});	
 		
 		// print PWM spatial distribtution
-		printMotifDistanceDistribution(outName);
+		if (writeFiles)
+			printMotifDistanceDistribution(outName);
 		
 		outputClusters(allAlignedKmers, eventCounts, gemMsg);
 
@@ -1504,7 +1757,8 @@ public class KMAC {
 			return null;
 		}
 		double score = pCluster.ksmThreshold==null?0:pCluster.ksmThreshold.score;
-		Kmer.printKmers(allAlignedKmers, posSeqCount, negSeqCount, score, outName, false, true, false);
+		if (writeFiles)
+			Kmer.printKmers(allAlignedKmers, posSeqCount, negSeqCount, score, outName, false, true, false);
 		
 		System.out.println("\nFinish KMAC motif discovery, "+CommonUtils.timeElapsed(tic));
 		System.out.println(StatUtil.cacheAccessCount);
@@ -1526,7 +1780,7 @@ public class KMAC {
 		oks.prepare();
 		
 		// index kmer->seq, seq->kmer
-		HashMap <Kmer, HashSet<Integer>> kmer2seq = new HashMap <Kmer, HashSet<Integer>>();
+		HashMap <Kmer, BitSet> kmer2seq = new HashMap <Kmer, BitSet>();
 		for (Sequence s:seqList){
 			String seq = s.seq;						// get the sequence from original strand
 			s.reset();
@@ -1534,9 +1788,9 @@ public class KMAC {
 			if (!results.isEmpty()){
 				for (Kmer km: results){		
 					if (!kmer2seq.containsKey(km)){
-						kmer2seq.put(km, new HashSet<Integer>());
+						kmer2seq.put(km, new BitSet(seqList.size()));
 					}
-					kmer2seq.get(km).add(s.id);
+					kmer2seq.get(km).set(s.id);
 
 					// This is DIFFERENT from alignSequencesByCoOccurence(ArrayList<Kmer>)
 					// farward strand
@@ -1755,7 +2009,8 @@ public class KMAC {
 						+km.getKmerString()+"\t"+km.getPosHitCount()+"\t"+km.getNegHitCount()+"\t"+String.format("%.1f", km.getHgp())+"\t"+km.getAlignString()+"\n");
 			}
 		}
-		CommonUtils.writeFile(outName+"_Alignement_k"+k+".txt", alignedKmer_sb.toString());
+		if (writeFiles)
+			CommonUtils.writeFile(outName+"_Alignement_k"+k+".txt", alignedKmer_sb.toString());
 		alignedKmer_sb = null;
 		
 		// output PWM info
@@ -1789,12 +2044,16 @@ public class KMAC {
 			
 			// paint motif logo
 			c.wm.setNameVerType(name, "#"+c.clusterId, "");
-			CommonUtils.printMotifLogo(c.wm, new File(outName+"_"+c.clusterId+"_motif.png"), 75);
-			
-			WeightMatrix wm_rc = WeightMatrix.reverseComplement(wm);
-			wm_rc.setNameVerType(name, "#"+c.clusterId, "rc");
-			CommonUtils.printMotifLogo(wm_rc, new File(outName+"_"+c.clusterId+"_motif_rc.png"), 75);
+			if (writeFiles){
+				CommonUtils.printMotifLogo(c.wm, new File(outName+"_"+c.clusterId+"_motif.png"), 75);
+				
+				WeightMatrix wm_rc = WeightMatrix.reverseComplement(wm);
+				wm_rc.setNameVerType(name, "#"+c.clusterId, "rc");
+				CommonUtils.printMotifLogo(wm_rc, new File(outName+"_"+c.clusterId+"_motif_rc.png"), 75);
+			}
 		}
+		if (!writeFiles)
+			return;
 		CommonUtils.writeFile(outName+"_PFM.txt", pfm_sb.toString());
 		if (config.outputMEME)
 			CommonUtils.writeFile(outName+"_PFM_MEME.txt", pfm_meme_sb.toString());
@@ -2397,7 +2656,8 @@ public class KMAC {
 				c.seq2hits = findAllPWMHits(seqList, c, config.wm_factor);
 				// paint motif logo
 				c.wm.setNameVerType(name+"_i"+iter, "#"+c.clusterId, "");
-				CommonUtils.printMotifLogo(c.wm, new File(outName+"_i"+iter+"_"+c.clusterId+"_motif.png"), 75);
+				if (writeFiles)
+					CommonUtils.printMotifLogo(c.wm, new File(outName+"_i"+iter+"_"+c.clusterId+"_motif.png"), 75);
 			}	
 			if (verbose>1){
 				StringBuilder sb = new StringBuilder(CommonUtils.timeElapsed(tic)+": Cluster PWMs\t");
@@ -3993,7 +4253,26 @@ public class KMAC {
 	public double computeHGP(int posHitCount, int negHitCount){
 		if (posHitCount==0)
 			return 0;
-		return computeHGP(posSeqCount, negSeqCount, posHitCount, negHitCount);
+		return getHGPEngine().computeHGP(posHitCount, negHitCount);
+	}
+	/**
+	 * Compute hgp (log10) using the positive/negative sequences, for the hit counts at the indices idxs, in parallel<br>
+	 * The results are stored in hgps at the same indices
+	 */
+	private void computeHGPs(ArrayList<Integer> idxs, int[] posHits, int[] negHits, double[] hgps){
+		int[] idxArray = new int[idxs.size()];
+		for (int i=0;i<idxArray.length;i++)
+			idxArray[i] = idxs.get(i);
+		getHGPEngine().computeHGPs(posHits, negHits, idxArray, hgps, config.maxThreads);
+	}
+	/** the HGP engine for the current positive/negative sequence counts */
+	private HGPEngine getHGPEngine(){
+		HGPEngine engine = hgpEngine;
+		if (engine==null || engine.getPosSeqCount()!=posSeqCount || engine.getNegSeqCount()!=negSeqCount){
+			engine = new HGPEngine(posSeqCount, negSeqCount);
+			hgpEngine = engine;
+		}
+		return engine;
 	}
 	/**
 	 * Compute hgp (log10) using the positive/negative sequences
@@ -4066,12 +4345,7 @@ public class KMAC {
 					negHitCount[idx]++;
 			}
 	    }
-	    double hgps[] = new double[kmerStrings.size()];
-	    for (int i=0;i<kmerStrings.size();i++){
-			hgps[i] = computeHGP(posSeqCount, negSeqCount, posHitCount[i], negHitCount[i]);
-//	    	hgps[i] = 1-StatUtil.hyperGeometricCDF_cache(posHitCount[i], totalSeqCount, posHitCount[i]+negHitCount[i], posSeqCount);
-	    }
-	    return hgps;
+	    return getHGPEngine().computeHGPs(posHitCount, negHitCount, config.maxThreads);
 	}
 	
 	/**
@@ -4085,12 +4359,12 @@ public class KMAC {
 			tree.add(SequenceUtils.reverseComplement(kmStr).getBytes(), i);
 	    }
 	    tree.prepare();
-	    ArrayList<HashSet<Integer>> posHits = new ArrayList<HashSet<Integer>>(kmers.size());
-	    for (int i=0;i<kmers.size();i++)
-	    	posHits.add(new HashSet<Integer>());
-	    ArrayList<HashSet<Integer>> negHits = new ArrayList<HashSet<Integer>>(kmers.size());
-	    for (int i=0;i<kmers.size();i++)
-	    	negHits.add(new HashSet<Integer>());
+	    BitSet[] posHits = new BitSet[kmers.size()];
+	    BitSet[] negHits = new BitSet[kmers.size()];
+	    for (int i=0;i<kmers.size();i++){
+	    	posHits[i] = new BitSet(posSeqCount);
+	    	negHits[i] = new BitSet(negSeqCount);
+	    }
 //	    double[] kmerStrength = new double[kmers.size()];		// TODO: ignore kmer Strength for now
 	    for (int i=0;i<posSeqCount;i++){
 	    	String seq = seqs[i];
@@ -4105,7 +4379,7 @@ public class KMAC {
 //				kmerSum += kmers.get(idx).getPosHitCount();
 //			}
 			for (int idx:idxs){
-				posHits.get(idx).add(i);
+				posHits[idx].set(i);
 //				kmerStrength[idx] += kmerSum==0?0:kmers.get(idx).getPosHitCount()/kmerSum*events.get(i).getTotalEventStrength();
 			}
 	    }
@@ -4118,12 +4392,12 @@ public class KMAC {
 				idxs.addAll(result.getOutputs());
 			}
 			for (int idx:idxs)
-				negHits.get(idx).add(i);
+				negHits[idx].set(i);
 	    }
 	    for (int i=0;i<kmers.size();i++){
 	    	Kmer km = kmers.get(i);
-	    	km.setPosHits(posHits.get(i));
-	    	km.setNegHits(negHits.get(i));
+	    	km.setPosHits(posHits[i]);
+	    	km.setNegHits(negHits[i]);
 			km.setHgp( computeHGP(km.getPosHitCount(), km.getNegHitCount()));
 			km.setStrength(seq_weights[i]);
 	    }
@@ -4269,7 +4543,7 @@ public class KMAC {
 			index = CommonUtils.findKey(negSeqScores, score.score);
 			score.negHit = negSeqScores.length-index;
 			if (score.posHit>=score.negHit*2.0*posSeqCount/negSeqCount){	// posHit should be at least 2 fold
-				score.hgp = computeHGP(posSeqCount, negSeqCount, score.posHit, score.negHit);
+				score.hgp = getHGPEngine().computeHGP(score.posHit, score.negHit);
 				return score;
 			}			
 		}
@@ -4280,26 +4554,7 @@ public class KMAC {
 	
 	private Pair<Double, Integer> findBestScore(ArrayList<Integer> idxs, int[] poshits, int[] neghits, double[] hgps){
 
-		int numThread = Math.min(config.maxThreads, java.lang.Runtime.getRuntime().availableProcessors());
-		Thread[] threads = new Thread[numThread];
-		for (int i=0;i<numThread;i++){
-            Thread t = new Thread(new HGPThread(idxs, posSeqCount, negSeqCount, poshits, neghits, hgps));
-            t.start();
-            threads[i] = t;
-		}
-		boolean anyrunning = true;
-        while (anyrunning) {
-            anyrunning = false;
-            try {
-                Thread.sleep(100);
-            } catch (InterruptedException e) { }
-            for (int i = 0; i < threads.length; i++) {
-                if (threads[i].isAlive()) {
-                    anyrunning = true;
-                    break;
-                }
-            }   
-        }
+		computeHGPs(idxs, poshits, neghits, hgps);
 		
 		Pair<Double, TreeSet<Integer>> minHgp = StatUtil.findMin(hgps);
 		int minIdx = minHgp.cdr().last();
@@ -4327,51 +4582,25 @@ public class KMAC {
 		
 		double[] posSeqScores = new double[posSeqCount];
 		double[] negSeqScores = new double[negSeqCount];
-		for (int i=0;i<posSeqCount;i++){
-			KmerGroup[] kgs = query(seqs[i]);
-			if (kgs.length==0)
-				posSeqScores[i]=0;
-			else{
-				Arrays.sort(kgs);
-				posSeqScores[i]=-kgs[0].getHgp();	// use first kg, the best match	// score = -log10 hgp, becomes positive value
-			}
-		}
-//		Arrays.sort(posSeqScores);
-		int[] posIdx = StatUtil.findSort(posSeqScores);		// index of sequence after sorting the scores
-		for (int i=0;i<negSeqCount;i++){
-			KmerGroup[] kgs = query(seqsNegList.get(i));
-			if (kgs.length==0)
-				negSeqScores[i]=0;
-			else{
-				Arrays.sort(kgs);
-				negSeqScores[i]=-kgs[0].getHgp();
-			}
+		getKsmScores(posSeqScores, negSeqScores);
+		double[] posWeights = null;
+		if (config.use_weighted_kmer){
+			int[] posIdx = StatUtil.findSort(posSeqScores);		// index of sequence after sorting the scores
+			posWeights = new double[posIdx.length];
+			for (int s=0;s<posIdx.length;s++)
+				posWeights[s] = seq_weights[posIdx[s]];
 		}
+		else
+			Arrays.sort(posSeqScores);
 		Arrays.sort(negSeqScores);
 		
 		// find the threshold motif score
-		TreeSet<Double> posScoreUnique = new TreeSet<Double>();
-		for (double s:posSeqScores)
-			posScoreUnique.add(s);
-		Double[] posScores_u = new Double[posScoreUnique.size()];
-		posScoreUnique.toArray(posScores_u);
-		int[] poshits = new int[posScoreUnique.size()];
-		int[] neghits = new int[posScoreUnique.size()];
-		double[] hgps = new double[posScoreUnique.size()];
-		for (int i=0;i<posScores_u.length;i++){
-			double key = posScores_u[i];
-			int index = CommonUtils.findKey(posSeqScores, key);
-			if (config.use_weighted_kmer){
-				double weightedHit = 0;
-				for (int s=index; s<posSeqScores.length; s++)
-					weightedHit += seq_weights[ posIdx[s] ];
-				poshits[i] = (int) weightedHit;
-			}
-			else
-				poshits[i] = posSeqScores.length-index;
-			index = CommonUtils.findKey(negSeqScores, key);
-			neghits[i] = negSeqScores.length-index;
-		}
+		double[] posScores_u = uniqueScores(posSeqScores);
+		int[] poshits = new int[posScores_u.length];
+		int[] neghits = new int[posScores_u.length];
+		double[] hgps = new double[posScores_u.length];
+		countScoresAbove(posSeqScores, posWeights, posScores_u, poshits);
+		countScoresAbove(negSeqScores, null, posScores_u, neghits);
 
 		ArrayList<Integer> idxs = new ArrayList<Integer>();			// the score ids to compute HGP
 		for (int i=posScores_u.length-1;i>=0;i--)
@@ -4428,69 +4657,24 @@ public class KMAC {
 		
 		double[] posSeqScores = new double[posSeqCount];
 		double[] negSeqScores = new double[negSeqCount];
-		for (int i=0;i<posSeqCount;i++){
-			KmerGroup[] kgs = query(seqs[i]);
-			if (kgs.length==0)
-				posSeqScores[i]=0;
-			else{
-				Arrays.sort(kgs);
-				posSeqScores[i]=-kgs[0].getHgp();				// score = -log10 hgp, becomes positive value
-			}
-		}
+		getKsmScores(posSeqScores, negSeqScores);
 		Arrays.sort(posSeqScores);
-		for (int i=0;i<negSeqCount;i++){
-			KmerGroup[] kgs = query(seqsNegList.get(i));
-			if (kgs.length==0)
-				negSeqScores[i]=0;
-			else{
-				Arrays.sort(kgs);
-				negSeqScores[i]=-kgs[0].getHgp();
-			}
-		}
 		Arrays.sort(negSeqScores);
 		
 		// find the threshold motif score
-		TreeSet<Double> posScoreUnique = new TreeSet<Double>();
-		for (double s:posSeqScores)
-			posScoreUnique.add(s);
-		Double[] posScores_u = new Double[posScoreUnique.size()];
-		posScoreUnique.toArray(posScores_u);
-		int[] poshits = new int[posScoreUnique.size()];
-		int[] neghits = new int[posScoreUnique.size()];
-		double[] hgps = new double[posScoreUnique.size()];
+		double[] posScores_u = uniqueScores(posSeqScores);
+		int[] poshits = new int[posScores_u.length];
+		int[] neghits = new int[posScores_u.length];
+		double[] hgps = new double[posScores_u.length];
 		StringBuilder sb = new StringBuilder();
-		for (int i=0;i<posScores_u.length;i++){
-			double key = posScores_u[i];
-			int index = CommonUtils.findKey(posSeqScores, key);
-			poshits[i] = posSeqScores.length-index;
-			index = CommonUtils.findKey(negSeqScores, key);
-			neghits[i] = negSeqScores.length-index;
-		}
+		countScoresAbove(posSeqScores, null, posScores_u, poshits);
+		countScoresAbove(negSeqScores, null, posScores_u, neghits);
 
-		int numThread = Math.min(config.maxThreads, java.lang.Runtime.getRuntime().availableProcessors());
-		Thread[] threads = new Thread[numThread];
 		ArrayList<Integer> idxs = new ArrayList<Integer>();
 		for (int i=posScores_u.length-1;i>=0;i--)
 			if (poshits[i]>neghits[i]*2.0*posSeqCount/negSeqCount)	// posHit should be at least 2 fold
 				idxs.add(i);
-		for (int i=0;i<numThread;i++){
-            Thread t = new Thread(new HGPThread(idxs, posSeqCount, negSeqCount, poshits, neghits, hgps));
-            t.start();
-            threads[i] = t;
-		}
-		boolean anyrunning = true;
-        while (anyrunning) {
-            anyrunning = false;
-            try {
-                Thread.sleep(100);
-            } catch (InterruptedException e) { }
-            for (int i = 0; i < threads.length; i++) {
-                if (threads[i].isAlive()) {
-                    anyrunning = true;
-                    break;
-                }
-            }   
-        }
+		computeHGPs(idxs, poshits, neghits, hgps);
 		hgps[0]=0;		// the lowest threshold will match all positive sequences, lead to hgp=0
 		
 		if (printKgcHgp){
@@ -4508,6 +4692,70 @@ public class KMAC {
 			CommonUtils.writeFile(outName+"_KgsHgp.txt", sb.toString());
 		return score;
 	}	
+	
+	/**
+	 * Score the positive/negative sequences with the KSM, score = -log10 hgp of the best matched k-mer group, 0 if no match. <br>
+	 * The k-mer group hit counts are counted with a hit index of the KSM k-mers, instead of a BitSet for each group.
+	 */
+	private void getKsmScores(double[] posSeqScores, double[] negSeqScores){
+		KmerHitIndex index = new KmerHitIndex(matcherKmers, config.use_weighted_kmer ? seq_weights : null);
+		KmerMatcher.Matches matches = new KmerMatcher.Matches();
+		for (int i=0;i<posSeqScores.length;i++)
+			posSeqScores[i] = getKsmScore(seqs[i], matches, index);
+		for (int i=0;i<negSeqScores.length;i++)
+			negSeqScores[i] = getKsmScore(seqsNegList.get(i), matches, index);
+	}
+	
+	/* the score of the best k-mer group in the sequence, same as -query(seq)[0].getHgp() */
+	private double getKsmScore(String seq, KmerMatcher.Matches matches, KmerHitIndex index){
+		int n = matchKeys(seq, matches, false);
+		long[] keys = matches.keys;
+		boolean found = false;
+		double bestHgp = 0;
+		for (int i=0;i<n;){
+			int from = i;
+			for (;i<n && (keys[i]>>32)==(keys[from]>>32);i++);
+			double hgp = computeHGP(index.getPosHitCount(keys, from, i), index.getNegHitCount(keys, from, i));
+			if (!found || hgp<bestHgp){
+				bestHgp = hgp;
+				found = true;
+			}
+		}
+		return found ? -bestHgp : 0;
+	}
+	
+	/** the distinct values of the sorted scores, in ascending order */
+	private static double[] uniqueScores(double[] sortedScores){
+		int count = 0;
+		for (int i=0;i<sortedScores.length;i++)
+			if (i==0 || Double.compare(sortedScores[i], sortedScores[i-1])!=0)
+				count++;
+		double[] unique = new double[count];
+		count = 0;
+		for (int i=0;i<sortedScores.length;i++)
+			if (i==0 || Double.compare(sortedScores[i], sortedScores[i-1])!=0)
+				unique[count++] = sortedScores[i];
+		return unique;
+	}
+	
+	/**
+	 * Count the scores that are not lower than each threshold, in one sweep of the sorted scores from the top. <br>
+	 * Same as scores.length-CommonUtils.findKey(scores, threshold) for each threshold.
+	 * @param weights	if not null, sum the weights of the scores (in the order of the sorted scores) instead
+	 * @param thresholds	in ascending order
+	 */
+	private static void countScoresAbove(double[] sortedScores, double[] weights, double[] thresholds, int[] counts){
+		int p = sortedScores.length;
+		double weight = 0;
+		for (int i=thresholds.length-1;i>=0;i--){
+			while (p>0 && sortedScores[p-1]>=thresholds[i]){
+				p--;
+				if (weights!=null)
+					weight += weights[p];
+			}
+			counts[i] = weights==null ? sortedScores.length-p : (int)weight;
+		}
+	}
 	/**
 	 * Check if a k-mer is a k-mer that was not enriched in positive sets
 	 */
@@ -4536,16 +4784,11 @@ public class KMAC {
 		Collections.sort(kmers);
 //		Kmer.printKmers(kmers, posSeqCount, negSeqCount, outPrefix, false, true);
 		
-		//Aho-Corasick for searching Kmers in sequences
-		//ahocorasick_java-1.1.tar.gz is an implementation of Aho-Corasick automata for Java. BSD license.
-		//from <http://hkn.eecs.berkeley.edu/~dyoo/java/index.html> 
-		tree = new AhoCorasick();
 		str2kmer.clear();
 		for (Kmer km: kmers){
 			str2kmer.put(km.getKmerString(), km);
-			tree.add(km.getKmerString().getBytes(), km.getKmerString());
 	    }
-	    tree.prepare();
+		buildMatcher();
 	    engineInitialized = true;
 	}	
 	/** load Kmers and prepare the search Engine, do not print k-mer list<br>
@@ -4559,10 +4802,6 @@ public class KMAC {
 			return;
 		}		
 		
-		//Init Aho-Corasick alg. for searching multiple Kmers in sequences
-		//ahocorasick_java-1.1.tar.gz is an implementation of Aho-Corasick automata for Java. BSD license.
-		//from <http://hkn.eecs.berkeley.edu/~dyoo/java/index.html> 
-		tree = new AhoCorasick();
 		str2kmer.clear();
 		for (Kmer km: kmers){
 			int offset = km.getKmerStartOffset();
@@ -4575,12 +4814,22 @@ public class KMAC {
 			else
 				kmerStr = km.getKmerString();
 			str2kmer.put(kmerStr, km);
-			tree.add(kmerStr.getBytes(), kmerStr);
 	    }
-	    tree.prepare();
+		buildMatcher();
 	    engineInitialized = true;
 	}		
 	
+	/** build the k-mer matcher with the k-mer strings in str2kmer, and their RC if searching both strands */
+	private void buildMatcher(){
+		ArrayList<String> patterns = new ArrayList<String>(str2kmer.size());
+		matcherKmers = new ArrayList<Kmer>(str2kmer.size());
+		for (String kmerStr: str2kmer.keySet()){
+			patterns.add(kmerStr);
+			matcherKmers.add(str2kmer.get(kmerStr));
+		}
+		matcher = new KmerMatcher(patterns, config.strand_type!=1);
+	}
+	
 	/** 
 	 * Search all k-mers in the sequence
 	 * @param seq sequence string to search k-mers, config.strand_type determines whether to search on RC strand
@@ -4589,62 +4838,72 @@ public class KMAC {
 	 * Note: matches on negative strand are combined with matches on positive strand
 	 */
 	public KmerGroup[] query (String seq){
-		seq = seq.toUpperCase();
-		HashSet<Object> kmerFound = new HashSet<Object>();	// each kmer is only used 
-		//Search for all kmers in the sequences using Aho-Corasick algorithms (initialized)
-		//ahocorasick_java-1.1.tar.gz is an implementation of Aho-Corasick automata for Java. BSD license.
-		//from <http://hkn.eecs.berkeley.edu/~dyoo/java/index.html> 
-
-		Iterator searcher = tree.search(seq.getBytes());
-		while (searcher.hasNext()) {
-			SearchResult result = (SearchResult) searcher.next();
-			kmerFound.addAll(result.getOutputs());
-		}
-		if (config.strand_type!=1){
-			// the reverse compliment
-			String seq_rc = SequenceUtils.reverseComplement(seq);
-			searcher = tree.search(seq_rc.getBytes());
-			while (searcher.hasNext()) {
-				SearchResult result = (SearchResult) searcher.next();
-				kmerFound.addAll(result.getOutputs());
-			}
-		}
+		return query(seq, new KmerMatcher.Matches());
+	}
+	
+	/** 
+	 * Search all k-mers in the sequence, same as query(seq), but use the matches buffer for the k-mer matches,
+	 * the buffer can be reused for many calls, but not shared by concurrent calls
+	 */
+	public KmerGroup[] query (String seq, KmerMatcher.Matches matches){
+		KmerGroup[] kgs = groupMatches(seq, matches, false);
+		Arrays.sort(kgs);
+		return kgs;
+	}
+	
+	/**
+	 * Match all k-mers in the sequence in one pass, group the k-mer matches by the motif position they map to.
+	 * @param labelRC if true, matches on the RC strand are labeled as (pos in seqRC + RC);
+	 * otherwise they are converted to positions in seq and combined with matches on the forward strand
+	 * @return KmerGroups in ascending order of position
+	 */
+	private KmerGroup[] groupMatches(String seq, KmerMatcher.Matches matches, boolean labelRC){
+		int n = matchKeys(seq, matches, labelRC);
+		long[] keys = matches.keys;
 		
-		// Aho-Corasick only gives the patterns (kmers) matched, need to search for positions
-		// matches on negative strand are combined with matches on positive strand
-		HashMap<Integer, ArrayList<Kmer>> result = new HashMap<Integer, ArrayList<Kmer>> ();
-		String seqRC = SequenceUtils.reverseComplement(seq);
-		for (Object o: kmerFound){
-			String kmerStr = (String) o;
-			Kmer kmer = str2kmer.get(kmerStr);
-			ArrayList<Integer> pos = StringUtils.findAllOccurences(seq, kmerStr);
-			for (int p: pos){
-				int x = p-kmer.getKmerStartOffset();	// minus kmerShift to get the motif position
-				if (!result.containsKey(x))
-					result.put(x, new ArrayList<Kmer>());
-				result.get(x).add(kmer);	
-			}
-			if (config.strand_type!=1){
-				ArrayList<Integer> pos_rc = StringUtils.findAllOccurences(seqRC, kmerStr);
-				for (int p: pos_rc){
-					int x = p-kmer.getKmerStartOffset();	// motif position in seqRC
-					x = seq.length()-1-x;		// convert to position in Seq
-					if (!result.containsKey(x))
-						result.put(x, new ArrayList<Kmer>());
-					result.get(x).add(kmer);	
-				}
-			}
-		}
-		KmerGroup[] matches = new KmerGroup[result.keySet().size()];
+		int groupCount = 0;
+		for (int i=0;i<n;i++)
+			if (i==0 || (keys[i]>>32)!=(keys[i-1]>>32))
+				groupCount++;
+		KmerGroup[] kgs = new KmerGroup[groupCount];
 		int idx = 0;
-		for (int p:result.keySet()){
-			KmerGroup kg = config.use_weighted_kmer ? new KmerGroup(result.get(p), p, seq_weights, posSeqCount, negSeqCount) : new KmerGroup(result.get(p), p, posSeqCount, negSeqCount);
-			matches[idx]=kg;
+		for (int i=0;i<n;){
+			int x = (int)(keys[i]>>32);
+			ArrayList<Kmer> kmers = new ArrayList<Kmer>();
+			for (;i<n && (int)(keys[i]>>32)==x;i++)
+				kmers.add(matcherKmers.get((int)keys[i]));
+			KmerGroup kg = config.use_weighted_kmer ? new KmerGroup(kmers, x, seq_weights, posSeqCount, negSeqCount) : new KmerGroup(kmers, x, posSeqCount, negSeqCount);
 			kg.setHgp(computeHGP(kg.getGroupHitCount(), kg.getGroupNegHitCount()));
-			idx++;
+			kgs[idx++] = kg;
+		}
+		return kgs;
+	}
+	
+	/**
+	 * Match all k-mers in the sequence, the matches are stored in matches.keys as (motif position&lt;&lt;32 | k-mer index), 
+	 * sorted so that the matches of a k-mer group are consecutive.
+	 * @return the number of matches
+	 */
+	private int matchKeys(String seq, KmerMatcher.Matches matches, boolean labelRC){
+		seq = seq.toUpperCase();
+		// only non-overlapping occurrences of a k-mer on each strand, as found by StringUtils.findAllOccurences()
+		int n = matcher.matchNonOverlapping(seq, matches);
+		int len = seq.length();
+		long[] keys = matches.keys;
+		for (int i=0;i<n;i++){
+			Kmer kmer = matcherKmers.get(matches.getKmerIndex(i));
+			int x;
+			if (!matches.isRC(i))
+				x = matches.getStart(i)-kmer.getKmerStartOffset();	// minus kmerShift to get the motif position
+			else{
+				int p = len-matches.getStart(i)-matches.getLength(i);	// kmer position in seqRC
+				x = p-kmer.getKmerStartOffset();						// motif position in seqRC
+				x = labelRC ? x+RC : len-1-x;		// label it as "found on RC", or convert to position in seq
+			}
+			keys[i] = ((long)x<<32) | matches.getKmerIndex(i);
 		}
-		Arrays.sort(matches);
-		return matches;
+		Arrays.sort(keys, 0, n);
+		return n;
 	}
 	
 	/** 
@@ -4687,64 +4946,28 @@ public class KMAC {
 	 * Note: the return value is different from query() in that match on RC strand is labeled (pos+RC)
 	 */
 	public KmerGroup[] queryS (String seq){
-		seq = seq.toUpperCase();
-		HashSet<Object> kmerFound = new HashSet<Object>();	// each kmer is only used 
-		//Search for all kmers in the sequences using Aho-Corasick algorithms (initialized)
-		//ahocorasick_java-1.1.tar.gz is an implementation of Aho-Corasick automata for Java. BSD license.
-		//from <http://hkn.eecs.berkeley.edu/~dyoo/java/index.html> 
-
-		Iterator searcher = tree.search(seq.getBytes());
-		while (searcher.hasNext()) {
-			SearchResult result = (SearchResult) searcher.next();
-			kmerFound.addAll(result.getOutputs());
-		}
-		if (config.strand_type!=1){
-			// the reverse compliment
-			String seq_rc = SequenceUtils.reverseComplement(seq);
-			searcher = tree.search(seq_rc.getBytes());
-			while (searcher.hasNext()) {
-				SearchResult result = (SearchResult) searcher.next();
-				kmerFound.addAll(result.getOutputs());
-			}
-		}
-		// Aho-Corasick only gives the patterns (kmers) matched, need to search for positions
-		// matches on negative strand are combined with matches on positive strand
-		TreeMap<Integer, ArrayList<Kmer>> result = new TreeMap<Integer, ArrayList<Kmer>> ();
-		String seqRC = SequenceUtils.reverseComplement(seq);
-		for (Object o: kmerFound){
-			String kmerStr = (String) o;
-			Kmer kmer = str2kmer.get(kmerStr);
-			ArrayList<Integer> pos = StringUtils.findAllOccurences(seq, kmerStr);
-			for (int p: pos){
-				int x = p-kmer.getKmerStartOffset();	// minus kmerShift to get the motif position
-				if (!result.containsKey(x))
-					result.put(x, new ArrayList<Kmer>());
-				result.get(x).add(kmer);	
-			}
-			if (config.strand_type!=1){
-				ArrayList<Integer> pos_rc = StringUtils.findAllOccurences(seqRC, kmerStr);
-				for (int p: pos_rc){
-					int x = p-kmer.getKmerStartOffset();	// motif position in seqRC
-					x += RC;									// label it as "found on RC"
-					if (!result.containsKey(x))
-						result.put(x, new ArrayList<Kmer>());
-					result.get(x).add(kmer);	
-				}
-			}
-		}
-		KmerGroup[] matches = new KmerGroup[result.keySet().size()];
-		int idx = 0;
-		for (int p:result.keySet()){
-			KmerGroup kg = config.use_weighted_kmer ? new KmerGroup(result.get(p), p, seq_weights, posSeqCount, negSeqCount) : new KmerGroup(result.get(p), p, posSeqCount, negSeqCount);
-			matches[idx]=kg;
-			kg.setHgp(computeHGP(kg.getGroupHitCount(), kg.getGroupNegHitCount()));
-			idx++;
-		}
-		return matches;
+		return groupMatches(seq, new KmerMatcher.Matches(), true);
 	}
 		
 	public String getSequenceUppercase(Region r){
-		return seqgen.execute(r).toUpperCase();
+		return getSequence(r, true, false);
+	}
+	
+	/**
+	 * Get the sequence of the region from the region cache, or from the genome if the region is not cached. 
+	 * The chromosome of an uncached region is not cached.
+	 * @param reverseComplement if true, get the reverse complement of the region
+	 */
+	public String getSequence(Region r, boolean upperCase, boolean reverseComplement){
+		if (seqCache!=null){
+			String seq = seqCache.getSequence(r, upperCase, reverseComplement);
+			if (seq!=null)
+				return seq;
+		}
+		String seq = seqgen.executeRegion(r);
+		if (upperCase)
+			seq = seq.toUpperCase();
+		return reverseComplement ? SequenceUtils.reverseComplement(seq) : seq;
 	}
 	
 	public void indexKmers(List<File> files){
@@ -4852,38 +5075,6 @@ public class KMAC {
 	}
 
 
-	class HGPThread implements Runnable {
-		ArrayList<Integer> idxs;
-		int posTotal;
-		int negTotal;
-		int[] posHits;
-		int[] negHits;
-		double[] hgps;
-		HGPThread(ArrayList<Integer> idxs, int posTotal, int negTotal, int[] posHits, int[] negHits, double[] hgps){
-			this.idxs = idxs;
-			this.posTotal = posTotal;
-			this.negTotal = negTotal;
-			this.posHits = posHits;
-			this.negHits = negHits;
-			this.hgps = hgps;
-		}
-		public void run() {
-			int i;
-			while (!idxs.isEmpty()) {
-				synchronized (idxs){
-	            	if (!idxs.isEmpty()){
-	            		i = idxs.get(0);
-	            		idxs.remove(0);
-	        		}
-	            	else
-	            		break;
-	        	}		
-				if (i==0 && posHits[0]==posSeqCount)
-	    			hgps[0]=0;
-				hgps[i]=computeHGP(posTotal, negTotal, posHits[i], negHits[i]);
-			}
-		}
-	}
 	public static void main1(String[] args){
 		ArrayList<Integer> x_list = new ArrayList<Integer>();
 		ArrayList<Integer> same_list = new ArrayList<Integer>();
@@ -1,6 +1,8 @@
 package edu.mit.csail.cgs.deepseq.discovery.kmer;
 
 import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
@@ -82,6 +84,15 @@ public class Kmer implements Comparable<Kmer>{
 		if (use_weighted_hit_count)
 			setWeightedPosHitCount();
 	}
+	public void setPosHits(BitSet posHits) {
+		if (posHits.isEmpty())
+			return;
+		
+		posBits.clear();
+		posBits.or(posHits);
+		if (use_weighted_hit_count)
+			setWeightedPosHitCount();
+	}
 //	public HashSet<Integer> getPosHits(){return posHits;}
 	
 	private int weightedPosHitCount;
@@ -104,6 +115,10 @@ public class Kmer implements Comparable<Kmer>{
 			negBits.set(id);
 		}
 	}
+	public void setNegHits(BitSet negHits) {
+		negBits.clear();
+		negBits.or(negHits);
+	}
 //	public HashSet<Integer> getNegHits(){return negHits;}
 	
 	public int getNetHitCount(double posNegSeqRatio) {
@@ -185,6 +200,38 @@ public class Kmer implements Comparable<Kmer>{
 		return n;
 	}
 	
+	/** write the k-mer with its hits and alignment, the gapped k-mers are not written */
+	void write(DataOutputStream out) throws IOException{
+		out.writeUTF(kmerString);
+		out.writeInt(clusterId);
+		out.writeInt(shift);
+		out.writeInt(kmerStartOffset);
+		out.writeDouble(strength);
+		out.writeDouble(hgp_lg10);
+		out.writeDouble(familyHgp);
+		out.writeBoolean(isSeedOrientation);
+		CommonUtils.writeString(out, alignString);
+		CommonUtils.writeBitSet(out, posBits);
+		CommonUtils.writeBitSet(out, negBits);
+		out.writeInt(weightedPosHitCount);
+	}
+	
+	static Kmer read(DataInputStream in) throws IOException{
+		Kmer n = new Kmer(in.readUTF(), new BitSet());
+		n.clusterId = in.readInt();
+		n.shift = in.readInt();
+		n.kmerStartOffset = in.readInt();
+		n.strength = in.readDouble();
+		n.hgp_lg10 = in.readDouble();
+		n.familyHgp = in.readDouble();
+		n.isSeedOrientation = in.readBoolean();
+		n.alignString = CommonUtils.readString(in);
+		n.posBits = CommonUtils.readBitSet(in);
+		n.negBits = CommonUtils.readBitSet(in);
+		n.weightedPosHitCount = in.readInt();
+		return n;
+	}
+	
 	protected void setNegBits(BitSet bitSet) {
 		negBits = bitSet;
 	}
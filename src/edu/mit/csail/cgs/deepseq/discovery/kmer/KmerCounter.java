@@ -0,0 +1,331 @@
+package edu.mit.csail.cgs.deepseq.discovery.kmer;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Counts the sequences that contain each k-mer, using k-mers packed into longs (2 bits per base). <br>
+ * The (k-mer, sequence id) occurrences of all sequences are collected in primitive arrays and
+ * radix sorted, so that each distinct k-mer owns a run of ascending sequence ids.
+ * Reverse complements are computed arithmetically on the packed values. <br>
+ *
+ * A typical use is:
+ * <pre>
+ * KmerCounter counter = new KmerCounter(k);
+ * counter.count(seqs, seqCount, numPos);
+ * counter.mergeReverseComplements();		// unless only the forward strand is considered
+ * for (int i=0;i&lt;counter.getKmerCount();i++)
+ *     ... counter.getKmerString(i), counter.getHitCount(i), counter.getHits(i)
+ * </pre>
+ * k has to be at most 31.
+ */
+public class KmerCounter {
+	public static final int MAX_K = 31;
+	private static final int RADIX_BITS = 11;
+	private static final char[] BASES = {'A','C','G','T'};
+
+	private int k;
+	private long mask;
+
+	/* distinct k-mers in ascending order of the packed value, the sequence ids of kmers[i]
+	 * are seqIds[runStart[i]] to seqIds[runStart[i+1]-1], in ascending order */
+	private long[] kmers;
+	private int[] runStart;
+	private int[] seqIds;
+
+	/* the k-mers reported after counting or RC merging, as indices into kmers[];
+	 * mates[i] is the index of the merged reverse complement k-mer, or -1 */
+	private int[] selected;
+	private int[] mates;
+	private int[] hitCounts;
+
+	public KmerCounter(int k){
+		if (k<1 || k>MAX_K)
+			throw new IllegalArgumentException("k="+k+" is out of the range [1, "+MAX_K+"] of packed k-mers.");
+		this.k = k;
+		mask = (1L<<(2*k))-1;
+	}
+
+	public int getK(){return k;}
+
+	/** 2-bit code of a base, or -1 if it is not one of ACGT (upper case) */
+	public static int baseCode(char c){
+		switch(c){
+		case 'A': return 0;
+		case 'C': return 1;
+		case 'G': return 2;
+		case 'T': return 3;
+		default: return -1;
+		}
+	}
+
+	/** pack a k-mer string, returns -1 if it contains a base other than ACGT */
+	public static long encode(String kmer){
+		long packed = 0;
+		for (int i=0;i<kmer.length();i++){
+			int code = baseCode(kmer.charAt(i));
+			if (code==-1)
+				return -1;
+			packed = (packed<<2) | code;
+		}
+		return packed;
+	}
+
+	public static String decode(long packed, int k){
+		char[] chars = new char[k];
+		for (int i=k-1;i>=0;i--){
+			chars[i] = BASES[(int)(packed & 3)];
+			packed >>>= 2;
+		}
+		return new String(chars);
+	}
+
+	public static long reverseComplement(long packed, int k){
+		long rc = 0;
+		for (int i=0;i<k;i++){
+			rc = (rc<<2) | (3-(packed & 3));
+			packed >>>= 2;
+		}
+		return rc;
+	}
+
+	/**
+	 * Pack all the k-mers of the sequence that start at position 0 to numPos-1,
+	 * k-mers that contain a base other than ACGT are skipped.
+	 * @param buffer to hold the k-mers, at least as long as the number of positions
+	 * @return the number of k-mers put in the buffer
+	 */
+	public int packKmers(String seq, int numPos, long[] buffer){
+		int count = 0;
+		int end = Math.min(seq.length(), numPos+k-1);
+		long packed = 0;
+		int valid = 0;		// number of consecutive valid bases ending at the current position
+		for (int i=0;i<end;i++){
+			int code = baseCode(seq.charAt(i));
+			if (code==-1){
+				valid = 0;
+				continue;
+			}
+			packed = ((packed<<2) | code) & mask;
+			valid++;
+			if (valid>=k)
+				buffer[count++] = packed;
+		}
+		return count;
+	}
+
+	/**
+	 * Count the sequences that contain each k-mer, on the forward strand.
+	 * A k-mer repeated in a sequence is counted once.
+	 * @param seqs sequences, null entries are skipped
+	 * @param seqCount number of sequences (from the start of seqs) to count
+	 * @param numPos number of k-mer start positions to consider in each sequence
+	 */
+	public void count(String[] seqs, int seqCount, int numPos){
+		int total = 0;
+		int maxPos = 0;
+		for (int id=0;id<seqCount;id++){
+			if (seqs[id]==null)
+				continue;
+			int n = Math.max(0, Math.min(numPos, seqs[id].length()-k+1));
+			total += n;
+			maxPos = Math.max(maxPos, n);
+		}
+		long[] keys = new long[total];
+		int[] ids = new int[total];
+		long[] buffer = new long[maxPos];
+		int size = 0;
+		for (int id=0;id<seqCount;id++){
+			if (seqs[id]==null)
+				continue;
+			int n = packKmers(seqs[id], numPos, buffer);
+			Arrays.sort(buffer, 0, n);
+			for (int i=0;i<n;i++){
+				if (i>0 && buffer[i]==buffer[i-1])		// only count repeated k-mer once in a sequence
+					continue;
+				keys[size] = buffer[i];
+				ids[size] = id;
+				size++;
+			}
+		}
+		// stable sort by k-mer, the ids of each k-mer stay in ascending order
+		radixSort(keys, ids, size);
+
+		int distinct = 0;
+		for (int i=0;i<size;i++)
+			if (i==0 || keys[i]!=keys[i-1])
+				distinct++;
+		kmers = new long[distinct];
+		runStart = new int[distinct+1];
+		int d = 0;
+		for (int i=0;i<size;i++){
+			if (i==0 || keys[i]!=keys[i-1]){
+				kmers[d] = keys[i];
+				runStart[d] = i;
+				d++;
+			}
+		}
+		runStart[distinct] = size;
+		seqIds = size==ids.length ? ids : Arrays.copyOf(ids, size);
+
+		selected = new int[distinct];
+		mates = new int[distinct];
+		hitCounts = new int[distinct];
+		for (int i=0;i<distinct;i++){
+			selected[i] = i;
+			mates[i] = -1;
+			hitCounts[i] = runStart[i+1]-runStart[i];
+		}
+	}
+
+	/**
+	 * Merge each k-mer with its reverse complement. The one found in more sequences represents both,
+	 * and takes the union of their sequence hits. If both are found in the same number of sequences,
+	 * the lexicographically smaller one is kept.
+	 */
+	public void mergeReverseComplements(){
+		int distinct = kmers.length;
+		boolean[] removed = new boolean[distinct];
+		int[] mergedMates = new int[distinct];
+		int[] mergedCounts = new int[distinct];
+		Arrays.fill(mergedMates, -1);
+		int kept = 0;
+		for (int i=0;i<distinct;i++){
+			mergedCounts[i] = runStart[i+1]-runStart[i];
+		}
+		for (int i=0;i<distinct;i++){
+			if (removed[i])
+				continue;
+			long rc = reverseComplement(kmers[i], k);
+			int j = rc==kmers[i] ? -1 : Arrays.binarySearch(kmers, rc);
+			if (j>=0){
+				int iCount = runStart[i+1]-runStart[i];
+				int jCount = runStart[j+1]-runStart[j];
+				int winner = iCount>=jCount ? i : j;		// i<j, ties are won by the smaller k-mer
+				int loser = winner==i ? j : i;
+				mergedMates[winner] = loser;
+				mergedCounts[winner] = unionCount(winner, loser);
+				removed[loser] = true;
+			}
+		}
+		for (int i=0;i<distinct;i++)
+			if (!removed[i])
+				kept++;
+		selected = new int[kept];
+		mates = new int[kept];
+		hitCounts = new int[kept];
+		int s = 0;
+		for (int i=0;i<distinct;i++){
+			if (removed[i])
+				continue;
+			selected[s] = i;
+			mates[s] = mergedMates[i];
+			hitCounts[s] = mergedCounts[i];
+			s++;
+		}
+	}
+
+	/** number of k-mers found (after RC merging, if it is done) */
+	public int getKmerCount(){ return selected.length; }
+
+	public long getKmer(int i){ return kmers[selected[i]]; }
+
+	public String getKmerString(int i){ return decode(kmers[selected[i]], k); }
+
+	/** number of sequences that contain the i-th k-mer (or its merged reverse complement) */
+	public int getHitCount(int i){ return hitCounts[i]; }
+
+	/** ids of the sequences that contain the i-th k-mer (or its merged reverse complement) */
+	public BitSet getHits(int i){
+		BitSet hits = new BitSet();
+		int idx = selected[i];
+		for (int p=runStart[idx];p<runStart[idx+1];p++)
+			hits.set(seqIds[p]);
+		if (mates[i]!=-1){
+			int mate = mates[i];
+			for (int p=runStart[mate];p<runStart[mate+1];p++)
+				hits.set(seqIds[p]);
+		}
+		return hits;
+	}
+
+	/**
+	 * Find the sequences that contain each of the target k-mers.
+	 * @param targets packed k-mers
+	 * @param bothStrands if true, a sequence hits a k-mer if it contains the k-mer or its reverse complement
+	 * @return sequence hits of each target k-mer, in the order of targets
+	 */
+	public BitSet[] findHits(long[] targets, String[] seqs, int seqCount, boolean bothStrands){
+		long[] sortedTargets = targets.clone();
+		Arrays.sort(sortedTargets);
+		int[] order = new int[targets.length];		// index of sorted target in targets
+		for (int i=0;i<targets.length;i++)
+			order[Arrays.binarySearch(sortedTargets, targets[i])] = i;
+		BitSet[] hits = new BitSet[targets.length];
+		for (int i=0;i<hits.length;i++)
+			hits[i] = new BitSet();
+		if (targets.length==0)
+			return hits;
+
+		long[] buffer = new long[0];
+		for (int id=0;id<seqCount;id++){
+			String seq = seqs[id];
+			if (seq==null)
+				continue;
+			if (buffer.length<seq.length())
+				buffer = new long[seq.length()];
+			int n = packKmers(seq, seq.length(), buffer);
+			for (int p=0;p<n;p++){
+				int t = Arrays.binarySearch(sortedTargets, buffer[p]);
+				if (t>=0)
+					hits[order[t]].set(id);
+				if (bothStrands){
+					t = Arrays.binarySearch(sortedTargets, reverseComplement(buffer[p], k));
+					if (t>=0)
+						hits[order[t]].set(id);
+				}
+			}
+		}
+		return hits;
+	}
+
+	/* size of the union of the (ascending) sequence id runs of k-mer a and b */
+	private int unionCount(int a, int b){
+		int pa = runStart[a], pb = runStart[b];
+		int count = 0;
+		while (pa<runStart[a+1] && pb<runStart[b+1]){
+			if (seqIds[pa]==seqIds[pb]){
+				pa++; pb++;
+			}
+			else if (seqIds[pa]<seqIds[pb])
+				pa++;
+			else
+				pb++;
+			count++;
+		}
+		return count + (runStart[a+1]-pa) + (runStart[b+1]-pb);
+	}
+
+	/* LSD radix sort of the keys (2k bits), moving the ids along, stable */
+	private void radixSort(long[] keys, int[] ids, int size){
+		long[] keyBuffer = new long[size];
+		int[] idBuffer = new int[size];
+		int buckets = 1<<RADIX_BITS;
+		int[] counts = new int[buckets+1];
+		for (int shift=0; shift<2*k; shift+=RADIX_BITS){
+			Arrays.fill(counts, 0);
+			for (int i=0;i<size;i++)
+				counts[(int)((keys[i]>>>shift) & (buckets-1))+1]++;
+			for (int b=0;b<buckets;b++)
+				counts[b+1] += counts[b];
+			for (int i=0;i<size;i++){
+				int b = (int)((keys[i]>>>shift) & (buckets-1));
+				keyBuffer[counts[b]] = keys[i];
+				idBuffer[counts[b]] = ids[i];
+				counts[b]++;
+			}
+			System.arraycopy(keyBuffer, 0, keys, 0, size);
+			System.arraycopy(idBuffer, 0, ids, 0, size);
+		}
+	}
+}
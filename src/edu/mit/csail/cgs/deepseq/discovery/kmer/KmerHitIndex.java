@@ -0,0 +1,125 @@
+package edu.mit.csail.cgs.deepseq.discovery.kmer;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * The positive/negative sequence hits of a list of k-mers, to count the sequences hit by groups of these k-mers. <br>
+ * The hits of each k-mer are stored as the words of its bitset, trimmed to the words that have hits,
+ * or as the sorted sequence ids if the k-mer hits only a few sequences. The hit count of a k-mer group is the
+ * popcount of the OR of the words of its k-mers, without building a BitSet for each group as KmerGroup does. <br>
+ * An index is a snapshot of the k-mer hits when it is built. It counts with its own buffers, so it is used by one thread.
+ */
+public class KmerHitIndex {
+	private Hits[] posHits;
+	private Hits[] negHits;
+	private double[] weights;
+	private long[] posBuffer;
+	private long[] negBuffer;
+
+	/**
+	 * @param kmers		the k-mers, a group is given by the indices of its k-mers in this list
+	 * @param weights	the weights of the positive sequences, to count the weighted hits as KmerGroup does,
+	 * 					or null to count the sequences
+	 */
+	public KmerHitIndex(List<Kmer> kmers, double[] weights){
+		this.weights = weights;
+		posHits = new Hits[kmers.size()];
+		negHits = new Hits[kmers.size()];
+		int posWords = 0;
+		int negWords = 0;
+		for (int i=0;i<kmers.size();i++){
+			posHits[i] = new Hits(kmers.get(i).posBits);
+			negHits[i] = new Hits(kmers.get(i).negBits);
+			posWords = Math.max(posWords, posHits[i].end);
+			negWords = Math.max(negWords, negHits[i].end);
+		}
+		posBuffer = new long[posWords];
+		negBuffer = new long[negWords];
+	}
+
+	/**
+	 * The (weighted) number of positive sequences hit by any k-mer of the group
+	 * @param keys	the k-mer indices of the group are the lower 32 bits of keys[from..to), as in KMAC.groupMatches()
+	 */
+	public int getPosHitCount(long[] keys, int from, int to){
+		return count(posHits, posBuffer, keys, from, to, weights);
+	}
+
+	/**
+	 * The number of negative sequences hit by any k-mer of the group
+	 * @param keys	the k-mer indices of the group are the lower 32 bits of keys[from..to), as in KMAC.groupMatches()
+	 */
+	public int getNegHitCount(long[] keys, int from, int to){
+		return count(negHits, negBuffer, keys, from, to, null);
+	}
+
+	/* OR the hits of the k-mers into the buffer, count the bits and clear the buffer */
+	private static int count(Hits[] hits, long[] buffer, long[] keys, int from, int to, double[] weights){
+		if (to-from==1 && weights==null)
+			return hits[(int)keys[from]].count;
+		int start = buffer.length;
+		int end = 0;
+		for (int i=from;i<to;i++){
+			Hits h = hits[(int)keys[i]];
+			if (h.count==0)
+				continue;
+			h.or(buffer);
+			start = Math.min(start, h.start);
+			end = Math.max(end, h.end);
+		}
+		int count = 0;
+		double weight = 0;
+		for (int w=start;w<end;w++){
+			long word = buffer[w];
+			if (weights==null)
+				count += Long.bitCount(word);
+			else{
+				// add the weights in the order of the sequence ids, same as KmerGroup
+				while (word!=0){
+					weight += weights[(w<<6)+Long.numberOfTrailingZeros(word)];
+					word &= word-1;
+				}
+			}
+			buffer[w] = 0;
+		}
+		return weights==null ? count : (int)weight;
+	}
+
+	/* the hits of one k-mer, the words [start, end) of its bitset, or the sequence ids if there are fewer ids than words */
+	private static class Hits {
+		int count;
+		int start;
+		int end;
+		long[] words;
+		int[] ids;
+
+		Hits(BitSet bits){
+			count = bits.cardinality();
+			if (count==0)
+				return;
+			start = bits.nextSetBit(0)>>>6;
+			end = ((bits.length()-1)>>>6)+1;
+			if (count<end-start){
+				ids = new int[count];
+				int j = 0;
+				for (int i=bits.nextSetBit(0);i>=0;i=bits.nextSetBit(i+1))
+					ids[j++] = i;
+			}
+			else
+				words = Arrays.copyOfRange(bits.toLongArray(), start, end);
+		}
+
+		void or(long[] buffer){
+			if (ids!=null){
+				for (int id: ids)
+					buffer[id>>>6] |= 1L<<id;
+			}
+			else{
+				for (int w=start;w<end;w++)
+					buffer[w] |= words[w-start];
+			}
+		}
+	}
+}
@@ -0,0 +1,246 @@
+package edu.mit.csail.cgs.deepseq.discovery.kmer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import edu.mit.csail.cgs.utils.sequence.SequenceUtils;
+
+/**
+ * Aho-Corasick automaton over the ACGT alphabet that reports the position of every k-mer match. <br>
+ * The reverse complements of the patterns are added to the same automaton, so matches on both strands
+ * are found in a single pass over the forward sequence, without scanning the reverse complement sequence. <br>
+ * The automaton is immutable after construction and can be shared by threads,
+ * each thread should use its own Matches buffer.
+ * @see KMAC#query(String, KmerMatcher.Matches)
+ */
+public class KmerMatcher {
+	private static final int ROOT = 0;
+
+	/* goTo[state*4+base] is the next state, fail transitions are resolved at construction */
+	private int[] goTo;
+	/* pattern ids output at state s are outputs[outStart[s]] to outputs[outStart[s+1]-1] */
+	private int[] outStart;
+	private int[] outputs;
+
+	private int[] patternLength;
+	private int[] patternKmer;			// index of the k-mer that the pattern comes from
+	private boolean[] patternRC;		// true if the pattern is the reverse complement of the k-mer
+	private boolean bothStrands;
+
+	/**
+	 * @param patterns the k-mer strings to search, upper case ACGT only. Patterns that contain other letters never match.
+	 * @param bothStrands if true, the reverse complements of the patterns are also searched
+	 */
+	public KmerMatcher(ArrayList<String> patterns, boolean bothStrands){
+		this.bothStrands = bothStrands;
+		int patternCount = bothStrands ? patterns.size()*2 : patterns.size();
+		patternLength = new int[patternCount];
+		patternKmer = new int[patternCount];
+		patternRC = new boolean[patternCount];
+		int totalLength = 0;
+		for (String p: patterns)
+			totalLength += bothStrands ? p.length()*2 : p.length();
+
+		// build the trie
+		int[] trie = new int[(totalLength+1)*4];
+		Arrays.fill(trie, -1);
+		int stateCount = 1;
+		int[] terminal = new int[patternCount];
+		for (int id=0;id<patternCount;id++){
+			int kmerIdx = bothStrands ? id/2 : id;
+			boolean isRC = bothStrands && id%2==1;
+			String p = isRC ? SequenceUtils.reverseComplement(patterns.get(kmerIdx)) : patterns.get(kmerIdx);
+			patternLength[id] = p.length();
+			patternKmer[id] = kmerIdx;
+			patternRC[id] = isRC;
+			terminal[id] = -1;
+			int state = ROOT;
+			boolean valid = p.length()>0;
+			for (int i=0;i<p.length() && valid;i++){
+				int b = KmerCounter.baseCode(p.charAt(i));
+				if (b==-1){
+					valid = false;
+					break;
+				}
+				if (trie[state*4+b]==-1)
+					trie[state*4+b] = stateCount++;
+				state = trie[state*4+b];
+			}
+			if (valid)
+				terminal[id] = state;
+		}
+
+		// breadth first, set the fail links and complete the transitions
+		goTo = new int[stateCount*4];
+		int[] fail = new int[stateCount];
+		int[] queue = new int[stateCount];
+		int head = 0, tail = 0;
+		for (int b=0;b<4;b++){
+			int s = trie[ROOT*4+b];
+			if (s==-1)
+				goTo[ROOT*4+b] = ROOT;
+			else{
+				goTo[ROOT*4+b] = s;
+				fail[s] = ROOT;
+				queue[tail++] = s;
+			}
+		}
+		while (head<tail){
+			int r = queue[head++];
+			for (int b=0;b<4;b++){
+				int s = trie[r*4+b];
+				if (s==-1)
+					goTo[r*4+b] = goTo[fail[r]*4+b];
+				else{
+					goTo[r*4+b] = s;
+					fail[s] = goTo[fail[r]*4+b];
+					queue[tail++] = s;
+				}
+			}
+		}
+
+		// outputs of each state, including those inherited through the fail links (parents come first in BFS order)
+		int[] ownCount = new int[stateCount];
+		for (int id=0;id<patternCount;id++)
+			if (terminal[id]!=-1)
+				ownCount[terminal[id]]++;
+		int[] totalCount = new int[stateCount];
+		for (int i=0;i<tail;i++){
+			int s = queue[i];
+			totalCount[s] = ownCount[s] + totalCount[fail[s]];
+		}
+		outStart = new int[stateCount+1];
+		for (int s=0;s<stateCount;s++)
+			outStart[s+1] = outStart[s]+totalCount[s];
+		outputs = new int[outStart[stateCount]];
+		int[] fill = new int[stateCount];
+		for (int id=0;id<patternCount;id++){
+			int s = terminal[id];
+			if (s!=-1)
+				outputs[outStart[s]+fill[s]++] = id;
+		}
+		for (int i=0;i<tail;i++){
+			int s = queue[i];
+			int f = fail[s];
+			System.arraycopy(outputs, outStart[f], outputs, outStart[s]+fill[s], totalCount[f]);
+		}
+	}
+
+	/**
+	 * Find all the pattern matches in the sequence, in the order of their end positions.
+	 * @param seq upper case sequence, letters other than ACGT do not match any pattern
+	 * @param matches buffer to hold the matches, it is cleared first
+	 * @return the number of matches
+	 */
+	public int match(String seq, Matches matches){
+		matches.size = 0;
+		int state = ROOT;
+		for (int i=0;i<seq.length();i++){
+			int b = KmerCounter.baseCode(seq.charAt(i));
+			if (b==-1){
+				state = ROOT;
+				continue;
+			}
+			state = goTo[state*4+b];
+			for (int o=outStart[state];o<outStart[state+1];o++){
+				int id = outputs[o];
+				matches.add(i-patternLength[id]+1, patternKmer[id], patternRC[id], patternLength[id]);
+			}
+		}
+		return matches.size;
+	}
+
+	/**
+	 * Find the pattern matches in the sequence, but only keep the non-overlapping matches of each pattern
+	 * that are found by scanning its strand from the 5' end, i.e. the matches that String.indexOf() finds
+	 * in the sequence for the k-mers and in the reverse complement sequence for their reverse complements.
+	 * @return the number of matches
+	 */
+	public int matchNonOverlapping(String seq, Matches matches){
+		int n = match(seq, matches);
+		if (matches.stamps.length<patternLength.length){
+			matches.stamps = new int[patternLength.length];
+			matches.bounds = new int[patternLength.length];
+		}
+		int[] stamps = matches.stamps;
+		int[] bounds = matches.bounds;
+		int stamp = ++matches.stamp;
+		// forward strand, from the left, a match can not start before the end of the previous match
+		for (int i=0;i<n;i++){
+			if (matches.rc[i])
+				continue;
+			int id = bothStrands ? matches.kmers[i]*2 : matches.kmers[i];
+			if (stamps[id]==stamp && matches.starts[i]<bounds[id])
+				matches.kmers[i] = -1;		// removed
+			else{
+				stamps[id] = stamp;
+				bounds[id] = matches.starts[i]+matches.lengths[i];
+			}
+		}
+		// reverse strand, from the right, a match can not end after the start of the previous match
+		for (int i=n-1;i>=0;i--){
+			if (!matches.rc[i])
+				continue;
+			int id = matches.kmers[i]*2+1;
+			if (stamps[id]==stamp && matches.starts[i]+matches.lengths[i]>bounds[id])
+				matches.kmers[i] = -1;		// removed
+			else{
+				stamps[id] = stamp;
+				bounds[id] = matches.starts[i];
+			}
+		}
+		int size = 0;
+		for (int i=0;i<n;i++){
+			if (matches.kmers[i]==-1)
+				continue;
+			matches.starts[size] = matches.starts[i];
+			matches.kmers[size] = matches.kmers[i];
+			matches.rc[size] = matches.rc[i];
+			matches.lengths[size] = matches.lengths[i];
+			size++;
+		}
+		matches.size = size;
+		return size;
+	}
+
+	/**
+	 * Reusable buffer of matches: start position on the forward strand of the sequence,
+	 * index of the matched k-mer, strand, and length of the match.
+	 */
+	public static class Matches {
+		int size;
+		int[] starts = new int[64];
+		int[] kmers = new int[64];
+		int[] lengths = new int[64];
+		boolean[] rc = new boolean[64];
+		/* scratch space for grouping the matches by position */
+		long[] keys = new long[64];
+		/* per pattern scratch space of matchNonOverlapping() */
+		int stamp;
+		int[] stamps = new int[0];
+		int[] bounds = new int[0];
+
+		public int size(){return size;}
+		public int getStart(int i){return starts[i];}
+		public int getKmerIndex(int i){return kmers[i];}
+		public int getLength(int i){return lengths[i];}
+		/** true if the reverse complement of the k-mer is found on the forward strand */
+		public boolean isRC(int i){return rc[i];}
+
+		void add(int start, int kmer, boolean isRC, int length){
+			if (size==starts.length){
+				int capacity = size*2;
+				starts = Arrays.copyOf(starts, capacity);
+				kmers = Arrays.copyOf(kmers, capacity);
+				lengths = Arrays.copyOf(lengths, capacity);
+				rc = Arrays.copyOf(rc, capacity);
+				keys = new long[capacity];
+			}
+			starts[size] = start;
+			kmers[size] = kmer;
+			rc[size] = isRC;
+			lengths[size] = length;
+			size++;
+		}
+	}
+}
@@ -0,0 +1,129 @@
+package edu.mit.csail.cgs.deepseq.discovery.kmer;
+
+import java.io.*;
+import java.util.*;
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import edu.mit.csail.cgs.datasets.motifs.WeightMatrix;
+import edu.mit.csail.cgs.deepseq.discovery.Config;
+
+/**
+ * Checks that the motif clusters written by KMAC.writeMotifs() (with Kmer.write()) are
+ * restored by readMotifs(), so that a GEM checkpoint resumes with the same KSMs and PWMs.
+ */
+public class TestMotifCheckpoint {
+
+	@Test public void testKmerRoundTrip() throws IOException {
+		Kmer km = newKmer("CACGTG", 3, new int[]{1, 5, 8, 40}, new int[]{2, 77});
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		km.write(out);
+		out.close();
+		Kmer copy = Kmer.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+
+		assertEquals(km.getKmerString(), copy.getKmerString());
+		assertEquals(km.getK(), copy.getK());
+		assertEquals(km.getClusterId(), copy.getClusterId());
+		assertEquals(km.getShift(), copy.getShift());
+		assertEquals(km.getStrength(), copy.getStrength(), 0);
+		assertEquals(km.getAlignString(), copy.getAlignString());
+		assertEquals(km.getPosBits(), copy.getPosBits());
+		assertEquals(km.getNegBits(), copy.getNegBits());
+	}
+
+	@Test public void testMotifsRoundTrip() throws IOException {
+		ArrayList<Kmer> kmers = new ArrayList<Kmer>();
+		kmers.add(newKmer("CACGTG", 0, new int[]{0, 3, 9, 12}, new int[]{4}));
+		kmers.add(newKmer("ACGTGA", 0, new int[]{3, 9, 20}, new int[]{}));
+		kmers.add(newKmer("TCACGT", 0, new int[]{7}, new int[]{30, 31}));
+		Config config = new Config();
+		KMAC kmac = new KMAC(kmers, config, null);
+		kmac.setTotalSeqCounts(120, 360);
+
+		KMAC.KmerCluster primary = kmac.new KmerCluster();
+		primary.clusterId = 0;
+		primary.pos_pwm_seed = 2;
+		primary.pos_BS_seed = -1;
+		primary.ksmThreshold.score = 7.5;
+		primary.ksmThreshold.posHit = 80;
+		primary.ksmThreshold.negHit = 12;
+		primary.ksmThreshold.hgp = -20.25;
+		float[][] pwm = new float[6]['T'+1];
+		for (int i=0;i<pwm.length;i++)
+			pwm[i]["ACGT".charAt(i%4)] = 1.5f+i;
+		primary.wm = new WeightMatrix(pwm);
+		primary.wm.setNameVerType("k6-PWM", "1", "TEST");
+		primary.pfm = new float[][]{{0.1f, 0.2f, 0.3f, 0.4f}, {0.7f, 0.1f, 0.1f, 0.1f}};
+		primary.pwmGoodQuality = true;
+		primary.pwmThreshold = 6.25;
+		primary.pwmThresholdHGP = -18.5;
+		primary.pwmPosHitCount = 75;
+		primary.pwmNegHitCount = 10;
+		primary.total_aligned_seqs = 90;
+		primary.pi = 0.625;
+		primary.seedKmer = kmers.get(0);
+		primary.alignedKmers = kmers;
+		kmac.clusters.add(primary);
+
+		// a cluster with no PWM, threshold, seed or k-mers
+		KMAC.KmerCluster empty = kmac.new KmerCluster();
+		empty.clusterId = 1;
+		empty.ksmThreshold = null;
+		kmac.clusters.add(empty);
+
+		byte[] saved = writeMotifs(kmac);
+		KMAC loaded = new KMAC(new Config(), null);
+		loaded.readMotifs(new DataInputStream(new ByteArrayInputStream(saved)));
+
+		assertEquals(2, loaded.getMotifClusters().size());
+		KMAC.KmerCluster c = loaded.getPrimaryCluster();
+		assertEquals(primary.ksmThreshold.score, c.ksmThreshold.score, 0);
+		assertEquals(primary.ksmThreshold.posHit, c.ksmThreshold.posHit);
+		assertTrue(Arrays.deepEquals(primary.wm.matrix, c.wm.matrix));
+		assertEquals("k6-PWM", c.wm.getName());
+		assertTrue(Arrays.deepEquals(primary.pfm, c.pfm));
+		assertEquals(primary.pwmThreshold, c.pwmThreshold, 0);
+		assertEquals(primary.seedKmer.getKmerString(), c.seedKmer.getKmerString());
+		assertEquals(kmers.size(), c.alignedKmers.size());
+		for (int i=0;i<kmers.size();i++){
+			assertEquals(kmers.get(i).getKmerString(), c.alignedKmers.get(i).getKmerString());
+			assertEquals(kmers.get(i).getPosBits(), c.alignedKmers.get(i).getPosBits());
+		}
+		KMAC.KmerCluster e = loaded.getMotifClusters().get(1);
+		assertNull(e.ksmThreshold);
+		assertNull(e.wm);
+		assertNull(e.pfm);
+		assertNull(e.seedKmer);
+		assertNull(e.alignedKmers);
+		assertTrue("the engine is not set up with the primary KSM", loaded.isInitialized());
+
+		// everything that is written is read back
+		assertArrayEquals(saved, writeMotifs(loaded));
+	}
+
+	private static Kmer newKmer(String seq, int clusterId, int[] posHits, int[] negHits){
+		BitSet pos = new BitSet();
+		for (int i : posHits)
+			pos.set(i);
+		BitSet neg = new BitSet();
+		for (int i : negHits)
+			neg.set(i);
+		Kmer km = new Kmer(seq, pos);
+		km.setNegBits(neg);
+		km.setClusterId(clusterId);
+		km.setShift(seq.length()/2);
+		km.setKmerStartOffset(-2);
+		km.setStrength(posHits.length*3.5);
+		km.setAlignString(seq+"/"+clusterId);
+		return km;
+	}
+
+	private static byte[] writeMotifs(KMAC kmac) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		kmac.writeMotifs(out);
+		out.close();
+		return bytes.toByteArray();
+	}
+}
@@ -1,9 +1,13 @@
 package edu.mit.csail.cgs.deepseq.features;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.util.ArrayList;
 
 import edu.mit.csail.cgs.datasets.general.Point;
 import edu.mit.csail.cgs.datasets.general.Region;
+import edu.mit.csail.cgs.datasets.species.Genome;
 import edu.mit.csail.cgs.deepseq.discovery.kmer.KmerGroup;
 import edu.mit.csail.cgs.deepseq.utilities.CommonUtils;
 import edu.mit.csail.cgs.ewok.verbs.SequenceGenerator;
@@ -98,6 +102,72 @@ public class ComponentFeature extends Feature  implements Comparable<ComponentFe
 		boundSequence = b.getBoundSequence();
 	}
 	
+	/**
+	 * Read an event written by write(), for resuming a GEM run. <br>
+	 * The k-mer group and the gene annotations are not saved.
+	 */
+	public ComponentFeature(DataInputStream in, Genome g) throws IOException{
+		super(null);
+		String chrom = in.readUTF();
+		position = new Point(g, chrom, in.readInt());
+		EM_position = new Point(g, chrom, in.readInt());
+		coords = position.expand(1);
+		strand = in.readChar();
+		isJointEvent = in.readBoolean();
+		mfold = in.readDouble();
+		totalSumResponsibility = in.readDouble();
+		alpha = in.readDouble();
+		noiseFraction = in.readDouble();
+		kmerStrand = in.readChar();
+		enrichedKmerHGPLog10 = in.readDouble();
+		boundSequence = CommonUtils.readString(in);
+		conditionBeta = CommonUtils.readDoubles(in);
+		int length = in.readInt();
+		if (length!=-1){
+			condSignificance = new boolean[length];
+			for (int c=0;c<length;c++)
+				condSignificance[c] = in.readBoolean();
+		}
+		condSumResponsibility = CommonUtils.readDoubles(in);
+		ipCtrl_logKL_plus = CommonUtils.readDoubles(in);
+		ipCtrl_logKL_minus = CommonUtils.readDoubles(in);
+		shapeDeviation = CommonUtils.readDoubles(in);
+		unScaledControlCounts = CommonUtils.readDoubles(in);
+		expectedCounts = CommonUtils.readDoubles(in);
+		p_values = CommonUtils.readDoubles(in);
+		p_values_wo_ctrl = CommonUtils.readDoubles(in);
+		q_value_log10 = CommonUtils.readDoubles(in);
+	}
+	
+	public void write(DataOutputStream out) throws IOException{
+		out.writeUTF(position.getChrom());
+		out.writeInt(position.getLocation());
+		out.writeInt(EM_position.getLocation());
+		out.writeChar(strand);
+		out.writeBoolean(isJointEvent);
+		out.writeDouble(mfold);
+		out.writeDouble(totalSumResponsibility);
+		out.writeDouble(alpha);
+		out.writeDouble(noiseFraction);
+		out.writeChar(kmerStrand);
+		out.writeDouble(enrichedKmerHGPLog10);
+		CommonUtils.writeString(out, boundSequence);
+		CommonUtils.writeDoubles(out, conditionBeta);
+		out.writeInt(condSignificance==null ? -1 : condSignificance.length);
+		if (condSignificance!=null)
+			for (boolean sig: condSignificance)
+				out.writeBoolean(sig);
+		CommonUtils.writeDoubles(out, condSumResponsibility);
+		CommonUtils.writeDoubles(out, ipCtrl_logKL_plus);
+		CommonUtils.writeDoubles(out, ipCtrl_logKL_minus);
+		CommonUtils.writeDoubles(out, shapeDeviation);
+		CommonUtils.writeDoubles(out, unScaledControlCounts);
+		CommonUtils.writeDoubles(out, expectedCounts);
+		CommonUtils.writeDoubles(out, p_values);
+		CommonUtils.writeDoubles(out, p_values_wo_ctrl);
+		CommonUtils.writeDoubles(out, q_value_log10);
+	}
+	
 	//Accessors 
 	public double getAlpha(){return(alpha);}
 	public Point getPosition() { return position;}
@@ -1168,6 +1168,53 @@ public class CommonUtils {
 		}
 	}
 	
+	/** write a double array that may be null, as its length (-1 for null) followed by the values */
+	public static void writeDoubles(DataOutputStream out, double[] values) throws IOException{
+		if (values==null){
+			out.writeInt(-1);
+			return;
+		}
+		out.writeInt(values.length);
+		for (double v: values)
+			out.writeDouble(v);
+	}
+	
+	public static double[] readDoubles(DataInputStream in) throws IOException{
+		int length = in.readInt();
+		if (length==-1)
+			return null;
+		double[] values = new double[length];
+		for (int i=0;i<length;i++)
+			values[i] = in.readDouble();
+		return values;
+	}
+	
+	/** write a string that may be null */
+	public static void writeString(DataOutputStream out, String s) throws IOException{
+		out.writeBoolean(s!=null);
+		if (s!=null)
+			out.writeUTF(s);
+	}
+	
+	public static String readString(DataInputStream in) throws IOException{
+		return in.readBoolean() ? in.readUTF() : null;
+	}
+	
+	/** write a BitSet as the number of set bits followed by their indices */
+	public static void writeBitSet(DataOutputStream out, BitSet bits) throws IOException{
+		out.writeInt(bits.cardinality());
+		for (int i=bits.nextSetBit(0); i>=0; i=bits.nextSetBit(i+1))
+			out.writeInt(i);
+	}
+	
+	public static BitSet readBitSet(DataInputStream in) throws IOException{
+		int count = in.readInt();
+		BitSet bits = new BitSet();
+		for (int i=0;i<count;i++)
+			bits.set(in.readInt());
+		return bits;
+	}
+	
 	/**
 	 * Get a list of points that are within the window of the anchor point<br>
 	 * Assuming the sites list is sorted
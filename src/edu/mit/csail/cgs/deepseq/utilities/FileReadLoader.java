@@ -46,6 +46,8 @@ public class FileReadLoader extends ReadLoader{
 	protected int maxMismatch=0;
 	protected boolean useNonUnique=true;
 	protected int currID=0;
+	// sorted 5' position runs of the streamed SAM/BAM files, see SAMStreamReader
+	protected ArrayList<int[][][]> streamedStarts=null;
 
 	public FileReadLoader(List<File> f, String format){
 		// estimate genome chrom length by combining all files
@@ -98,6 +100,16 @@ public class FileReadLoader extends ReadLoader{
 	}
 
 	public FileReadLoader(Genome g, List<File> f, String format, int maxMismatch, boolean useNonUnique, int rLen, int idSeed){
+		this(g, f, format, maxMismatch, useNonUnique, rLen, idSeed, false, 1);
+	}
+
+	/**
+	 * @param startsOnly if true, SAM/BAM files are streamed with SAMStreamReader, 
+	 * only the 5' positions are kept for <tt>getAllStarts()</tt>, the hits can not be queried by region
+	 * @param numThreads number of threads to decode the SAM/BAM files
+	 */
+	public FileReadLoader(Genome g, List<File> f, String format, int maxMismatch, boolean useNonUnique, int rLen, int idSeed,
+			boolean startsOnly, int numThreads){
 		super(g, rLen);
 		
 		this.maxMismatch=maxMismatch;
@@ -106,6 +118,19 @@ public class FileReadLoader extends ReadLoader{
 		if(format==null){this.format="BED";}
 		else{this.format=format;}
 		currID = idSeed;
+		
+		if(startsOnly && this.format.equals("SAM")){
+			SAMStreamReader reader = new SAMStreamReader(chrom2ID, gen.getChromList().size(), useNonUnique, numThreads);
+			for(File file : files){
+				if(!file.isFile()){System.err.println("File not found: "+file.getName());System.exit(1);}
+				reader.read(file);
+			}
+			streamedStarts = reader.getRuns();
+			totalHits = reader.getTotalHits();
+			totalWeight = reader.getTotalWeight();
+			readLength = Math.max(readLength, reader.getReadLength());
+			return;
+		}
 			
 		for(File file : files){
 			if(!file.isFile()){System.err.println("File not found: "+file.getName());System.exit(1);}
@@ -183,6 +208,11 @@ public class FileReadLoader extends ReadLoader{
 	
 	// load all start coordinates (unsorted if multiple files)
 	public ArrayList<int [][][]> getAllStarts(){
+		if(streamedStarts!=null){
+			ArrayList<int [][][]> allStarts = streamedStarts;
+			streamedStarts = null;
+			return allStarts;
+		}
 		ArrayList<int [][][]> allStarts = new ArrayList<int [][][]>();
 		for(AlignmentFileReader a : fileReaders){
 			allStarts.add(a.getFivePrimes());
@@ -275,6 +305,7 @@ public class FileReadLoader extends ReadLoader{
 	}
 	
 	public void cleanup(){
+		streamedStarts=null;
 		for(AlignmentFileReader a : fileReaders){
 			a.cleanup();
 		}
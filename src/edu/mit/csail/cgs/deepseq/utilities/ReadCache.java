@@ -1,22 +1,35 @@
 package edu.mit.csail.cgs.deepseq.utilities;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
+import cern.colt.list.FloatArrayList;
+import cern.colt.list.IntArrayList;
 import cern.jet.random.Poisson;
 import cern.jet.random.engine.DRand;
 
 import edu.mit.csail.cgs.datasets.general.Region;
 import edu.mit.csail.cgs.datasets.species.Genome;
+import edu.mit.csail.cgs.deepseq.BaseSlice;
 import edu.mit.csail.cgs.deepseq.StrandedBase;
 import edu.mit.csail.cgs.utils.probability.NormalDistribution;
 import edu.mit.csail.cgs.utils.Pair;
@@ -54,6 +67,8 @@ public class ReadCache {
 	private int[] binCounts;			// histogram bins, index: count at bases; value: number of bases.
 	private int[] bin500Counts;			// histogram bins, index: count at bases; value: number of bases.
 	static final int BINSIZE = 501;
+	/** magic number ("RSB1") at the start of the binary Read Start Count file */
+	static final int RSB_MAGIC = 0x52534231;
 	//Data structures for pre-loading
 	
 	/**
@@ -69,7 +84,11 @@ public class ReadCache {
 	 */
 	private int[][][] fivePrimes=null;
 	
-	private ArrayList<Integer>[][] fivePrimesList = null;
+	/**
+	 * Growable primitive lists used while loading, so that 5' positions are not boxed. <br>
+	 * They are handed over to <tt>fivePrimes</tt> by populateArrays().
+	 */
+	private IntArrayList[][] fivePrimesList = null;
 	
 	/**
 	 * Number of read hits that corresponds to the 5' position
@@ -79,7 +98,14 @@ public class ReadCache {
 	 */
 	private float[][][] hitCounts=null;
 	
-	private ArrayList<Float>[][] hitCountsList = null;
+	private FloatArrayList[][] hitCountsList = null;
+	
+	/**
+	 * Optional index of cumulative counts, built by buildCountIndex(). <br>
+	 * cumCounts[chrom][strand][k] is the sum of hitCounts[chrom][strand][0..k-1],
+	 * so the count of a region is the difference of two elements. It is rebuilt whenever the counts change.
+	 */
+	private double[][][] cumCounts = null;
 	
 	/**
 	 * Strands of the read hits
@@ -113,13 +139,20 @@ public class ReadCache {
 		fivePrimes    = new int[numChroms][2][];
 		hitCounts = new float[numChroms][2][];
 		
-		fivePrimesList = new ArrayList[numChroms][2];
-		for(int i = 0; i < fivePrimesList.length; i++) { for(int j = 0; j < fivePrimesList[i].length; j++) { fivePrimesList[i][j] = new ArrayList<Integer>(); } }
-		
-		hitCountsList = new ArrayList[numChroms][2];
-		for(int i = 0; i < hitCountsList.length; i++) { for(int j = 0; j < hitCountsList[i].length; j++) { hitCountsList[i][j] = new ArrayList<Float>(); } }
+		initLists();
 	}//end of ReadCache constructor
 	
+	private void initLists(){
+		fivePrimesList = new IntArrayList[numChroms][2];
+		hitCountsList = new FloatArrayList[numChroms][2];
+		for(int i = 0; i < numChroms; i++) { 
+			for(int j = 0; j < 2; j++) { 
+				fivePrimesList[i][j] = new IntArrayList(); 
+				hitCountsList[i][j] = new FloatArrayList(); 
+			} 
+		}
+	}
+	
 	public List<StrandedBase> getUnstrandedBases(Region r) {
 		List<StrandedBase> bases = new ArrayList<StrandedBase>();
 		bases.addAll(getStrandedBases(r,'+'));
@@ -164,6 +197,26 @@ public class ReadCache {
 		return bases;
 	}
 	
+	/**
+	 * The hits of both strands in the region, as a view of the cached arrays. <br>
+	 * Same bases and order as getUnstrandedBases(), without the StrandedBase objects.
+	 */
+	public BaseSlice getBaseSlice(Region r) {
+		int chrID = chrom2ID.get(r.getChrom());
+		int[] plus = fivePrimes[chrID][0];
+		int[] minus = fivePrimes[chrID][1];
+		int plusFrom = lowerBound(plus, 0, r.getStart());
+		int minusFrom = lowerBound(minus, 0, r.getStart());
+		return new BaseSlice(plus, hitCounts[chrID][0], plusFrom, upperBound(plus, plusFrom, r.getEnd()),
+				minus, hitCounts[chrID][1], minusFrom, upperBound(minus, minusFrom, r.getEnd()));
+	}
+	/**
+	 * The hits of one strand in the region, as a view of the cached arrays
+	 */
+	public BaseSlice getStrandedBaseSlice(Region r, char strand) {
+		return getBaseSlice(r).strandView(strand);
+	}
+	
 	/**
 	 * Loads hits in the region
 	 * @param r
@@ -209,6 +262,12 @@ public class ReadCache {
 		int chrID = chrom2ID.get(chr);
 		int j = (strand=='+') ? 0 : 1;
 		int[] tempStarts = fivePrimes[chrID][j];		
+		double[][][] cum = cumCounts;
+		if (cum!=null){
+			int start_ind = lowerBound(tempStarts, 0, r.getStart());
+			int end_ind = upperBound(tempStarts, start_ind, r.getEnd());
+			return (float)(cum[chrID][j][end_ind]-cum[chrID][j][start_ind]);
+		}
         float count = 0;
 		if(tempStarts.length != 0) {
 			int start_ind = Arrays.binarySearch(tempStarts, r.getStart());
@@ -229,6 +288,107 @@ public class ReadCache {
         return count;
     }
 
+	/**
+	 * Count hits of each region on one strand, in one pass over the regions. <br>
+	 * The regions should be sorted (by chromosome, then start) for a merge-like pass, 
+	 * but the counts are correct in any order.
+	 * @return the counts, in the order of the regions
+	 */
+	public float[] countStrandedBases(List<Region> regions, char strand) {
+		int j = (strand=='+') ? 0 : 1;
+		double[][][] cum = cumCounts;
+		float[] counts = new float[regions.size()];
+		int chrID = -1;
+		int prevStart = Integer.MIN_VALUE;
+		int start_ind = 0;
+		for (int i=0;i<regions.size();i++){
+			Region r = regions.get(i);
+			int id = chrom2ID.get(r.getChrom());
+			int[] tempStarts = fivePrimes[id][j];
+			if (id!=chrID || r.getStart()<prevStart)
+				start_ind = lowerBound(tempStarts, 0, r.getStart());
+			else		// sorted, move forward from the previous region
+				start_ind = lowerBound(tempStarts, start_ind, r.getStart());
+			chrID = id;
+			prevStart = r.getStart();
+			int end_ind = upperBound(tempStarts, start_ind, r.getEnd());
+			if (cum!=null)
+				counts[i] = (float)(cum[id][j][end_ind]-cum[id][j][start_ind]);
+			else{
+				float count = 0;
+				float[] tempCounts = hitCounts[id][j];
+				for(int k = start_ind; k < end_ind; k++)
+					count += tempCounts[k];
+				counts[i] = count;
+			}
+		}
+		return counts;
+	}
+	
+	/**
+	 * Count hits of each region, both strands, see countStrandedBases(List, char)
+	 */
+	public float[] countHits(List<Region> regions) {
+		float[] counts = countStrandedBases(regions, '+');
+		float[] minus = countStrandedBases(regions, '-');
+		for (int i=0;i<counts.length;i++)
+			counts[i] += minus[i];
+		return counts;
+	}
+	
+	/**
+	 * Build (or rebuild) the cumulative count index, after which the region counts take two binary searches.
+	 * The index takes one double per base position.
+	 */
+	public synchronized void buildCountIndex() {
+		double[][][] cum = new double[numChroms][2][];
+		for(int i = 0; i < hitCounts.length; i++)
+			for(int j = 0; j < hitCounts[i].length; j++){
+				float[] counts = hitCounts[i][j];
+				if (counts==null)
+					continue;
+				double[] c = new double[counts.length+1];
+				for (int k=0;k<counts.length;k++)
+					c[k+1] = c[k]+counts[k];
+				cum[i][j] = c;
+			}
+		cumCounts = cum;
+	}
+	
+	/* first index k>=from with starts[k]>=value */
+	private static int lowerBound(int[] starts, int from, int value){
+		int lo = from, hi = starts.length;
+		while (lo<hi){
+			int mid = (lo+hi)>>>1;
+			if (starts[mid]<value)
+				lo = mid+1;
+			else
+				hi = mid;
+		}
+		return lo;
+	}
+	
+	/* first index k>=from with starts[k]>value, searching forward from 'from' with doubling steps */
+	private static int upperBound(int[] starts, int from, int value){
+		int lo = from, step = 1;
+		int hi = from;
+		while (hi<starts.length && starts[hi]<=value){
+			lo = hi+1;
+			hi = from+step;
+			step <<= 1;
+		}
+		if (hi>starts.length)
+			hi = starts.length;
+		while (lo<hi){
+			int mid = (lo+hi)>>>1;
+			if (starts[mid]<=value)
+				lo = mid+1;
+			else
+				hi = mid;
+		}
+		return lo;
+	}
+
 	/**
 	 * Gets the stranded count of all hits (of all chromosomes) for the specified strand
 	 * @param strand 
@@ -253,57 +413,49 @@ public class ReadCache {
 	public void addHits(String chrom, char strand, Collection<Integer> coords, Collection<Float> counts){
 		int chrID   = chrom2ID.get(chrom);
 		int strandInd = strand == '+' ? 0 : 1;
-		fivePrimesList[chrID][strandInd].addAll(coords);
-		hitCountsList[chrID][strandInd].addAll(counts);
-		for (float c: counts)
+		IntArrayList fivePrimeList = fivePrimesList[chrID][strandInd];
+		FloatArrayList hitCountList = hitCountsList[chrID][strandInd];
+		fivePrimeList.ensureCapacity(fivePrimeList.size()+coords.size());
+		hitCountList.ensureCapacity(hitCountList.size()+counts.size());
+		for (int c: coords)
+			fivePrimeList.add(c);
+		for (float c: counts){
+			hitCountList.add(c);
 			totalHits += c;
+		}
 		totalBases += coords.size();
 	}//end of addHits method	
 	
 	/**
 	 * Add all hit starts from all chrom and strand
 	 * It is called once for file reader that has loaded data into memory
-	 * assuming the data structure of starts is same as file reader 
+	 * assuming the data structure of starts is same as file reader. <br>
+	 * Each element of allStarts holds sorted runs of 5' positions (e.g. one file, or one decoding thread),
+	 * the runs of each chrom/strand are combined with a k-way merge.
 	 */
 	public void addAllFivePrimes(ArrayList<int[][][]> allStarts){
 		for(int i = 0; i < fivePrimesList.length; i++){			// chrom
 			for(int j = 0; j < fivePrimesList[i].length; j++){	// strand
 				try{
-					int[][][] tmp = allStarts.get(0);		// assuming only one text file
-					int[] allPositions = tmp[i][j];
-					tmp[i][j]=null;
-					for (int k=1;k<allStarts.size();k++){		// for each of files/replicates
-						tmp = allStarts.get(k);
-						allPositions = mergeOrderedList(allPositions, tmp[i][j]);
+					int[][] runs = new int[allStarts.size()][];
+					for (int k=0;k<allStarts.size();k++){		// for each of files/replicates
+						int[][][] tmp = allStarts.get(k);
+						runs[k] = tmp[i][j];
 						tmp[i][j]=null;
 					}
-					System.gc();
-					if (allPositions==null || allPositions.length==0)
+					// consolidate counts of same bp position, now file reader stores 5' end
+					mergeRuns(runs, fivePrimesList[i][j], hitCountsList[i][j]);
+					runs = null;
+					if (fivePrimesList[i][j].isEmpty())
 						continue;
-					// consolidate counts of same bp position
-					int count = 1;
-					int previous = allPositions[0];
-					for (int m=1;m<allPositions.length;m++){
-						if (allPositions[m]==previous){
-							count++;
-						}
-						else{
-							fivePrimesList[i][j].add(previous);				// now file reader stores 5' end
-							hitCountsList[i][j].add((float)count);
-							count=1;
-							previous = allPositions[m];
-						}
-					}
-					// add the last element
-					fivePrimesList[i][j].add(previous);				// now file reader stores 5' end
-					hitCountsList[i][j].add((float)count);
 					fivePrimesList[i][j].trimToSize();
 					hitCountsList[i][j].trimToSize();
 					
 					// update stats
 					totalBases += fivePrimesList[i][j].size();
-					for (float c: hitCountsList[i][j])
-						totalHits += c;
+					float[] counts = hitCountsList[i][j].elements();
+					for (int m=0;m<hitCountsList[i][j].size();m++)
+						totalHits += counts[m];
 				}catch (Exception e){
 					System.err.println("Error: loading chomosome "+id2Chrom.get(i)+" "+(j==0?"+":"-")+" strand.");
 					e.printStackTrace(System.err);
@@ -313,24 +465,79 @@ public class ReadCache {
 		}
 	}//end of addAllFivePrimes method
 	
-	private int[] mergeOrderedList(int[] a, int[] b){
-		int[] result = new int[a.length+b.length];
-		int ai=0; int bi=0;
-		for (int i=0;i<result.length;i++){
-			if (bi!=b.length && (ai==a.length || a[ai]>b[bi])){
-				result[i]=b[bi];
-				bi++;
+	/**
+	 * K-way merge of sorted runs (null runs are skipped), using a binary heap of the run cursors.
+	 * Each distinct position is added once to positions, with the number of its occurrences added to counts.
+	 */
+	private static void mergeRuns(int[][] runs, IntArrayList positions, FloatArrayList counts){
+		int[] heap = new int[runs.length];		// run indices, ordered by the position at the cursor
+		int[] cursors = new int[runs.length];
+		int size = 0;
+		int total = 0;
+		for (int r=0;r<runs.length;r++){
+			if (runs[r]==null || runs[r].length==0)
+				continue;
+			total += runs[r].length;
+			heap[size++] = r;
+		}
+		if (size==0)
+			return;
+		positions.ensureCapacity(positions.size()+total);
+		counts.ensureCapacity(counts.size()+total);
+		for (int h=size/2-1;h>=0;h--)
+			siftDown(heap, size, h, runs, cursors);
+		int previous = runs[heap[0]][0];
+		int count = 0;
+		while (size>0){
+			int r = heap[0];
+			int[] run = runs[r];
+			// take all the elements of the top run that are not larger than the next smallest run
+			int limit = Integer.MAX_VALUE;
+			if (size>1){
+				limit = runs[heap[1]][cursors[heap[1]]];
+				if (size>2)
+					limit = Math.min(limit, runs[heap[2]][cursors[heap[2]]]);
 			}
-			else{
-				result[i]=a[ai];
-				ai++;
+			int c = cursors[r];
+			while (c<run.length && run[c]<=limit){
+				if (run[c]==previous)
+					count++;
+				else{
+					positions.add(previous);
+					counts.add((float)count);
+					count=1;
+					previous = run[c];
+				}
+				c++;
 			}
+			cursors[r] = c;
+			if (c==run.length)
+				heap[0] = heap[--size];
+			if (size>0)
+				siftDown(heap, size, 0, runs, cursors);
 		}
-		return result;
-	}//end of mergeOrderedList method
+		// add the last element
+		positions.add(previous);
+		counts.add((float)count);
+	}//end of mergeRuns method
+	
+	private static void siftDown(int[] heap, int size, int h, int[][] runs, int[] cursors){
+		int r = heap[h];
+		int value = runs[r][cursors[r]];
+		while (2*h+1<size){
+			int child = 2*h+1;
+			if (child+1<size && runs[heap[child+1]][cursors[heap[child+1]]]<runs[heap[child]][cursors[heap[child]]])
+				child++;
+			if (runs[heap[child]][cursors[heap[child]]]>=value)
+				break;
+			heap[h] = heap[child];
+			h = child;
+		}
+		heap[h] = r;
+	}
 	
 	/**
-	 * Converts lists of Integers to integer arrays, deletes the lists for saving memory. <br>
+	 * Converts the primitive lists to trimmed arrays, deletes the lists for saving memory. <br>
 	 * This is usually called after addHits() or addAllFivePrimes().
 	 * All array elements are ordered in terms of the <tt>five primes of reads</tt>.
 	 */
@@ -343,6 +550,8 @@ public class ReadCache {
 			for(int j = 0; j < hitCountsList[i].length; j++)
 				hitCounts[i][j] = list2float(hitCountsList[i][j]);
 		hitCountsList = null;
+		if (cumCounts!=null)
+			buildCountIndex();
 		System.gc();
 		if (generateStats)
 			generateStats();
@@ -406,50 +615,135 @@ public class ReadCache {
 	 * the position being considered is excluded for Guassian Kernel computation
 	 */
 	public void applyPoissonGaussianFilter(double threshold, int width, int rand_seed){
+		applyPoissonGaussianFilter(threshold, width, rand_seed, 1);
+	}
+	/**
+	 * Same as applyPoissonGaussianFilter(threshold, width, rand_seed), with the chrom/strand
+	 * partitions filtered in parallel. Each partition is filtered in order of the bases, as before,
+	 * so the result does not depend on the number of threads.
+	 */
+	public void applyPoissonGaussianFilter(final double threshold, final int width, int rand_seed, int numThreads){
         //init the Guassian kernel prob. for smoothing the read profile of called events
-		double g[] = new double[width*4+1];
+		final double g[] = new double[width*4+1];
 		NormalDistribution gaussianDist = new NormalDistribution(0, width*width);
 		for (int i=0;i<g.length;i++)
 			g[i]=gaussianDist.calcProbability((double)i);
 		
-		DRand re = new DRand(rand_seed);
-		Poisson P = new Poisson(0, re);
-			
+		// the partitions, largest first
+		List<int[]> parts = new ArrayList<int[]>();
 		for(int i = 0; i < hitCounts.length; i++)
-			for(int j = 0; j < hitCounts[i].length; j++){
-				float counts[] = hitCounts[i][j];
-				int pos[] = fivePrimes[i][j];
-				for(int k = 0; k < counts.length; k++){
-					int posK = pos[k]; 
-					double sum = 0;
-					for (int x=1;x<=width*4;x++){		// at most extend out 250 idx
-						if (k+x>=counts.length|| pos[k+x]-posK>width*4)
-							break;
-						sum += counts[k+x]*g[pos[k+x]-posK];
-					}
-					for (int x=1;x<=width*4;x++){		// at most extend out 250 idx
-						if (k-x<0 || posK-pos[k-x]>width*4)
-							break;
-						sum += counts[k-x]*g[posK-pos[k-x]];
-					}
-					sum = sum/(1-g[0]);				// exclude this position for evaluation
-					
-					double countThres=0;
-					P.setMean(sum);
-					double pvalue=1;
-					for(int b=1; pvalue>threshold; b++){
-						pvalue=1-P.cdf(b);	//p-value as the tail of Poisson
-						countThres=b;
-					}
-										
-//					System.out.println(String.format("%s%d\t%.1f\t%.1f\t%.3f", (j==0?"+":"-"), posK, counts[k], countThres, sum));
-					if (counts[k] > Math.max(1,countThres))
-						counts[k] = (float) Math.max(1,countThres);					
+			for(int j = 0; j < hitCounts[i].length; j++)
+				if (hitCounts[i][j].length>0)
+					parts.add(new int[]{i, j});
+		Collections.sort(parts, new Comparator<int[]>(){
+			public int compare(int[] a, int[] b){
+				return hitCounts[b[0]][b[1]].length - hitCounts[a[0]][a[1]].length;
+			}
+		});
+		
+		if (numThreads<=1 || parts.size()<=1){
+			PoissonThreshold pt = new PoissonThreshold(threshold, rand_seed);
+			for (int[] part: parts)
+				filterPartition(hitCounts[part[0]][part[1]], fivePrimes[part[0]][part[1]], g, width, pt);
+		}
+		else{
+			ExecutorService pool = Executors.newFixedThreadPool(Math.min(numThreads, parts.size()));
+			final int seed = rand_seed;
+			final ThreadLocal<PoissonThreshold> pts = new ThreadLocal<PoissonThreshold>(){
+				protected PoissonThreshold initialValue(){
+					return new PoissonThreshold(threshold, seed);
 				}
+			};
+			List<Future<?>> futures = new ArrayList<Future<?>>();
+			for (final int[] part: parts){
+				futures.add(pool.submit(new Runnable(){
+					public void run(){
+						filterPartition(hitCounts[part[0]][part[1]], fivePrimes[part[0]][part[1]], g, width, pts.get());
+					}
+				}));
+			}
+			try{
+				for (Future<?> f: futures)
+					f.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException(e);
+			} catch (ExecutionException e) {
+				throw new RuntimeException(e.getCause());
+			} finally {
+				pool.shutdown();
 			}
+		}
 		
 		updateTotalHits();
 	}
+	
+	/* filter the bases of one chrom/strand in place, the left neighbours are the filtered counts */
+	private static void filterPartition(float[] counts, int[] pos, double[] g, int width, PoissonThreshold pt){
+		for(int k = 0; k < counts.length; k++){
+			if (counts[k] <= 1)			// never reset, whatever the threshold is
+				continue;
+			int posK = pos[k]; 
+			double sum = 0;
+			for (int x=1;x<=width*4;x++){		// at most extend out 250 idx
+				if (k+x>=counts.length|| pos[k+x]-posK>width*4)
+					break;
+				sum += counts[k+x]*g[pos[k+x]-posK];
+			}
+			for (int x=1;x<=width*4;x++){		// at most extend out 250 idx
+				if (k-x<0 || posK-pos[k-x]>width*4)
+					break;
+				sum += counts[k-x]*g[posK-pos[k-x]];
+			}
+			sum = sum/(1-g[0]);				// exclude this position for evaluation
+			
+			double countThres=pt.countThreshold(sum);
+			if (counts[k] > Math.max(1,countThres))
+				counts[k] = (float) Math.max(1,countThres);					
+		}
+	}
+	
+	/**
+	 * The smallest count b>=1 with Poisson tail p-value 1-cdf(b) not above the threshold, for a mean. <br>
+	 * The count threshold does not decrease with the mean, so the threshold at the grid point below the mean
+	 * is a lower bound to start the search from. The grid points are computed on demand and kept in a table.
+	 * Not thread-safe, one per thread.
+	 */
+	private static class PoissonThreshold{
+		private static final double STEP = 1.0/64;
+		private double threshold;
+		private Poisson P;
+		private int[] table = new int[1024];		// 0: not computed
+		
+		PoissonThreshold(double threshold, int rand_seed){
+			this.threshold = threshold;
+			P = new Poisson(0, new DRand(rand_seed));
+		}
+		
+		int countThreshold(double mean){
+			int idx = (int)(mean/STEP);
+			if (idx>=table.length)
+				table = Arrays.copyOf(table, Math.max(table.length*2, idx+1));
+			if (table[idx]==0)
+				table[idx] = search(idx*STEP, 1);
+			int b = table[idx];
+			if (b>1 && pvalue(mean, b-1)<=threshold)		// should not happen, search from 1 as before
+				return search(mean, 1);
+			return search(mean, b);
+		}
+		
+		private int search(double mean, int from){
+			int b = from;
+			while (pvalue(mean, b)>threshold)
+				b++;
+			return b;
+		}
+		
+		private double pvalue(double mean, int b){
+			P.setMean(mean);
+			return 1-P.cdf(b);	//p-value as the tail of Poisson
+		}
+	}
 	/*
 	 * Reset bases with huge number of reads to 1
 	 * Return the base positions that are reset
@@ -503,25 +797,28 @@ public class ReadCache {
 		updateTotalHits();
 		
 	}
+	/* called after the counts are changed, also keeps the count index up to date */
 	private void updateTotalHits(){
 		totalHits = 0.0;
 		for(int i = 0; i < hitCounts.length; i++)
 			for(int j = 0; j < hitCounts[i].length; j++)
 				for(int k = 0; k < hitCounts[i][j].length; k++)
 					totalHits += hitCounts[i][j][k];
+		if (cumCounts!=null)
+			buildCountIndex();
 	}
-	private int[] list2int(List<Integer> list) {
-		int[] out = new int[list.size()];
-		for(int i = 0; i < out.length; i++)
-			out[i] = list.get(i);
-		return out;
+	/* 
+	 * trimToSize() makes the backing array exactly list.size() long, 
+	 * so the backing array can be taken over without copying
+	 */
+	private int[] list2int(IntArrayList list) {
+		list.trimToSize();
+		return list.elements();
 	}
 	
-	private float[] list2float(List<Float> list) {
-		float[] out = new float[list.size()];
-		for(int i = 0; i < out.length; i++)
-			out[i] = list.get(i);
-		return out;
+	private float[] list2float(FloatArrayList list) {
+		list.trimToSize();
+		return list.elements();
 	}	
 	
 	//Accessors	
@@ -540,24 +837,46 @@ public class ReadCache {
 	public String getName(){
 		return name;
 	}
+
+	/**
+	 * A hash of all the cached bases and their counts, to check that a saved analysis
+	 * (e.g. a GEM checkpoint) is resumed on the same read data.
+	 */
+	public long getFingerprint(){
+		long h = 17;
+		for (int i=0;i<numChroms;i++){
+			for (int s=0;s<2;s++){
+				int[] coords = fivePrimes[i][s];
+				float[] counts = hitCounts[i][s];
+				h = 31*h + coords.length;
+				for (int j=0;j<coords.length;j++)
+					h = 31*(31*h + coords[j]) + Float.floatToIntBits(counts[j]);
+			}
+		}
+		return h;
+	}
 	
 	public void displayStats(){
 		System.out.println(name+"\tBases: "+totalBases+"\tHitCounts: "+totalHits);
 	}
 	
 	public void deleteUnenrichedReadData(ArrayList<Region> enrichedRegions){
-		fivePrimesList = new ArrayList[numChroms][2];
-		for(int i = 0; i < fivePrimesList.length; i++) { for(int j = 0; j < fivePrimesList[i].length; j++) { fivePrimesList[i][j] = new ArrayList<Integer>(); } }
-		hitCountsList = new ArrayList[numChroms][2];
-		for(int i = 0; i < hitCountsList.length; i++) { for(int j = 0; j < hitCountsList[i].length; j++) { hitCountsList[i][j] = new ArrayList<Float>(); } }
+		initLists();
 
 		for(Region r:enrichedRegions){
 			int chrID   = chrom2ID.get(r.getChrom());
 			for (int strandInd=0; strandInd<=1;strandInd++){
-				List<StrandedBase> bases = getStrandedBases(r, strandInd==0?'+':'-');
-				for (StrandedBase b:bases){
-					fivePrimesList[chrID][strandInd].add(b.getCoordinate());
-					hitCountsList[chrID][strandInd].add(b.getCount());
+				int[] tempStarts = fivePrimes[chrID][strandInd];
+				if (tempStarts.length==0)
+					continue;
+				int start_ind = Arrays.binarySearch(tempStarts, r.getStart());
+				if( start_ind < 0 ) { start_ind = -start_ind - 1; }
+				while (start_ind > 0 && tempStarts[start_ind - 1] >= r.getStart() ) {
+					start_ind--;
+				}
+				for(int k = start_ind; k < tempStarts.length && tempStarts[k] <= r.getEnd(); k++) {
+					fivePrimesList[chrID][strandInd].add(tempStarts[k]);
+					hitCountsList[chrID][strandInd].add(hitCounts[chrID][strandInd][k]);
 				}
 			}
 		}
@@ -614,6 +933,123 @@ public class ReadCache {
 		}
 		CommonUtils.writeFile(name.trim()+".rsc", sb.toString());
 	}
+	/** 
+	 * Write binary Read Start Count (RSB) file. <br>
+	 * Layout: a header (magic, offset of the first data block, number of chrom/strand blocks, 
+	 * then chrom name, strand and base count of each block), followed by the int 5' positions 
+	 * and the float counts of each block. The data blocks can be memory-mapped by readRSB().
+	 */
+	public void writeRSB(String filename) throws IOException{
+		ByteArrayOutputStream headerBytes = new ByteArrayOutputStream();
+		DataOutputStream header = new DataOutputStream(headerBytes);
+		int blockCount = 0;
+		for(int i = 0; i < hitCounts.length; i++)
+			for(int j = 0; j < hitCounts[i].length; j++)
+				if (hitCounts[i][j].length>0)
+					blockCount++;
+		header.writeInt(blockCount);
+		for(int i = 0; i < hitCounts.length; i++){
+			for(int j = 0; j < hitCounts[i].length; j++){
+				if (hitCounts[i][j].length==0)
+					continue;
+				header.writeUTF(id2Chrom.get(i));
+				header.writeByte(j==0?'+':'-');
+				header.writeInt(hitCounts[i][j].length);
+			}
+		}
+		header.close();
+		// data blocks start at an 8 byte boundary after magic, data offset and the header
+		int dataOffset = (8+headerBytes.size()+7)/8*8;
+		
+		RandomAccessFile raf = new RandomAccessFile(filename, "rw");
+		FileChannel fc = raf.getChannel();
+		try{
+			raf.setLength(0);
+			raf.writeInt(RSB_MAGIC);
+			raf.writeInt(dataOffset);
+			raf.write(headerBytes.toByteArray());
+			long offset = dataOffset;
+			for(int i = 0; i < hitCounts.length; i++){
+				for(int j = 0; j < hitCounts[i].length; j++){
+					int subCount = hitCounts[i][j].length;
+					if (subCount==0)
+						continue;
+					fc.map(FileChannel.MapMode.READ_WRITE, offset, subCount*4L).asIntBuffer().put(fivePrimes[i][j]);
+					offset += subCount*4L;
+					fc.map(FileChannel.MapMode.READ_WRITE, offset, subCount*4L).asFloatBuffer().put(hitCounts[i][j]);
+					offset += subCount*4L;
+				}
+			}
+		}
+		finally{
+			fc.close();
+			raf.close();
+		}
+	}
+	
+	/** 
+	 * Read binary Read Start Count (RSB) file written by writeRSB(). <br>
+	 * Each chrom/strand block is memory-mapped and bulk copied into the arrays, 
+	 * no intermediate objects are created.
+	 */
+	public void readRSB(String filename) throws IOException{
+		for(int i = 0; i < fivePrimes.length; i++){
+			for(int j = 0; j < fivePrimes[i].length; j++){
+				fivePrimes[i][j] = new int[0];
+				hitCounts[i][j] = new float[0];
+			}
+		}
+		totalHits = 0;
+		totalBases = 0;
+		
+		DataInputStream header = new DataInputStream(new FileInputStream(filename));
+		int blockCount;
+		int[] chromIDs, strands, baseCounts;
+		long offset;
+		try{
+			if (header.readInt()!=RSB_MAGIC)
+				throw new IOException(filename+" is not a binary Read Start Count (RSB) file.");
+			offset = header.readInt();
+			blockCount = header.readInt();
+			chromIDs = new int[blockCount];
+			strands = new int[blockCount];
+			baseCounts = new int[blockCount];
+			for (int b=0;b<blockCount;b++){
+				String chrom = header.readUTF();
+				if (!chrom2ID.containsKey(chrom))
+					throw new IOException("Chromosome "+chrom+" in "+filename+" is not in genome "+gen.getVersion());
+				chromIDs[b] = chrom2ID.get(chrom);
+				strands[b] = header.readByte()=='+'?0:1;
+				baseCounts[b] = header.readInt();
+			}
+		}
+		finally{
+			header.close();
+		}
+		
+		RandomAccessFile raf = new RandomAccessFile(filename, "r");
+		FileChannel fc = raf.getChannel();
+		try{
+			for (int b=0;b<blockCount;b++){
+				int i = chromIDs[b];
+				int j = strands[b];
+				int subCount = baseCounts[b];
+				fivePrimes[i][j] = new int[subCount];
+				hitCounts[i][j] = new float[subCount];
+				fc.map(FileChannel.MapMode.READ_ONLY, offset, subCount*4L).asIntBuffer().get(fivePrimes[i][j]);
+				offset += subCount*4L;
+				fc.map(FileChannel.MapMode.READ_ONLY, offset, subCount*4L).asFloatBuffer().get(hitCounts[i][j]);
+				offset += subCount*4L;
+				totalBases += subCount;
+			}
+		}
+		finally{
+			fc.close();
+			raf.close();
+		}
+		updateTotalHits();
+	}
+	
 	/** 
 	 * Write genetrack format file
 	 * # genetrack tab-delimited file lists the gnomic coordinates (chrome and index) of the 5' ends of sequencing tags on the forward and reverse strands.
@@ -705,5 +1141,7 @@ public class ReadCache {
         if (bin != null) {
             bin.close();
         }
+		if (cumCounts!=null)
+			buildCountIndex();
 	}
 }//end of ReadCache class
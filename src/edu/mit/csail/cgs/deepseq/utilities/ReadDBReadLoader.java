@@ -32,13 +32,17 @@ import edu.mit.csail.cgs.projects.readdb.*;
 
 public class ReadDBReadLoader extends ReadLoader{
 
-	private Client client=null;
+	private ReadOnlyClient client=null;
 	private List<String> exptNames =new ArrayList<String>();
 	private List<ChipSeqAlignment> aligns = new ArrayList<ChipSeqAlignment>();
 	protected int currID=0;
 
 	public ReadDBReadLoader(Genome g, List<ChipSeqLocator> locs, int rLen){this(g, locs, rLen, false);}
-	public ReadDBReadLoader(Genome g, List<ChipSeqLocator> locs, int rLen, boolean pairedEnd){
+	public ReadDBReadLoader(Genome g, List<ChipSeqLocator> locs, int rLen, boolean pairedEnd){this(g, locs, rLen, pairedEnd, null);}
+	/**
+	 * @param readdbDir if not null, the ReadDB data directory to read in this process (LocalClient) instead of connecting to the server
+	 */
+	public ReadDBReadLoader(Genome g, List<ChipSeqLocator> locs, int rLen, boolean pairedEnd, String readdbDir){
 		super(g, rLen);
 
 		if (locs.size() == 0) {
@@ -109,7 +113,7 @@ public class ReadDBReadLoader extends ReadLoader{
 					System.err.println("Locators were " + locs + " but didn't get any alignments");
 				}
 
-				client = new Client();
+				client = readdbDir==null ? new Client() : new LocalClient(readdbDir);
 				countHits();
 
 			}
@@ -307,6 +311,70 @@ public class ReadDBReadLoader extends ReadLoader{
 		return new Pair<ArrayList<Integer>,ArrayList<Float>>(coords, counts);
 	}
 
+	/**
+	 * load the read hit 5' coordinates (sorted) and counts of many regions, same as calling
+	 * loadStrandedBaseCounts(r, strand) for each region, but with one request to ReadDB
+	 * for all the regions and alignments. Paired-end data are loaded region by region.
+	 */
+	public List<Pair<ArrayList<Integer>,ArrayList<Float>>> loadStrandedBaseCounts(List<Region> regions, char strand){
+		List<Pair<ArrayList<Integer>,ArrayList<Float>>> results = new ArrayList<Pair<ArrayList<Integer>,ArrayList<Float>>>();
+		if (pairedEnd || regions.isEmpty()){
+			for (Region r: regions)
+				results.add(loadStrandedBaseCounts(r, strand));
+			return results;
+		}
+		int n = regions.size()*aligns.size();
+		String[] alignids = new String[n];
+		int[] chromids = new int[n];
+		int[] starts = new int[n];
+		int[] stops = new int[n];
+		int q = 0;
+		for (Region r: regions){
+			for(ChipSeqAlignment alignment : aligns) {
+				alignids[q] = Integer.toString(alignment.getDBID());
+				chromids[q] = r.getGenome().getChromID(r.getChrom());
+				starts[q] = r.getStart();
+				stops[q] = r.getEnd();
+				q++;
+			}
+		}
+		int[][] positions = new int[n][];
+		float[][] weights = new float[n][];
+		try {
+			client.getHits(alignids, chromids, starts, stops, false, null, null, strand == '+', positions, weights, null);
+		} catch (IOException e) {
+			e.printStackTrace();
+			positions = null;
+		} catch (ClientException e) {
+			e.printStackTrace();
+			positions = null;
+		}
+		q = 0;
+		for (int i=0;i<regions.size();i++){
+			// sum the weights at each position, for each alignment, then over the alignments (as getWeightHistogram with bin size 1)
+			TreeMap<Integer,Float> allHits = new TreeMap<Integer,Float>();
+			for (int a=0;a<aligns.size();a++,q++){
+				if (positions==null)
+					continue;
+				int[] pos = positions[q];
+				float[] w = weights[q];
+				int j = 0;
+				while (j<pos.length){
+					int p = pos[j];
+					float sum = 0;
+					for (;j<pos.length && pos[j]==p;j++)
+						sum += w[j];
+					if (sum>0){
+						Float old = allHits.get(p);
+						allHits.put(p, old==null ? sum : old+sum);
+					}
+				}
+			}
+			results.add(new Pair<ArrayList<Integer>,ArrayList<Float>>(new ArrayList<Integer>(allHits.keySet()), new ArrayList<Float>(allHits.values())));
+		}
+		return results;
+	}
+
 	// get BED-format reads
 	// each hit count as 1 read, ignore the weights
 	public String getBED_StrandedReads(Region r, char strand, double probability){
@@ -0,0 +1,399 @@
+package edu.mit.csail.cgs.deepseq.utilities;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.zip.GZIPInputStream;
+
+import net.sf.samtools.DefaultSAMRecordFactory;
+import net.sf.samtools.SAMFileHeader;
+import net.sf.samtools.SAMFileReader;
+import net.sf.samtools.SAMLineParser;
+import net.sf.samtools.SAMRecord;
+import net.sf.samtools.SAMRecordIterator;
+import net.sf.samtools.SAMSequenceRecord;
+import net.sf.samtools.SAMFileReader.ValidationStringency;
+import net.sf.samtools.util.CloseableIterator;
+
+import cern.colt.list.IntArrayList;
+
+/**
+ * Streams SAM/BAM files into sorted runs of 5' positions, to be merged by <tt>ReadCache.addAllFivePrimes()</tt>. <br>
+ * Unlike SAMReader, the hit ids and weights are not kept. The 5' positions are aggregated on the fly
+ * into per chrom/strand primitive lists, one set of lists for each decoding thread,
+ * which are sorted at the end and returned as runs. <br>
+ * The records are decoded in parallel: an indexed BAM file is queried one reference sequence per task,
+ * other files are read in batches of records (or of lines, for text SAM files) that are decoded by the thread pool. <br>
+ * The reads are filtered and counted as in SAMReader, i.e. the hits of a read are its consecutive mapped records.
+ */
+public class SAMStreamReader {
+	private static final int BATCH_SIZE = 20000;
+
+	private HashMap<String, Integer> chrom2ID;
+	private int numChroms;
+	private boolean useNonUnique;
+	private int numThreads;
+
+	private double totalHits=0;
+	private double totalWeight=0;
+	private int readLength=-1;
+	private ArrayList<int[][][]> runs = new ArrayList<int[][][]>();
+
+	public SAMStreamReader(HashMap<String, Integer> chrom2ID, int numChroms, boolean useNonUnique, int numThreads){
+		this.chrom2ID = chrom2ID;
+		this.numChroms = numChroms;
+		this.useNonUnique = useNonUnique;
+		this.numThreads = Math.max(1, numThreads);
+	}
+
+	public double getTotalHits(){return totalHits;}
+	public double getTotalWeight(){return totalWeight;}
+	/** read length of the first record of the first file that has records, -1 if there is none */
+	public int getReadLength(){return readLength;}
+
+	/**
+	 * Get the sorted 5' position runs of all the files read so far,
+	 * each element is indexed by chrom ID and strand (0 for '+', 1 for '-'), same as <tt>AlignmentFileReader.getFivePrimes()</tt>. <br>
+	 * The runs are handed over to the caller.
+	 */
+	public ArrayList<int[][][]> getRuns(){
+		ArrayList<int[][][]> result = runs;
+		runs = new ArrayList<int[][][]>();
+		return result;
+	}
+
+	/**
+	 * Read all the records of a SAM/BAM file
+	 */
+	public void read(File f){
+		System.out.print("    Loading reads from: "+f.getName()+" ... ");
+		SAMFileReader reader = new SAMFileReader(f);
+		reader.setValidationStringency(ValidationStringency.LENIENT);
+		ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+		LinkedBlockingQueue<Sink> sinks = new LinkedBlockingQueue<Sink>();
+		for (int i=0;i<numThreads;i++)
+			sinks.add(new Sink());
+		ArrayList<Future<Chunk>> futures = new ArrayList<Future<Chunk>>();
+		try{
+			if (reader.isBinary() && reader.hasIndex()){
+				for (SAMSequenceRecord seq: reader.getFileHeader().getSequenceDictionary().getSequences())
+					futures.add(pool.submit(new ReferenceTask(f, seq.getSequenceName(), sinks)));
+			}
+			else if (reader.isBinary())
+				submitRecordBatches(reader, pool, sinks, futures);
+			else
+				submitLineBatches(f, reader.getFileHeader(), pool, sinks, futures);
+
+			// the reads that span the chunks are stitched in file order
+			Sink main = new Sink();
+			Group pending = null;
+			for (Future<Chunk> future: futures){
+				Chunk c = future.get();
+				if (readLength==-1)
+					readLength = c.readLength;
+				if (c.head==null)
+					continue;
+				if (pending!=null && pending.name.equals(c.head.name)){
+					pending.append(c.head);
+					if (c.tail==null)
+						continue;
+					pending.addTo(main);
+				}
+				else{
+					if (pending!=null)
+						pending.addTo(main);
+					if (c.tail==null){
+						pending = c.head;
+						continue;
+					}
+					c.head.addTo(main);
+				}
+				pending = c.tail;
+			}
+			if (pending!=null)
+				pending.addTo(main);
+			sinks.add(main);
+			for (Sink sink: sinks){
+				totalHits += sink.hits;
+				totalWeight += sink.weight;
+				runs.add(sink.sortedRuns());
+			}
+		}catch (Exception e){
+			System.err.println("Error: loading reads from "+f.getName());
+			e.printStackTrace(System.err);
+			System.exit(-1);
+		}finally{
+			pool.shutdown();
+			reader.close();
+		}
+		System.out.println("Loaded");
+	}
+
+	/* decode BAM records in the reading thread, the rest of the work is done by the pool */
+	private void submitRecordBatches(SAMFileReader reader, ExecutorService pool, LinkedBlockingQueue<Sink> sinks,
+			ArrayList<Future<Chunk>> futures) throws InterruptedException{
+		Semaphore inFlight = new Semaphore(numThreads*2);
+		CloseableIterator<SAMRecord> iter = reader.iterator();
+		ArrayList<SAMRecord> batch = new ArrayList<SAMRecord>(BATCH_SIZE);
+		while (iter.hasNext()){
+			batch.add(iter.next());
+			if (batch.size()==BATCH_SIZE){
+				inFlight.acquire();
+				futures.add(pool.submit(new RecordBatchTask(batch, sinks, inFlight)));
+				batch = new ArrayList<SAMRecord>(BATCH_SIZE);
+			}
+		}
+		iter.close();
+		inFlight.acquire();
+		futures.add(pool.submit(new RecordBatchTask(batch, sinks, inFlight)));
+	}
+
+	/* read the lines of a text SAM file in the reading thread, the lines are parsed by the pool */
+	private void submitLineBatches(File f, SAMFileHeader header, ExecutorService pool, LinkedBlockingQueue<Sink> sinks,
+			ArrayList<Future<Chunk>> futures) throws IOException, InterruptedException{
+		Semaphore inFlight = new Semaphore(numThreads*2);
+		InputStream in = new FileInputStream(f);
+		if (f.getName().endsWith(".gz"))
+			in = new GZIPInputStream(in);
+		BufferedReader bin = new BufferedReader(new InputStreamReader(in), 1<<16);
+		ArrayList<String> batch = new ArrayList<String>(BATCH_SIZE);
+		int lineNumber = 0;
+		int batchStart = 1;
+		String line;
+		while ((line = bin.readLine()) != null){
+			lineNumber++;
+			if (line.length()==0 || line.charAt(0)=='@')
+				continue;
+			batch.add(line);
+			if (batch.size()==BATCH_SIZE){
+				inFlight.acquire();
+				futures.add(pool.submit(new LineBatchTask(batch, batchStart, header, sinks, inFlight)));
+				batch = new ArrayList<String>(BATCH_SIZE);
+				batchStart = lineNumber+1;
+			}
+		}
+		bin.close();
+		inFlight.acquire();
+		futures.add(pool.submit(new LineBatchTask(batch, batchStart, header, sinks, inFlight)));
+	}
+
+	/**
+	 * Group the consecutive mapped records of the same read name. The first and the last group
+	 * are returned in the chunk, because they may continue in the neighboring chunks,
+	 * the other groups are added to the sink.
+	 */
+	private Chunk process(Iterator<SAMRecord> records, Sink sink){
+		Chunk chunk = new Chunk();
+		Group group = null;
+		String lastRef = null;
+		int lastChrID = -1;
+		while (records.hasNext()){
+			SAMRecord record = records.next();
+			if (chunk.readLength==-1)
+				chunk.readLength = record.getReadLength();
+			if (record.getReadUnmappedFlag())
+				continue;
+			String name = record.getReadName();
+			if (group==null || !group.name.equals(name)){
+				if (group!=null){
+					if (chunk.head==null)
+						chunk.head = group;
+					else
+						group.addTo(sink);
+				}
+				if (group==null || group==chunk.head)
+					group = new Group();
+				group.clear(name);
+			}
+			String ref = record.getReferenceName();
+			if (ref!=lastRef && !ref.equals(lastRef)){
+				Integer id = chrom2ID.get(ref.replaceFirst("^chr", ""));
+				lastChrID = id==null ? -1 : id;
+				lastRef = ref;
+			}
+			int start = record.getAlignmentStart();
+			int end = record.getAlignmentEnd();
+			boolean minus = record.getReadNegativeStrandFlag();
+			// same 5' end as ReadHit, which extends a hit to at least 2bp
+			group.add(lastChrID, minus ? 1 : 0, minus ? (end>start ? end : start+1) : start, record.getReadPairedFlag());
+		}
+		if (group!=null){
+			if (chunk.head==null)
+				chunk.head = group;
+			else
+				chunk.tail = group;
+		}
+		return chunk;
+	}
+
+	private class ReferenceTask implements Callable<Chunk>{
+		private File file;
+		private String reference;
+		private LinkedBlockingQueue<Sink> sinks;
+		ReferenceTask(File file, String reference, LinkedBlockingQueue<Sink> sinks){
+			this.file = file;
+			this.reference = reference;
+			this.sinks = sinks;
+		}
+		public Chunk call() throws Exception{
+			SAMFileReader reader = new SAMFileReader(file);
+			reader.setValidationStringency(ValidationStringency.LENIENT);
+			Sink sink = sinks.take();
+			try{
+				SAMRecordIterator iter = reader.query(reference, 0, 0, false);
+				Chunk chunk = process(iter, sink);
+				iter.close();
+				return chunk;
+			}finally{
+				sinks.add(sink);
+				reader.close();
+			}
+		}
+	}
+
+	private class RecordBatchTask implements Callable<Chunk>{
+		private ArrayList<SAMRecord> batch;
+		private LinkedBlockingQueue<Sink> sinks;
+		private Semaphore inFlight;
+		RecordBatchTask(ArrayList<SAMRecord> batch, LinkedBlockingQueue<Sink> sinks, Semaphore inFlight){
+			this.batch = batch;
+			this.sinks = sinks;
+			this.inFlight = inFlight;
+		}
+		public Chunk call() throws Exception{
+			Sink sink = sinks.take();
+			try{
+				return process(batch.iterator(), sink);
+			}finally{
+				sinks.add(sink);
+				batch = null;
+				inFlight.release();
+			}
+		}
+	}
+
+	private class LineBatchTask implements Callable<Chunk>{
+		private ArrayList<String> batch;
+		private int firstLine;
+		private SAMFileHeader header;
+		private LinkedBlockingQueue<Sink> sinks;
+		private Semaphore inFlight;
+		LineBatchTask(ArrayList<String> batch, int firstLine, SAMFileHeader header, LinkedBlockingQueue<Sink> sinks, Semaphore inFlight){
+			this.batch = batch;
+			this.firstLine = firstLine;
+			this.header = header;
+			this.sinks = sinks;
+			this.inFlight = inFlight;
+		}
+		public Chunk call() throws Exception{
+			// the parser keeps per line state, each task has its own
+			final SAMLineParser parser = new SAMLineParser(new DefaultSAMRecordFactory(),
+					ValidationStringency.LENIENT, header, null, null);
+			Sink sink = sinks.take();
+			try{
+				final Iterator<String> lines = batch.iterator();
+				return process(new Iterator<SAMRecord>(){
+					int lineNumber = firstLine;
+					public boolean hasNext(){return lines.hasNext();}
+					public SAMRecord next(){return parser.parseLine(lines.next(), lineNumber++);}
+					public void remove(){throw new UnsupportedOperationException();}
+				}, sink);
+			}finally{
+				sinks.add(sink);
+				batch = null;
+				inFlight.release();
+			}
+		}
+	}
+
+	/* the records of a chunk (a reference sequence, or a batch) that can not be processed on their own */
+	private class Chunk{
+		int readLength=-1;
+		Group head;
+		Group tail;
+	}
+
+	/* the hits of one read */
+	private class Group{
+		String name;
+		boolean paired;
+		int size;
+		int[] chrIDs = new int[4];
+		int[] strands = new int[4];
+		int[] positions = new int[4];
+
+		void clear(String name){
+			this.name = name;
+			paired = false;
+			size = 0;
+		}
+
+		void add(int chrID, int strand, int position, boolean isPaired){
+			if (size==chrIDs.length){
+				chrIDs = Arrays.copyOf(chrIDs, size*2);
+				strands = Arrays.copyOf(strands, size*2);
+				positions = Arrays.copyOf(positions, size*2);
+			}
+			chrIDs[size] = chrID;
+			strands[size] = strand;
+			positions[size] = position;
+			size++;
+			paired |= isPaired;
+		}
+
+		void append(Group g){
+			for (int i=0;i<g.size;i++)
+				add(g.chrIDs[i], g.strands[i], g.positions[i], g.paired);
+		}
+
+		/* same filtering and counting as SAMReader.processRead() */
+		void addTo(Sink sink){
+			if (!useNonUnique && !paired && size>1)		// accepting only uniquely-mapped reads
+				return;
+			for (int i=0;i<size;i++){
+				if (chrIDs[i]==-1)
+					continue;
+				sink.fivePrimes[chrIDs[i]][strands[i]].add(positions[i]);
+				sink.hits++;
+			}
+			sink.weight += paired ? size : 1;
+		}
+	}
+
+	/* 5' positions collected by one thread */
+	private class Sink{
+		IntArrayList[][] fivePrimes = new IntArrayList[numChroms][2];
+		double hits=0;
+		double weight=0;
+		Sink(){
+			for (int i=0;i<numChroms;i++)
+				for (int j=0;j<2;j++)
+					fivePrimes[i][j] = new IntArrayList();
+		}
+		int[][][] sortedRuns(){
+			int[][][] sorted = new int[numChroms][2][];
+			for (int i=0;i<numChroms;i++)
+				for (int j=0;j<2;j++){
+					IntArrayList list = fivePrimes[i][j];
+					list.trimToSize();
+					sorted[i][j] = list.elements();
+					Arrays.sort(sorted[i][j]);
+					fivePrimes[i][j] = null;
+				}
+			return sorted;
+		}
+	}
+}
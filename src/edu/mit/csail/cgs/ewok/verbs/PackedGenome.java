@@ -0,0 +1,269 @@
+package edu.mit.csail.cgs.ewok.verbs;
+
+import java.io.BufferedReader;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+import cern.colt.list.IntArrayList;
+
+/**
+ * Genome sequence store of memory-mapped 2-bit files, one file per chromosome (<tt>chr&lt;name&gt;.2bit</tt>). <br>
+ * Each file is built once from the FASTA file of the chromosome (<tt>chr&lt;name&gt;.fa</tt> or <tt>.fasta</tt>),
+ * and holds the bases packed 4 per byte, plus the blocks of N and the blocks of lower case (soft-masked repeat) bases.
+ * Other IUPAC letters are stored as N. <br>
+ * The mapped files are only read after they are opened, so the sequences can be fetched by many threads without locking.
+ * <pre>
+ * file layout: int magic, int length,
+ *              int nBlockCount, int[] nStarts, int[] nEnds,
+ *              int maskBlockCount, int[] maskStarts, int[] maskEnds,
+ *              byte[(length+3)/4] packed bases (ACGT = 0123, first base in the high bits)
+ * </pre>
+ * Block ends are exclusive.
+ */
+public class PackedGenome {
+    static final int MAGIC = 0x32424954;     // "2BIT"
+    private static final char[] BASES = {'A','C','G','T'};
+    private static final char[] BASES_LOWER = {'a','c','g','t'};
+
+    private String storePath;
+    private String fastaPath;
+    private ConcurrentHashMap<String, Chrom> chroms = new ConcurrentHashMap<String, Chrom>();
+
+    /**
+     * @param storePath directory of the 2-bit files
+     * @param fastaPath directory of the chromosome FASTA files, for building the missing 2-bit files
+     */
+    public PackedGenome(String storePath, String fastaPath){
+        this.storePath = storePath;
+        this.fastaPath = fastaPath;
+    }
+
+    public String getStorePath(){return storePath;}
+
+    /** the mapped sequence of the chromosome, the 2-bit file is built if it does not exist */
+    public Chrom getChrom(String chr) throws IOException {
+        Chrom c = chroms.get(chr);
+        if (c!=null)
+            return c;
+        synchronized(this){
+            c = chroms.get(chr);
+            if (c==null){
+                File f = new File(storePath, "chr"+chr+".2bit");
+                if (!f.exists())
+                    build(chr, f);
+                c = new Chrom(f);
+                chroms.put(chr, c);
+            }
+        }
+        return c;
+    }
+
+    /* pack the FASTA sequence of the chromosome, write to a temp file first so that a partial file is never used */
+    private void build(String chr, File out) throws IOException {
+        File fasta = new File(fastaPath, "chr"+chr+".fa");
+        if (!fasta.exists())
+            fasta = new File(fastaPath, "chr"+chr+".fasta");
+        if (!fasta.exists())
+            throw new IOException("chr"+chr+".fa file is not found at "+fastaPath);
+        System.out.println("Building 2-bit sequence file "+out.getPath()+" ...");
+
+        byte[] packed = new byte[1<<20];
+        IntArrayList nBlocks = new IntArrayList();
+        IntArrayList maskBlocks = new IntArrayList();
+        int length = 0;
+        boolean found = false;
+        boolean inN = false, inMask = false;
+        BufferedReader reader = new BufferedReader(new FileReader(fasta), 1<<16);
+        String line;
+        while ((line = reader.readLine()) != null){
+            if (line.startsWith(">")){
+                if (found)
+                    break;
+                String name = line.substring(1).trim().split("\\s+")[0].replaceFirst("^chr","");
+                found = name.equals(chr);
+                continue;
+            }
+            if (!found)
+                continue;
+            if ((length+line.length()+3)/4>packed.length)
+                packed = Arrays.copyOf(packed, Math.max(packed.length*2, (length+line.length()+3)/4));
+            for (int i=0;i<line.length();i++){
+                char c = line.charAt(i);
+                if (Character.isWhitespace(c))
+                    continue;
+                boolean lower = Character.isLowerCase(c);
+                int code;
+                switch (Character.toUpperCase(c)){
+                case 'A': code=0; break;
+                case 'C': code=1; break;
+                case 'G': code=2; break;
+                case 'T': code=3; break;
+                default: code=-1;
+                }
+                if ((code==-1)!=inN){
+                    nBlocks.add(length);
+                    inN = !inN;
+                }
+                if (lower!=inMask){
+                    maskBlocks.add(length);
+                    inMask = !inMask;
+                }
+                if (code>0)
+                    packed[length>>2] |= code<<(6-2*(length&3));
+                length++;
+            }
+        }
+        reader.close();
+        if (!found)
+            throw new IOException("chr"+chr+".fa file is not in correct FASTA format.");
+        if (inN)
+            nBlocks.add(length);
+        if (inMask)
+            maskBlocks.add(length);
+
+        File tmp = new File(out.getPath()+".tmp");
+        DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1<<16));
+        dos.writeInt(MAGIC);
+        dos.writeInt(length);
+        writeBlocks(dos, nBlocks);
+        writeBlocks(dos, maskBlocks);
+        dos.write(packed, 0, (length+3)/4);
+        dos.close();
+        if (!tmp.renameTo(out))
+            throw new IOException("Can not write "+out.getPath());
+    }
+
+    /* boundaries are stored in pairs of start and end, written as count, starts, ends */
+    private static void writeBlocks(DataOutputStream dos, IntArrayList boundaries) throws IOException {
+        int count = boundaries.size()/2;
+        dos.writeInt(count);
+        for (int i=0;i<count;i++)
+            dos.writeInt(boundaries.get(2*i));
+        for (int i=0;i<count;i++)
+            dos.writeInt(boundaries.get(2*i+1));
+    }
+
+    /**
+     * The memory-mapped sequence of a chromosome
+     */
+    public static class Chrom {
+        private int length;
+        private int[] nStarts, nEnds;
+        private int[] maskStarts, maskEnds;
+        private ByteBuffer bases;
+
+        Chrom(File f) throws IOException {
+            RandomAccessFile raf = new RandomAccessFile(f, "r");
+            FileChannel channel = raf.getChannel();
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            raf.close();
+            if (buffer.getInt()!=MAGIC)
+                throw new IOException(f.getPath()+" is not a 2-bit sequence file.");
+            length = buffer.getInt();
+            int count = buffer.getInt();
+            nStarts = readInts(buffer, count);
+            nEnds = readInts(buffer, count);
+            count = buffer.getInt();
+            maskStarts = readInts(buffer, count);
+            maskEnds = readInts(buffer, count);
+            bases = buffer.slice();
+        }
+
+        private static int[] readInts(MappedByteBuffer buffer, int count){
+            int[] values = new int[count];
+            buffer.asIntBuffer().get(values);
+            buffer.position(buffer.position()+count*4);
+            return values;
+        }
+
+        public int getLength(){return length;}
+
+        /**
+         * Get the bases from start to end (inclusive) into the caller buffer
+         * @param upperCase if false, soft-masked bases are in lower case
+         * @param reverseComplement if true, the reverse complement of the region is put in the buffer
+         */
+        public void getBases(int start, int end, char[] dest, int offset, boolean upperCase, boolean reverseComplement){
+            if (start<0 || end>=length || start>end+1)
+                throw new IndexOutOfBoundsException("["+start+", "+end+"] is out of the sequence of length "+length);
+            int width = end-start+1;
+            // absolute gets, the buffer position is never changed after construction
+            int i = start;
+            int p = offset;
+            while (i<=end){
+                int b = bases.get(i>>2);
+                int shift = 6-2*(i&3);
+                for (;shift>=0 && i<=end;shift-=2,i++)
+                    dest[p++] = BASES[(b>>shift)&3];
+            }
+            fillBlocks(nStarts, nEnds, start, end, dest, offset, 'N', false);
+            if (!upperCase)
+                fillBlocks(maskStarts, maskEnds, start, end, dest, offset, ' ', true);
+            if (reverseComplement){
+                for (int l=offset, r=offset+width-1;l<=r;l++,r--){
+                    char c = complement(dest[l]);
+                    dest[l] = complement(dest[r]);
+                    dest[r] = c;
+                }
+            }
+        }
+
+        /** get the bases from start to end (inclusive) */
+        public String getSequence(int start, int end, boolean upperCase){
+            char[] chars = new char[end-start+1];
+            getBases(start, end, chars, 0, upperCase, false);
+            return new String(chars);
+        }
+
+        /* set the bases of the blocks within [start, end] to c, or to lower case */
+        private static void fillBlocks(int[] starts, int[] ends, int start, int end, char[] dest, int offset, char c, boolean toLower){
+            // first block that ends after start
+            int b = Arrays.binarySearch(ends, start);
+            b = b<0 ? -b-1 : b+1;
+            for (;b<starts.length && starts[b]<=end;b++){
+                int from = Math.max(starts[b], start);
+                int to = Math.min(ends[b], end+1);
+                for (int i=from;i<to;i++){
+                    int p = offset+i-start;
+                    if (toLower)
+                        dest[p] = dest[p]=='N' ? 'n' : BASES_LOWER[code(dest[p])];
+                    else
+                        dest[p] = c;
+                }
+            }
+        }
+
+        private static int code(char c){
+            switch(c){
+            case 'A': return 0;
+            case 'C': return 1;
+            case 'G': return 2;
+            default: return 3;
+            }
+        }
+
+        private static char complement(char c){
+            switch(c){
+            case 'A': return 'T';
+            case 'C': return 'G';
+            case 'G': return 'C';
+            case 'T': return 'A';
+            case 'a': return 't';
+            case 'c': return 'g';
+            case 'g': return 'c';
+            case 't': return 'a';
+            default: return c;
+            }
+        }
+    }
+}
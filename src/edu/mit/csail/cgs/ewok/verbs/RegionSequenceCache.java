@@ -0,0 +1,190 @@
+package edu.mit.csail.cgs.ewok.verbs;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import edu.mit.csail.cgs.datasets.general.Region;
+
+/**
+ * Genome sequences of a fixed set of regions, loaded once and then read by many threads without locking. <br>
+ * The regions are loaded in one sweep of the genome, sorted by chromosome and position, so that each chromosome
+ * is only loaded once. The bases of each region are stored as bytes on both strands, so the reverse complement
+ * is not computed again for every read. <br>
+ * A cache does not change after it is built, a new cache is built when the region set changes.
+ */
+public class RegionSequenceCache {
+    private static final byte[] COMPLEMENT = new byte[128];
+    private static final char[] UPPER = new char[128];
+    static {
+        for (int i=0;i<128;i++){
+            COMPLEMENT[i] = (byte)i;
+            UPPER[i] = Character.toUpperCase((char)i);
+        }
+        String from = "ACGTacgt";
+        String to = "TGCAtgca";
+        for (int i=0;i<from.length();i++)
+            COMPLEMENT[from.charAt(i)] = (byte)to.charAt(i);
+    }
+
+    private final List<Region> regions;
+    private final Map<String, Chrom> chroms = new HashMap<String, Chrom>();
+    private final String[] otherSequences;
+    private long baseCount = 0;
+
+    /**
+     * @param regions the regions to cache, overlapping regions are merged
+     * @param others regions whose sequences are only loaded once in the same sweep (e.g. the negative sequences of KMAC), may be null
+     * @param seqgen the generator to load the sequences, the whole chromosome cache of the generator is cleared after each chromosome
+     */
+    public RegionSequenceCache(List<Region> regions, List<Region> others, SequenceGenerator<Region> seqgen){
+        this.regions = new ArrayList<Region>(regions);
+        if (others==null)
+            others = new ArrayList<Region>();
+        otherSequences = new String[others.size()];
+
+        // group the regions by chromosome, in sorted order
+        TreeMap<String, ArrayList<Region>> chr2regions = new TreeMap<String, ArrayList<Region>>();
+        for (Region r: regions)
+            getList(chr2regions, r.getChrom()).add(r);
+        TreeMap<String, ArrayList<Integer>> chr2others = new TreeMap<String, ArrayList<Integer>>();
+        for (int i=0;i<others.size();i++)
+            getList(chr2others, others.get(i).getChrom()).add(i);
+        for (String chr: chr2others.keySet())
+            getList(chr2regions, chr);
+
+        for (String chr: chr2regions.keySet()){
+            ArrayList<Region> rs = mergeRegions(chr2regions.get(chr));
+            if (!rs.isEmpty()){
+                Chrom c = new Chrom(rs.size());
+                for (int i=0;i<rs.size();i++){
+                    Region r = rs.get(i);
+                    String seq = seqgen.execute(r);
+                    c.starts[i] = r.getStart();
+                    c.forward[i] = new byte[seq.length()];
+                    c.reverse[i] = new byte[seq.length()];
+                    for (int j=0;j<seq.length();j++){
+                        byte b = (byte)(seq.charAt(j)&0x7f);
+                        c.forward[i][j] = b;
+                        c.reverse[i][seq.length()-1-j] = COMPLEMENT[b];
+                    }
+                    baseCount += seq.length();
+                }
+                chroms.put(chr, c);
+            }
+            if (chr2others.containsKey(chr))
+                for (int i: chr2others.get(chr))
+                    otherSequences[i] = seqgen.execute(others.get(i));
+            if (!seqgen.isPackedGenome())
+                SequenceGenerator.clearCache();
+        }
+    }
+
+    private static <T> ArrayList<T> getList(Map<String, ArrayList<T>> map, String key){
+        ArrayList<T> list = map.get(key);
+        if (list==null){
+            list = new ArrayList<T>();
+            map.put(key, list);
+        }
+        return list;
+    }
+
+    /* sort the regions of one chromosome and merge the overlapping ones */
+    private static ArrayList<Region> mergeRegions(ArrayList<Region> rs){
+        Collections.sort(rs);
+        ArrayList<Region> merged = new ArrayList<Region>();
+        for (Region r: rs){
+            Region last = merged.isEmpty() ? null : merged.get(merged.size()-1);
+            if (last!=null && r.getStart()<=last.getEnd())
+                merged.set(merged.size()-1, new Region(last.getGenome(), last.getChrom(), last.getStart(), Math.max(last.getEnd(), r.getEnd())));
+            else
+                merged.add(r);
+        }
+        return merged;
+    }
+
+    /** true if the cache is built for these regions */
+    public boolean hasRegions(List<Region> rs){
+        return regions.equals(rs);
+    }
+
+    /**
+     * the sequences of the regions loaded once, in the order they are given, i.e. the i-th sequence is of others.get(i).
+     * (SequenceGenerator.setupRegionCache_new() returns them grouped by chromosome instead.)
+     */
+    public String[] getOtherSequences(){
+        return otherSequences;
+    }
+
+    public long getBaseCount(){
+        return baseCount;
+    }
+
+    /**
+     * Get the sequence of the region (including start and end)
+     * @param upperCase if false, the soft-masked (repeat) bases are in lower case
+     * @param reverseComplement if true, get the reverse complement of the region
+     * @return the sequence, or null if the region is not within one of the cached regions
+     */
+    public String getSequence(Region r, boolean upperCase, boolean reverseComplement){
+        Chrom c = chroms.get(r.getChrom());
+        if (c==null)
+            return null;
+        int idx = c.find(r.getStart());
+        if (idx<0)
+            return null;
+        byte[] bases = reverseComplement ? c.reverse[idx] : c.forward[idx];
+        int from = r.getStart()-c.starts[idx];
+        int length = r.getWidth();
+        if (from+length>bases.length)
+            return null;
+        if (reverseComplement)
+            from = bases.length-from-length;
+        char[] chars = new char[length];
+        for (int i=0;i<length;i++){
+            byte b = bases[from+i];
+            chars[i] = upperCase ? UPPER[b] : (char)b;
+        }
+        return new String(chars);
+    }
+
+    /** true if the region is within one of the cached regions */
+    public boolean covers(Region r){
+        Chrom c = chroms.get(r.getChrom());
+        if (c==null)
+            return false;
+        int idx = c.find(r.getStart());
+        return idx>=0 && r.getEnd()-c.starts[idx]<c.forward[idx].length;
+    }
+
+    /* the cached regions of a chromosome, sorted and non-overlapping */
+    private static class Chrom {
+        int[] starts;
+        byte[][] forward;
+        byte[][] reverse;
+
+        Chrom(int count){
+            starts = new int[count];
+            forward = new byte[count][];
+            reverse = new byte[count][];
+        }
+
+        /* the index of the last region starting at or before the position, -1 if none */
+        int find(int position){
+            int lo = 0, hi = starts.length-1, idx = -1;
+            while (lo<=hi){
+                int mid = (lo+hi)>>>1;
+                if (starts[mid]<=position){
+                    idx = mid;
+                    lo = mid+1;
+                }
+                else
+                    hi = mid-1;
+            }
+            return idx;
+        }
+    }
+}
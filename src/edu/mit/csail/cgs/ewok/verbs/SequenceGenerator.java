@@ -1,7 +1,11 @@
 package edu.mit.csail.cgs.ewok.verbs;
 
 import java.io.IOException;
+import java.io.BufferedInputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
 import java.util.*;
 import java.sql.*;
 import edu.mit.csail.cgs.ewok.nouns.*;
@@ -25,8 +29,13 @@ public class SequenceGenerator<X extends Region> implements Mapper<X,String>, Se
     private boolean useLocalFiles = true;
     private String genomePath = null;
 
+    /* memory-mapped 2-bit genome, if set, it is used for all the sequences */
+    private static volatile PackedGenome packedGenome = null;
+
     private static Map<String, String[]> regionCache;
     private static Map<String, int[]> regionStarts;
+    /* the layout of the FASTA files read by executeRegion(): sequence offset, line length and line break length, or null if not regular */
+    private static Map<String, long[]> fastaLayouts = new HashMap<String, long[]>();
     private static boolean regionIsCached = false;
     public boolean isRegionCached(){return regionIsCached;}
     
@@ -46,6 +55,74 @@ public class SequenceGenerator<X extends Region> implements Mapper<X,String>, Se
     public void setGenomePath(String genomePath){
     	this.genomePath = genomePath;
     }
+    /**
+     * Get the sequences from memory-mapped 2-bit files instead of caching the chromosome strings. <br>
+     * The 2-bit file of a chromosome is built from the FASTA file in the genome path when it is first used.
+     * @param storePath directory of the 2-bit files, null to store them in the genome path
+     */
+    public void usePackedGenome(String storePath) {
+    	if (genomePath==null){
+    		System.err.println("The genome path is required to use the 2-bit genome.");
+    		return;
+    	}
+    	if (storePath==null)
+    		storePath = genomePath;
+    	synchronized(SequenceGenerator.class){
+    		if (packedGenome==null || !packedGenome.getStorePath().equals(storePath))
+    			packedGenome = new PackedGenome(storePath, genomePath);
+    	}
+    }
+    public boolean isPackedGenome(){return packedGenome!=null;}
+    
+    /**
+     * get sequence of specified region (including start and end) from the 2-bit genome, 
+     * into the caller buffer at offset, optionally as the reverse complement
+     * @return the number of bases put in the buffer
+     */
+    public int getBases(Region region, char[] dest, int offset, boolean upperCase, boolean reverseComplement) {
+    	if (packedGenome==null)
+    		throw new IllegalStateException("The 2-bit genome is not used, call usePackedGenome() first.");
+    	try{
+    		PackedGenome.Chrom chrom = packedGenome.getChrom(region.getChrom());
+    		int end = region.getEnd();
+    		if (end >= chrom.getLength()){
+    			end = chrom.getLength()-1;
+    			System.err.println("Warning: the end of region "+region.toString()+" is reset to match chromosome length.");
+    		}
+    		chrom.getBases(region.getStart(), end, dest, offset, upperCase, reverseComplement);
+    		return end-region.getStart()+1;
+    	} catch (IOException ex) {
+    		ex.printStackTrace();
+    		throw new RuntimeException("Couldn't load the 2-bit genome " + ex.toString(), ex);
+    	}
+    }
+    
+    private String getPackedSequence(Region region) {
+    	char[] chars = new char[region.getWidth()];
+    	int count = getBases(region, chars, 0, false, false);
+    	String result = new String(chars, 0, count);
+    	if (result.length() != region.getWidth()) {
+    		System.err.println("Wanted " + region + "(" + 
+    				region.getWidth() + ") but only got " + result.length());
+    	}
+    	return result;
+    }
+    
+    /** the FASTA file of the chromosome of this region in the genome path */
+    private File fastaFile(X region) {
+    	if (genomePath==null)
+    		genomePath = "/cluster/genomes/" + region.getGenome().getVersion();
+    	if (!new File( genomePath).exists()){
+    		System.err.println(genomePath+" is not a valid path. Use default path.\n");
+    		genomePath = "/cluster/genomes/" + region.getGenome().getVersion() + "_chrfa_only";
+    	}
+    	String chr = region.getChrom();
+        File f = new File( genomePath + "/chr" + chr + ".fa");
+        if (!f.exists()) {
+            f = new File( genomePath+ "/chr" + chr + ".fasta");
+        }
+        return f;
+    }
     
     /** cache the whole chromosome of this region */
     private void cache(X region) throws SQLException, IOException {
@@ -58,16 +135,7 @@ public class SequenceGenerator<X extends Region> implements Mapper<X,String>, Se
         }
         String chromseq = null;
         if (useLocalFiles) {
-        	if (genomePath==null)
-        		genomePath = "/cluster/genomes/" + region.getGenome().getVersion();
-        	if (!new File( genomePath).exists()){
-        		System.err.println(genomePath+" is not a valid path. Use default path.\n");
-        		genomePath = "/cluster/genomes/" + region.getGenome().getVersion() + "_chrfa_only";
-        	}
-            File f = new File( genomePath + "/chr" + chr + ".fa");
-            if (!f.exists()) {
-                f = new File( genomePath+ "/chr" + chr + ".fasta");
-            }
+            File f = fastaFile(region);
             if (f.exists()) {
                 FASTAStream stream = new FASTAStream(f);
                 while (stream.hasNext()) {
@@ -117,6 +185,8 @@ public class SequenceGenerator<X extends Region> implements Mapper<X,String>, Se
      * get sequence of specified region (including start and end)
      */
     public String execute(X region) {
+    	if (packedGenome!=null)
+    		return getPackedSequence(region);
     	if (regionIsCached)
     		return getRegionCacheSequence(region);  
     	
@@ -143,22 +213,7 @@ public class SequenceGenerator<X extends Region> implements Mapper<X,String>, Se
                 result = chromString.substring(region.getStart(), end);
             }
             if (result == null) {
-                java.sql.Connection cxn =
-                DatabaseFactory.getConnection("core");
-                PreparedStatement ps;
-                int start = Math.max(region.getStart() + 1,0);
-                ps = cxn.prepareStatement("select substr(sequence,?,?) from chromsequence where id = ?");
-                ps.setInt(1,start);
-                ps.setInt(2,region.getEnd() - region.getStart() + 1);
-                ps.setInt(3,chromid);                   
-                ResultSet rs = ps.executeQuery();
-                if (rs.next()) {
-                    result = rs.getString(1);
-                } 
-                rs.close();
-                ps.close();
-                cxn.commit();
-                DatabaseFactory.freeConnection(cxn);
+                result = queryRegion(region, chromid);
             }
         } catch (SQLException ex) {
             ex.printStackTrace();           
@@ -182,6 +237,162 @@ public class SequenceGenerator<X extends Region> implements Mapper<X,String>, Se
         return result;
     }
     
+    /**
+     * get sequence of specified region (including start and end) without caching its chromosome. <br>
+     * With the local files, the region is read from the FASTA file of the chromosome if all its lines 
+     * have the same length (as the files indexed by samtools faidx), otherwise the chromosome is cached as in execute().
+     */
+    public String executeRegion(X region) {
+    	if (packedGenome!=null || regionIsCached || !useCache)
+    		return execute(region);
+    	try {
+    		String result = useLocalFiles ? readFastaRegion(region) : 
+    			queryRegion(region, region.getGenome().getChromID(region.getChrom()));
+    		if (result != null)
+    			return result;
+    	} catch (SQLException ex) {
+    		ex.printStackTrace();
+    	} catch (UnknownRoleException ex) {
+    		ex.printStackTrace();
+    		throw new DatabaseException("Couldn't connect to core",ex);
+    	} catch (IOException ex) {
+    		ex.printStackTrace();
+    	}
+    	return execute(region);
+    }
+    
+    /* the sequence of the region from the database, or null */
+    private String queryRegion(X region, int chromid) throws SQLException {
+    	String result = null;
+        java.sql.Connection cxn =
+        DatabaseFactory.getConnection("core");
+        PreparedStatement ps;
+        int start = Math.max(region.getStart() + 1,0);
+        ps = cxn.prepareStatement("select substr(sequence,?,?) from chromsequence where id = ?");
+        ps.setInt(1,start);
+        ps.setInt(2,region.getEnd() - region.getStart() + 1);
+        ps.setInt(3,chromid);                   
+        ResultSet rs = ps.executeQuery();
+        if (rs.next()) {
+            result = rs.getString(1);
+        } 
+        rs.close();
+        ps.close();
+        cxn.commit();
+        DatabaseFactory.freeConnection(cxn);
+        return result;
+    }
+    
+    /* 
+     * the sequence of the region from the FASTA file of its chromosome, by the offsets of the bases. 
+     * Returns null if the file is not a single sequence with the chromosome length and lines of the same length.
+     */
+    private String readFastaRegion(X region) throws IOException {
+    	File f = fastaFile(region);
+    	if (!f.exists())
+    		return null;
+    	int chromLength = region.getGenome().getChromLength(region.getChrom());
+    	long[] layout = fastaLayout(f, chromLength);
+    	if (layout == null)
+    		return null;
+    	long seqStart = layout[0], lineLength = layout[1], eol = layout[2];
+    	
+    	int end = region.getEnd();
+    	if (end >= chromLength){
+    		end = chromLength - 1;
+    		System.err.println("Warning: the end of region "+region.toString()+" is reset to match chromosome length.");
+    	}
+    	int start = Math.max(region.getStart(), 0);
+    	if (end < start)
+    		return "";
+    	long from = seqStart + start / lineLength * (lineLength + eol) + start % lineLength;
+    	long to = seqStart + end / lineLength * (lineLength + eol) + end % lineLength;
+    	byte[] bytes = new byte[(int)(to - from + 1)];
+    	RandomAccessFile file = new RandomAccessFile(f, "r");
+    	try {
+    		file.seek(from);
+    		file.readFully(bytes);
+    	} finally {
+    		file.close();
+    	}
+    	char[] chars = new char[end - start + 1];
+    	int count = 0;
+    	for (byte b : bytes) {
+    		if (b == '\n' || b == '\r')
+    			continue;
+    		if (count == chars.length)
+    			return null;
+    		chars[count++] = (char)b;
+    	}
+    	return count == chars.length ? new String(chars) : null;
+    }
+    
+    /* 
+     * checks the lines of the FASTA file once, without keeping the sequence. 
+     * Returns the offset of the sequence, the line length and the line break length, or null if the file can not be read by offsets
+     */
+    private static long[] fastaLayout(File f, int chromLength) throws IOException {
+    	String key = f.getAbsolutePath() + ":" + chromLength;
+    	synchronized(fastaLayouts) {
+    		if (fastaLayouts.containsKey(key))
+    			return fastaLayouts.get(key);
+    	}
+    	long[] layout = null;
+    	InputStream in = new BufferedInputStream(new FileInputStream(f), 1 << 16);
+    	try {
+    		long offset = 0, seqStart = -1, lineLength = -1, eol = -1, bases = 0;
+    		long line = 0, lastLine = -1;	// length of the current and the previous sequence line
+    		boolean cr = false, blank = false, ok = true;
+    		int b;
+    		while (ok && (b = in.read()) != -1) {
+    			offset++;
+    			if (seqStart < 0) {					// header line
+    				if (offset == 1 && b != '>')
+    					ok = false;
+    				if (b == '\n')
+    					seqStart = offset;
+    				continue;
+    			}
+    			if (b == '\r') {
+    				cr = true;
+    				continue;
+    			}
+    			if (b != '\n') {
+    				ok = !cr && !blank && b != '>';		// a single sequence, line breaks of one kind, no lines after a blank one
+    				line++;
+    				bases++;
+    				continue;
+    			}
+    			long thisEol = cr ? 2 : 1;
+    			cr = false;
+    			if (line == 0) {					// blank lines are only allowed at the end
+    				blank = true;
+    				continue;
+    			}
+    			if (eol < 0) {
+    				eol = thisEol;
+    				lineLength = line;
+    			}
+    			ok = thisEol == eol && line <= lineLength && (lastLine < 0 || lastLine == lineLength);
+    			lastLine = line;
+    			line = 0;
+    		}
+    		if (line > 0) {							// the last line without a line break
+    			if (lineLength < 0)
+    				lineLength = line;
+    			ok &= line <= lineLength && (lastLine < 0 || lastLine == lineLength);
+    		}
+    		if (ok && seqStart >= 0 && lineLength > 0 && bases == chromLength)
+    			layout = new long[]{seqStart, lineLength, eol < 0 ? 1 : eol};
+    	} finally {
+    		in.close();
+    	}
+    	synchronized(fastaLayouts) {
+    		fastaLayouts.put(key, layout);
+    	}
+    	return layout;
+    }
+    
     /**
      * Setup light-weight region cache of genome sequences, cover only the specified regions<br>
      * So that it does not cache the whole chromosome, save memory space. <br>
@@ -294,6 +505,15 @@ public class SequenceGenerator<X extends Region> implements Mapper<X,String>, Se
     	if (regions==null||regions.isEmpty())
     		return null;    	
     	
+    	// the 2-bit genome is mapped, no need to cache the regions
+    	if (packedGenome!=null){
+    		String[] result = new String[rs.size()];
+    		for (int i=0;i<result.length;i++)
+    			result[i]=getPackedSequence(rs.get(i));
+    		regionIsCached = true;
+    		return result;
+    	}
+    	
 		// group cache regions by chrom
 		Map<String, ArrayList<Region>> chr2crs = new HashMap<String, ArrayList<Region>>();  // cached regions
 		for(Region r:regions) {
@@ -389,6 +609,9 @@ public class SequenceGenerator<X extends Region> implements Mapper<X,String>, Se
     }
     
     public static void clearCache() {
+        if (cache == null) {
+            return;
+        }
         synchronized(cache) {
             cache.clear();
         }
@@ -4,7 +4,12 @@ import java.io.IOException;
 import java.util.TreeMap;
 import java.util.Map;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 
 public class Aggregator implements ReadOnlyClient {
 
@@ -92,6 +97,167 @@ public class Aggregator implements ReadOnlyClient {
         return output;
     }
 
+    public TreeMap<Integer,Float> getWeightHistogram(Collection<String> alignids, int chromid, boolean paired, boolean doReadExtension, int binsize, Integer start, Integer stop, Float minWeight, Boolean plusStrand) throws IOException, ClientException {
+        TreeMap<Integer,Float> output = null;
+        for (ReadOnlyClient c : clients) {
+            output = mergeHistogramsFF(c.getWeightHistogram(alignids,chromid,paired,doReadExtension,binsize,start,stop,minWeight,plusStrand), output);
+        }
+        return output;
+    }
+
+    public Set<Integer> getChroms(String alignid, boolean isPaired, Boolean isLeft) throws IOException, ClientException {
+        Set<Integer> output = new HashSet<Integer>();
+        for (ReadOnlyClient c : clients) {
+            output.addAll(c.getChroms(alignid, isPaired, isLeft));
+        }
+        return output;
+    }
+    public int getCount(String alignid, int chromid, boolean paired, Integer start, Integer stop, Float minWeight, Boolean isLeft, Boolean plusStrand)  throws IOException, ClientException {
+        int count = 0;
+        for (ReadOnlyClient c : clients) {
+            count += c.getCount(alignid,chromid,paired,start,stop,minWeight,isLeft,plusStrand);
+        }
+        return count;
+    }
+    public int getCount(String alignid, boolean isPaired, Boolean isLeft, Boolean plusStrand) throws IOException, ClientException {
+        int count = 0;
+        for (ReadOnlyClient c : clients) {
+            count += c.getCount(alignid,isPaired,isLeft,plusStrand);
+        }
+        return count;
+    }
+    public double getWeight(String alignid, boolean isPaired, Boolean isLeft, Boolean plusStrand) throws IOException, ClientException {
+        double total = 0;
+        for (ReadOnlyClient c : clients) {
+            total += c.getWeight(alignid,isPaired,isLeft,plusStrand);
+        }
+        return total;
+    }
+    public double getWeight(String alignid, int chromid, boolean paired, Integer start, Integer stop, Float minWeight, Boolean isLeft, Boolean plusStrand) throws IOException, ClientException {
+        double total = 0;
+        for (ReadOnlyClient c : clients) {
+            total += c.getWeight(alignid,chromid,paired,start,stop,minWeight,isLeft,plusStrand);
+        }
+        return total;
+    }
+    public int[] getPositions(String alignid, int chromid, boolean paired, Integer start, Integer stop, Float minWeight, Boolean isLeft, Boolean plusStrand) throws IOException, ClientException {
+        int[][] positions = new int[clients.size()][];
+        int n = 0;
+        for (int i = 0; i < clients.size(); i++) {
+            positions[i] = clients.get(i).getPositions(alignid,chromid,paired,start,stop,minWeight,isLeft,plusStrand);
+            n += positions[i].length;
+        }
+        int[] output = new int[n];
+        n = 0;
+        for (int[] p : positions) {
+            System.arraycopy(p, 0, output, n, p.length);
+            n += p.length;
+        }
+        Arrays.sort(output);
+        return output;
+    }
+    /**
+     * The weights in the order of the positions returned by getPositions().  Since the
+     * clients' hits are interleaved by position, this fetches the positions too.
+     */
+    public float[] getWeightsRange(String alignid, int chromid, boolean paired, Integer start, Integer stop, Float minWeight, Boolean isLeft, Boolean plusStrand) throws IOException, ClientException {
+        int[][] positions = new int[clients.size()][];
+        float[][] weights = new float[clients.size()][];
+        int n = 0;
+        for (int i = 0; i < clients.size(); i++) {
+            positions[i] = clients.get(i).getPositions(alignid,chromid,paired,start,stop,minWeight,isLeft,plusStrand);
+            weights[i] = clients.get(i).getWeightsRange(alignid,chromid,paired,start,stop,minWeight,isLeft,plusStrand);
+            n += positions[i].length;
+        }
+        /* position in the high bits and index into the concatenated weights in the low bits */
+        long[] keys = new long[n];
+        float[] all = new float[n];
+        n = 0;
+        for (int i = 0; i < positions.length; i++) {
+            for (int j = 0; j < positions[i].length; j++) {
+                keys[n] = (((long)positions[i][j]) << 32) | n;
+                all[n] = weights[i][j];
+                n++;
+            }
+        }
+        Arrays.sort(keys);
+        float[] output = new float[n];
+        for (int i = 0; i < n; i++) {
+            output[i] = all[(int)(keys[i] & 0xffffffffL)];
+        }
+        return output;
+    }
+
+    /**
+     * Each region gets the hits of all the clients, sorted by position as in getWeightsRange()
+     */
+    public void getHits(String[] alignids, int[] chromids, int[] starts, int[] stops, boolean paired, Float minWeight, Boolean isLeft, Boolean plusStrand,
+                        int[][] positions, float[][] weights, int[][] lengthsAndStrands) throws IOException, ClientException {
+        int numRegions = alignids.length;
+        int[][][] p = new int[clients.size()][numRegions][];
+        float[][][] w = weights == null ? null : new float[clients.size()][numRegions][];
+        int[][][] l = lengthsAndStrands == null ? null : new int[clients.size()][numRegions][];
+        for (int i = 0; i < clients.size(); i++) {
+            clients.get(i).getHits(alignids,chromids,starts,stops,paired,minWeight,isLeft,plusStrand,
+                                   p[i], w == null ? null : w[i], l == null ? null : l[i]);
+        }
+        for (int r = 0; r < numRegions; r++) {
+            int n = 0;
+            for (int i = 0; i < clients.size(); i++) {
+                n += p[i][r].length;
+            }
+            long[] keys = new long[n];
+            int[] client = new int[n], index = new int[n];
+            n = 0;
+            for (int i = 0; i < clients.size(); i++) {
+                for (int j = 0; j < p[i][r].length; j++) {
+                    keys[n] = (((long)p[i][r][j]) << 32) | n;
+                    client[n] = i;
+                    index[n] = j;
+                    n++;
+                }
+            }
+            Arrays.sort(keys);
+            if (positions != null) {
+                positions[r] = new int[n];
+            }
+            if (weights != null) {
+                weights[r] = new float[n];
+            }
+            if (lengthsAndStrands != null) {
+                lengthsAndStrands[r] = new int[n];
+            }
+            for (int k = 0; k < n; k++) {
+                int m = (int)(keys[k] & 0xffffffffL);
+                if (positions != null) {
+                    positions[r][k] = (int)(keys[k] >> 32);
+                }
+                if (weights != null) {
+                    weights[r][k] = w[client[m]][r][index[m]];
+                }
+                if (lengthsAndStrands != null) {
+                    lengthsAndStrands[r][k] = l[client[m]][r][index[m]];
+                }
+            }
+        }
+    }
+    public List<SingleHit> getSingleHits(String alignid, int chromid, Integer start, Integer stop, Float minWeight, Boolean plusStrand) throws IOException, ClientException {
+        List<SingleHit> output = new ArrayList<SingleHit>();
+        for (ReadOnlyClient c : clients) {
+            output.addAll(c.getSingleHits(alignid,chromid,start,stop,minWeight,plusStrand));
+        }
+        Collections.sort(output);
+        return output;
+    }
+    public List<PairedHit> getPairedHits(String alignid, int chromid, boolean isLeft, Integer start, Integer stop, Float minWeight, Boolean plusStrand) throws IOException, ClientException {
+        List<PairedHit> output = new ArrayList<PairedHit>();
+        for (ReadOnlyClient c : clients) {
+            output.addAll(c.getPairedHits(alignid,chromid,isLeft,start,stop,minWeight,plusStrand));
+        }
+        Collections.sort(output, isLeft ? new PairedHitLeftComparator() : new PairedHitRightComparator());
+        return output;
+    }
+
     public void close() {
         for (ReadOnlyClient c : clients) {
             c.close();
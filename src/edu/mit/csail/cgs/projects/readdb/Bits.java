@@ -120,9 +120,11 @@ public class Bits {
         ByteBuffer bb = ByteBuffer.wrap(buffer);
         while (outputpos < count) {
             bb.position(bytesLeftover);
-            int toread = Math.min((count - outputpos) * 4, buffer.length - bytesLeftover);
-            int bytesavail = instream.read(buffer, bytesLeftover, toread) + bytesLeftover;
-            if (bytesavail == -1 && outputpos < count) {
+            /* don't read past the last int: the bytes after it belong to whatever the caller reads next */
+            int toread = Math.min((count - outputpos) * 4 - bytesLeftover, buffer.length - bytesLeftover);
+            int bytesread = instream.read(buffer, bytesLeftover, toread);
+            int bytesavail = bytesread + bytesLeftover;
+            if (bytesread == -1 && outputpos < count) {
                 IOException e = new IOException(String.format("couldn't read enough bytes : %d %d", outputpos, count));
                 e.printStackTrace();
                 throw e;
@@ -132,7 +134,7 @@ public class Bits {
             for (i = 0; i < bytesavail / 4 && outputpos < count; i++) {
                 output[outputpos++] = bb.getInt(i*4);
             }
-            int j = i * 4 + 1;
+            int j = i * 4;
             while (j < bytesavail) {
                 buffer[j - i*4] = buffer[j];
                 j++;
@@ -156,13 +158,17 @@ public class Bits {
         ByteBuffer bb = ByteBuffer.wrap(buffer);
         while (outputpos < count) {
             bb.position(bytesLeftover);
-            int toread = Math.min((count - outputpos) * 4, buffer.length - bytesLeftover);
-            int bytesavail = instream.read(buffer, bytesLeftover, toread) + bytesLeftover;
+            int toread = Math.min((count - outputpos) * 4 - bytesLeftover, buffer.length - bytesLeftover);
+            int bytesread = instream.read(buffer, bytesLeftover, toread);
+            int bytesavail = bytesread + bytesLeftover;
+            if (bytesread == -1 && outputpos < count) {
+                throw new IOException(String.format("couldn't read enough bytes : %d %d", outputpos, count));
+            }
             int i = 0;
             for (i = 0; i < bytesavail / 4 && outputpos < count; i++) {
                 output[outputpos++] = bb.getFloat(i*4);
             }
-            int j = i * 4 + 1;
+            int j = i * 4;
             while (j < bytesavail) {
                 buffer[j - i*4] = buffer[j];
                 j++;
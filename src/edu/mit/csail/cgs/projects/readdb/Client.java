@@ -74,6 +74,15 @@ public class Client implements ReadOnlyClient {
      * @throws ClientException if the client cannot authenticate to the server
      */
     public Client() throws IOException, ClientException {
+        PropertyResourceBundle bundle = getDefaultProperties();
+        String hostname = bundle.getString("hostname");
+        String port = bundle.getString("port");
+        String username = bundle.getString("username");
+        String password = bundle.getString("passwd");
+        init(hostname, Integer.parseInt(port), username, password);
+    }
+    /* the properties of the default connection, see Client() */
+    static PropertyResourceBundle getDefaultProperties() throws IOException {
         String homedir = System.getenv("HOME");
         String basename = "readdb_passwd";
         if (System.getenv("READDBROLE") != null) {
@@ -99,11 +108,7 @@ public class Client implements ReadOnlyClient {
                 throw new IOException("Can't read connection properties from " + url);
             }
         }
-        String hostname = bundle.getString("hostname");
-        String port = bundle.getString("port");
-        String username = bundle.getString("username");
-        String password = bundle.getString("passwd");
-        init(hostname, Integer.parseInt(port), username, password);
+        return bundle;
     }
     
     private void init(String hostname,
@@ -443,6 +448,30 @@ public class Client implements ReadOnlyClient {
         }
         return output;
     }
+    /**
+     * Returns the server's counters: open connections, worker queue depth, number of
+     * requests and request latencies (in microseconds).
+     */
+    public Map<String,String> getServerStats() throws IOException, ClientException {
+        request.clear();
+        request.type="serverstats";
+        sendString(request.toString());
+        String response = readLine();
+        if (!response.equals("OK")) {
+            if (printErrors) {
+                System.err.println("not-OK response to request: " + response);
+                System.err.println("request was " + request);
+            }
+            throw new ClientException(response);
+        }
+        int numstats = Integer.parseInt(readLine());
+        Map<String,String> output = new LinkedHashMap<String,String>();
+        while (numstats-- > 0) {
+            String pieces[] = readLine().split("=",2);
+            output.put(pieces[0], pieces.length > 1 ? pieces[1] : "");
+        }
+        return output;
+    }
     /**
      * Returns the total number of hits in this alignment.  
      */
@@ -570,6 +599,144 @@ public class Client implements ReadOnlyClient {
         int numhits = Integer.parseInt(readLine());
         return Bits.readFloats(numhits, instream, buffer);        
     }
+    /**
+     * Batched getPositions(): element i of the output holds the sorted hit positions of region i, which is
+     * chromosome chromids[i] from starts[i] to stops[i] (inclusive) in alignment alignids[i].
+     * All the regions are sent in one request.
+     */
+    public int[][] getPositions(String[] alignids, int[] chromids, int[] starts, int[] stops, boolean paired, Float minWeight, Boolean isLeft, Boolean plusStrand) throws IOException, ClientException {
+        int[][] positions = new int[alignids.length][];
+        getHits(alignids, chromids, starts, stops, paired, minWeight, isLeft, plusStrand, positions, null, null);
+        return positions;
+    }
+    /**
+     * Batched getWeightsRange(), see getPositions(String[],int[],int[],int[],...)
+     */
+    public float[][] getWeightsRange(String[] alignids, int[] chromids, int[] starts, int[] stops, boolean paired, Float minWeight, Boolean isLeft, Boolean plusStrand) throws IOException, ClientException {
+        float[][] weights = new float[alignids.length][];
+        getHits(alignids, chromids, starts, stops, paired, minWeight, isLeft, plusStrand, null, weights, null);
+        return weights;
+    }
+    /* the end of the longest run of regions from index from that fits in one multigethits request */
+    private static int requestEnd(String[] alignids, int from) {
+        Set<String> aligns = new HashSet<String>();
+        int to = from;
+        while (to < alignids.length && to - from < Server.MAXMULTIREGIONS &&
+               (aligns.contains(alignids[to]) || aligns.size() < Server.MAXMULTIALIGNS)) {
+            aligns.add(alignids[to]);
+            to++;
+        }
+        return to;
+    }
+    /**
+     * Retrieves the hits in many regions in one exchange with the server.  Region i is chromosome
+     * chromids[i] from starts[i] to stops[i] (inclusive) in alignment alignids[i].  The arrays
+     * positions, weights and lengthsAndStrands, if not null, receive the columns of region i at index i
+     * (the lengths and strands are packed as in Hits.makeLAS()).  Chromosomes without hits give empty arrays.
+     * More than Server.MAXMULTIREGIONS regions or Server.MAXMULTIALIGNS alignments are sent in several requests.
+     */
+    public void getHits(String[] alignids, int[] chromids, int[] starts, int[] stops, boolean paired, Float minWeight, Boolean isLeft, Boolean plusStrand,
+                        int[][] positions, float[][] weights, int[][] lengthsAndStrands) throws IOException, ClientException {
+        int numRegions = alignids.length;
+        if (requestEnd(alignids, 0) < numRegions) {
+            for (int from = 0, to; from < numRegions; from = to) {
+                to = requestEnd(alignids, from);
+                int[][] p = positions == null ? null : new int[to - from][];
+                float[][] w = weights == null ? null : new float[to - from][];
+                int[][] l = lengthsAndStrands == null ? null : new int[to - from][];
+                getHits(Arrays.copyOfRange(alignids, from, to), Arrays.copyOfRange(chromids, from, to),
+                        Arrays.copyOfRange(starts, from, to), Arrays.copyOfRange(stops, from, to),
+                        paired, minWeight, isLeft, plusStrand, p, w, l);
+                if (p != null) {
+                    System.arraycopy(p, 0, positions, from, to - from);
+                }
+                if (w != null) {
+                    System.arraycopy(w, 0, weights, from, to - from);
+                }
+                if (l != null) {
+                    System.arraycopy(l, 0, lengthsAndStrands, from, to - from);
+                }
+            }
+            return;
+        }
+        List<String> aligns = new ArrayList<String>();
+        Map<String,Integer> alignIndex = new HashMap<String,Integer>();
+        int[] regions = new int[numRegions * 4];
+        for (int i = 0; i < numRegions; i++) {
+            if (!alignIndex.containsKey(alignids[i])) {
+                alignIndex.put(alignids[i], aligns.size());
+                aligns.add(alignids[i]);
+            }
+            regions[i*4] = alignIndex.get(alignids[i]);
+            regions[i*4+1] = chromids[i];
+            regions[i*4+2] = starts[i];
+            regions[i*4+3] = stops[i];
+        }
+        request.clear();
+        request.type="multigethits";
+        request.isPaired = paired;
+        request.isLeft = isLeft;
+        request.minWeight = minWeight;
+        request.isPlusStrand = plusStrand;
+        request.map.put("numaligns",Integer.toString(aligns.size()));
+        request.map.put("numregions",Integer.toString(numRegions));
+        if (positions != null) {
+            request.map.put("wantpositions","1");
+        }
+        if (weights != null) {
+            request.map.put("wantweights","1");
+        }
+        if (lengthsAndStrands != null) {
+            request.map.put("wantlengthsandstrands","1");
+        }
+        sendString(request.toString());
+        String response = readLine();
+        if (!response.equals("OK")) {
+            if (printErrors) {
+                System.err.println("not-OK response to request: " + response);
+                System.err.println("request was " + request);
+            }
+            throw new ClientException(response);
+        }
+        StringBuffer names = new StringBuffer();
+        for (String a : aligns) {
+            names.append(a + "\n");
+        }
+        outstream.write(names.toString().getBytes());
+        Bits.sendInts(regions, outstream, buffer);
+        response = readLine();
+        if (!response.equals("OK")) {
+            if (printErrors) {
+                System.err.println("not-OK response to request: " + response);
+                System.err.println("request was " + request);
+            }
+            throw new ClientException(response);
+        }
+        ReadableByteChannel rbc = Channels.newChannel(instream);
+        IntBP count = new IntBP(1);
+        for (int i = 0; i < numRegions; i++) {
+            Bits.readBytes(count.bb, rbc);
+            int numhits = count.get(0);
+            if (positions != null) {
+                IntBP ints = new IntBP(numhits);
+                Bits.readBytes(ints.bb, rbc);
+                positions[i] = new int[numhits];
+                ints.ib.get(positions[i]);
+            }
+            if (weights != null) {
+                FloatBP floats = new FloatBP(numhits);
+                Bits.readBytes(floats.bb, rbc);
+                weights[i] = new float[numhits];
+                floats.fb.get(weights[i]);
+            }
+            if (lengthsAndStrands != null) {
+                IntBP ints = new IntBP(numhits);
+                Bits.readBytes(ints.bb, rbc);
+                lengthsAndStrands[i] = new int[numhits];
+                ints.ib.get(lengthsAndStrands[i]);
+            }
+        }
+    }
     public List<SingleHit> getSingleHits(String alignid, int chromid, Integer start, Integer stop, Float minWeight, Boolean plusStrand) throws IOException, ClientException {
         request.clear();
         request.type="gethits";
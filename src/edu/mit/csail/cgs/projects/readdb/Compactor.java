@@ -0,0 +1,403 @@
+package edu.mit.csail.cgs.projects.readdb;
+
+import java.io.*;
+import java.util.*;
+import java.util.logging.*;
+
+/**
+ * Background thread that merges segments (see Segments) into their hits files.
+ *
+ * A chromosome's segments are merged into its hits file once they hold MERGEFRACTION of the hits
+ * file's hits, or once nothing has been stored to it for IDLEMILLIS.  Growing the hits file by a
+ * fixed fraction each time keeps the total rewriting linear in the size of the alignment.  Before that,
+ * once there are MAXSEGMENTS segments they're merged into one so that queries don't have to look at too many.
+ *
+ * The merged files are written next to the originals without holding any lock; stores and queries
+ * go on in the meantime.  Only renaming them into place takes the alignment's write lock.  If the hits
+ * file or the merged segments changed in the meantime, the merge is thrown away.
+ *
+ * Processes that read the files without the lock, like LocalClient, can't tell the old and new files
+ * apart while they're being renamed and deleted, so the commit file (see getCommitFname()) exists
+ * from before the first rename until after the last delete.  It lists those renames and deletes, so
+ * a commit that failed or was cut short by a crash can be finished later (see finishCommit() and recover()).
+ */
+public class Compactor implements Runnable {
+
+    public static final int MAXSEGMENTS = 8;
+    public static final double MERGEFRACTION = .25;
+    public static final long IDLEMILLIS = 30 * 1000;
+
+    private Server server;
+    /* chromosomes with segments -> time of the last store to them */
+    private Map<Target,Long> pending;
+
+    public Compactor(Server server) {
+        this.server = server;
+        pending = new HashMap<Target,Long>();
+    }
+
+    /** called after a segment has been stored */
+    public void schedule(String alignid, int chrom, boolean isPaired, boolean isLeft) {
+        synchronized(pending) {
+            pending.put(new Target(alignid, chrom, isPaired, isLeft), System.currentTimeMillis());
+            pending.notifyAll();
+        }
+    }
+    /** called when a query finds segments, eg left from before a restart.  They're compacted right away
+        unless stores to the chromosome are already pending */
+    public void found(String alignid, int chrom, boolean isPaired, boolean isLeft) {
+        synchronized(pending) {
+            Target t = new Target(alignid, chrom, isPaired, isLeft);
+            if (!pending.containsKey(t)) {
+                pending.put(t, 0L);
+                pending.notifyAll();
+            }
+        }
+    }
+
+    public void run() {
+        while (server.keepRunning()) {
+            List<Target> targets;
+            synchronized(pending) {
+                try {
+                    pending.wait(1000);
+                } catch (InterruptedException e) {
+
+                }
+                targets = new ArrayList<Target>(pending.keySet());
+            }
+            for (Target t : targets) {
+                try {
+                    compact(t);
+                } catch (Exception e) {
+                    /* the segments are still there for queries and the next store reschedules them.  An
+                       unfinished commit is retried right away since LocalClient can't read the chromosome until then */
+                    server.getLogger().logp(Level.INFO,"Compactor","run","Can't compact " + t + " : " + e.toString(),e);
+                    if (!(new File(getCommitFname(getIndexFname(t)))).exists()) {
+                        synchronized(pending) {
+                            pending.remove(t);
+                        }
+                    }
+                } finally {
+                    Lock.releaseLocks();
+                }
+            }
+        }
+    }
+
+    private void compact(Target t) throws IOException {
+        long laststore;
+        synchronized(pending) {
+            if (!pending.containsKey(t)) {
+                return;
+            }
+            laststore = pending.get(t);
+        }
+        String prefix = server.getAlignmentDir(t.alignid) + System.getProperty("file.separator");
+        String indexfname = getIndexFname(t);
+        File commit = new File(getCommitFname(indexfname));
+        if (commit.exists()) {
+            /* an earlier commit failed part way; the files are inconsistent until it's finished */
+            Lock.readLock(t.alignid);
+            Lock.writeLock(t.alignid);
+            try {
+                if (!finish(t, commit, true)) {
+                    return;
+                }
+            } finally {
+                Lock.releaseLocks();
+            }
+        }
+        int[] ids;
+        Hits[] parts;
+        File mainfile;
+        long mainstamp;
+        boolean full, compressed;
+        /* the read lock keeps out stores while we look at which segments are complete */
+        Lock.readLock(t.alignid);
+        try {
+            ids = Segments.list(prefix, t.chrom, t.isPaired, t.isLeft);
+            if (ids.length == 0 || !(new File(indexfname)).exists()) {
+                done(t, laststore);
+                return;
+            }
+            long segmenthits = 0;
+            for (int id : ids) {
+                segmenthits += (new File(Segments.getFileNames(Segments.getSegmentPrefix(prefix, id), t.chrom, t.isPaired, t.isLeft)[0])).length() / 4;
+            }
+            full = segmenthits >= MERGEFRACTION * Header.readIndexFile(indexfname).getNumHits() ||
+                System.currentTimeMillis() - laststore >= IDLEMILLIS;
+            if (!full && ids.length < MAXSEGMENTS) {
+                return;
+            }
+            boolean compressedmain = !t.isPaired && (new File(CompressedSingleHits.getCompressedFname(prefix, t.chrom))).exists();
+            mainfile = new File(compressedmain ? CompressedSingleHits.getCompressedFname(prefix, t.chrom) :
+                                Segments.getFileNames(prefix, t.chrom, t.isPaired, t.isLeft)[0]);
+            mainstamp = mainfile.lastModified();
+            /* a merged hits file keeps the format of the old one; merged segments are always uncompressed */
+            compressed = full && compressedmain;
+            parts = new Hits[ids.length + (full ? 1 : 0)];
+            if (full) {
+                parts[0] = t.isPaired ? new PairedHits(prefix, t.chrom, t.isLeft) : SingleHits.open(prefix, t.chrom);
+            }
+            for (int i = 0; i < ids.length; i++) {
+                parts[parts.length - ids.length + i] = Segments.open(prefix, ids[i], t.chrom, t.isPaired, t.isLeft);
+            }
+        } finally {
+            Lock.releaseLocks();
+        }
+
+        String staged = prefix + "compact_";
+        Segments.writeMerged(parts, Segments.getFileNames(staged, t.chrom, t.isPaired, t.isLeft));
+        for (Hits h : parts) {
+            h.close();
+        }
+        String pyramidfname = t.isPaired ? server.getPairedPyramidFileName(t.alignid, t.chrom, t.isLeft) :
+            server.getSinglePyramidFileName(t.alignid, t.chrom);
+        HistogramPyramid pyramid = null;
+        if (full) {
+            Hits merged;
+            if (t.isPaired) {
+                merged = new PairedHits(staged, t.chrom, t.isLeft);
+            } else {
+                merged = new SingleHits(staged, t.chrom);
+                if (compressed) {
+                    CompressedSingleHits.writeCompressedHits(merged.getPositionsBuffer(), merged.getWeightsBuffer(), merged.getLASBuffer(),
+                                                             staged, t.chrom);
+                    merged.close();
+                    merged = new CompressedSingleHits(staged, t.chrom);
+                }
+            }
+            merged.makeHeader().writeIndexFile(indexfname + ".compact");
+            pyramid = HistogramPyramid.build(merged);
+            if (pyramid != null) {
+                pyramid.writePyramidFile(pyramidfname + ".compact");
+            }
+            merged.close();
+        }
+
+        Lock.readLock(t.alignid);
+        Lock.writeLock(t.alignid);
+        boolean unchanged = (new File(indexfname)).exists() && mainfile.lastModified() == mainstamp;
+        for (int id : ids) {
+            unchanged = unchanged && Segments.exists(prefix, id, t.chrom, t.isPaired, t.isLeft);
+        }
+        String[] from = compressed ? new String[]{CompressedSingleHits.getCompressedFname(staged, t.chrom)} :
+            Segments.getFileNames(staged, t.chrom, t.isPaired, t.isLeft);
+        if (!unchanged) {
+            server.getLogger().logp(Level.INFO,"Compactor","compact","Files changed while compacting " + t);
+            for (String f : from) {
+                (new File(f)).delete();
+            }
+            (new File(indexfname + ".compact")).delete();
+            (new File(pyramidfname + ".compact")).delete();
+            return;
+        }
+        /* the renames and deletes that replace the old files, in order */
+        List<String> steps = new ArrayList<String>();
+        if (full) {
+            String[] to = compressed ? new String[]{CompressedSingleHits.getCompressedFname(prefix, t.chrom)} :
+                Segments.getFileNames(prefix, t.chrom, t.isPaired, t.isLeft);
+            for (int i = 0; i < from.length; i++) {
+                steps.add(renameStep(from[i], to[i]));
+            }
+            steps.add(renameStep(indexfname + ".compact", indexfname));
+            steps.add(pyramid != null ? renameStep(pyramidfname + ".compact", pyramidfname) : deleteStep(pyramidfname));
+            if (compressed) {
+                /* the uncompressed merge that the compressed file was made from */
+                for (String f : Segments.getFileNames(staged, t.chrom, t.isPaired, t.isLeft)) {
+                    steps.add(deleteStep(f));
+                }
+            }
+            for (int id : ids) {
+                for (String f : Segments.getFileNames(Segments.getSegmentPrefix(prefix, id), t.chrom, t.isPaired, t.isLeft)) {
+                    steps.add(deleteStep(f));
+                }
+            }
+        } else {
+            /* the merged segment takes the place of the newest one it replaces, so segments
+               stored in the meantime are still newer */
+            int newest = ids[ids.length - 1];
+            String[] to = Segments.getFileNames(Segments.getSegmentPrefix(prefix, newest), t.chrom, t.isPaired, t.isLeft);
+            for (int i = 0; i < from.length; i++) {
+                steps.add(renameStep(from[i], to[i]));
+            }
+            for (int i = 0; i < ids.length - 1; i++) {
+                for (String f : Segments.getFileNames(Segments.getSegmentPrefix(prefix, ids[i]), t.chrom, t.isPaired, t.isLeft)) {
+                    steps.add(deleteStep(f));
+                }
+            }
+        }
+        writeCommit(commit, steps);
+        if (!finish(t, commit, full)) {
+            return;
+        }
+        server.getLogger().logp(Level.INFO,"Compactor","compact",
+                                String.format("Merged %d segments %s %s", ids.length, full ? "into" : "of", t));
+        if (full && Segments.list(prefix, t.chrom, t.isPaired, t.isLeft).length == 0) {
+            done(t, laststore);
+        }
+    }
+    private String getIndexFname(Target t) {
+        return t.isPaired ? server.getPairedHeaderFileName(t.alignid, t.chrom, t.isLeft) :
+            server.getSingleHeaderFileName(t.alignid, t.chrom);
+    }
+    /** the file that exists while the files of the chromosome with index file indexfname are being replaced */
+    public static String getCommitFname(String indexfname) {
+        return indexfname + ".commit";
+    }
+    /* the steps of a commit file name files relative to its directory, which is the alignment directory */
+    private static String renameStep(String from, String to) {
+        return "rename\t" + (new File(from)).getName() + "\t" + (new File(to)).getName();
+    }
+    private static String deleteStep(String fname) {
+        return "delete\t" + (new File(fname)).getName();
+    }
+    /* writes the steps to the commit file, which appears only once all of them are in it */
+    private static void writeCommit(File commit, List<String> steps) throws IOException {
+        File staged = new File(commit.getPath() + ".compact");
+        try {
+            PrintWriter out = new PrintWriter(new FileWriter(staged));
+            for (String step : steps) {
+                out.println(step);
+            }
+            out.close();
+            if (out.checkError() || !staged.renameTo(commit)) {
+                throw new IOException("Can't write " + commit);
+            }
+        } finally {
+            /* gone already once it's been renamed */
+            staged.delete();
+        }
+    }
+    /**
+     * Carries out the renames and deletes listed in a commit file and then deletes it.  Renames whose
+     * file is gone were done before, so a commit that was cut short can be finished again.  Returns false
+     * and keeps the commit file if a rename fails.  Needs the alignment's write lock, or no server running.
+     */
+    public static boolean finishCommit(File commit) throws IOException {
+        File dir = commit.getParentFile();
+        List<String[]> steps = new ArrayList<String[]>();
+        BufferedReader reader = new BufferedReader(new FileReader(commit));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                steps.add(line.split("\t"));
+            }
+        } finally {
+            reader.close();
+        }
+        for (String[] step : steps) {
+            File f = new File(dir, step[1]);
+            if (step[0].equals("rename")) {
+                if (f.exists() && !f.renameTo(new File(dir, step[2]))) {
+                    return false;
+                }
+            } else {
+                f.delete();
+            }
+        }
+        return commit.delete();
+    }
+    /* finishes a commit of the chromosome and drops the cached files it replaced */
+    private boolean finish(Target t, File commit, boolean full) throws IOException {
+        boolean finished = finishCommit(commit);
+        if (!finished) {
+            server.getLogger().logp(Level.WARNING,"Compactor","finish","Can't rename the files of " + commit + ", will retry");
+        }
+        if (t.isPaired) {
+            if (full) {
+                server.removePairedHits(t.alignid, t.chrom, t.isLeft);
+                server.removePairedHeader(t.alignid, t.chrom, t.isLeft);
+                server.removePairedPyramid(t.alignid, t.chrom, t.isLeft);
+            }
+            server.removePairedSegments(t.alignid, t.chrom, t.isLeft);
+        } else {
+            if (full) {
+                server.removeSingleHits(t.alignid, t.chrom);
+                server.removeSingleHeader(t.alignid, t.chrom);
+                server.removeSinglePyramid(t.alignid, t.chrom);
+            }
+            server.removeSingleSegments(t.alignid, t.chrom);
+        }
+        return finished;
+    }
+    /**
+     * Called at startup, before any stores or queries:  finishes the commits that a crash cut short and
+     * then removes the files of merges that never got to commit.
+     */
+    public void recover() {
+        File[] dirs = (new File(server.getTopDir())).listFiles();
+        if (dirs == null) {
+            return;
+        }
+        for (File dir : dirs) {
+            File[] files = dir.listFiles();
+            if (files == null) {
+                continue;
+            }
+            boolean finished = true;
+            for (File f : files) {
+                if (f.getName().endsWith(".commit")) {
+                    try {
+                        if (finishCommit(f)) {
+                            server.getLogger().logp(Level.INFO,"Compactor","recover","Finished " + f);
+                        } else {
+                            server.getLogger().logp(Level.WARNING,"Compactor","recover","Can't rename the files of " + f);
+                            finished = false;
+                        }
+                    } catch (IOException e) {
+                        server.getLogger().logp(Level.WARNING,"Compactor","recover","Can't finish " + f + " : " + e.toString(),e);
+                        finished = false;
+                    }
+                }
+            }
+            /* the merged files of an unfinished commit are still to be renamed */
+            if (!finished) {
+                continue;
+            }
+            for (File f : dir.listFiles()) {
+                if (f.getName().startsWith("compact_") || f.getName().endsWith(".compact")) {
+                    f.delete();
+                }
+            }
+        }
+    }
+    /* forgets about a chromosome unless there was a store to it since laststore */
+    private void done(Target t, long laststore) {
+        synchronized(pending) {
+            Long l = pending.get(t);
+            if (l != null && l == laststore) {
+                pending.remove(t);
+            }
+        }
+    }
+
+    private static class Target {
+        String alignid;
+        int chrom;
+        boolean isPaired, isLeft;
+
+        Target(String alignid, int chrom, boolean isPaired, boolean isLeft) {
+            this.alignid = alignid;
+            this.chrom = chrom;
+            this.isPaired = isPaired;
+            this.isLeft = isPaired && isLeft;
+        }
+        public boolean equals(Object o) {
+            if (o instanceof Target) {
+                Target other = (Target)o;
+                return alignid.equals(other.alignid) && chrom == other.chrom &&
+                    isPaired == other.isPaired && isLeft == other.isLeft;
+            } else {
+                return false;
+            }
+        }
+        public int hashCode() {
+            return alignid.hashCode() * 31 + chrom * 4 + (isPaired ? 2 : 0) + (isLeft ? 1 : 0);
+        }
+        public String toString() {
+            return alignid + " " + chrom + (isPaired ? (isLeft ? " left" : " right") : "");
+        }
+    }
+}
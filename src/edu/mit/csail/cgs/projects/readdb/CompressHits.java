@@ -0,0 +1,88 @@
+package edu.mit.csail.cgs.projects.readdb;
+
+import java.io.*;
+import java.util.*;
+import org.apache.commons.cli.*;
+
+/**
+ * Converts the single-end hits of alignments between the uncompressed files and the
+ * compressed format of CompressedSingleHits, rewriting the index of each chromosome.  The server
+ * reads either format, so alignments can be converted one at a time.  Run it while the server is
+ * stopped or while nobody is using the alignments being converted.
+ *
+ * usage: java edu.mit.csail.cgs.projects.readdb.CompressHits --datadir /path/to/datadir [--uncompress] [alignid ...]
+ *
+ * With no alignment ids, every alignment in the data directory is converted.
+ */
+public class CompressHits {
+
+    public static void main(String args[]) throws Exception {
+        Options options = new Options();
+        options.addOption("d","datadir",true,"directory to use for data");
+        options.addOption("u","uncompress",false,"convert compressed hits back to the uncompressed files");
+        CommandLineParser parser = new GnuParser();
+        CommandLine line = parser.parse(options, args, false);
+        if (!line.hasOption("datadir")) {
+            System.err.println("usage: java edu.mit.csail.cgs.projects.readdb.CompressHits --datadir /path/to/datadir [--uncompress] [alignid ...]");
+            System.exit(1);
+        }
+        boolean uncompress = line.hasOption("uncompress");
+        Server server = new Server();
+        server.parseArgs(new String[]{"--datadir", line.getOptionValue("datadir")});
+
+        List<File> dirs = new ArrayList<File>();
+        if (line.getArgs().length == 0) {
+            File[] files = (new File(server.getTopDir())).listFiles();
+            for (File f : files) {
+                if (f.isDirectory()) {
+                    dirs.add(f);
+                }
+            }
+        } else {
+            for (String alignid : line.getArgs()) {
+                dirs.add(new File(server.getAlignmentDir(alignid)));
+            }
+        }
+        for (File dir : dirs) {
+            String alignid = dir.getName();
+            Set<Integer> chroms = server.getChroms(alignid, false, false);
+            if (chroms == null) {
+                System.err.println("No alignment " + alignid);
+                continue;
+            }
+            String prefix = server.getAlignmentDir(alignid) + System.getProperty("file.separator");
+            for (int chrom : chroms) {
+                convert(server, alignid, prefix, chrom, uncompress);
+            }
+        }
+    }
+
+    /* converts one chromosome if it isn't already in the requested format */
+    private static void convert(Server server, String alignid, String prefix, int chrom, boolean uncompress) throws IOException {
+        SingleHits hits = SingleHits.open(prefix, chrom);
+        boolean compressed = hits instanceof CompressedSingleHits;
+        if (compressed != uncompress) {
+            hits.close();
+            return;
+        }
+        long before = sizeOf(prefix, chrom);
+        if (uncompress) {
+            ((CompressedSingleHits)hits).uncompress(prefix, chrom);
+        } else {
+            CompressedSingleHits.writeCompressedHits(hits.getPositionsBuffer(), hits.getWeightsBuffer(), hits.getLASBuffer(),
+                                                     prefix, chrom);
+        }
+        hits.close();
+        hits = SingleHits.open(prefix, chrom);
+        hits.makeHeader().writeIndexFile(server.getSingleHeaderFileName(alignid, chrom));
+        hits.close();
+        System.err.println(String.format("%s %d : %d -> %d bytes", alignid, chrom, before, sizeOf(prefix, chrom)));
+    }
+
+    private static long sizeOf(String prefix, int chrom) {
+        return (new File(SingleHits.getPositionsFname(prefix, chrom))).length() +
+            (new File(SingleHits.getWeightsFname(prefix, chrom))).length() +
+            (new File(SingleHits.getLaSFname(prefix, chrom))).length() +
+            (new File(CompressedSingleHits.getCompressedFname(prefix, chrom))).length();
+    }
+}
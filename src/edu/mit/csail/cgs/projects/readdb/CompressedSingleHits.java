@@ -0,0 +1,405 @@
+package edu.mit.csail.cgs.projects.readdb;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.Arrays;
+
+/**
+ * Sorted reads of one chromosome stored in a single block-compressed file instead of the
+ * three uncompressed positions, weights, and length-and-strand files.
+ *
+ * The file starts with a block index: the first and last position and the file offset of each block of
+ * BLOCKSIZE hits.  Within a block, positions are delta encoded as varints, weights are run-length
+ * encoded, and lengths-and-strands are stored as indices into a dictionary of the block's distinct values.
+ * The block index also serves as the Header for the chromosome (see makeHeader()), so the
+ * firstindex and lastindex that the Hits methods get from the Header are block boundaries and a range
+ * query only decodes the blocks it touches.
+ *
+ * getPositionsBuffer(), getWeightsBuffer() and getLASBuffer() decode the whole file.  They're used when the
+ * hits are rewritten or re-indexed, not to answer queries.
+ */
+public class CompressedSingleHits extends SingleHits {
+
+    public static final int BLOCKSIZE = 1024;
+    private static final int MAGIC = 0x52444243;
+    private static final int VERSION = 1;
+    /* magic, version, numHits, block size, number of blocks */
+    private static final int FILEHEADER = 20;
+    /* first position, last position, offset */
+    private static final int INDEXENTRY = 16;
+
+    private ByteBuffer data;
+    private int numHits, blocksize, numBlocks;
+    private int[] firstPositions, lastPositions;
+    private long[] offsets;
+    private Hits decoded;
+
+    public CompressedSingleHits(String prefix, int chrom) throws FileNotFoundException, SecurityException, IOException {
+        super(chrom);
+        RandomAccessFile raf = new RandomAccessFile(getCompressedFname(prefix,chrom),"r");
+        try {
+            FileChannel fc = raf.getChannel();
+            data = fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size());
+        } finally {
+            raf.close();
+        }
+        if (data.getInt(0) != MAGIC || data.getInt(4) != VERSION) {
+            throw new IOException("Not a compressed hits file : " + getCompressedFname(prefix,chrom));
+        }
+        numHits = data.getInt(8);
+        blocksize = data.getInt(12);
+        numBlocks = data.getInt(16);
+        firstPositions = new int[numBlocks];
+        lastPositions = new int[numBlocks];
+        offsets = new long[numBlocks];
+        for (int b = 0; b < numBlocks; b++) {
+            int e = FILEHEADER + b * INDEXENTRY;
+            firstPositions[b] = data.getInt(e);
+            lastPositions[b] = data.getInt(e + 4);
+            offsets[b] = data.getLong(e + 8);
+        }
+    }
+
+    static String getCompressedFname(String prefix, int chrom) {
+        return prefix + chrom + ".scompressed";
+    }
+
+    /**
+     * Writes the hits, which must be sorted, to the compressed file and removes the uncompressed files
+     * if there are any.
+     */
+    public static void writeCompressedHits(IntBP positions,
+                                           FloatBP weights,
+                                           IntBP las,
+                                           String prefix,
+                                           int chrom) throws IOException {
+        int n = positions.limit();
+        int numBlocks = (n + BLOCKSIZE - 1) / BLOCKSIZE;
+        ByteArrayOutputStream blocks = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(blocks);
+        long[] offsets = new long[numBlocks];
+        long start = FILEHEADER + (long)numBlocks * INDEXENTRY;
+        for (int b = 0; b < numBlocks; b++) {
+            offsets[b] = start + out.size();
+            writeBlock(positions, weights, las, b * BLOCKSIZE, Math.min(n, (b + 1) * BLOCKSIZE), out);
+        }
+        out.flush();
+
+        String fname = getCompressedFname(prefix,chrom);
+        DataOutputStream file = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(fname + ".tmp")));
+        file.writeInt(MAGIC);
+        file.writeInt(VERSION);
+        file.writeInt(n);
+        file.writeInt(BLOCKSIZE);
+        file.writeInt(numBlocks);
+        for (int b = 0; b < numBlocks; b++) {
+            file.writeInt(positions.get(b * BLOCKSIZE));
+            file.writeInt(positions.get(Math.min(n, (b + 1) * BLOCKSIZE) - 1));
+            file.writeLong(offsets[b]);
+        }
+        blocks.writeTo(file);
+        file.close();
+        (new File(fname + ".tmp")).renameTo(new File(fname));
+        (new File(getPositionsFname(prefix,chrom))).delete();
+        (new File(getWeightsFname(prefix,chrom))).delete();
+        (new File(getLaSFname(prefix,chrom))).delete();
+    }
+    public static void writeCompressedHits(SingleHit[] hits,
+                                           String prefix,
+                                           int chrom) throws IOException {
+        IntBP p = new IntBP(hits.length);
+        FloatBP w = new FloatBP(hits.length);
+        IntBP l = new IntBP(hits.length);
+        for (int i = 0; i < hits.length; i++) {
+            SingleHit h = hits[i];
+            p.put(i, h.pos);
+            w.put(i, h.weight);
+            l.put(i, makeLAS(h.length, h.strand));
+        }
+        writeCompressedHits(p,w,l,prefix,chrom);
+    }
+
+    /** rewrites the compressed file as the three uncompressed files */
+    public void uncompress(String prefix, int chrom) throws IOException {
+        writeSingleHits(getPositionsBuffer(), getWeightsBuffer(), getLASBuffer(), prefix, chrom);
+        (new File(getCompressedFname(prefix,chrom))).delete();
+    }
+
+    private static void writeBlock(IntBP positions, FloatBP weights, IntBP las, int from, int to, DataOutputStream out) throws IOException {
+        for (int i = from + 1; i < to; i++) {
+            /* zigzag so that an unsorted file (see resort()) still round trips */
+            int delta = positions.get(i) - positions.get(i-1);
+            writeVarint((delta << 1) ^ (delta >> 31), out);
+        }
+        int runs = 0;
+        for (int i = from; i < to; i++) {
+            if (i == from || Float.floatToRawIntBits(weights.get(i)) != Float.floatToRawIntBits(weights.get(i-1))) {
+                runs++;
+            }
+        }
+        writeVarint(runs, out);
+        for (int i = from; i < to; ) {
+            int j = i + 1;
+            while (j < to && Float.floatToRawIntBits(weights.get(j)) == Float.floatToRawIntBits(weights.get(i))) {
+                j++;
+            }
+            writeVarint(j - i, out);
+            out.writeFloat(weights.get(i));
+            i = j;
+        }
+        int[] dictionary = new int[to - from];
+        for (int i = from; i < to; i++) {
+            dictionary[i - from] = las.get(i);
+        }
+        Arrays.sort(dictionary);
+        int d = 0;
+        for (int i = 0; i < dictionary.length; i++) {
+            if (i == 0 || dictionary[i] != dictionary[i-1]) {
+                dictionary[d++] = dictionary[i];
+            }
+        }
+        writeVarint(d, out);
+        for (int i = 0; i < d; i++) {
+            out.writeInt(dictionary[i]);
+        }
+        if (d > 1) {
+            for (int i = from; i < to; i++) {
+                int k = Arrays.binarySearch(dictionary, 0, d, las.get(i));
+                if (d <= 256) {
+                    out.writeByte(k);
+                } else {
+                    writeVarint(k, out);
+                }
+            }
+        }
+    }
+    private static void writeVarint(int v, DataOutputStream out) throws IOException {
+        while ((v & ~0x7F) != 0) {
+            out.writeByte((v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+        out.writeByte(v);
+    }
+
+    /* decodes blocks [firstblock, lastblock) into hits in memory */
+    private Hits decode(int firstblock, int lastblock) {
+        int from = firstblock * blocksize;
+        int to = Math.min(numHits, lastblock * blocksize);
+        IntBP positions = new IntBP(Math.max(0, to - from));
+        FloatBP weights = new FloatBP(Math.max(0, to - from));
+        IntBP las = new IntBP(Math.max(0, to - from));
+        ByteBuffer in = data.duplicate();
+        for (int b = firstblock; b < lastblock; b++) {
+            int start = b * blocksize - from;
+            int n = Math.min(numHits, (b + 1) * blocksize) - b * blocksize;
+            in.position((int)offsets[b]);
+            int pos = firstPositions[b];
+            positions.put(start, pos);
+            for (int i = 1; i < n; i++) {
+                int z = readVarint(in);
+                pos += (z >>> 1) ^ -(z & 1);
+                positions.put(start + i, pos);
+            }
+            int runs = readVarint(in);
+            int i = 0;
+            for (int r = 0; r < runs; r++) {
+                int length = readVarint(in);
+                float w = in.getFloat();
+                for (int j = 0; j < length; j++) {
+                    weights.put(start + i++, w);
+                }
+            }
+            int d = readVarint(in);
+            int[] dictionary = new int[d];
+            for (int k = 0; k < d; k++) {
+                dictionary[k] = in.getInt();
+            }
+            for (i = 0; i < n; i++) {
+                if (d == 1) {
+                    las.put(start + i, dictionary[0]);
+                } else if (d <= 256) {
+                    las.put(start + i, dictionary[in.get() & 0xFF]);
+                } else {
+                    las.put(start + i, dictionary[readVarint(in)]);
+                }
+            }
+        }
+        return new Window(getChrom(), positions, weights, las);
+    }
+    private static int readVarint(ByteBuffer in) {
+        int v = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = in.get();
+            v |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return v;
+    }
+
+    /* the decoded blocks that contain hits [firstindex, lastindex) */
+    private Window window(int firstindex, int lastindex) {
+        firstindex = Math.max(0, Math.min(firstindex, numHits));
+        lastindex = Math.max(firstindex, Math.min(lastindex, numHits));
+        int firstblock = firstindex / blocksize;
+        int lastblock = lastindex == firstindex ? firstblock : (lastindex - 1) / blocksize + 1;
+        Window w = (Window)decode(firstblock, lastblock);
+        w.offset = firstblock * blocksize;
+        w.firstindex = firstindex - w.offset;
+        w.lastindex = lastindex - w.offset;
+        return w;
+    }
+
+    /* decoded hits, with the indices of the query within them */
+    private static class Window extends Hits {
+        int offset, firstindex, lastindex;
+        Window(int chrom, IntBP positions, FloatBP weights, IntBP las) {
+            super(chrom, positions, weights, las);
+        }
+    }
+
+    public Header makeHeader() {
+        /* a block is in the index only if its first hit is the first hit at that position, as in Header.init() */
+        int n = 0;
+        int[] positions = new int[numBlocks];
+        int[] pointers = new int[numBlocks];
+        for (int b = 0; b < numBlocks; b++) {
+            if (b == 0 || firstPositions[b] > lastPositions[b-1]) {
+                positions[n] = firstPositions[b];
+                pointers[n] = b * blocksize;
+                n++;
+            }
+        }
+        return new Header(numHits, Arrays.copyOf(positions, n), Arrays.copyOf(pointers, n));
+    }
+    public int getNumHits() {return numHits;}
+    /* the decoded copy, if any, is on the heap and isn't counted */
+    public long getMappedBytes() {
+        return data == null ? 0 : data.capacity();
+    }
+    public int getFirstPosition() {
+        return firstPositions[0];
+    }
+    public int getLastPosition() {
+        return lastPositions[numBlocks - 1];
+    }
+    private synchronized Hits decoded() {
+        if (decoded == null) {
+            decoded = decode(0, numBlocks);
+        }
+        return decoded;
+    }
+    public IntBP getPositionsBuffer() {
+        return decoded().getPositionsBuffer();
+    }
+    public FloatBP getWeightsBuffer() {
+        return decoded().getWeightsBuffer();
+    }
+    public IntBP getLASBuffer() {
+        return decoded().getLASBuffer();
+    }
+    public int[] getIndices(int firstindex, int lastindex, int startpos, int lastpos) {
+        Window w = window(firstindex, lastindex);
+        int[] p = w.getIndices(w.firstindex, w.lastindex, startpos, lastpos);
+        p[0] += w.offset;
+        p[1] += w.offset;
+        return p;
+    }
+    public int[] getIndicesLinear(int firstindex, int lastindex, int startpos, int lastpos) {
+        return getIndices(firstindex, lastindex, startpos, lastpos);
+    }
+    public int getCountBetween(int firstindex, int lastindex, int start, int stop, Float minweight, Boolean isPlus) throws IOException {
+        Window w = window(firstindex, lastindex);
+        return w.getCountBetween(w.firstindex, w.lastindex, start, stop, minweight, isPlus);
+    }
+    public double getWeightBetween(int firstindex, int lastindex, int start, int stop, Float minweight, Boolean isPlus) throws IOException {
+        Window w = window(firstindex, lastindex);
+        return w.getWeightBetween(w.firstindex, w.lastindex, start, stop, minweight, isPlus);
+    }
+    public IntBP getHitsBetween(int firstindex, int lastindex, int start, int stop, Float minweight, Boolean isPlus) throws IOException {
+        Window w = window(firstindex, lastindex);
+        return w.getHitsBetween(w.firstindex, w.lastindex, start, stop, minweight, isPlus);
+    }
+    public IntBP getLASBetween(int firstindex, int lastindex, int start, int stop, Float minweight, Boolean isPlus) throws IOException {
+        Window w = window(firstindex, lastindex);
+        return w.getLASBetween(w.firstindex, w.lastindex, start, stop, minweight, isPlus);
+    }
+    public FloatBP getWeightsBetween(int firstindex, int lastindex, int start, int stop, Float minweight, Boolean isPlus) throws IOException {
+        Window w = window(firstindex, lastindex);
+        return w.getWeightsBetween(w.firstindex, w.lastindex, start, stop, minweight, isPlus);
+    }
+    public int[] histogram(int firstindex, int lastindex, int start, int stop, int stepsize, int dedup,
+                           Float minweight, Boolean isPlus, boolean extension) throws IOException {
+        Window w = window(firstindex, lastindex);
+        return w.histogram(w.firstindex, w.lastindex, start, stop, stepsize, dedup, minweight, isPlus, extension);
+    }
+    public float[] weightHistogram(int firstindex, int lastindex, int start, int stop, int stepsize, int dedup,
+                                   Float minweight, Boolean isPlus, boolean extension) throws IOException {
+        Window w = window(firstindex, lastindex);
+        return w.weightHistogram(w.firstindex, w.lastindex, start, stop, stepsize, dedup, minweight, isPlus, extension);
+    }
+
+    /** merges the hits into the compressed file */
+    public void appendSingleHits(SingleHit[] hits,
+                                 String prefix,
+                                 int chrom) throws IOException {
+        if (hits.length == 0) {
+            return;
+        }
+        IntBP oldpositions = getPositionsBuffer();
+        FloatBP oldweights = getWeightsBuffer();
+        IntBP oldlas = getLASBuffer();
+        int newsize = numHits + hits.length;
+        IntBP positions = new IntBP(newsize);
+        FloatBP weights = new FloatBP(newsize);
+        IntBP las = new IntBP(newsize);
+        /* same order as SingleHits.merge() */
+        int oldp = 0, newp = 0, pos = 0;
+        while (oldp < numHits || newp < hits.length) {
+            while (newp < hits.length && (oldp == numHits || hits[newp].pos <= oldpositions.get(oldp))) {
+                positions.put(pos, hits[newp].pos);
+                weights.put(pos, hits[newp].weight);
+                las.put(pos, makeLAS(hits[newp].length, hits[newp].strand));
+                newp++;
+                pos++;
+            }
+            while (oldp < numHits && (newp == hits.length || oldpositions.get(oldp) <= hits[newp].pos)) {
+                positions.put(pos, oldpositions.get(oldp));
+                weights.put(pos, oldweights.get(oldp));
+                las.put(pos, oldlas.get(oldp));
+                oldp++;
+                pos++;
+            }
+        }
+        writeCompressedHits(positions, weights, las, prefix, chrom);
+    }
+    public void resort(String prefix, int chrom) throws IOException {
+        IntBP positions = getPositionsBuffer();
+        FloatBP weights = getWeightsBuffer();
+        IntBP las = getLASBuffer();
+        long indices[] = new long[numHits];
+        for (int i = 0; i < indices.length; i++) {
+            long v = positions.get(i);
+            v <<= 32;
+            v |= i;
+            indices[i] = v;
+        }
+        Arrays.sort(indices);
+        IntBP p = new IntBP(numHits);
+        FloatBP w = new FloatBP(numHits);
+        IntBP l = new IntBP(numHits);
+        for (int i = 0; i < indices.length; i++) {
+            int index = (int)(indices[i] & 0xffffffffL);
+            p.put(i, (int)(indices[i] >> 32));
+            w.put(i, weights.get(index));
+            l.put(i, las.get(index));
+        }
+        writeCompressedHits(p, w, l, prefix, chrom);
+    }
+    public void close() throws IOException {
+        data = null;
+        decoded = null;
+    }
+}
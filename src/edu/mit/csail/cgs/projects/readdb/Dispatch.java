@@ -1,156 +1,284 @@
 package edu.mit.csail.cgs.projects.readdb;
 
+import java.io.*;
+import java.net.*;
+import java.nio.channels.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 import java.util.logging.*;
 
 /**
- * Dispatch is a thread that manages the WorkerThreads and assigns
- * WorkerThreads to ServerTasks.
+ * Dispatch is the server's event loop.  A single thread waits on a Selector for new
+ * connections and for input on the open connections.  Bytes are read into the ServerTask
+ * of the connection without blocking, and once the task has a complete request buffered
+ * it is handed to a fixed pool of worker threads.  While a worker owns a connection, the
+ * selector ignores it; when the worker is done the connection goes back to the selector
+ * (or straight back to the pool if the client has already sent its next request).
+ *
+ * Dispatch also keeps the counters reported by the "serverstats" request.
  */
 
 public class Dispatch implements Runnable {
 
-    private Vector<WorkerThread> freePool, allThreads;
-    private Vector<ServerTask> workQueue;
-    private Vector<Thread> threads;
+    /* how often the counters are written to the log, in ms */
+    private static final long STATSINTERVAL = 1000 * 600;
+
     private Server server;
+    private Selector selector;
+    private ServerSocketChannel serverChannel;
+    private ThreadPoolExecutor workers;
+    /* tasks returned by the workers, to be closed or re-registered by the selector thread */
+    private ConcurrentLinkedQueue<ServerTask> returned;
     private int maxConnections;
-    private int warnedMaxConn = 0;
+    private volatile int connections;
+    private boolean acceptPaused;
+
+    private AtomicLong requests, totalLatency, maxLatency, totalWait, rejected, maxQueueDepth;
+    private volatile long accepted;
+    private long lastStats;
+
     public Dispatch (Server s, int numThreads, int maxC) {
         server = s;
-        workQueue = new Vector<ServerTask>();
-        freePool = new Vector<WorkerThread>();
-        allThreads = new Vector<WorkerThread>();
-        threads = new Vector<Thread>();
-        for (int i = 0; i < numThreads; i++) {
-            WorkerThread servthread = new WorkerThread(this);
-            Thread t = new Thread(servthread);
-            t.start();
-            threads.add(t);
-            freePool.add(servthread);
-            allThreads.add(servthread);
-        }
         maxConnections = maxC;
+        returned = new ConcurrentLinkedQueue<ServerTask>();
+        /* each connection has at most one task in the queue or running, so the queue
+           never needs to be longer than the number of connections */
+        workers = new ThreadPoolExecutor(numThreads, numThreads, 60, TimeUnit.SECONDS,
+                                         new ArrayBlockingQueue<Runnable>(Math.max(1, maxConnections)),
+                                         new ThreadFactory() {
+                                             private int count = 0;
+                                             public Thread newThread(Runnable r) {
+                                                 return new Thread(r, "readdb-worker-" + (count++));
+                                             }
+                                         });
+        requests = new AtomicLong();
+        totalLatency = new AtomicLong();
+        maxLatency = new AtomicLong();
+        totalWait = new AtomicLong();
+        rejected = new AtomicLong();
+        maxQueueDepth = new AtomicLong();
+        accepted = 0;
     }
 
     /**
-     * Add a new ServerTask to the set of tasks that will
-     * be run.  Called by Server when it accepts a new connection.
+     * Opens the listening socket.  Called by Server before run().
      */
-    public void addWork(ServerTask s) {
-        System.err.println("workqueue size is " + workQueue.size() + "\n");
-        while (workQueue.size() > maxConnections) {
-            try {
-                if (warnedMaxConn++ % 100 == 0) {
-                    server.getLogger().log(Level.WARNING,(String.format("Hit maxconnections (%d)",maxConnections)));
-                }
-                Thread.sleep(10);
-            } catch (InterruptedException e) {
-
-            }
-        }
-        warnedMaxConn = 0;
-        workQueue.add(s);
-        synchronized(this) {
-            notifyAll();
-        }
+    public void bind(int port) throws IOException {
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.socket().setReuseAddress(true);
+        serverChannel.socket().setReceiveBufferSize(Server.BUFFERLEN);
+        serverChannel.socket().bind(new InetSocketAddress(port));
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
     }
+
     /**
-     * called by WorkerThread when it's finished with a ServerTask.
-     * WorkerThread has called the run method(), so getting to this
-     * point means that the run method returned.  The run() method
-     * should not throw any exceptions.
-     *
+     * wakes up the selector thread, eg so that it notices that the server is stopping
      */
-    public void freeThread(WorkerThread t, ServerTask s) {
-        if (s.shouldClose()) {
-            s.close();
-        } else {
-            workQueue.add(s);
-        }
-        freePool.add(t);
-        synchronized(this) {
-            notifyAll();
+    public void wakeup() {
+        if (selector != null) {
+            selector.wakeup();
         }
     }
+
     /**
-     * our main loop.  work through the tasks, seeing who appears
-     * to have input
+     * our main loop.  Accept connections, read whatever input is available, and
+     * hand complete requests to the workers.
      */
     public void run() {
-        int noTasksWaiting = 0;
-        int noInputAvailable = 0;
-        int threadCheck = 0;
-        int sleep = server.getSleepiness();
-        while (server.keepRunning()) {            
-            if (workQueue.size() > 0) {
-                noTasksWaiting = 0;
-                ServerTask s = workQueue.remove(0);
-                if (s.shouldClose()) {
-                    s.close();
-                } else if (s.inputAvailable()) {
-                    while (freePool.size() == 0) {                        
-                        try {
-                            synchronized(this) {
-                                wait(2);
-                            }
-                        } catch (InterruptedException e) {}
-                    }                        
-                    WorkerThread w = freePool.remove(0);
-                    w.handle(s);
-                    noInputAvailable = 0;
-                } else {
-                    noInputAvailable++;
-                    workQueue.add(s);
-                    if (noInputAvailable > workQueue.size() * 2) {
-                        try {
-                            synchronized(this) {
-                                wait(sleep);
-                            }
-                        } catch (InterruptedException e) {}                
-                        noInputAvailable = 0;
-                    }
-                }
-            } else {
-                noTasksWaiting++;
+        lastStats = System.currentTimeMillis();
+        while (server.keepRunning()) {
+            try {
+                selector.select(1000);
+            } catch (IOException e) {
+                server.getLogger().logp(Level.WARNING,"Dispatch","run","select",e);
+                continue;
+            }
+            Iterator<SelectionKey> iter = selector.selectedKeys().iterator();
+            while (iter.hasNext()) {
+                SelectionKey key = iter.next();
+                iter.remove();
                 try {
-                    synchronized(this) {
-                        wait(sleep*2);
+                    if (!key.isValid()) {
+                        continue;
                     }
-                } catch (InterruptedException e) {}                
-            } 
-            if (threadCheck++ > 1000) {
-                threadCheck = 0;
-                for (int i = 0; i < threads.size(); i++) {
-                    if (!threads.get(i).isAlive()) {
-                        server.getLogger().log(Level.INFO,"Dispatch","run: DEAD THREAD.  Adding a new one");
-                        WorkerThread servthread = new WorkerThread(this);
-                        Thread t = new Thread(servthread);
-                        t.start();
-                        threads.set(i,t);
-                        freePool.add(servthread);
-                        try {
-                            allThreads.get(i).stopRunning();
-                        } catch (Exception e) {
-                            server.getLogger().logp(Level.INFO,"Dispatch","run: trying to stop old thread",e.toString(),e);
-                        }
-                        allThreads.set(i,servthread);
+                    if (key.isAcceptable()) {
+                        accept();
+                    } else if (key.isReadable()) {
+                        read(key);
                     }
+                } catch (CancelledKeyException e) {
+                    // connection was closed in the meantime
                 }
             }
+            ServerTask t;
+            while ((t = returned.poll()) != null) {
+                resume(t);
+            }
+            if (System.currentTimeMillis() - lastStats > STATSINTERVAL) {
+                lastStats = System.currentTimeMillis();
+                server.getLogger().log(Level.INFO,"Dispatch stats: " + getStats().toString());
+            }
         }
-        while (freePool.size() < allThreads.size()) {
-            try {
-                Thread.sleep(100);
-            } catch (InterruptedException e) {
-                
+        shutdown();
+    }
+
+    private void accept() {
+        SocketChannel channel = null;
+        try {
+            channel = serverChannel.accept();
+            if (channel == null) {
+                return;
+            }
+            server.getLogger().log(Level.INFO,"accepted from " + channel.socket().getInetAddress());
+            ServerTask task = new ServerTask(server, channel);
+            if (server.debug()) {
+                System.err.println("New Task is " + task);
+            }
+            task.setKey(channel.register(selector, SelectionKey.OP_READ, task));
+            connections++;
+            accepted++;
+        } catch (IOException e) {
+            server.getLogger().logp(Level.WARNING,"Dispatch","accept",e.toString(),e);
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException e2) {
+                    // ignore it
+                }
             }
         }
-        for (WorkerThread t : freePool) {
-            t.stopRunning();
+        if (connections >= maxConnections && !acceptPaused) {
+            /* stop accepting until a connection closes.  New clients wait in the listen backlog */
+            server.getLogger().log(Level.WARNING,(String.format("Hit maxconnections (%d)",maxConnections)));
+            acceptPaused = true;
+            serverChannel.keyFor(selector).interestOps(0);
         }
     }
 
+    private void read(SelectionKey key) {
+        ServerTask task = (ServerTask)key.attachment();
+        if (task.readAvailable() == -1) {
+            close(task);
+        } else if (task.hasCompleteRequest()) {
+            key.interestOps(0);
+            submit(task);
+        }
+    }
 
+    /* hands the task to the worker pool.  Called by the selector thread and by the workers */
+    private void submit(final ServerTask task) {
+        task.setReadyTime(System.nanoTime());
+        try {
+            workers.execute(new Runnable() {
+                    public void run() {
+                        long start = System.nanoTime();
+                        task.run();
+                        finished(task, start);
+                    }
+                });
+        } catch (RejectedExecutionException e) {
+            rejected.incrementAndGet();
+            server.getLogger().log(Level.WARNING,"Dispatch: worker queue is full, closing " + task);
+            task.setShouldClose();
+            returned.add(task);
+            selector.wakeup();
+        }
+        updateMax(maxQueueDepth, workers.getQueue().size());
+    }
+
+    /**
+     * called by a worker when run() returns for the task.  If another complete request
+     * is already buffered, the task goes straight back to the pool.  Otherwise it is
+     * returned to the selector thread.
+     */
+    private void finished(ServerTask task, long start) {
+        long now = System.nanoTime();
+        long latency = now - task.getReadyTime();
+        requests.incrementAndGet();
+        totalLatency.addAndGet(latency);
+        totalWait.addAndGet(start - task.getReadyTime());
+        updateMax(maxLatency, latency);
+
+        if (!task.shouldClose() && server.keepRunning() && task.hasCompleteRequest()) {
+            submit(task);
+        } else {
+            returned.add(task);
+            selector.wakeup();
+        }
+    }
+
+    private static void updateMax(AtomicLong max, long value) {
+        long old = max.get();
+        while (value > old && !max.compareAndSet(old, value)) {
+            old = max.get();
+        }
+    }
+
+    /* selector thread: re-register a task returned by a worker */
+    private void resume(ServerTask task) {
+        if (task.shouldClose()) {
+            close(task);
+            return;
+        }
+        try {
+            task.getKey().interestOps(SelectionKey.OP_READ);
+        } catch (CancelledKeyException e) {
+            close(task);
+        }
+    }
+
+    private void close(ServerTask task) {
+        task.getKey().cancel();
+        task.close();
+        connections--;
+        if (acceptPaused && connections < maxConnections) {
+            acceptPaused = false;
+            serverChannel.keyFor(selector).interestOps(SelectionKey.OP_ACCEPT);
+        }
+    }
+
+    private void shutdown() {
+        workers.shutdown();
+        try {
+            workers.awaitTermination(60, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+        }
+        for (SelectionKey key : selector.keys()) {
+            if (key.attachment() instanceof ServerTask) {
+                ((ServerTask)key.attachment()).close();
+            }
+        }
+        try {
+            serverChannel.close();
+            selector.close();
+        } catch (IOException e) {
+            server.getLogger().logp(Level.INFO,"Dispatch","shutdown",e.toString(),e);
+        }
+    }
+
+    /**
+     * Current counters of the event loop.  Latencies are in microseconds and are measured from the
+     * time a complete request was buffered to the time the worker finished it; wait is the part of
+     * that spent in the worker queue.
+     */
+    public Map<String,String> getStats() {
+        Map<String,String> stats = new LinkedHashMap<String,String>();
+        long n = requests.get();
+        stats.put("connections", Integer.toString(connections));
+        stats.put("accepted", Long.toString(accepted));
+        stats.put("workers", Integer.toString(workers.getPoolSize()));
+        stats.put("activeworkers", Integer.toString(workers.getActiveCount()));
+        stats.put("queuedepth", Integer.toString(workers.getQueue().size()));
+        stats.put("maxqueuedepth", Long.toString(maxQueueDepth.get()));
+        stats.put("requests", Long.toString(n));
+        stats.put("rejected", Long.toString(rejected.get()));
+        stats.put("meanlatency", Long.toString(n == 0 ? 0 : totalLatency.get() / n / 1000));
+        stats.put("maxlatency", Long.toString(maxLatency.get() / 1000));
+        stats.put("meanwait", Long.toString(n == 0 ? 0 : totalWait.get() / n / 1000));
+        return stats;
+    }
 
-}
\ No newline at end of file
+}
@@ -78,6 +78,15 @@ public class Header implements Closeable {
     public Header(IntBuffer hits, int pagesize) {
         init(hits, pagesize);
     }
+    /**
+     * Creates a header from an index that is already known, eg the blocks of a compressed hits file.
+     * positions must be strictly increasing and each pointer must be the first hit at its position.
+     */
+    public Header(int numHits, int[] positions, int[] pointers) {
+        this.numHits = numHits;
+        indexPositions = positions.clone();
+        indexPointers = pointers.clone();
+    }
     private void init(IntBuffer hits, int pagesize) {   
         indexPositions = new int[0];
         indexPointers = new int[0];
@@ -0,0 +1,281 @@
+package edu.mit.csail.cgs.projects.readdb;
+
+import java.io.*;
+import java.util.Arrays;
+
+/**
+ * Precomputed hit counts and weights of one hits file (a chromosome of an alignment) in fixed bins at
+ * several resolutions, kept per strand.  Only non-empty bins are stored.  Histograms
+ * without minweight, dedup, or extension are answered from the coarsest bins that fit
+ * inside each requested bin; only the pieces of a requested bin smaller than the finest level are
+ * read from the hits themselves.
+ *
+ * The pyramid is rebuilt whenever the hits file or its index is rewritten.  It records the number of hits
+ * it was built from so that a pyramid that doesn't match its hits file is ignored.
+ */
+public class HistogramPyramid implements Closeable {
+
+    /** bin sizes of the levels, finest first.  Each level's bins are made of whole bins of the level before it */
+    public static final int[] LEVELS = {100, 1000, 10000};
+
+    private int numHits;
+    private Level[] levels;
+
+    private static class Level {
+        int binsize;
+        /* sorted bin numbers of the non-empty bins; bin b covers [b * binsize, (b+1) * binsize - 1] */
+        int[] bins;
+        int[] plusCounts, minusCounts;
+        float[] plusWeights, minusWeights;
+
+        Level(int binsize, int n) {
+            this.binsize = binsize;
+            bins = new int[n];
+            plusCounts = new int[n];
+            minusCounts = new int[n];
+            plusWeights = new float[n];
+            minusWeights = new float[n];
+        }
+        /* index of the first non-empty bin >= bin */
+        int find(int bin) {
+            int i = Arrays.binarySearch(bins, bin);
+            return i >= 0 ? i : -i - 1;
+        }
+        /* aggregates this level into coarser bins */
+        Level coarsen(int newsize) {
+            int factor = newsize / binsize;
+            int n = 0;
+            for (int i = 0; i < bins.length; i++) {
+                if (i == 0 || bins[i] / factor != bins[i-1] / factor) {
+                    n++;
+                }
+            }
+            Level out = new Level(newsize, n);
+            int j = -1;
+            for (int i = 0; i < bins.length; i++) {
+                if (i == 0 || bins[i] / factor != bins[i-1] / factor) {
+                    j++;
+                    out.bins[j] = bins[i] / factor;
+                }
+                out.plusCounts[j] += plusCounts[i];
+                out.minusCounts[j] += minusCounts[i];
+                out.plusWeights[j] += plusWeights[i];
+                out.minusWeights[j] += minusWeights[i];
+            }
+            return out;
+        }
+    }
+
+    private HistogramPyramid() {}
+
+    /**
+     * Builds the pyramid for a set of hits.  Returns null if the positions aren't sorted (see
+     * ServerTask.processCheckSort) or are negative, since the bins are built in one pass over the positions.
+     */
+    public static HistogramPyramid build(Hits hits) {
+        IntBP positions = hits.getPositionsBuffer();
+        FloatBP weights = hits.getWeightsBuffer();
+        IntBP las = hits.getLASBuffer();
+        int size = LEVELS[0];
+        int n = 0;
+        for (int i = 0; i < positions.limit(); i++) {
+            if (positions.get(i) < 0 || (i > 0 && positions.get(i) < positions.get(i-1))) {
+                return null;
+            }
+            if (i == 0 || positions.get(i) / size != positions.get(i-1) / size) {
+                n++;
+            }
+        }
+        Level finest = new Level(size, n);
+        int j = -1;
+        for (int i = 0; i < positions.limit(); i++) {
+            int pos = positions.get(i);
+            if (i == 0 || pos / size != positions.get(i-1) / size) {
+                j++;
+                finest.bins[j] = pos / size;
+            }
+            if (Hits.getStrandOne(las.get(i))) {
+                finest.plusCounts[j]++;
+                finest.plusWeights[j] += weights.get(i);
+            } else {
+                finest.minusCounts[j]++;
+                finest.minusWeights[j] += weights.get(i);
+            }
+        }
+        HistogramPyramid p = new HistogramPyramid();
+        p.numHits = positions.limit();
+        p.levels = new Level[LEVELS.length];
+        p.levels[0] = finest;
+        for (int l = 1; l < LEVELS.length; l++) {
+            p.levels[l] = p.levels[l-1].coarsen(LEVELS[l]);
+        }
+        return p;
+    }
+
+    /** builds the pyramid for the hits and saves it, or removes the old file if it can't be built */
+    public static void writePyramidFile(Hits hits, String fname) throws IOException {
+        HistogramPyramid p = build(hits);
+        if (p == null) {
+            new File(fname).delete();
+        } else {
+            p.writePyramidFile(fname);
+        }
+    }
+
+    public void writePyramidFile(String fname) throws IOException {
+        String tmp = fname + ".tmp";
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        out.writeInt(numHits);
+        out.writeInt(levels.length);
+        for (Level level : levels) {
+            out.writeInt(level.binsize);
+            out.writeInt(level.bins.length);
+            for (int i = 0; i < level.bins.length; i++) {
+                out.writeInt(level.bins[i]);
+                out.writeInt(level.plusCounts[i]);
+                out.writeInt(level.minusCounts[i]);
+                out.writeFloat(level.plusWeights[i]);
+                out.writeFloat(level.minusWeights[i]);
+            }
+        }
+        out.close();
+        (new File(tmp)).renameTo(new File(fname));
+    }
+
+    public static HistogramPyramid readPyramidFile(String fname) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(fname)));
+        try {
+            HistogramPyramid p = new HistogramPyramid();
+            p.numHits = in.readInt();
+            p.levels = new Level[in.readInt()];
+            for (int l = 0; l < p.levels.length; l++) {
+                int binsize = in.readInt();
+                Level level = new Level(binsize, in.readInt());
+                for (int i = 0; i < level.bins.length; i++) {
+                    level.bins[i] = in.readInt();
+                    level.plusCounts[i] = in.readInt();
+                    level.minusCounts[i] = in.readInt();
+                    level.plusWeights[i] = in.readFloat();
+                    level.minusWeights[i] = in.readFloat();
+                }
+                p.levels[l] = level;
+            }
+            return p;
+        } finally {
+            in.close();
+        }
+    }
+
+    public int getNumHits() {return numHits;}
+
+    /**
+     * true if a histogram with these options can be answered from the pyramid:  bins at least as large as
+     * the finest level and no minweight, dedup or extension.
+     */
+    public static boolean canAnswer(int stepsize, int dedup, Float minweight, boolean extension) {
+        return stepsize >= LEVELS[0] && dedup == 0 && minweight == null && !extension;
+    }
+
+    /** same output as Hits.histogram() when canAnswer() is true */
+    public int[] histogram(Header header, Hits hits, int start, int stop, int stepsize, Boolean isPlus) throws IOException {
+        int output[] = new int[(stop - start) / stepsize + 1];
+        double[] sum = new double[1];
+        for (int i = 0; i < output.length; i++) {
+            sum[0] = 0;
+            add(levels.length - 1, header, hits, start + i * stepsize, Math.min(stop, start + (i + 1) * stepsize - 1), isPlus, false, sum);
+            output[i] = (int)sum[0];
+        }
+        return output;
+    }
+
+    /** same output as Hits.weightHistogram() when canAnswer() is true, up to rounding of the sums */
+    public float[] weightHistogram(Header header, Hits hits, int start, int stop, int stepsize, Boolean isPlus) throws IOException {
+        float output[] = new float[(stop - start) / stepsize + 1];
+        double[] sum = new double[1];
+        for (int i = 0; i < output.length; i++) {
+            sum[0] = 0;
+            add(levels.length - 1, header, hits, start + i * stepsize, Math.min(stop, start + (i + 1) * stepsize - 1), isPlus, true, sum);
+            output[i] = (float)sum[0];
+        }
+        return output;
+    }
+
+    /**
+     * Hits.histogram() of hits, which may be a Segments.View, answered from pyramid where possible.
+     * pyramid may be null; it's only used if canAnswer() and it matches the hits file, and then the
+     * segments are added from their hits.
+     */
+    public static int[] histogramFor(HistogramPyramid pyramid, Header header, Hits hits, int start, int stop, int stepsize,
+                                     int dedup, Float minweight, Boolean isPlus, boolean extension) throws IOException {
+        Hits[] parts = hits instanceof Segments.View ? ((Segments.View)hits).getParts() : new Hits[]{hits};
+        Header[] headers = hits instanceof Segments.View ? ((Segments.View)hits).getHeaders() : new Header[]{header};
+        if (pyramid == null || !canAnswer(stepsize, dedup, minweight, extension) || pyramid.getNumHits() != headers[0].getNumHits()) {
+            return hits.histogram(header.getFirstIndex(start), header.getLastIndex(stop), start, stop,
+                                  stepsize, dedup, minweight, isPlus, extension);
+        }
+        int[] raw = pyramid.histogram(headers[0], parts[0], start, stop, stepsize, isPlus);
+        if (parts.length > 1) {
+            int[] rest = Segments.histogram(parts, headers, 1, start, stop, stepsize, 0, null, isPlus, false);
+            for (int i = 0; i < raw.length; i++) {
+                raw[i] += rest[i];
+            }
+        }
+        return raw;
+    }
+    /** Hits.weightHistogram() of hits, see histogramFor() */
+    public static float[] weightHistogramFor(HistogramPyramid pyramid, Header header, Hits hits, int start, int stop, int stepsize,
+                                             int dedup, Float minweight, Boolean isPlus, boolean extension) throws IOException {
+        Hits[] parts = hits instanceof Segments.View ? ((Segments.View)hits).getParts() : new Hits[]{hits};
+        Header[] headers = hits instanceof Segments.View ? ((Segments.View)hits).getHeaders() : new Header[]{header};
+        if (pyramid == null || !canAnswer(stepsize, dedup, minweight, extension) || pyramid.getNumHits() != headers[0].getNumHits()) {
+            return hits.weightHistogram(header.getFirstIndex(start), header.getLastIndex(stop), start, stop,
+                                        stepsize, dedup, minweight, isPlus, extension);
+        }
+        float[] raw = pyramid.weightHistogram(headers[0], parts[0], start, stop, stepsize, isPlus);
+        if (parts.length > 1) {
+            float[] rest = Segments.weightHistogram(parts, headers, 1, start, stop, stepsize, 0, null, isPlus, false);
+            for (int i = 0; i < raw.length; i++) {
+                raw[i] += rest[i];
+            }
+        }
+        return raw;
+    }
+
+    /* adds the hits or weight in [start, stop] to sum[0], using whole bins of level l and finer levels
+       for the remainders at either end */
+    private void add(int l, Header header, Hits hits, int start, int stop, Boolean isPlus, boolean weight, double[] sum) throws IOException {
+        if (start > stop) {
+            return;
+        }
+        if (l < 0) {
+            int first = header.getFirstIndex(start);
+            int last = header.getLastIndex(stop);
+            sum[0] += weight ? hits.getWeightBetween(first, last, start, stop, null, isPlus) :
+                hits.getCountBetween(first, last, start, stop, null, isPlus);
+            return;
+        }
+        Level level = levels[l];
+        long size = level.binsize;
+        /* whole bins [lo, hi) of this level inside [start, stop] */
+        int lo = (int)((start + size - 1) / size);
+        int hi = (int)((stop + 1L) / size);
+        if (start < 0 || lo >= hi) {
+            add(l - 1, header, hits, start, stop, isPlus, weight, sum);
+            return;
+        }
+        add(l - 1, header, hits, start, (int)(lo * size) - 1, isPlus, weight, sum);
+        for (int i = level.find(lo); i < level.bins.length && level.bins[i] < hi; i++) {
+            if (isPlus == null || isPlus) {
+                sum[0] += weight ? level.plusWeights[i] : level.plusCounts[i];
+            }
+            if (isPlus == null || !isPlus) {
+                sum[0] += weight ? level.minusWeights[i] : level.minusCounts[i];
+            }
+        }
+        add(l - 1, header, hits, (int)(hi * size), stop, isPlus, weight, sum);
+    }
+
+    public void close() {
+        levels = null;
+    }
+}
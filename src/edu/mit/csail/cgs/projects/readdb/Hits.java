@@ -125,6 +125,25 @@ public abstract class Hits implements Closeable {
         lenAndStrand = openIntBP(lasFname);
         fname = positionsFname;
     }
+    /** hits held in the given buffers rather than read from files */
+    protected Hits (int chrom, IntBP positions, FloatBP weights, IntBP lenAndStrand) {
+        this.chrom = chrom;
+        this.positions = positions;
+        this.weights = weights;
+        this.lenAndStrand = lenAndStrand;
+    }
+    /** for subclasses that keep the hits in some other form and override the methods that read them */
+    protected Hits (int chrom) {
+        this.chrom = chrom;
+    }
+    public int getChrom() {return chrom;}
+    /** bytes of the buffers holding the hits; the server's cache uses this to limit how much it keeps mapped */
+    public long getMappedBytes() {
+        return getMappedBytes(positions) + getMappedBytes(weights) + getMappedBytes(lenAndStrand);
+    }
+    protected static long getMappedBytes(ByteBP b) {
+        return b == null || b.bb == null ? 0 : b.bb.capacity();
+    }
     /** gets the buffer of positions */
     public IntBP getPositionsBuffer() {
         return positions;
@@ -137,6 +156,16 @@ public abstract class Hits implements Closeable {
     public IntBP getLASBuffer() {
         return lenAndStrand;
     }
+    public int getFirstPosition() {
+        return positions.get(0);
+    }
+    public int getLastPosition() {
+        return positions.get(positions.limit() - 1);
+    }
+    /** creates the index for these hits */
+    public Header makeHeader() {
+        return new Header(positions.ib);
+    }
     /**
      * returns indices = int[2] 
      * such that indices[0] is the first element of positions >= startpos
@@ -1,70 +1,226 @@
 package edu.mit.csail.cgs.projects.readdb;
 
+import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Cache of Closeable objects.   Each object
  * is associated with a key.  When an object falls
  * out of the cache, its close() method is called.
+ *
+ * The keys are spread over stripes that each keep their entries in access order
+ * and have their own lock, so a get or add is constant time and only contends
+ * with threads using the same stripe.  Besides the number of entries, the cache
+ * can be limited by the total size given for its entries (eg, bytes of mapped files).
+ *
+ * Objects returned by get() and add() stay referenced by the calling thread until
+ * it calls releaseAll().  An object that falls out of the cache while referenced
+ * is closed by the last release instead, so threads can keep using what they got.
  */
 
 public class LRUCache<X extends Closeable> {
 
-    private static int removed = 0;
+    /* entries that fell out of any LRUCache, counted by any thread; see CacheGCHook */
+    private static AtomicInteger removed = new AtomicInteger();
+    /* entries referenced by each thread since its last releaseAll() */
+    private static ThreadLocal<List<Entry<?>>> held = new ThreadLocal<List<Entry<?>>>() {
+        protected List<Entry<?>> initialValue() {
+            return new ArrayList<Entry<?>>();
+        }
+    };
 
-    private List<String> ordered;
-    private Map<String,X> map;
-    private int size;
+    private List<Stripe<X>> stripes;
+    private AtomicLong hits, misses, evictions;
 
     public LRUCache(int size) {
-        ordered = Collections.synchronizedList(new ArrayList<String>());
-        map = Collections.synchronizedMap(new HashMap<String,X>());
-        this.size = size;
+        this(size, Long.MAX_VALUE);
+    }
+    /**
+     * size is the maximum number of entries and maxBytes the maximum of the
+     * sizes passed to add()
+     */
+    public LRUCache(int size, long maxBytes) {
+        hits = new AtomicLong();
+        misses = new AtomicLong();
+        evictions = new AtomicLong();
+        /* small caches keep a single stripe so that they stay close to a true LRU */
+        int n = Math.max(1, Math.min(16, size / 16));
+        stripes = new ArrayList<Stripe<X>>(n);
+        for (int i = 0; i < n; i++) {
+            stripes.add(new Stripe<X>((size + n - 1) / n, maxBytes == Long.MAX_VALUE ? maxBytes : maxBytes / n));
+        }
+    }
+    private Stripe<X> stripe(String k) {
+        int h = k.hashCode();
+        h ^= (h >>> 16);
+        return stripes.get((h & 0x7fffffff) % stripes.size());
     }
 
     public boolean contains(String k) {
-        return map.containsKey(k);
+        Stripe<X> s = stripe(k);
+        synchronized(s) {
+            return s.map.containsKey(k);
+        }
     }
     public void printKeys() {
-        System.err.println(ordered.toString());
+        List<String> keys = new ArrayList<String>();
+        for (Stripe<X> s : stripes) {
+            synchronized(s) {
+                keys.addAll(s.map.keySet());
+            }
+        }
+        System.err.println(keys.toString());
     }
+    /**
+     * Returns the object for k, or null if it isn't cached.  The object
+     * stays open until the calling thread calls releaseAll().
+     */
     public X get(String k) {
-        synchronized(map) {
-            if (map.containsKey(k)) {
-                //                System.err.println("GETTING " +k);
-                ordered.remove(k);
-                ordered.add(k);
-                return map.get(k);                
-            } else {
+        Stripe<X> s = stripe(k);
+        Entry<X> e;
+        synchronized(s) {
+            e = s.map.get(k);
+            if (e == null) {
+                misses.incrementAndGet();
                 return null;
             }
+            hits.incrementAndGet();
+            synchronized(e) {
+                e.refs++;
+            }
         }
+        held.get().add(e);
+        return e.value;
     }
-    public void add(String k, X o) {
-        synchronized(map) {
-            //            System.err.println("ADDING " +k);
-            if (map.containsKey(k)) {
-                remove(k);
+    /**
+     * Adds o to the cache under k, replacing any previous object.  bytes is the size that counts
+     * against the cache's maxBytes.  The calling thread holds a reference to o as if it
+     * had called get().
+     */
+    public void add(String k, X o, long bytes) {
+        Stripe<X> s = stripe(k);
+        Entry<X> e = new Entry<X>(o, bytes);
+        e.refs = 1;
+        List<Entry<X>> out = new ArrayList<Entry<X>>();
+        synchronized(s) {
+            Entry<X> old = s.map.put(k, e);
+            if (old != null) {
+                s.bytes -= old.bytes;
+                out.add(old);
             }
-            if (ordered.size() >= size) {
-                String toRemove = ordered.get(0);
-                remove(toRemove);
+            s.bytes += bytes;
+            Iterator<Entry<X>> iter = s.map.values().iterator();
+            while ((s.map.size() > s.size || s.bytes > s.maxBytes) && s.map.size() > 1) {
+                Entry<X> eldest = iter.next();
+                iter.remove();
+                s.bytes -= eldest.bytes;
+                out.add(eldest);
+                evictions.incrementAndGet();
             }
-            ordered.add(k);
-            map.put(k,o);
         }
+        held.get().add(e);
+        for (Entry<X> x : out) {
+            retire(x);
+        }
+    }
+    public void add(String k, X o) {
+        add(k, o, 0);
     }
     public void remove(String k) {
-        synchronized(map) {
-            if (map.containsKey(k)) {
-                //                System.err.println("REMOVING " +k);
-                ordered.remove(k);
-                map.remove(k);
-                removed++;
+        Stripe<X> s = stripe(k);
+        Entry<X> e;
+        synchronized(s) {
+            e = s.map.remove(k);
+            if (e == null) {
+                return;
+            }
+            s.bytes -= e.bytes;
+        }
+        retire(e);
+    }
+    /* closes an entry that's no longer in the cache once nobody references it */
+    private static void retire(Entry<?> e) {
+        boolean close;
+        synchronized(e) {
+            e.retired = true;
+            close = e.refs == 0;
+        }
+        if (close) {
+            e.close();
+        }
+        removed.incrementAndGet();
+    }
+    /**
+     * Drops the calling thread's references to objects it got from any LRUCache.
+     * Call when the thread is done with them, eg at the end of a request.
+     */
+    public static void releaseAll() {
+        List<Entry<?>> l = held.get();
+        for (Entry<?> e : l) {
+            boolean close;
+            synchronized(e) {
+                e.refs--;
+                close = e.refs == 0 && e.retired;
+            }
+            if (close) {
+                e.close();
+            }
+        }
+        l.clear();
+    }
+    /** hit, miss, and eviction counts and the current number of entries and bytes */
+    public Map<String,Long> getStats() {
+        Map<String,Long> stats = new LinkedHashMap<String,Long>();
+        long n = 0, b = 0;
+        for (Stripe<X> s : stripes) {
+            synchronized(s) {
+                n += s.map.size();
+                b += s.bytes;
+            }
+        }
+        stats.put("hits", hits.get());
+        stats.put("misses", misses.get());
+        stats.put("evictions", evictions.get());
+        stats.put("entries", n);
+        stats.put("bytes", b);
+        return stats;
+    }
+    public static int removed() {return removed.get();}
+    public static void resetRemoved() {removed.set(0);}
+
+    private static class Entry<X extends Closeable> {
+        X value;
+        long bytes;
+        /* references held by threads; the cache itself doesn't count */
+        int refs;
+        boolean retired;
+
+        Entry(X value, long bytes) {
+            this.value = value;
+            this.bytes = bytes;
+        }
+        void close() {
+            try {
+                value.close();
+            } catch (IOException e) {
+                /* nothing else to do with it; it's out of the cache */
             }
         }
     }
-    public static int removed() {return removed;}
-    public static void resetRemoved() {removed = 0;}
 
-}
\ No newline at end of file
+    private static class Stripe<X extends Closeable> {
+        /* in access order, eldest first */
+        LinkedHashMap<String,Entry<X>> map;
+        int size;
+        long bytes, maxBytes;
+
+        Stripe(int size, long maxBytes) {
+            this.size = size;
+            this.maxBytes = maxBytes;
+            map = new LinkedHashMap<String,Entry<X>>(16, .75f, true);
+        }
+    }
+
+}
@@ -0,0 +1,539 @@
+package edu.mit.csail.cgs.projects.readdb;
+
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+
+/**
+ * ReadOnlyClient that reads a readdb data directory in the same process instead of
+ * talking to a Server over the network.  Queries are answered from the mapped hits files
+ * the same way the server answers them, including segments that haven't been compacted
+ * and the histogram pyramids, so positions and weights are copied straight out of the
+ * mapped files.
+ *
+ * The alignments' read ACLs are checked against the username given to the constructor; there's
+ * no password since whoever can read the data directory can read the files anyway.  A LocalClient
+ * may be used by many threads at once.  The files can be read while a Server on the same
+ * directory stores to them or compacts them since the server replaces files by renaming new ones
+ * into place.  A query opens the files of a chromosome again if they changed while it opened them,
+ * and waits while a compaction replaces them (see Compactor), so it sees the chromosome either as it
+ * was before a store or compaction or as it is after.  It only fails with an INVALID ClientException
+ * if the files keep changing for about a second.
+ */
+public class LocalClient implements ReadOnlyClient {
+
+    private Server server;
+    private String username;
+    /* what the files of each cached chromosome or ACL looked like when they were read; see checkFiles() */
+    private Map<String,String> stamps;
+    /* one monitor per chromosome for openHits() */
+    private Map<String,Object> opening;
+    /* how often and how long to wait for a Server to finish changing the files of a chromosome */
+    private static final int MAXRETRIES = 50, RETRYMILLIS = 20;
+
+    /**
+     * Reads the data directory datadir (the server's --datadir) as user username.
+     * cachesize is the number of chromosomes to keep open.
+     */
+    public LocalClient(String datadir, String username, int cachesize) throws IOException {
+        server = new Server(datadir, cachesize);
+        this.username = username;
+        stamps = Collections.synchronizedMap(new HashMap<String,String>());
+        opening = new HashMap<String,Object>();
+    }
+    public LocalClient(String datadir, String username) throws IOException {
+        this(datadir, username, 100);
+    }
+    /**
+     * Reads datadir as the user of the default connection (see Client()), or as
+     * the user running java if there's no default connection
+     */
+    public LocalClient(String datadir) throws IOException {
+        this(datadir, defaultUsername());
+    }
+    private static String defaultUsername() {
+        try {
+            return Client.getDefaultProperties().getString("username");
+        } catch (IOException e) {
+            return System.getProperty("user.name");
+        } catch (MissingResourceException e) {
+            return System.getProperty("user.name");
+        }
+    }
+
+    public Set<Integer> getChroms(String alignid, boolean isPaired, Boolean isLeft) throws IOException, ClientException {
+        try {
+            authorizeRead(alignid);
+            Set<Integer> chroms = server.getChroms(alignid, isPaired, isPaired && (isLeft == null || isLeft));
+            if (chroms == null) {
+                throw new ClientException("No Such Alignment");
+            }
+            return chroms;
+        } finally {
+            release();
+        }
+    }
+    /**
+     * Returns the total number of hits in this alignment.
+     */
+    public int getCount(String alignid, boolean isPaired, Boolean isLeft, Boolean plusStrand) throws IOException, ClientException {
+        int count = 0;
+        for (int c : getChroms(alignid, isPaired, isLeft)) {
+            count += getCount(alignid, c, isPaired, null, null, null, isLeft, plusStrand);
+        }
+        return count;
+    }
+    /**
+     * Returns the sum of the weights of all hits in this alignment
+     */
+    public double getWeight(String alignid, boolean isPaired, Boolean isLeft, Boolean plusStrand) throws IOException, ClientException {
+        double total = 0;
+        for (int c : getChroms(alignid, isPaired, isLeft)) {
+            total += getWeight(alignid, c, isPaired, null, null, null, isLeft, plusStrand);
+        }
+        return total;
+    }
+    public int getCount(String alignid, int chromid, boolean paired, Integer start, Integer stop, Float minWeight, Boolean isLeft, Boolean plusStrand)  throws IOException, ClientException {
+        try {
+            Header[] header = new Header[1];
+            Hits hits = getHits(alignid, chromid, paired, isLeft, header);
+            if (start == null && stop == null && minWeight == null && plusStrand == null) {
+                return header[0].getNumHits();
+            }
+            if (start == null) {
+                start = 0;
+            }
+            if (stop == null) {
+                stop = Integer.MAX_VALUE;
+            }
+            return hits.getCountBetween(header[0].getFirstIndex(start), header[0].getLastIndex(stop),
+                                        start, stop, minWeight, plusStrand);
+        } finally {
+            release();
+        }
+    }
+    public double getWeight(String alignid, int chromid, boolean paired, Integer start, Integer stop, Float minWeight, Boolean isLeft, Boolean plusStrand) throws IOException, ClientException {
+        try {
+            Header[] header = new Header[1];
+            Hits hits = getHits(alignid, chromid, paired, isLeft, header);
+            if (start == null) {
+                start = 0;
+            }
+            if (stop == null) {
+                stop = Integer.MAX_VALUE;
+            }
+            return hits.getWeightBetween(header[0].getFirstIndex(start), header[0].getLastIndex(stop),
+                                         start, stop, minWeight, plusStrand);
+        } finally {
+            release();
+        }
+    }
+    /**
+     * returns the sorted (ascending order) hit positions in the specified range of a chromosome,alignment pair.
+     */
+    public int[] getPositions(String alignid, int chromid, boolean paired, Integer start, Integer stop, Float minWeight, Boolean isLeft, Boolean plusStrand) throws IOException, ClientException {
+        try {
+            Header[] header = new Header[1];
+            Hits hits = getHits(alignid, chromid, paired, isLeft, header);
+            if (start == null) {
+                start = 0;
+            }
+            if (stop == null) {
+                stop = Integer.MAX_VALUE;
+            }
+            return toArray(hits.getHitsBetween(header[0].getFirstIndex(start), header[0].getLastIndex(stop),
+                                               start, stop, minWeight, plusStrand));
+        } finally {
+            release();
+        }
+    }
+    /**
+     * returns the hit weights in the specified range of a chromosome,alignment pair.  The weights
+     * will be in the same order as the sorted positions returned by getPositions()
+     */
+    public float[] getWeightsRange(String alignid, int chromid, boolean paired, Integer start, Integer stop, Float minWeight, Boolean isLeft, Boolean plusStrand) throws IOException, ClientException {
+        try {
+            Header[] header = new Header[1];
+            Hits hits = getHits(alignid, chromid, paired, isLeft, header);
+            if (start == null) {
+                start = 0;
+            }
+            if (stop == null) {
+                stop = Integer.MAX_VALUE;
+            }
+            return toArray(hits.getWeightsBetween(header[0].getFirstIndex(start), header[0].getLastIndex(stop),
+                                                  start, stop, minWeight, plusStrand));
+        } finally {
+            release();
+        }
+    }
+    /** same as Client.getHits(String[],int[],int[],int[],...) */
+    public void getHits(String[] alignids, int[] chromids, int[] starts, int[] stops, boolean paired, Float minWeight, Boolean isLeft, Boolean plusStrand,
+                        int[][] positions, float[][] weights, int[][] lengthsAndStrands) throws IOException, ClientException {
+        try {
+            for (String alignid : new HashSet<String>(Arrays.asList(alignids))) {
+                authorizeRead(alignid);
+            }
+            boolean left = paired && (isLeft == null || isLeft);
+            /* the region's alignment and chromosome usually repeat, so open them once */
+            Map<String,Hits> hitsCache = new HashMap<String,Hits>();
+            Map<String,Header> headerCache = new HashMap<String,Header>();
+            for (int r = 0; r < alignids.length; r++) {
+                String key = alignids[r] + "\t" + chromids[r];
+                if (!hitsCache.containsKey(key)) {
+                    Header[] header = new Header[1];
+                    Hits hits;
+                    try {
+                        hits = openHits(alignids[r], chromids[r], paired, left, header);
+                    } catch (IOException e) {
+                        /* a chromosome without hits files has no hits */
+                        hits = null;
+                    }
+                    hitsCache.put(key, hits);
+                    headerCache.put(key, header[0]);
+                }
+                Hits hits = hitsCache.get(key);
+                Header header = headerCache.get(key);
+                int start = starts[r], stop = stops[r];
+                if (hits == null || start > stop) {
+                    if (positions != null) {
+                        positions[r] = new int[0];
+                    }
+                    if (weights != null) {
+                        weights[r] = new float[0];
+                    }
+                    if (lengthsAndStrands != null) {
+                        lengthsAndStrands[r] = new int[0];
+                    }
+                    continue;
+                }
+                int first = header.getFirstIndex(start), last = header.getLastIndex(stop);
+                if (positions != null) {
+                    positions[r] = toArray(hits.getHitsBetween(first, last, start, stop, minWeight, plusStrand));
+                }
+                if (weights != null) {
+                    weights[r] = toArray(hits.getWeightsBetween(first, last, start, stop, minWeight, plusStrand));
+                }
+                if (lengthsAndStrands != null) {
+                    lengthsAndStrands[r] = toArray(hits.getLASBetween(first, last, start, stop, minWeight, plusStrand));
+                }
+            }
+        } finally {
+            release();
+        }
+    }
+    public List<SingleHit> getSingleHits(String alignid, int chromid, Integer start, Integer stop, Float minWeight, Boolean plusStrand) throws IOException, ClientException {
+        try {
+            Header[] header = new Header[1];
+            Hits hits = getHits(alignid, chromid, false, null, header);
+            if (start == null) {
+                start = 0;
+            }
+            if (stop == null) {
+                stop = Integer.MAX_VALUE;
+            }
+            int first = header[0].getFirstIndex(start), last = header[0].getLastIndex(stop);
+            int[] p = toArray(hits.getHitsBetween(first, last, start, stop, minWeight, plusStrand));
+            float[] w = toArray(hits.getWeightsBetween(first, last, start, stop, minWeight, plusStrand));
+            int[] l = toArray(hits.getLASBetween(first, last, start, stop, minWeight, plusStrand));
+            List<SingleHit> output = new ArrayList<SingleHit>(p.length);
+            for (int i = 0; i < p.length; i++) {
+                output.add(new SingleHit(chromid, p[i], w[i], Hits.getStrandOne(l[i]), Hits.getLengthOne(l[i])));
+            }
+            return output;
+        } finally {
+            release();
+        }
+    }
+    public List<PairedHit> getPairedHits(String alignid, int chromid, boolean isLeft, Integer start, Integer stop, Float minWeight, Boolean plusStrand) throws IOException, ClientException {
+        try {
+            Header[] header = new Header[1];
+            PairedHits hits = (PairedHits)getHits(alignid, chromid, true, isLeft, header);
+            if (start == null) {
+                start = 0;
+            }
+            if (stop == null) {
+                stop = Integer.MAX_VALUE;
+            }
+            int first = header[0].getFirstIndex(start), last = header[0].getLastIndex(stop);
+            int[] p = toArray(hits.getHitsBetween(first, last, start, stop, minWeight, plusStrand));
+            float[] w = toArray(hits.getWeightsBetween(first, last, start, stop, minWeight, plusStrand));
+            int[] l = toArray(hits.getLASBetween(first, last, start, stop, minWeight, plusStrand));
+            int[] oc = toArray(hits.getOtherChromsBetween(first, last, start, stop, minWeight, plusStrand));
+            int[] op = toArray(hits.getOtherPositionsBetween(first, last, start, stop, minWeight, plusStrand));
+            List<PairedHit> output = new ArrayList<PairedHit>(p.length);
+            for (int i = 0; i < p.length; i++) {
+                if (isLeft) {
+                    output.add(new PairedHit(chromid, p[i], Hits.getStrandOne(l[i]), Hits.getLengthOne(l[i]),
+                                             oc[i], op[i], Hits.getStrandTwo(l[i]), Hits.getLengthTwo(l[i]), w[i]));
+                } else {
+                    output.add(new PairedHit(oc[i], op[i], Hits.getStrandTwo(l[i]), Hits.getLengthTwo(l[i]),
+                                             chromid, p[i], Hits.getStrandOne(l[i]), Hits.getLengthOne(l[i]), w[i]));
+                }
+            }
+            return output;
+        } finally {
+            release();
+        }
+    }
+    public TreeMap<Integer,Integer> getHistogram(String alignid, int chromid, boolean paired, boolean doReadExtension, int binsize, Integer start, Integer stop, Float minWeight, Boolean plusStrand) throws IOException, ClientException {
+        return getHistogram(alignid, chromid, paired, doReadExtension, binsize, 0, start, stop, minWeight, plusStrand, true);
+    }
+    /** same as Client.getHistogram() */
+    public TreeMap<Integer,Integer> getHistogram(String alignid, int chromid, boolean paired, boolean doReadExtension, int binsize, int dedup, Integer start, Integer stop, Float minWeight, Boolean plusStrand, boolean isLeft) throws IOException, ClientException {
+        try {
+            Header[] header = new Header[1];
+            Hits hits = getHits(alignid, chromid, paired, isLeft, header);
+            if (start == null) {
+                start = hits.getFirstPosition();
+            }
+            if (stop == null) {
+                stop = hits.getLastPosition();
+            }
+            int[] raw = HistogramPyramid.histogramFor(getPyramid(alignid, chromid, paired, isLeft, binsize, dedup, minWeight, doReadExtension),
+                                                      header[0], hits, start, stop, binsize, dedup,
+                                                      minWeight, plusStrand, doReadExtension);
+            TreeMap<Integer,Integer> output = new TreeMap<Integer,Integer>();
+            for (int i = 0; i < raw.length; i++) {
+                if (raw[i] > 0) {
+                    output.put(start + binsize * i + binsize / 2, raw[i]);
+                }
+            }
+            return output;
+        } finally {
+            release();
+        }
+    }
+    public TreeMap<Integer,Float> getWeightHistogram(String alignid, int chromid, boolean paired, boolean doReadExtension, int binsize, Integer start, Integer stop, Float minWeight, Boolean plusStrand) throws IOException, ClientException {
+        return getWeightHistogram(alignid, chromid, paired, doReadExtension, binsize, 0, start, stop, minWeight, plusStrand, true);
+    }
+    /** same as Client.getWeightHistogram() */
+    public TreeMap<Integer,Float> getWeightHistogram(String alignid, int chromid, boolean paired, boolean doReadExtension, int binsize, int dedup, Integer start, Integer stop, Float minWeight, Boolean plusStrand, boolean isLeft) throws IOException, ClientException {
+        try {
+            Header[] header = new Header[1];
+            Hits hits = getHits(alignid, chromid, paired, isLeft, header);
+            if (start == null) {
+                start = hits.getFirstPosition();
+            }
+            if (stop == null) {
+                stop = hits.getLastPosition();
+            }
+            float[] raw = HistogramPyramid.weightHistogramFor(getPyramid(alignid, chromid, paired, isLeft, binsize, dedup, minWeight, doReadExtension),
+                                                              header[0], hits, start, stop, binsize, dedup,
+                                                              minWeight, plusStrand, doReadExtension);
+            TreeMap<Integer,Float> output = new TreeMap<Integer,Float>();
+            for (int i = 0; i < raw.length; i++) {
+                if (raw[i] > 0) {
+                    output.put(start + binsize * i + binsize / 2, raw[i]);
+                }
+            }
+            return output;
+        } finally {
+            release();
+        }
+    }
+    /** same as Client.getWeightHistogram(Collection,...): the sum of the alignments' histograms */
+    public TreeMap<Integer,Float> getWeightHistogram(Collection<String> alignids, int chromid, boolean paired, boolean doReadExtension, int binsize, Integer start, Integer stop, Float minWeight, Boolean plusStrand) throws IOException, ClientException {
+        TreeMap<Integer,Float> output = null;
+        for (String alignid : alignids) {
+            TreeMap<Integer,Float> o = getWeightHistogram(alignid, chromid, paired, doReadExtension, binsize, 0, start, stop, minWeight, plusStrand, true);
+            if (paired) {
+                o.putAll(getWeightHistogram(alignid, chromid, paired, doReadExtension, binsize, 0, start, stop, minWeight, plusStrand, false));
+            }
+            if (output == null) {
+                output = o;
+            } else {
+                for (int k : o.keySet()) {
+                    if (output.containsKey(k)) {
+                        output.put(k, output.get(k) + o.get(k));
+                    } else {
+                        output.put(k, o.get(k));
+                    }
+                }
+            }
+        }
+        return output;
+    }
+    /* the files stay mapped until they fall out of the caches and are garbage collected */
+    public void close() {}
+
+    /* throws a ClientException unless username may read the alignment.  Takes the alignment's read lock,
+       which release() gives up again */
+    private void authorizeRead(String alignid) throws IOException, ClientException {
+        if (!(new File(server.getAlignmentDir(alignid))).exists()) {
+            throw new ClientException("No Such Alignment");
+        }
+        Lock.readLock(alignid);
+        File aclfile = new File(server.getACLFileName(alignid));
+        if (!checkFiles(alignid, aclfile.lastModified() + ":" + aclfile.length())) {
+            server.removeACL(alignid);
+        }
+        AlignmentACL acl = server.getACL(alignid);
+        if (acl.getReadACL().contains(username)) {
+            return;
+        }
+        for (String g : acl.getReadACL()) {
+            if (server.groupContains(username, g)) {
+                return;
+            }
+        }
+        throw new ClientException("Permission Denied");
+    }
+    /* the hits of a chromosome together with any segments; sets header[0] to the Header to search them with.
+       isLeft is only used for paired hits and defaults to true */
+    private Hits getHits(String alignid, int chromid, boolean paired, Boolean isLeft, Header[] header) throws IOException, ClientException {
+        authorizeRead(alignid);
+        try {
+            return openHits(alignid, chromid, paired, paired && (isLeft == null || isLeft), header);
+        } catch (IOException e) {
+            /* eg, no hits on this chromosome.  The server reports this as INVALID too */
+            throw new ClientException("INVALID " + e.toString());
+        }
+    }
+    /* getHits() for a caller that holds the alignment's read lock.  The hits, index and segments are opened
+       separately, so a store or compaction that replaces some of them meanwhile would give us old and new files
+       that hold the same hits twice or not at all.  We open them again until the files stayed the same while we
+       opened them.  Only one thread at a time opens a chromosome, so that no other thread picks up the files of
+       an attempt that's about to be thrown away.
+       Throws an IOException if they can't be opened, eg because the chromosome has no hits */
+    private Hits openHits(String alignid, int chromid, boolean paired, boolean left, Header[] header) throws IOException, ClientException {
+        String key = alignid + chromid + (paired ? left : "");
+        Object monitor;
+        synchronized(opening) {
+            monitor = opening.get(key);
+            if (monitor == null) {
+                monitor = new Object();
+                opening.put(key, monitor);
+            }
+        }
+        synchronized(monitor) {
+            return openHits(key, alignid, chromid, paired, left, header);
+        }
+    }
+    private Hits openHits(String key, String alignid, int chromid, boolean paired, boolean left, Header[] header) throws IOException, ClientException {
+        for (int attempt = 0; ; attempt++) {
+            String before = getStamp(alignid, chromid, paired, left);
+            if (before != null) {
+                if (!checkFiles(key, before)) {
+                    forget(alignid, chromid, paired, left);
+                }
+                Hits hits = null;
+                IOException error = null;
+                try {
+                    if (paired) {
+                        hits = server.getPairedHits(alignid, chromid, left);
+                        header[0] = server.getPairedHeader(alignid, chromid, left);
+                    } else {
+                        hits = server.getSingleHits(alignid, chromid);
+                        header[0] = server.getSingleHeader(alignid, chromid);
+                    }
+                    Hits segmented = server.withSegments(alignid, chromid, paired, left, hits, header[0]);
+                    if (segmented != hits) {
+                        header[0] = segmented.makeHeader();
+                        hits = segmented;
+                    }
+                } catch (IOException e) {
+                    /* eg, a segment that a compaction deleted after we listed it */
+                    error = e;
+                }
+                if (before.equals(getStamp(alignid, chromid, paired, left))) {
+                    if (error != null) {
+                        throw error;
+                    }
+                    return hits;
+                }
+                forget(alignid, chromid, paired, left);
+            }
+            if (attempt == MAXRETRIES) {
+                throw new ClientException(String.format("INVALID files of align %s chrom %d kept changing", alignid, chromid));
+            }
+            try {
+                Thread.sleep(RETRYMILLIS);
+            } catch (InterruptedException e) {
+                throw new ClientException("INVALID " + e.toString());
+            }
+        }
+    }
+    /* The times and lengths of the index, the hits and the segments of a chromosome.  A Server replaces each of
+       them by renaming a new file into place, which changes its time and, for a merged file, its length.  Returns
+       null while a store or compaction is still renaming files into place or deleting the old ones.  The Server
+       finishes a compaction whose commit failed, or was cut short by a crash, on its next try or when it restarts */
+    private String getStamp(String alignid, int chromid, boolean paired, boolean left) {
+        String prefix = server.getAlignmentDir(alignid) + System.getProperty("file.separator");
+        String index = paired ? server.getPairedHeaderFileName(alignid, chromid, left) :
+            server.getSingleHeaderFileName(alignid, chromid);
+        if ((new File(Compactor.getCommitFname(index))).exists()) {
+            return null;
+        }
+        StringBuilder stamp = new StringBuilder();
+        appendStamp(stamp, index);
+        appendStamp(stamp, Segments.getFileNames(prefix, chromid, paired, left)[0]);
+        if (!paired) {
+            appendStamp(stamp, CompressedSingleHits.getCompressedFname(prefix, chromid));
+        }
+        for (int id : Segments.list(prefix, chromid, paired, left)) {
+            if (!Segments.exists(prefix, id, chromid, paired, left)) {
+                return null;
+            }
+            stamp.append(" seg").append(id);
+            appendStamp(stamp, Segments.getFileNames(Segments.getSegmentPrefix(prefix, id), chromid, paired, left)[0]);
+        }
+        return stamp.toString();
+    }
+    private static void appendStamp(StringBuilder stamp, String fname) {
+        File f = new File(fname);
+        stamp.append(' ').append(f.lastModified()).append(':').append(f.length());
+    }
+    /* drops the cached files of a chromosome */
+    private void forget(String alignid, int chromid, boolean paired, boolean left) {
+        if (paired) {
+            server.removePairedHits(alignid, chromid, left);
+            server.removePairedHeader(alignid, chromid, left);
+            server.removePairedPyramid(alignid, chromid, left);
+            server.removePairedSegments(alignid, chromid, left);
+        } else {
+            server.removeSingleHits(alignid, chromid);
+            server.removeSingleHeader(alignid, chromid);
+            server.removeSinglePyramid(alignid, chromid);
+            server.removeSingleSegments(alignid, chromid);
+        }
+    }
+    /* A Server running on the same directory changes the files behind our caches, so changed files
+       mean that the cached ones are old.  Returns false if stamp differs from the last one seen for key.
+    */
+    private boolean checkFiles(String key, String stamp) {
+        String old = stamps.put(key, stamp);
+        return old == null || old.equals(stamp);
+    }
+    private HistogramPyramid getPyramid(String alignid, int chromid, boolean paired, boolean isLeft,
+                                        int binsize, int dedup, Float minWeight, boolean extension) {
+        if (!HistogramPyramid.canAnswer(binsize, dedup, minWeight, extension)) {
+            return null;
+        }
+        try {
+            return paired ? server.getPairedPyramid(alignid, chromid, isLeft) : server.getSinglePyramid(alignid, chromid);
+        } catch (IOException e) {
+            /* the histogram is computed from the hits instead */
+            return null;
+        }
+    }
+    private static int[] toArray(IntBP p) {
+        IntBuffer b = p.ib.duplicate();
+        b.rewind();
+        int[] output = new int[b.remaining()];
+        b.get(output);
+        return output;
+    }
+    private static float[] toArray(FloatBP p) {
+        FloatBuffer b = p.fb.duplicate();
+        b.rewind();
+        float[] output = new float[b.remaining()];
+        b.get(output);
+        return output;
+    }
+    /* gives up the locks and cached files that this thread used for the query */
+    private void release() {
+        Lock.releaseLocks();
+        LRUCache.releaseAll();
+    }
+}
@@ -28,14 +28,7 @@ public class Lock {
                 threadlocks.put(t, new HashSet<java.util.concurrent.locks.Lock>());
             }
         }
-        java.util.concurrent.locks.Lock lock = null;
-        synchronized(locks) {
-            if (!locks.containsKey(fname)) {
-                locks.put(fname, new ReentrantReadWriteLock());
-            }
-            lock = locks.get(fname).readLock();
-            lock.lock();
-        }
+        java.util.concurrent.locks.Lock lock = lock(fname, false);
         threadlocks.get(t).add(lock);
         //        System.err.println("READLOCK by " + t + " of " + fname + " as " + lock);
         return lock;
@@ -47,21 +40,50 @@ public class Lock {
                 threadlocks.put(t, new HashSet<java.util.concurrent.locks.Lock>());
             }
         }
-        java.util.concurrent.locks.Lock rl = null, lock = null;
+        java.util.concurrent.locks.Lock rl = null;
         synchronized(locks) {
             if (!locks.containsKey(fname)) {
                 locks.put(fname, new ReentrantReadWriteLock());
             }
             rl = locks.get(fname).readLock();
-            rl.unlock();
-            threadlocks.get(t).remove(rl);
-            lock = locks.get(fname).writeLock();
-            lock.lock();
         }
+        rl.unlock();
+        threadlocks.get(t).remove(rl);
+        java.util.concurrent.locks.Lock lock = lock(fname, true);
         threadlocks.get(t).add(lock);
         //        System.err.println("WRITELOCK by " + t + " of " + fname + " as " + lock);
         return lock;
     }
+    /* Takes the read or write lock of fname.  It's taken under synchronized(locks) if it's free.  Otherwise
+       we block outside of synchronized(locks) so that threads holding a lock can still get to their other
+       locks and release them.  releaseLocks() may drop the entry from the table while we wait, so once
+       we hold it we check that it's still the entry for fname and start over if it isn't. */
+    private static java.util.concurrent.locks.Lock lock(String fname, boolean write) {
+        while (true) {
+            ReentrantReadWriteLock rw;
+            java.util.concurrent.locks.Lock lock;
+            synchronized(locks) {
+                rw = locks.get(fname);
+                if (rw == null) {
+                    rw = new ReentrantReadWriteLock();
+                    locks.put(fname, rw);
+                }
+                lock = write ? rw.writeLock() : rw.readLock();
+                /* tryLock() would go ahead of threads waiting for a write lock */
+                if (!rw.hasQueuedThreads() && lock.tryLock()) {
+                    return lock;
+                }
+            }
+            lock.lock();
+            synchronized(locks) {
+                /* an entry that's held isn't dropped, so it stays in the table from here on */
+                if (locks.get(fname) == rw) {
+                    return lock;
+                }
+            }
+            lock.unlock();
+        }
+    }
     /* call to ensure that all a thread's locks have been released */
     protected static void releaseLocks() {
         Thread t = Thread.currentThread();
@@ -77,11 +99,11 @@ public class Lock {
             if (locks.size() > 10000) {
                 synchronized(locks) {
                     /* cleanup loop so that we don't have an ever-expanding data structure */
-                    Collection<String> keys = locks.keySet();
-                    for (String k : keys) {
-                        ReentrantReadWriteLock l = locks.get(k);
-                        if (l.getReadLockCount() == 0 && !l.isWriteLocked()) {
-                            locks.remove(k);
+                    Iterator<ReentrantReadWriteLock> iter = locks.values().iterator();
+                    while (iter.hasNext()) {
+                        ReentrantReadWriteLock l = iter.next();
+                        if (l.getReadLockCount() == 0 && !l.isWriteLocked() && !l.hasQueuedThreads()) {
+                            iter.remove();
                         }
                     }
                 }
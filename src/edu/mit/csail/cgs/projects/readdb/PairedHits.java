@@ -34,7 +34,15 @@ public class PairedHits extends Hits {
         chroms = openIntBP(getChromsFname(prefix,chrom,isLeft));
         otherPositions = openIntBP(getOtherPosFname(prefix,chrom,isLeft));
     }
+    /** for subclasses that keep the hits in some other form and override the methods that read them */
+    protected PairedHits(int chrom, boolean isLeft) {
+        super(chrom);
+        this.isLeft = isLeft;
+    }
     public boolean isLeft () {return isLeft;}
+    public long getMappedBytes() {
+        return super.getMappedBytes() + getMappedBytes(chroms) + getMappedBytes(otherPositions);
+    }
     public IntBP getChromsBuffer() {return chroms;}
     public IntBP getOtherPosBuffer() {return otherPositions;}
     public IntBP getOtherChromsBetween(int firstindex,
@@ -53,6 +61,42 @@ public class PairedHits extends Hits {
                                           Boolean isPlus) throws IOException {
         return getIntsBetween(otherPositions,firstindex,lastindex,start,stop,minweight,isPlus);
     }
+    /** writes the columns of a set of sorted paired hits, as they'll be seen from the side given by isLeft */
+    public static void writePairedHits(IntBP positions,
+                                       FloatBP weights,
+                                       IntBP las,
+                                       IntBP otherchroms,
+                                       IntBP otherpositions,
+                                       String prefix,
+                                       int chrom,
+                                       boolean isLeft) throws IOException {
+        String postmp = getPositionsFname(prefix,chrom,isLeft) + ".tmp";
+        String weightstmp = getWeightsFname(prefix,chrom,isLeft) + ".tmp";
+        String lastmp = getLaSFname(prefix,chrom,isLeft) + ".tmp";
+        String chrtmp = getChromsFname(prefix,chrom,isLeft) + ".tmp";
+        String optmp = getOtherPosFname(prefix,chrom,isLeft) + ".tmp";
+        RandomAccessFile positionsRAF = new RandomAccessFile(postmp,"rw");
+        RandomAccessFile weightsRAF = new RandomAccessFile(weightstmp,"rw");
+        RandomAccessFile lasRAF = new RandomAccessFile(lastmp,"rw");
+        RandomAccessFile chrRAF = new RandomAccessFile(chrtmp,"rw");
+        RandomAccessFile opRAF = new RandomAccessFile(optmp,"rw");
+        Bits.sendBytes(positions.bb, 0, positions.bb.limit(), positionsRAF.getChannel());
+        Bits.sendBytes(weights.bb, 0, weights.bb.limit(), weightsRAF.getChannel());
+        Bits.sendBytes(las.bb, 0, las.bb.limit(), lasRAF.getChannel());
+        Bits.sendBytes(otherchroms.bb, 0, otherchroms.bb.limit(), chrRAF.getChannel());
+        Bits.sendBytes(otherpositions.bb, 0, otherpositions.bb.limit(), opRAF.getChannel());
+        positionsRAF.close();
+        weightsRAF.close();
+        lasRAF.close();
+        chrRAF.close();
+        opRAF.close();
+        /* ideally this part with the renames would atomic... */
+        (new File(postmp)).renameTo(new File(getPositionsFname(prefix,chrom,isLeft)));
+        (new File(weightstmp)).renameTo(new File(getWeightsFname(prefix,chrom,isLeft)));
+        (new File(lastmp)).renameTo(new File(getLaSFname(prefix,chrom,isLeft)));
+        (new File(chrtmp)).renameTo(new File(getChromsFname(prefix,chrom,isLeft)));
+        (new File(optmp)).renameTo(new File(getOtherPosFname(prefix,chrom,isLeft)));
+    }
     private static DataOutputStream dos(String f) throws IOException {
         return new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f)));
     }
@@ -258,19 +302,19 @@ public class PairedHits extends Hits {
     private static String getLeftRightSuffix(boolean isLeft) {
         return isLeft ? ".prleft" : ".prright";
     }
-    private static String getPositionsFname(String prefix, int chrom, boolean isLeft) {
+    static String getPositionsFname(String prefix, int chrom, boolean isLeft) {
         return prefix + chrom + getLeftRightSuffix(isLeft) + ".positions";
     }
-    private static String getWeightsFname(String prefix, int chrom, boolean isLeft) {
+    static String getWeightsFname(String prefix, int chrom, boolean isLeft) {
         return prefix + chrom + getLeftRightSuffix(isLeft) + ".weights";
     }
-    private static String getLaSFname(String prefix, int chrom, boolean isLeft) {
+    static String getLaSFname(String prefix, int chrom, boolean isLeft) {
         return prefix + chrom + getLeftRightSuffix(isLeft) + ".las";
     }
-    private static String getChromsFname(String prefix, int chrom, boolean isLeft) {
+    static String getChromsFname(String prefix, int chrom, boolean isLeft) {
         return prefix + chrom + getLeftRightSuffix(isLeft) + ".chroms";
     }
-    private static String getOtherPosFname(String prefix, int chrom, boolean isLeft) {
+    static String getOtherPosFname(String prefix, int chrom, boolean isLeft) {
         return prefix + chrom + getLeftRightSuffix(isLeft) + ".otherpos";
     }
 
@@ -0,0 +1,72 @@
+package edu.mit.csail.cgs.projects.readdb;
+
+import java.io.*;
+
+/**
+ * Paired hits of one side of a chromosome together with the segments that haven't been compacted
+ * into them yet.  See SegmentedSingleHits.
+ */
+public class SegmentedPairedHits extends PairedHits implements Segments.View {
+
+    private Hits[] parts;
+    private Header[] headers;
+
+    public SegmentedPairedHits(PairedHits hits, Header header, Segments segments) {
+        super(hits.getChrom(), hits.isLeft());
+        parts = new Hits[segments.size() + 1];
+        headers = new Header[segments.size() + 1];
+        parts[0] = hits;
+        headers[0] = header;
+        for (int i = 0; i < segments.size(); i++) {
+            parts[i+1] = segments.getHits(i);
+            headers[i+1] = segments.getHeader(i);
+        }
+    }
+    public Hits[] getParts() {return parts;}
+    public Header[] getHeaders() {return headers;}
+
+    public Header makeHeader() {
+        int n = 0;
+        for (Header h : headers) {
+            n += h.getNumHits();
+        }
+        return new Header(n, new int[0], new int[0]);
+    }
+    public int getFirstPosition() {
+        return Segments.getFirstPosition(parts);
+    }
+    public int getLastPosition() {
+        return Segments.getLastPosition(parts);
+    }
+    public int getCountBetween(int firstindex, int lastindex, int start, int stop, Float minweight, Boolean isPlus) throws IOException {
+        return Segments.getCountBetween(parts, headers, start, stop, minweight, isPlus);
+    }
+    public double getWeightBetween(int firstindex, int lastindex, int start, int stop, Float minweight, Boolean isPlus) throws IOException {
+        return Segments.getWeightBetween(parts, headers, start, stop, minweight, isPlus);
+    }
+    public IntBP getHitsBetween(int firstindex, int lastindex, int start, int stop, Float minweight, Boolean isPlus) throws IOException {
+        return Segments.getIntsBetween(parts, headers, Segments.POSITIONS, start, stop, minweight, isPlus);
+    }
+    public IntBP getLASBetween(int firstindex, int lastindex, int start, int stop, Float minweight, Boolean isPlus) throws IOException {
+        return Segments.getIntsBetween(parts, headers, Segments.LAS, start, stop, minweight, isPlus);
+    }
+    public IntBP getOtherChromsBetween(int firstindex, int lastindex, int start, int stop, Float minweight, Boolean isPlus) throws IOException {
+        return Segments.getIntsBetween(parts, headers, Segments.OTHERCHROMS, start, stop, minweight, isPlus);
+    }
+    public IntBP getOtherPositionsBetween(int firstindex, int lastindex, int start, int stop, Float minweight, Boolean isPlus) throws IOException {
+        return Segments.getIntsBetween(parts, headers, Segments.OTHERPOSITIONS, start, stop, minweight, isPlus);
+    }
+    public FloatBP getWeightsBetween(int firstindex, int lastindex, int start, int stop, Float minweight, Boolean isPlus) throws IOException {
+        return Segments.getWeightsBetween(parts, headers, start, stop, minweight, isPlus);
+    }
+    public int[] histogram(int firstindex, int lastindex, int start, int stop, int stepsize, int dedup,
+                           Float minweight, Boolean isPlus, boolean extension) throws IOException {
+        return Segments.histogram(parts, headers, 0, start, stop, stepsize, dedup, minweight, isPlus, extension);
+    }
+    public float[] weightHistogram(int firstindex, int lastindex, int start, int stop, int stepsize, int dedup,
+                                   Float minweight, Boolean isPlus, boolean extension) throws IOException {
+        return Segments.weightHistogram(parts, headers, 0, start, stop, stepsize, dedup, minweight, isPlus, extension);
+    }
+    /* the parts belong to the server's caches */
+    public void close() {}
+}
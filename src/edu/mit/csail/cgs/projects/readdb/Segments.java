@@ -0,0 +1,354 @@
+package edu.mit.csail.cgs.projects.readdb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Hits stored to a chromosome that already has a hits file and that haven't been merged into it yet.
+ * Each store writes its sorted hits as a small segment in the usual SingleHits or PairedHits format,
+ * with file names prefixed by "seg" and the segment's id (eg seg12_3.spositions).  Segments are never
+ * modified; the Compactor merges them into the hits file or into each other and then deletes them.
+ * Larger ids are newer.
+ *
+ * Queries see the hits file and its segments through SegmentedSingleHits or SegmentedPairedHits, which
+ * merge the parts with the static methods here.  The merged order is by position and, at equal positions,
+ * the hits of newer parts first, which is also the order the Compactor writes.
+ */
+public class Segments implements Closeable {
+
+    /** hits that combine a hits file (part 0) with its segments (parts 1..n, oldest first) */
+    public interface View {
+        public Hits[] getParts();
+        public Header[] getHeaders();
+    }
+
+    public static final int POSITIONS = 0, LAS = 1, OTHERCHROMS = 2, OTHERPOSITIONS = 3;
+
+    private int[] ids;
+    private Hits[] hits;
+    private Header[] headers;
+
+    /**
+     * Opens the segments of a chromosome.  prefix is the alignment directory with a trailing
+     * file separator.
+     */
+    public Segments(String prefix, int chrom, boolean isPaired, boolean isLeft) throws IOException {
+        ids = list(prefix, chrom, isPaired, isLeft);
+        hits = new Hits[ids.length];
+        headers = new Header[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            hits[i] = open(prefix, ids[i], chrom, isPaired, isLeft);
+            headers[i] = new Header(hits[i].getPositionsBuffer().ib);
+        }
+    }
+    public int size() {return ids.length;}
+    public boolean isEmpty() {return ids.length == 0;}
+    public int getId(int i) {return ids[i];}
+    public Hits getHits(int i) {return hits[i];}
+    public Header getHeader(int i) {return headers[i];}
+    public int getNumHits() {
+        int n = 0;
+        for (Header h : headers) {
+            n += h.getNumHits();
+        }
+        return n;
+    }
+    public long getMappedBytes() {
+        long n = 0;
+        for (Hits h : hits) {
+            n += h.getMappedBytes();
+        }
+        return n;
+    }
+    public void close() throws IOException {
+        for (Hits h : hits) {
+            h.close();
+        }
+    }
+
+    public static String getSegmentPrefix(String prefix, int id) {
+        return prefix + "seg" + id + "_";
+    }
+    /** names of the uncompressed files of a set of hits:  positions, weights, lengths and strands, and for
+        paired hits the other chromosomes and positions */
+    public static String[] getFileNames(String prefix, int chrom, boolean isPaired, boolean isLeft) {
+        if (isPaired) {
+            return new String[]{PairedHits.getPositionsFname(prefix,chrom,isLeft),
+                                PairedHits.getWeightsFname(prefix,chrom,isLeft),
+                                PairedHits.getLaSFname(prefix,chrom,isLeft),
+                                PairedHits.getChromsFname(prefix,chrom,isLeft),
+                                PairedHits.getOtherPosFname(prefix,chrom,isLeft)};
+        } else {
+            return new String[]{SingleHits.getPositionsFname(prefix,chrom),
+                                SingleHits.getWeightsFname(prefix,chrom),
+                                SingleHits.getLaSFname(prefix,chrom)};
+        }
+    }
+    /** ids of the segments of a chromosome, oldest first */
+    public static int[] list(String prefix, int chrom, boolean isPaired, boolean isLeft) {
+        String suffix = "_" + getFileNames("", chrom, isPaired, isLeft)[0];
+        String[] names = (new File(prefix)).list();
+        if (names == null) {
+            return new int[0];
+        }
+        int[] ids = new int[names.length];
+        int n = 0;
+        for (String name : names) {
+            if (name.startsWith("seg") && name.endsWith(suffix)) {
+                try {
+                    ids[n] = Integer.parseInt(name.substring(3, name.length() - suffix.length()));
+                    n++;
+                } catch (NumberFormatException e) {
+                    // not one of ours
+                }
+            }
+        }
+        ids = Arrays.copyOf(ids, n);
+        Arrays.sort(ids);
+        return ids;
+    }
+    /** an id larger than that of any segment in the alignment directory */
+    public static int nextId(String prefix) {
+        String[] names = (new File(prefix)).list();
+        int max = 0;
+        if (names != null) {
+            for (String name : names) {
+                int u = name.indexOf('_');
+                if (name.startsWith("seg") && u > 3) {
+                    try {
+                        max = Math.max(max, Integer.parseInt(name.substring(3, u)));
+                    } catch (NumberFormatException e) {
+                        // not one of ours
+                    }
+                }
+            }
+        }
+        return max + 1;
+    }
+    public static Hits open(String prefix, int id, int chrom, boolean isPaired, boolean isLeft) throws IOException {
+        String segprefix = getSegmentPrefix(prefix, id);
+        return isPaired ? new PairedHits(segprefix, chrom, isLeft) : new SingleHits(segprefix, chrom);
+    }
+    public static boolean exists(String prefix, int id, int chrom, boolean isPaired, boolean isLeft) {
+        for (String f : getFileNames(getSegmentPrefix(prefix, id), chrom, isPaired, isLeft)) {
+            if (!(new File(f)).exists()) {
+                return false;
+            }
+        }
+        return true;
+    }
+    public static void delete(String prefix, int id, int chrom, boolean isPaired, boolean isLeft) {
+        for (String f : getFileNames(getSegmentPrefix(prefix, id), chrom, isPaired, isLeft)) {
+            (new File(f)).delete();
+        }
+    }
+
+    /**
+     * Writes the hits of the parts, oldest first, merged in query order to the uncompressed files named
+     * by fnames (see getFileNames()).  Paired parts also have their other chromosomes and positions written.
+     */
+    public static void writeMerged(Hits[] parts, String[] fnames) throws IOException {
+        boolean paired = parts[0] instanceof PairedHits;
+        IntBP[] positions = new IntBP[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            positions[i] = parts[i].getPositionsBuffer();
+        }
+        DataOutputStream[] out = new DataOutputStream[fnames.length];
+        for (int c = 0; c < fnames.length; c++) {
+            out[c] = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(fnames[c])));
+        }
+        int[] next = new int[parts.length];
+        int part;
+        while ((part = nextPart(positions, next)) >= 0) {
+            Hits h = parts[part];
+            int i = next[part]++;
+            out[0].writeInt(positions[part].get(i));
+            out[1].writeFloat(h.getWeightsBuffer().get(i));
+            out[2].writeInt(h.getLASBuffer().get(i));
+            if (paired) {
+                out[3].writeInt(((PairedHits)h).getChromsBuffer().get(i));
+                out[4].writeInt(((PairedHits)h).getOtherPosBuffer().get(i));
+            }
+        }
+        for (int c = 0; c < fnames.length; c++) {
+            out[c].close();
+        }
+    }
+    /* the part whose next hit comes first in the merged order, or -1 when all are used up */
+    private static int nextPart(IntBP[] positions, int[] next) {
+        int best = -1;
+        int bestpos = 0;
+        for (int i = 0; i < positions.length; i++) {
+            if (next[i] < positions[i].limit() &&
+                (best == -1 || positions[i].get(next[i]) <= bestpos)) {
+                best = i;
+                bestpos = positions[i].get(next[i]);
+            }
+        }
+        return best;
+    }
+
+    public static int getFirstPosition(Hits[] parts) {
+        int p = Integer.MAX_VALUE;
+        for (Hits h : parts) {
+            p = Math.min(p, h.getFirstPosition());
+        }
+        return p;
+    }
+    public static int getLastPosition(Hits[] parts) {
+        int p = Integer.MIN_VALUE;
+        for (Hits h : parts) {
+            p = Math.max(p, h.getLastPosition());
+        }
+        return p;
+    }
+    public static int getCountBetween(Hits[] parts, Header[] headers, int start, int stop, Float minweight, Boolean isPlus) throws IOException {
+        int count = 0;
+        for (int i = 0; i < parts.length; i++) {
+            count += parts[i].getCountBetween(headers[i].getFirstIndex(start), headers[i].getLastIndex(stop),
+                                              start, stop, minweight, isPlus);
+        }
+        return count;
+    }
+    public static double getWeightBetween(Hits[] parts, Header[] headers, int start, int stop, Float minweight, Boolean isPlus) throws IOException {
+        double sum = 0;
+        for (int i = 0; i < parts.length; i++) {
+            sum += parts[i].getWeightBetween(headers[i].getFirstIndex(start), headers[i].getLastIndex(stop),
+                                             start, stop, minweight, isPlus);
+        }
+        return sum;
+    }
+    /** one of the int columns (POSITIONS, LAS, OTHERCHROMS, or OTHERPOSITIONS) of the hits between start and stop, in merged order */
+    public static IntBP getIntsBetween(Hits[] parts, Header[] headers, int column, int start, int stop, Float minweight, Boolean isPlus) throws IOException {
+        Range r = new Range(parts, headers, start, stop, minweight, isPlus);
+        IntBP[] values = new IntBP[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            int first = headers[i].getFirstIndex(start);
+            int last = headers[i].getLastIndex(stop);
+            if (column == POSITIONS) {
+                values[i] = r.positions[i];
+            } else if (column == LAS) {
+                values[i] = r.las[i];
+            } else if (column == OTHERCHROMS) {
+                values[i] = ((PairedHits)parts[i]).getOtherChromsBetween(first, last, start, stop, null, null);
+            } else {
+                values[i] = ((PairedHits)parts[i]).getOtherPositionsBetween(first, last, start, stop, null, null);
+            }
+        }
+        if (r.size() == 0) {
+            return Hits.emptyIntBP;
+        }
+        IntBP output = new IntBP(r.size());
+        for (int k = 0; k < r.size(); k++) {
+            output.put(k, values[r.part[k]].get(r.index[k]));
+        }
+        return output;
+    }
+    public static FloatBP getWeightsBetween(Hits[] parts, Header[] headers, int start, int stop, Float minweight, Boolean isPlus) throws IOException {
+        Range r = new Range(parts, headers, start, stop, minweight, isPlus);
+        if (r.size() == 0) {
+            return Hits.emptyFloatBP;
+        }
+        FloatBP output = new FloatBP(r.size());
+        for (int k = 0; k < r.size(); k++) {
+            output.put(k, r.weights[r.part[k]].get(r.index[k]));
+        }
+        return output;
+    }
+    /**
+     * Histogram of the parts from firstpart on.  Without dedup, each hit counts on its own, so the histograms of
+     * the parts are added up.  dedup depends on the order of the hits at a position, so then the hits
+     * in the range are merged first.
+     */
+    public static int[] histogram(Hits[] parts, Header[] headers, int firstpart, int start, int stop, int stepsize, int dedup,
+                                  Float minweight, Boolean isPlus, boolean extension) throws IOException {
+        if (dedup != 0) {
+            Hits merged = merge(parts, headers, firstpart, start, stop);
+            return merged.histogram(0, merged.getPositionsBuffer().limit(), start, stop, stepsize, dedup, minweight, isPlus, extension);
+        }
+        int[] output = new int[(stop - start) / stepsize + 1];
+        for (int i = firstpart; i < parts.length; i++) {
+            int[] h = parts[i].histogram(headers[i].getFirstIndex(start), headers[i].getLastIndex(stop),
+                                         start, stop, stepsize, dedup, minweight, isPlus, extension);
+            for (int j = 0; j < output.length; j++) {
+                output[j] += h[j];
+            }
+        }
+        return output;
+    }
+    public static float[] weightHistogram(Hits[] parts, Header[] headers, int firstpart, int start, int stop, int stepsize, int dedup,
+                                          Float minweight, Boolean isPlus, boolean extension) throws IOException {
+        if (dedup != 0) {
+            Hits merged = merge(parts, headers, firstpart, start, stop);
+            return merged.weightHistogram(0, merged.getPositionsBuffer().limit(), start, stop, stepsize, dedup, minweight, isPlus, extension);
+        }
+        float[] output = new float[(stop - start) / stepsize + 1];
+        for (int i = firstpart; i < parts.length; i++) {
+            float[] h = parts[i].weightHistogram(headers[i].getFirstIndex(start), headers[i].getLastIndex(stop),
+                                                 start, stop, stepsize, dedup, minweight, isPlus, extension);
+            for (int j = 0; j < output.length; j++) {
+                output[j] += h[j];
+            }
+        }
+        return output;
+    }
+    /* the hits of parts [firstpart, parts.length) between start and stop, merged into memory */
+    private static Hits merge(Hits[] parts, Header[] headers, int firstpart, int start, int stop) throws IOException {
+        Hits[] p = Arrays.copyOfRange(parts, firstpart, parts.length);
+        Header[] h = Arrays.copyOfRange(headers, firstpart, headers.length);
+        Range r = new Range(p, h, start, stop, null, null);
+        IntBP positions = new IntBP(r.size());
+        FloatBP weights = new FloatBP(r.size());
+        IntBP las = new IntBP(r.size());
+        for (int k = 0; k < r.size(); k++) {
+            positions.put(k, r.positions[r.part[k]].get(r.index[k]));
+            weights.put(k, r.weights[r.part[k]].get(r.index[k]));
+            las.put(k, r.las[r.part[k]].get(r.index[k]));
+        }
+        return new Merged(parts[0].getChrom(), positions, weights, las);
+    }
+
+    private static class Merged extends Hits {
+        Merged(int chrom, IntBP positions, FloatBP weights, IntBP las) {
+            super(chrom, positions, weights, las);
+        }
+    }
+
+    /* the hits of each part between start and stop and the merged order of those that pass
+       minweight and isPlus:  the k'th hit is hit index[k] of the range of part part[k] */
+    private static class Range {
+        IntBP[] positions, las;
+        FloatBP[] weights;
+        int[] part, index;
+        int size;
+
+        Range(Hits[] parts, Header[] headers, int start, int stop, Float minweight, Boolean isPlus) throws IOException {
+            positions = new IntBP[parts.length];
+            weights = new FloatBP[parts.length];
+            las = new IntBP[parts.length];
+            int total = 0;
+            for (int i = 0; i < parts.length; i++) {
+                int first = headers[i].getFirstIndex(start);
+                int last = headers[i].getLastIndex(stop);
+                positions[i] = parts[i].getHitsBetween(first, last, start, stop, null, null);
+                weights[i] = parts[i].getWeightsBetween(first, last, start, stop, null, null);
+                las[i] = parts[i].getLASBetween(first, last, start, stop, null, null);
+                total += positions[i].limit();
+            }
+            part = new int[total];
+            index = new int[total];
+            int[] next = new int[parts.length];
+            int p;
+            while ((p = nextPart(positions, next)) >= 0) {
+                int i = next[p]++;
+                if ((minweight == null || weights[p].get(i) >= minweight) &&
+                    (isPlus == null || Hits.getStrandOne(las[p].get(i)) == isPlus)) {
+                    part[size] = p;
+                    index[size] = i;
+                    size++;
+                }
+            }
+        }
+        int size() {return size;}
+    }
+}
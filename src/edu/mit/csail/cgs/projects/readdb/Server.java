@@ -16,8 +16,10 @@ import org.apache.commons.cli.*;
  * <li>--port 52000     port to listen on
  * <li>--threads 5      number of threads to start to handle client requests
  * <li>--cachesize 100  number of chromosomes to keep files open for
+ * <li>--cachemb 4096   megabytes of hits files each cache keeps mapped
  * <li>--maxconn 200    maximum number of client connections
- * <li>--sleepiness 2   how sleepy the server should be waiting for input.  Lower values use more CPU but improve responsiveness
+ * <li>--sleepiness 2   ignored.  The server now waits for input on a Selector
+ * <li>--compress       store new chromosomes in the compressed format (see CompressedSingleHits)
  * <li>--help           print the usage message and exit
  *
  */
@@ -29,38 +31,56 @@ public class Server {
 	private Logger logger;
     private int port;
     private int numThreads, cacheSize, maxConnections, sleepiness;
-    private boolean debug;
+    private long cacheBytes;
+    private boolean debug, compress;
     /* topdir is the top-level directory for our data files.
       pwfile is "${topdir}/users.txt" and groupfile is 
       "${topdir}/groups.txt"
     */
     private String topdir, pwfile, groupfile;
-    private boolean keepRunning;
+    private volatile boolean keepRunning;
     private Dispatch dispatch;
+    private Compactor compactor;
     private Map<String,Set<String>> groups;
     // BUFFERLEN should be a multiple of 8 to avoid problems with partial ints, floats, or doubles
     // in buffers when the buffer is allocated in bytes.
     public static final int BUFFERLEN = 8192 * 16;
+    /* the most regions that a multigethits request may ask for */
+    public static final int MAXMULTIREGIONS = 1024 * 1024;
+    /* most alignments in one multigethits request */
+    public static final int MAXMULTIALIGNS = 100;
 
     private LRUCache<Header> headers;
+    private LRUCache<HistogramPyramid> pyramids;
     private LRUCache<SingleHits> singleHits;
     private LRUCache<PairedHits> pairedHits;
+    private LRUCache<Segments> segments;
     private LRUCache<AlignmentACL> acls;    
 
-    private ServerSocket socket;
-
     public Server () {
         port = 52000;
         sleepiness = 4;
         numThreads = 5;
         cacheSize = numThreads * 10;
+        cacheBytes = Long.MAX_VALUE;
         maxConnections = 250;
         topdir = "/tmp";
         keepRunning = true;
+        compactor = new Compactor(this);
         logger = Logger.getLogger("edu.mit.csail.cgs.tools.readdb.Server");
         logger.log(Level.INFO,"created Server");        
 
     }
+    /**
+     * A server for the data directory topdir that doesn't listen for connections.  LocalClient
+     * uses it to read the files in-process.
+     */
+    public Server(String topdir, int cacheSize) throws IOException {
+        this();
+        this.cacheSize = cacheSize;
+        initDataDir(topdir);
+        readAndProcessGroupsFile();
+    }
     public void parseArgs(String[] args) throws ParseException {
         Options options = new Options();
         options.addOption("p","port",true,"port to listen on");
@@ -68,8 +88,10 @@ public class Server {
         options.addOption("d","datadir",true,"directory to use for data");
         options.addOption("D","debug",false,"provide debugging output");
         options.addOption("C","cachesize",true,"how many files to keep open (this value times three)");
+        options.addOption("B","cachemb",true,"how many megabytes of hits files each cache keeps mapped");
         options.addOption("M","maxconn",true,"how many connections are allowed");
         options.addOption("S","sleepiness",true,"how sleepy the server should be while waiting for input.  1-100");
+        options.addOption("c","compress",false,"store new chromosomes of single-end alignments compressed");
         options.addOption("h","help",false,"print help message");
         CommandLineParser parser = new GnuParser();
         CommandLine line = parser.parse( options, args, false );            
@@ -91,6 +113,9 @@ public class Server {
         if (line.hasOption("cachesize")) {
             cacheSize = Integer.parseInt(line.getOptionValue("cachesize"));
         }
+        if (line.hasOption("cachemb")) {
+            cacheBytes = Long.parseLong(line.getOptionValue("cachemb")) * 1024 * 1024;
+        }
         if (line.hasOption("maxconn")) {
             maxConnections = Integer.parseInt(line.getOptionValue("maxconn"));
         }
@@ -105,12 +130,20 @@ public class Server {
         }
 
 
-        singleHits = new LRUCache<SingleHits>(cacheSize);
-        pairedHits = new LRUCache<PairedHits>(cacheSize);
-        headers = new LRUCache<Header>(cacheSize);
-        acls = new LRUCache<AlignmentACL>(cacheSize);
         debug = line.hasOption("debug");
+        compress = line.hasOption("compress");
         logger.log(Level.INFO,String.format("Server parsed args: port %d, threads %d, directory %s",port,numThreads,topdir));
+        initDataDir(topdir);
+    }
+    /* sets the data directory and creates the caches of its files */
+    private void initDataDir(String topdir) {
+        this.topdir = topdir;
+        singleHits = new LRUCache<SingleHits>(cacheSize, cacheBytes);
+        pairedHits = new LRUCache<PairedHits>(cacheSize, cacheBytes);
+        segments = new LRUCache<Segments>(cacheSize, cacheBytes);
+        headers = new LRUCache<Header>(cacheSize);
+        pyramids = new LRUCache<HistogramPyramid>(cacheSize);
+        acls = new LRUCache<AlignmentACL>(cacheSize);
         pwfile = topdir + System.getProperty("file.separator") + "users.txt";
         groupfile = topdir + System.getProperty("file.separator") + "groups.txt";
     }
@@ -120,9 +153,13 @@ public class Server {
         System.out.println(" [--threads 4]   use three worker threads to process requests.");
         System.out.println(" [--cachesize 400]  number of datasets to keep open.  Actual number of open files will be");
         System.out.println("                  three times this value");
+        System.out.println(" [--cachemb 4096]  megabytes of hits files that each of the single-end, paired, and");
+        System.out.println("                  segment caches keeps mapped.  Unlimited by default");
         System.out.println(" [--maxconn 250]   maximum number of open connections");
         System.out.println(" [--debug]  print debugging output");
-        System.out.println(" [--sleepiness 4]  (1-100) higher values use less CPU when idle but may incur more delay in processing requests");
+        System.out.println(" [--compress]  store new chromosomes of single-end alignments in the compressed format.");
+        System.out.println("               Existing chromosomes keep their format; see CompressHits to convert them");
+        System.out.println(" [--sleepiness 4]  ignored, kept for compatibility with old scripts");
     }
     public static void main(String args[]) throws Exception {
         Server server = new Server();
@@ -136,43 +173,47 @@ public class Server {
     }
     public void keepRunning(boolean k) {
         keepRunning = k;
-        if (keepRunning == false && socket != null) {
-            try {
-                socket.close();
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+        if (keepRunning == false && dispatch != null) {
+            dispatch.wakeup();
         }
 
     }
     public boolean debug() {return debug;}
+    public boolean compress() {return compress;}
     public int getSleepiness() {return sleepiness;}
+    /**
+     * Accepts and serves connections until keepRunning(false) is called.  The
+     * event loop runs in the calling thread.
+     */
     public void listen() throws IOException {
+        compactor.recover();
         Thread t = new Thread(new CacheGCHook(logger));
         t.start();
-        dispatch = new Dispatch(this,numThreads, maxConnections);
-        t = new Thread(dispatch);
+        t = new Thread(compactor);
         t.start();
-        socket = new ServerSocket(port);
-        socket.setReuseAddress(true);
-        socket.setReceiveBufferSize(BUFFERLEN);
-        socket.setSoTimeout(1000*3600*24);
-        while (keepRunning) {
-            try {
-                Socket s = socket.accept();
-                logger.log(Level.INFO,"accepted from " + s.getInetAddress());
-                s.setSoLinger(false,0);
-                ServerTask st = new ServerTask(this,s);
-                if (debug) {
-                    System.err.println("New Task is " + st);
-                }
-                dispatch.addWork(st);
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+        dispatch = new Dispatch(this,numThreads, maxConnections);
+        dispatch.bind(port);
+        dispatch.run();
+    }
+    /** counters of the connection handling (see Dispatch.getStats()) and of the caches */
+    public Map<String,String> getStats() {
+        Map<String,String> stats = dispatch == null ? new LinkedHashMap<String,String>() : dispatch.getStats();
+        addCacheStats(stats, "singlehits", singleHits);
+        addCacheStats(stats, "pairedhits", pairedHits);
+        addCacheStats(stats, "segments", segments);
+        addCacheStats(stats, "headers", headers);
+        addCacheStats(stats, "pyramids", pyramids);
+        addCacheStats(stats, "acls", acls);
+        return stats;
+    }
+    private void addCacheStats(Map<String,String> stats, String name, LRUCache<?> cache) {
+        Map<String,Long> c = cache.getStats();
+        for (String k : c.keySet()) {
+            stats.put(name + "." + k, Long.toString(c.get(k)));
         }
     }
     public Logger getLogger() {return logger;}
+    public Compactor getCompactor() {return compactor;}
     public String getTopDir() {
         return topdir; 
     }
@@ -201,6 +242,15 @@ public class Server {
                                           boolean isLeft) {
         return getAlignmentDir(alignID) + System.getProperty("file.separator") + chromID + ".paired" + (isLeft ? "left" : "right") + "index";
     }
+    public String getSinglePyramidFileName(String alignID,
+                                           int chromID) {
+        return getAlignmentDir(alignID) + System.getProperty("file.separator") + chromID + ".singlehist";
+    }    
+    public String getPairedPyramidFileName(String alignID,
+                                           int chromID,
+                                           boolean isLeft) {
+        return getAlignmentDir(alignID) + System.getProperty("file.separator") + chromID + ".paired" + (isLeft ? "left" : "right") + "hist";
+    }
     public Set<Integer> getChroms(String alignID,
                                  boolean isPaired,
                                  boolean isLeft) {
@@ -230,8 +280,8 @@ public class Server {
         SingleHits output = singleHits.get(key);
         if (output == null) {
             String prefix = getAlignmentDir(alignID) + System.getProperty("file.separator");
-            output = new SingleHits(prefix,chrom);
-            singleHits.add(key, output);
+            output = SingleHits.open(prefix,chrom);
+            singleHits.add(key, output, output.getMappedBytes());
         }
         return output;
     }
@@ -243,10 +293,45 @@ public class Server {
         if (output == null) {
             String prefix = getAlignmentDir(alignID) + System.getProperty("file.separator");
             output = new PairedHits(prefix, chrom, isLeft);
-            pairedHits.add(key, output);
+            pairedHits.add(key, output, output.getMappedBytes());
+        }
+        return output;
+    }
+    /**
+     * Returns the segments of the hits file that haven't been compacted into it yet.  Opens them or
+     * retrieves them from cache.  Client code is responsible for locking the file as necessary.
+     */
+    public Segments getSingleSegments(String alignID, int chrom) throws IOException {
+        return getSegments(alignID + chrom, alignID, chrom, false, false);
+    }
+    public Segments getPairedSegments(String alignID, int chrom, boolean isLeft) throws IOException {
+        return getSegments(alignID + chrom + isLeft, alignID, chrom, true, isLeft);
+    }
+    private Segments getSegments(String key, String alignID, int chrom, boolean isPaired, boolean isLeft) throws IOException {
+        Segments output = segments.get(key);
+        if (output == null) {
+            String prefix = getAlignmentDir(alignID) + System.getProperty("file.separator");
+            output = new Segments(prefix, chrom, isPaired, isLeft);
+            segments.add(key, output, output.getMappedBytes());
         }
         return output;
     }
+    /**
+     * Returns the hits together with the segments that haven't been compacted into them yet, or just
+     * the hits if there aren't any.  Any segments found are handed to the Compactor.
+     */
+    public Hits withSegments(String alignID, int chrom, boolean isPaired, boolean isLeft, Hits hits, Header header) throws IOException {
+        Segments s = isPaired ? getPairedSegments(alignID, chrom, isLeft) : getSingleSegments(alignID, chrom);
+        if (s.isEmpty()) {
+            return hits;
+        }
+        compactor.found(alignID, chrom, isPaired, isPaired && isLeft);
+        if (isPaired) {
+            return new SegmentedPairedHits((PairedHits)hits, header, s);
+        } else {
+            return new SegmentedSingleHits((SingleHits)hits, header, s);
+        }
+    }
     /**
      * Returns the requested Header object.  Creates it or retrieves from cache.
      * Client code is responsible for locking the file as necessary.
@@ -269,6 +354,27 @@ public class Server {
         }
         return output;
     }
+    /**
+     * Returns the requested HistogramPyramid.  Reads it or retrieves from cache.  Returns null
+     * if the alignment has no pyramid file for the chromosome (eg, it was stored before pyramids were kept)
+     */
+    public HistogramPyramid getSinglePyramid(String alignID, int chromID) throws IOException {
+        return getPyramid(alignID + chromID, getSinglePyramidFileName(alignID,chromID));
+    }
+    public HistogramPyramid getPairedPyramid(String alignID, int chromID, boolean isLeft) throws IOException {
+        return getPyramid(alignID + chromID + isLeft, getPairedPyramidFileName(alignID,chromID,isLeft));
+    }
+    private HistogramPyramid getPyramid(String key, String fname) throws IOException {
+        HistogramPyramid output = pyramids.get(key);
+        if (output == null) {
+            if (!(new File(fname)).exists()) {
+                return null;
+            }
+            output = HistogramPyramid.readPyramidFile(fname);
+            pyramids.add(key, output);
+        }
+        return output;
+    }
     /**
      * Returns the requested ACL object.  Creates it or retrieves from cache.
      * Client code is responsible for locking the file as necessary.
@@ -287,17 +393,31 @@ public class Server {
     public void removePairedHits(String alignID, int chromID, boolean isLeft) {
         pairedHits.remove(alignID + chromID + isLeft);
     }
+    public void removeSingleSegments(String alignID, int chromID) {
+        segments.remove(alignID + chromID);
+    }
+    public void removePairedSegments(String alignID, int chromID, boolean isLeft) {
+        segments.remove(alignID + chromID + isLeft);
+    }
     public void removeSingleHeader(String alignID, int chromID) {
         headers.remove(alignID + chromID);
     }
     public void removePairedHeader(String alignID, int chromID, boolean isLeft) {
         headers.remove(alignID + chromID + isLeft);
     }
+    public void removeSinglePyramid(String alignID, int chromID) {
+        pyramids.remove(alignID + chromID);
+    }
+    public void removePairedPyramid(String alignID, int chromID, boolean isLeft) {
+        pyramids.remove(alignID + chromID + isLeft);
+    }
     public void removeACL(String alignID) {acls.remove(alignID);}
     protected void printCacheContents() {
         headers.printKeys();
+        pyramids.printKeys();
         singleHits.printKeys();
         pairedHits.printKeys();
+        segments.printKeys();
         acls.printKeys();
     }
 
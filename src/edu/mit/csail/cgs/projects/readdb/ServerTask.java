@@ -10,9 +10,13 @@ import javax.security.sasl.*;
 import javax.security.auth.callback.*;
 
 /** 
- * ServerTask represents a client connection.  Server creates ServerTasks when it receives
- * a connection and passes them to Dispatch.  Dispatch manages a pool of WorkerThreads and
- * assigns them to ServerTasks as the tasks appear to be available.  
+ * ServerTask represents a client connection.  Dispatch creates ServerTasks when it accepts
+ * a connection, reads the client's input into the task's buffer without blocking, and
+ * hands the task to a worker thread once a complete request has been buffered.
+ *
+ * The channel stays in non-blocking mode.  The request handlers still see ordinary
+ * blocking streams (instream, outstream and outchannel); they wait on a per-thread
+ * Selector when the channel isn't ready.
  */
 
 public class ServerTask {
@@ -28,19 +32,27 @@ public class ServerTask {
        and the server will close the connection.
     */
     private boolean shouldClose;
-    /* Socket, streams from the socket */
+    /* Socket, channel, streams from the channel */
     private Socket socket;
-    private int haventTriedRead;
-    //    private BufferedInputStream instream;
-    private BufferedInputStream instream;
+    private SocketChannel channel;
+    private SelectionKey key;
+    private InputStream instream;
     private OutputStream outstream;
     private WritableByteChannel outchannel;
     /* if authenticate was successful, this holds a username.  Null otherwise */
     private String username;
-    /* buffer for readLine */
-    private int bufferpos;
+    /* input read from the channel but not consumed yet is inbuf[inStart..inEnd) */
+    private byte[] inbuf;
+    private int inStart, inEnd;
+    /* scratch space for sending ints and floats */
     private byte[] buffer;
+    private long readyTime;
     private static final int MAXPARAMLINES = 100;
+    /* a pending request can't be larger than this */
+    private static final int MAXINPUT = 1024 * 1024;
+    private static final int TIMEOUT = 1000000;
+    /* selectors used to wait on the channels, one per worker thread */
+    private static final ThreadLocal<Selector> waitSelector = new ThreadLocal<Selector>();
     /* other variables maintained across calls to Run but reset between connections */
     private Request request;
     private List<String> args;
@@ -48,26 +60,29 @@ public class ServerTask {
     private Map<String,String> saslprops;
     private String uname; // temporary, used by authenticate
 
-    public ServerTask(Server serv, Socket s) throws IOException {
+    public ServerTask(Server serv, SocketChannel c) throws IOException {
         buffer = new byte[8192];
+        inbuf = new byte[8192];
         request = new Request();
         args = new ArrayList<String>();
         saslprops = new HashMap<String,String>();
         saslprops.put("Sasl.POLICY_NOPLAINTEXT","true");
         saslprops.put("Sasl.POLICY_NOANONYMOUS","true");
         server = serv;
-        socket = s;
+        channel = c;
+        socket = c.socket();
         shouldClose = false;
         username = null;
         uname = null;
-        haventTriedRead = 0;
         socket.setReceiveBufferSize(Server.BUFFERLEN);
         socket.setSendBufferSize(Server.BUFFERLEN);
-        socket.setSoTimeout(1000000);
-        instream = new BufferedInputStream(socket.getInputStream());
-        outstream = socket.getOutputStream();
-        outchannel = Channels.newChannel(outstream);
-        bufferpos = 0;
+        socket.setSoLinger(false,0);
+        channel.configureBlocking(false);
+        instream = new ChannelInputStream();
+        outstream = new ChannelOutputStream();
+        outchannel = new BlockingWriteChannel();
+        inStart = 0;
+        inEnd = 0;
         sasl = null;
         socket.setTcpNoDelay(true);
         //         if (server.debug()) {
@@ -93,47 +108,146 @@ public class ServerTask {
             // ignore it
         }
     }
-    public boolean inputAvailable() {
-        boolean avail = false;
-        if (bufferpos >= buffer.length) {
+    public void setShouldClose() {shouldClose = true;}
+    SelectionKey getKey() {return key;}
+    void setKey(SelectionKey k) {key = k;}
+    long getReadyTime() {return readyTime;}
+    void setReadyTime(long t) {readyTime = t;}
+    /**
+     * Reads whatever input is available on the channel into the buffer, without blocking.
+     * Returns the number of bytes read or -1 if the connection was closed or the pending
+     * input is too large, in which case the task should be closed.
+     */
+    public int readAvailable() {
+        try {
+            int r = fill();
+            if (r == -1) {
+                shouldClose = true;
+            }
+            return r;
+        } catch (IOException e) {
+            server.getLogger().logp(Level.INFO,"ServerTask","readAvailable " + toString(),e.toString());
             shouldClose = true;
-            System.err.println("inputAvailable: Buffer was full.  Closing");
-            return false;
+            return -1;
         }
+    }
+    /**
+     * true if run() has something to do: before authentication, a complete line; after
+     * authentication, a complete request (terminated by an ENDREQUEST line).
+     */
+    public boolean hasCompleteRequest() {
+        int lineStart = inStart;
+        for (int i = inStart; i < inEnd; i++) {
+            if (inbuf[i] == '\n') {
+                if (username == null) {
+                    return true;
+                }
+                if (i - lineStart == 10 && new String(inbuf,lineStart,10).equals("ENDREQUEST")) {
+                    return true;
+                }
+                lineStart = i + 1;
+            }
+        }
+        return false;
+    }
+    /* non-blocking read from the channel into inbuf.  Returns -1 on end of stream or overflow */
+    private int fill() throws IOException {
+        if (inStart == inEnd) {
+            inStart = inEnd = 0;
+        }
+        if (inEnd == inbuf.length) {
+            if (inStart > 0) {
+                System.arraycopy(inbuf, inStart, inbuf, 0, inEnd - inStart);
+                inEnd -= inStart;
+                inStart = 0;
+            } else if (inbuf.length < MAXINPUT) {
+                inbuf = Arrays.copyOf(inbuf, Math.min(MAXINPUT, inbuf.length * 2));
+            } else {
+                server.getLogger().logp(Level.WARNING,"ServerTask","fill " + toString(),"input buffer is full.  quitting");
+                return -1;
+            }
+        }
+        int r = channel.read(ByteBuffer.wrap(inbuf, inEnd, inbuf.length - inEnd));
+        if (r > 0) {
+            inEnd += r;
+        }
+        return r;
+    }
+    /* waits (on this thread's selector) until the channel is ready for op */
+    private void await(int op) throws IOException {
+        Selector sel = waitSelector.get();
+        if (sel == null) {
+            sel = Selector.open();
+            waitSelector.set(sel);
+        }
+        SelectionKey k = channel.register(sel, op);
         try {
-            avail = instream.available() > 0;
-            if (avail || haventTriedRead++ > 1000) {
-                haventTriedRead = 0;
-                socket.setSoTimeout(1);
-                int r = instream.read();
-                socket.setSoTimeout(1000000);
+            long deadline = System.currentTimeMillis() + TIMEOUT;
+            while (sel.select(TIMEOUT) == 0) {
+                if (System.currentTimeMillis() > deadline) {
+                    throw new SocketTimeoutException("timed out waiting for " + toString());
+                }
+            }
+        } finally {
+            k.cancel();
+            sel.selectNow();
+        }
+    }
+    /* writes all of b to the channel, waiting when the socket's send buffer is full */
+    private int writeFully(ByteBuffer b) throws IOException {
+        int count = b.remaining();
+        while (b.hasRemaining()) {
+            if (channel.write(b) == 0) {
+                await(SelectionKey.OP_WRITE);
+            }
+        }
+        return count;
+    }
+    /* blocking view of the input: buffered bytes first, then the channel */
+    private class ChannelInputStream extends InputStream {
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : (b[0] & 0xff);
+        }
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            while (inStart == inEnd) {
+                int r = fill();
                 if (r == -1) {
-                    avail = false;
-                    shouldClose = true;
-                    System.err.println("inputAvailable: Connection Closed");
-                } else {
-                    synchronized(buffer) {
-                        buffer[bufferpos++] = (byte)r;
-                    }
-                    //                    System.err.println("iA has read through " + new String(buffer,0,bufferpos));
+                    return -1;
+                } else if (r == 0) {
+                    await(SelectionKey.OP_READ);
                 }
-            }                
-        } catch (SocketTimeoutException e) {
-            // timeout means the socket is still open but there's no data.  That's ok.
-            try {
-                socket.setSoTimeout(1000000);   
-            } catch (IOException e2) {
-                server.getLogger().logp(Level.INFO,"serverTask","inputAvailable","socket.setSoTimeout",e2);
-                avail = false;
-                shouldClose = true;                
             }
-            avail = false;
-        } catch (IOException e) {
-            e.printStackTrace();
-            avail = false;
-            shouldClose = true;
+            int n = Math.min(len, inEnd - inStart);
+            System.arraycopy(inbuf, inStart, b, off, n);
+            inStart += n;
+            return n;
+        }
+        public int available() {
+            return inEnd - inStart;
+        }
+    }
+    private class ChannelOutputStream extends OutputStream {
+        public void write(int b) throws IOException {
+            writeFully(ByteBuffer.wrap(new byte[]{(byte)b}));
+        }
+        public void write(byte[] b, int off, int len) throws IOException {
+            writeFully(ByteBuffer.wrap(b, off, len));
+        }
+    }
+    private class BlockingWriteChannel implements WritableByteChannel {
+        public int write(ByteBuffer b) throws IOException {
+            return writeFully(b);
+        }
+        public boolean isOpen() {
+            return channel.isOpen();
+        }
+        public void close() throws IOException {
+            channel.close();
         }
-        return avail;
     }
     /** prints the response header signifying a valid request.  Only happens after
      *  the ServerTask has read enough information from the socket and done
@@ -161,52 +275,39 @@ public class ServerTask {
         outstream.flush();
     }
     /**
-     * Reads a line from the socket and returns it
+     * Reads a line from the socket, waiting for it if necessary.  For use inside
+     * a request, after ENDREQUEST.
      */
-    public String readLine() throws IOException {
-        int i = 0;
-        boolean done = false;
-        for (i = 0; i < bufferpos; i++) {
-            if (buffer[i] == '\n') {
-                String out = new String(buffer,0,i);
-                synchronized(buffer) {
-                    for (int j = 0; j < i; j++) {
-                        buffer[j] = buffer[i+j+1];
-                    }
-                    bufferpos -= i+1;
-                }
-                //System.err.println("READ EXISTING " + out);
-                return out;
+    private String readLineBlocking() throws IOException {
+        String l;
+        while ((l = readLine()) == null) {
+            if (shouldClose) {
+                throw new IOException("connection closed in readLineBlocking");
             }
+            await(SelectionKey.OP_READ);
         }
-        while (instream.available() > 0 && 
-               (i = instream.read()) != -1) {
-            if (i == '\n') {
-                done = true;
-                break;
-            } else {
-                if (bufferpos >= buffer.length) {
-                    server.getLogger().logp(Level.WARNING,"ServerTask","readLine " + toString(),"readline would overflow.  quitting");
-                    shouldClose = true;
-                    return null;
+        return l;
+    }
+    /**
+     * Reads a line from the socket and returns it.  Returns null if a complete line
+     * isn't available yet.
+     */
+    public String readLine() throws IOException {
+        for (int pass = 0; pass < 2; pass++) {
+            for (int i = inStart; i < inEnd; i++) {
+                if (inbuf[i] == '\n') {
+                    String out = new String(inbuf,inStart,i - inStart);
+                    inStart = i + 1;
+                    return out;
                 }
-                buffer[bufferpos++] = (byte)i;
+            }
+            if (pass == 0 && fill() == -1) {
+                shouldClose = true;
+                server.getLogger().logp(Level.WARNING,"ServerTask","readLine " + toString(),"error in readline.  quitting");
+                return null;
             }
         }
-        if (i == -1) {
-            shouldClose = true;
-            server.getLogger().logp(Level.WARNING,"ServerTask","readLine " + toString(),"error in readline.  quitting");
-            return null;
-        }
-        if (done) {
-            String out = new String(buffer,0,bufferpos);
-            bufferpos = 0;
-            //System.err.println("READ " + out);
-            return out;
-        } else {
-            //System.err.println("incomplete line in readline");
-            return null;
-        }
+        return null;
     }
     /**
      * main method for the task.  This method is asynchronous- it shouldn't block too long on the client.  It does block
@@ -220,6 +321,8 @@ public class ServerTask {
      *   - read the list of request parameters
      *   - call processRequest()
      *
+     * Dispatch only calls run() when hasCompleteRequest() is true.
+     *
      * Run CANNOT throw any exceptions in the current model.  If the outer block gets an exception, it swallows it
      * and returns, setting shouldClose = true to indicate that this connection to a client should be closed.
      */
@@ -378,6 +481,10 @@ public class ServerTask {
                 processDeleteAlignment();
             } else if (request.type.equals("addtogroup")) {
                 processAddToGroup();
+            } else if (request.type.equals("serverstats")) {
+                processServerStats();
+            } else if (request.type.equals("multigethits")) {
+                processMultiGetHits();
             } else if (request.type.equals("shutdown")) {
                 server.getLogger().logp(Level.INFO,"ServerTask","processRequest " + toString(),"Received shutdown from " + username);
                 if (server.isAdmin(username)) {
@@ -413,6 +520,7 @@ public class ServerTask {
 
         } finally {
             Lock.releaseLocks();
+            LRUCache.releaseAll();
         }
     }
     /**
@@ -475,6 +583,13 @@ public class ServerTask {
             printInvalid(e.toString());
             return;
         }
+        if (!request.type.equals("checksort")) {
+            Hits segmented = server.withSegments(request.alignid, request.chromid, request.isPaired, request.isLeft, hits, header);
+            if (segmented != hits) {
+                hits = segmented;
+                header = segmented.makeHeader();
+            }
+        }
         if (request.type.equals("count")) {
             processCount(header,hits);
         } else if (request.type.equals("weight")) {
@@ -653,6 +768,17 @@ public class ServerTask {
             printString(i + "\n");
         }            
     }
+    /**
+     * Sends the server's connection and request counters, one key=value per line
+     */
+    public void processServerStats() throws IOException {
+        Map<String,String> stats = server.getStats();
+        printOK();
+        printString(stats.size() + "\n");
+        for (String k : stats.keySet()) {
+            printString(k + "=" + stats.get(k) + "\n");
+        }
+    }
     /**
      * Deletes an alignment: the header and hits files, acl file, and the directory are removed
      *
@@ -679,9 +805,15 @@ public class ServerTask {
                 server.removePairedHits(request.alignid, c, false);
                 server.removePairedHeader(request.alignid, c, true);
                 server.removePairedHeader(request.alignid, c, false);
+                server.removePairedPyramid(request.alignid, c, true);
+                server.removePairedPyramid(request.alignid, c, false);
+                server.removePairedSegments(request.alignid, c, true);
+                server.removePairedSegments(request.alignid, c, false);
             } else {
                 server.removeSingleHits(request.alignid, c);
                 server.removeSingleHeader(request.alignid, c);
+                server.removeSinglePyramid(request.alignid, c);
+                server.removeSingleSegments(request.alignid, c);
             }
         }
 
@@ -704,8 +836,12 @@ public class ServerTask {
                 boolean pairedfile = name.indexOf(".prleft.") > 0 ||
                     name.indexOf(".prright.") > 0 ||
                     name.indexOf(".pairedleftindex") > 0 ||
-                    name.indexOf(".pairedrightindex") > 0;
+                    name.indexOf(".pairedrightindex") > 0 ||
+                    name.indexOf(".pairedlefthist") > 0 ||
+                    name.indexOf(".pairedrighthist") > 0;
                 boolean singlefile = name.indexOf("singleindex") > 0||
+                    name.indexOf("singlehist") > 0 ||
+                    name.indexOf("scompressed") > 0 ||
                     name.indexOf("spositions") > 0 ||
                     name.indexOf("sweights") > 0 ||
                     name.indexOf("slas") > 0;
@@ -745,8 +881,9 @@ public class ServerTask {
     /** creates or appends to a set of hits.  
      *
      * If the chromosome file doesn't exist yet, then create a new one and dump in positions and weights.
-     * If it does exist, then create a new file and merge the old file with the new
-     * set of hits.
+     * If it does exist, then the new hits are saved as a segment (see Segments) that queries
+     * read along with the chromosome file until the Compactor merges them into it.  The write lock is
+     * only held while the files are written.
      */
     public void processSingleStore() throws IOException {
         assert(request != null);
@@ -766,8 +903,6 @@ public class ServerTask {
             printOK();
             return;
         }
-        Lock.writeLock(request.alignid);
-
         IntBP positions = new IntBP(numHits);
         FloatBP weights = new FloatBP(numHits);
         IntBP las = new IntBP(numHits);
@@ -775,29 +910,16 @@ public class ServerTask {
         Bits.readBytes(positions.bb, rbc);
         Bits.readBytes(weights.bb, rbc);
         Bits.readBytes(las.bb, rbc);
-        
-        SingleHit[] newhits = new SingleHit[numHits];
-        for (int i = 0; i < numHits; i++) {
-            newhits[i] = new SingleHit(request.chromid,
-                                       positions.get(i),
-                                       weights.get(i),
-                                       Hits.getStrandOne(las.get(i)),
-                                       Hits.getLengthOne(las.get(i)));
-        }
-        for (int i = 1; i < newhits.length; i++) {
-            if (newhits[i-1].compareTo(newhits[i]) > 0) {
+        for (int i = 1; i < numHits; i++) {
+            if (positions.get(i-1) > positions.get(i)) {
                 throw new RuntimeException(String.format("at %d : %d vs %d",
-                                                         i, newhits[i-1].pos, newhits[i].pos));
+                                                         i, positions.get(i-1), positions.get(i)));
             }
         }
 
-        positions = null;
-        weights = null;
-        las = null;
-
-        SingleHit[] hits = null;
-
-        /* if the alignment already exists, read in the old hits */
+        Lock.writeLock(request.alignid);
+        String prefix = server.getAlignmentDir(request.alignid) + System.getProperty("file.separator");
+        /* if the alignment already exists, add a segment */
         Set<Integer> chroms = server.getChroms(request.alignid, false,false);
         try {
             if (chroms != null && chroms.contains(request.chromid)) {
@@ -813,16 +935,13 @@ public class ServerTask {
                     printInvalid(e.toString());
                     return;
                 }
-                try {
-                    server.getSingleHits(request.alignid,
-                                         request.chromid).appendSingleHits(newhits,
-                                                                           server.getAlignmentDir(request.alignid) + System.getProperty("file.separator"),
-                                                                           request.chromid);
-                } catch (Exception e) {
-                    server.getLogger().logp(Level.INFO,"ServerTask","processSingleStore "+toString(),"error writing hits",e);
-                    printInvalid(e.toString());
-                    return;
-                }
+                SingleHits.writeSingleHits(positions, weights, las,
+                                           Segments.getSegmentPrefix(prefix, Segments.nextId(prefix)),
+                                           request.chromid);
+                server.removeSingleSegments(request.alignid, request.chromid);
+                server.getCompactor().schedule(request.alignid, request.chromid, false, false);
+                printOK();
+                return;
             } else {
                 /* this is a new alignment, so set a default ACL */
                 AlignmentACL acl = new AlignmentACL();
@@ -842,15 +961,19 @@ public class ServerTask {
                 acl.getReadACL().add(username);
                 acl.writeToFile(server.getACLFileName(request.alignid));        
                 server.removeACL(request.alignid); // make sure the server doesn't have this ACL cached
-                SingleHits.writeSingleHits(newhits,
-                                           server.getAlignmentDir(request.alignid) + System.getProperty("file.separator"),
-                                           request.chromid);
+                if (server.compress()) {
+                    CompressedSingleHits.writeCompressedHits(positions, weights, las, prefix, request.chromid);
+                } else {
+                    SingleHits.writeSingleHits(positions, weights, las, prefix, request.chromid);
+                }
             }
-            SingleHits singlehits = new SingleHits(server.getAlignmentDir(request.alignid) + System.getProperty("file.separator"),
-                                                   request.chromid);
-            Header header = new Header(singlehits.getPositionsBuffer().ib);
+            SingleHits singlehits = SingleHits.open(prefix, request.chromid);
+            Header header = singlehits.makeHeader();
             header.writeIndexFile(server.getSingleHeaderFileName(request.alignid,
                                                                  request.chromid));
+            HistogramPyramid.writePyramidFile(singlehits,
+                                              server.getSinglePyramidFileName(request.alignid,
+                                                                              request.chromid));
         } catch (IOException e) {
             server.getLogger().logp(Level.INFO,"ServerTask","processSingleStore "+ toString(),"IOException trying to save files : " + e.toString(),e);
             return;
@@ -858,6 +981,8 @@ public class ServerTask {
         printOK();
         server.removeSingleHits(request.alignid, request.chromid);
         server.removeSingleHeader(request.alignid, request.chromid);
+        server.removeSinglePyramid(request.alignid, request.chromid);
+        server.removeSingleSegments(request.alignid, request.chromid);
     }
 
     public void processPairedStore() throws IOException {
@@ -878,6 +1003,17 @@ public class ServerTask {
             printOK();
             return;
         }
+        IntBP positions = new IntBP(numHits);
+        FloatBP weights = new FloatBP(numHits);
+        IntBP las = new IntBP(numHits);
+        IntBP otherchrom = new IntBP(numHits);
+        IntBP otherpos = new IntBP(numHits);
+        ReadableByteChannel rbc = Channels.newChannel(instream);
+        Bits.readBytes(positions.bb, rbc);
+        Bits.readBytes(weights.bb, rbc);
+        Bits.readBytes(las.bb, rbc);
+        Bits.readBytes(otherchrom.bb,rbc);
+        Bits.readBytes(otherpos.bb,rbc);
 
         Lock.writeLock(request.alignid);
         File f;
@@ -920,39 +1056,10 @@ public class ServerTask {
             }
         }
 
-        PairedHit[] hits = new PairedHit[numHits];
-        IntBP positions = new IntBP(numHits);
-        FloatBP weights = new FloatBP(numHits);
-        IntBP las = new IntBP(numHits);
-        IntBP otherchrom = new IntBP(numHits);
-        IntBP otherpos = new IntBP(numHits);
-        ReadableByteChannel rbc = Channels.newChannel(instream);
-        Bits.readBytes(positions.bb, rbc);
-        Bits.readBytes(weights.bb, rbc);
-        Bits.readBytes(las.bb, rbc);
-        Bits.readBytes(otherchrom.bb,rbc);
-        Bits.readBytes(otherpos.bb,rbc);
-        for (int i = 0; i < positions.limit(); i++) {
-            hits[i] = new PairedHit(request.chromid,
-                                    positions.get(i),
-                                    Hits.getStrandOne(las.get(i)),
-                                    Hits.getLengthOne(las.get(i)),
-                                    otherchrom.get(i),
-                                    otherpos.get(i),
-                                    Hits.getStrandTwo(las.get(i)),
-                                    Hits.getLengthTwo(las.get(i)),
-                                    weights.get(i));
-        }
-        positions = null;
-        weights = null;
-        las = null;
-        otherchrom = null;
-        otherpos = null;
-
         try {
-            appendPairedHits(hits,true);
-            appendPairedHits(hits,false);
-            hits = null;
+            int segment = Segments.nextId(server.getAlignmentDir(request.alignid) + System.getProperty("file.separator"));
+            storePairedHits(positions, weights, las, otherchrom, otherpos, true, segment);
+            storePairedHits(positions, weights, las, otherchrom, otherpos, false, segment);
         } catch (IOException e) {
             server.getLogger().logp(Level.INFO,"ServerTask","processPairedStore "+toString(), "IOException trying to save files : " + e.toString(),e);
             printString("Failed to write hits : " + e.toString() + "\n");
@@ -961,41 +1068,77 @@ public class ServerTask {
         printOK();
     }
 
-    private void appendPairedHits(PairedHit[] newhits,
-                                  boolean isLeft) throws IOException {
-        /* instead of the map, could have a list passed, sort, and then use subList 
-           to save some memory */
-
-        Map<Integer,List<PairedHit>> map = new HashMap<Integer,List<PairedHit>>();
-        for (PairedHit h : newhits) {
-            int c = isLeft ? h.leftChrom : h.rightChrom;
-            if (!map.containsKey(c)) {
-                map.put(c, new ArrayList<PairedHit>());
-            }
-            map.get(c).add(h);
+    /* adds the hits to the files of each chromosome they fall on, as seen from one side.  A chromosome
+       that already has hits gets a segment with the given id.
+    */
+    private void storePairedHits(IntBP positions,
+                                 FloatBP weights,
+                                 IntBP las,
+                                 IntBP otherchroms,
+                                 IntBP otherpositions,
+                                 boolean isLeft,
+                                 int segment) throws IOException {
+        /* the hits of each chromosome as position << 32 | index, so that sorting them sorts by position */
+        Map<Integer,Integer> counts = new HashMap<Integer,Integer>();
+        for (int i = 0; i < positions.limit(); i++) {
+            int c = isLeft ? request.chromid : otherchroms.get(i);
+            counts.put(c, counts.containsKey(c) ? counts.get(c) + 1 : 1);
         }
-        newhits = null;
-        Comparator<PairedHit> comp = isLeft ? new PairedHitLeftComparator() : new PairedHitRightComparator();
-        for (int chromid : map.keySet()) {
-            List<PairedHit> nhlist = map.get(chromid);
-            Collections.sort(nhlist, comp);
-            try {
-                PairedHits oldhits = server.getPairedHits(request.alignid,
-                                                          chromid,
-                                                          isLeft);
-                oldhits.appendPairedHits(nhlist,server.getAlignmentDir(request.alignid) + System.getProperty("file.separator"), chromid, isLeft);
-            } catch (FileNotFoundException e) {
-                PairedHits.writePairedHits(nhlist, server.getAlignmentDir(request.alignid) + System.getProperty("file.separator"), chromid, isLeft);
-            } 
-            PairedHits pairedhits = new PairedHits(server.getAlignmentDir(request.alignid) + System.getProperty("file.separator"),
-                                                   chromid, 
-                                                   isLeft);
+        Map<Integer,long[]> keys = new HashMap<Integer,long[]>();
+        for (int c : counts.keySet()) {
+            keys.put(c, new long[counts.get(c)]);
+        }
+        for (int i = 0; i < positions.limit(); i++) {
+            int c = isLeft ? request.chromid : otherchroms.get(i);
+            long pos = isLeft ? positions.get(i) : otherpositions.get(i);
+            int k = counts.get(c) - 1;
+            counts.put(c, k);
+            keys.get(c)[k] = (pos << 32) | i;
+        }
+        String prefix = server.getAlignmentDir(request.alignid) + System.getProperty("file.separator");
+        for (int chromid : keys.keySet()) {
+            long[] sorted = keys.get(chromid);
+            Arrays.sort(sorted);
+            IntBP p = new IntBP(sorted.length);
+            FloatBP w = new FloatBP(sorted.length);
+            IntBP l = new IntBP(sorted.length);
+            IntBP oc = new IntBP(sorted.length);
+            IntBP op = new IntBP(sorted.length);
+            for (int k = 0; k < sorted.length; k++) {
+                int i = (int)(sorted[k] & 0xffffffffL);
+                int lr = las.get(i);
+                p.put(k, (int)(sorted[k] >> 32));
+                w.put(k, weights.get(i));
+                if (isLeft) {
+                    l.put(k, lr);
+                    oc.put(k, otherchroms.get(i));
+                    op.put(k, otherpositions.get(i));
+                } else {
+                    l.put(k, Hits.makeLAS(Hits.getLengthTwo(lr), Hits.getStrandTwo(lr), Hits.getLengthOne(lr), Hits.getStrandOne(lr)));
+                    oc.put(k, request.chromid);
+                    op.put(k, positions.get(i));
+                }
+            }
+            if ((new File(server.getPairedHeaderFileName(request.alignid, chromid, isLeft))).exists()) {
+                PairedHits.writePairedHits(p, w, l, oc, op, Segments.getSegmentPrefix(prefix, segment), chromid, isLeft);
+                server.removePairedSegments(request.alignid, chromid, isLeft);
+                server.getCompactor().schedule(request.alignid, chromid, true, isLeft);
+                continue;
+            }
+            PairedHits.writePairedHits(p, w, l, oc, op, prefix, chromid, isLeft);
+            PairedHits pairedhits = new PairedHits(prefix, chromid, isLeft);
             Header header = new Header(pairedhits.getPositionsBuffer().ib);
             header.writeIndexFile(server.getPairedHeaderFileName(request.alignid,
                                                                  chromid,
                                                                  isLeft));
+            HistogramPyramid.writePyramidFile(pairedhits,
+                                              server.getPairedPyramidFileName(request.alignid,
+                                                                              chromid,
+                                                                              isLeft));
             server.removePairedHits(request.alignid, chromid, isLeft);
             server.removePairedHeader(request.alignid, chromid, isLeft);
+            server.removePairedPyramid(request.alignid, chromid, isLeft);
+            server.removePairedSegments(request.alignid, chromid, isLeft);
         }
     }
 
@@ -1010,25 +1153,167 @@ public class ServerTask {
             header.writeIndexFile(server.getPairedHeaderFileName(request.alignid,
                                                                  request.chromid,
                                                                  true));            
+            HistogramPyramid.writePyramidFile(hits, server.getPairedPyramidFileName(request.alignid,
+                                                                                    request.chromid,
+                                                                                    true));
             server.removePairedHeader(request.alignid, request.chromid,true);
+            server.removePairedPyramid(request.alignid, request.chromid,true);
 
             hits = server.getPairedHits(request.alignid, request.chromid, false);
             header = new Header(hits.getPositionsBuffer().ib);
             header.writeIndexFile(server.getPairedHeaderFileName(request.alignid,
                                                                  request.chromid,
                                                                  false));            
+            HistogramPyramid.writePyramidFile(hits, server.getPairedPyramidFileName(request.alignid,
+                                                                                    request.chromid,
+                                                                                    false));
             server.removePairedHeader(request.alignid, request.chromid,false);
+            server.removePairedPyramid(request.alignid, request.chromid,false);
 
         } else {
             SingleHits hits = server.getSingleHits(request.alignid, request.chromid);
-            Header header = new Header(hits.getPositionsBuffer().ib);
+            Header header = hits.makeHeader();
             header.writeIndexFile(server.getSingleHeaderFileName(request.alignid,
                                                                  request.chromid));
+            HistogramPyramid.writePyramidFile(hits, server.getSinglePyramidFileName(request.alignid,
+                                                                                    request.chromid));
             server.removeSingleHeader(request.alignid, request.chromid);       
+            server.removeSinglePyramid(request.alignid, request.chromid);
         }
         printOK();
     }
 
+    /**
+     * Hits in many regions, possibly from several alignments, in one exchange.  The request has
+     * numaligns and numregions, the optional ispaired, isleft, minweight and isplusstrand that
+     * apply to all regions, and any of wantpositions, wantweights and wantlengthsandstrands.
+     * After the first OK, the client sends numaligns lines of alignment ids and then
+     * 4 * numregions ints: index of the alignment in that list, chromid, start, end.
+     *
+     * Each alignment is authorized once and each (alignment, chromosome) is looked up once.
+     * After the second OK, the response for each region is the hit count (an int) followed by the
+     * requested columns, as in gethits.  A chromosome without hits files has no hits.
+     */
+    public void processMultiGetHits() throws IOException {
+        int numAligns, numRegions;
+        try {
+            numAligns = Integer.parseInt(request.map.get("numaligns"));
+            numRegions = Integer.parseInt(request.map.get("numregions"));
+        } catch (NumberFormatException e) {
+            printString("Invalid numaligns or numregions\n");
+            return;
+        }
+        if (numAligns < 0 || numAligns > Server.MAXMULTIALIGNS || numRegions < 0 || numRegions > Server.MAXMULTIREGIONS) {
+            printString("Invalid numaligns or numregions\n");
+            return;
+        }
+        if (request.map.containsKey("wantotherchroms") ||
+            request.map.containsKey("wantotherpositions")) {
+            printString("invalid columns requested for multigethits\n");
+            return;
+        }
+        printOK();
+        String[] alignids = new String[numAligns];
+        for (int i = 0; i < numAligns; i++) {
+            alignids[i] = readLineBlocking();
+        }
+        IntBP regions = new IntBP(numRegions * 4);
+        Bits.readBytes(regions.bb, Channels.newChannel(instream));
+
+        for (int i = 0; i < numAligns; i++) {
+            if (!(new File(server.getAlignmentDir(alignids[i]))).exists()) {
+                printString("No Such Alignment " + alignids[i] + "\n");
+                return;
+            }
+            AlignmentACL acl = null;
+            try {
+                acl = server.getACL(alignids[i]);
+            } catch (IOException e) {
+                printInvalid(e.toString());
+                return;
+            }
+            if (!authorizeRead(acl)) {
+                server.getLogger().logp(Level.INFO,"ServerTask","processMultiGetHits "+toString(),
+                                        String.format("%s can't read %s", username, alignids[i]));
+                printAuthError();
+                return;
+            }
+            Lock.readLock(alignids[i]);
+        }
+        for (int r = 0; r < numRegions; r++) {
+            int a = regions.get(r*4);
+            if (a < 0 || a >= numAligns) {
+                printString("Invalid alignment index " + a + "\n");
+                return;
+            }
+        }
+        printOK();
+
+        boolean wantPositions = request.map.containsKey("wantpositions");
+        boolean wantWeights = request.map.containsKey("wantweights");
+        boolean wantLAS = request.map.containsKey("wantlengthsandstrands");
+        /* the region's alignment and chromosome usually repeat, so look them up once */
+        Map<String,Hits> hitsCache = new HashMap<String,Hits>();
+        Map<String,Header> headerCache = new HashMap<String,Header>();
+        BufferedOutputStream out = new BufferedOutputStream(outstream, Server.BUFFERLEN);
+        WritableByteChannel channel = Channels.newChannel(out);
+        IntBP count = new IntBP(1);
+        for (int r = 0; r < numRegions; r++) {
+            String alignid = alignids[regions.get(r*4)];
+            int chromid = regions.get(r*4+1);
+            int start = regions.get(r*4+2);
+            int end = regions.get(r*4+3);
+            String key = alignid + "\t" + chromid;
+            Hits hits = hitsCache.get(key);
+            Header header = headerCache.get(key);
+            if (!hitsCache.containsKey(key)) {
+                try {
+                    if (request.isPaired) {
+                        hits = server.getPairedHits(alignid, chromid, request.isLeft);
+                        header = server.getPairedHeader(alignid, chromid, request.isLeft);
+                    } else {
+                        hits = server.getSingleHits(alignid, chromid);
+                        header = server.getSingleHeader(alignid, chromid);
+                    }
+                    Hits segmented = server.withSegments(alignid, chromid, request.isPaired, request.isLeft, hits, header);
+                    if (segmented != hits) {
+                        hits = segmented;
+                        header = segmented.makeHeader();
+                    }
+                } catch (IOException e) {
+                    hits = null;
+                    header = null;
+                }
+                hitsCache.put(key, hits);
+                headerCache.put(key, header);
+            }
+            if (hits == null || start > end) {
+                count.put(0, 0);
+                Bits.sendBytes(count.bb, channel);
+                continue;
+            }
+            int first = header.getFirstIndex(start);
+            int last = header.getLastIndex(end);
+            count.put(0, hits.getCountBetween(first,last,start,end,request.minWeight, request.isPlusStrand));
+            Bits.sendBytes(count.bb, channel);
+            if (count.get(0) == 0) {
+                continue;
+            }
+            if (wantPositions) {
+                IntBP p = hits.getHitsBetween(first,last,start,end,request.minWeight,request.isPlusStrand);
+                Bits.sendBytes(p.bb, channel);
+            }
+            if (wantWeights) {
+                FloatBP p = hits.getWeightsBetween(first,last,start,end,request.minWeight,request.isPlusStrand);
+                Bits.sendBytes(p.bb, channel);
+            }
+            if (wantLAS) {
+                IntBP p = hits.getLASBetween(first,last,start,end,request.minWeight,request.isPlusStrand);
+                Bits.sendBytes(p.bb, channel);
+            }
+        }
+        out.flush();
+    }
     public void processCount(Header header, Hits hits) throws IOException {
         printOK();
         if (request.start == null && request.end == null && request.minWeight == null && request.isPlusStrand == null) {
@@ -1106,12 +1391,10 @@ public class ServerTask {
     public void processHistogram(Header header, Hits hits) throws IOException {
         int binsize = 10;
         if (request.start == null) {
-            IntBP ib = hits.getPositionsBuffer();
-            request.start = ib.get(0);
+            request.start = hits.getFirstPosition();
         }
         if (request.end == null) {
-            IntBP ib = hits.getPositionsBuffer();
-            request.end = ib.get(ib.limit()-1);
+            request.end = hits.getLastPosition();
         }
         try {
             binsize = Integer.parseInt(request.map.get("binsize"));
@@ -1125,17 +1408,9 @@ public class ServerTask {
             dedup = Integer.parseInt(request.map.get("dedup"));
         }
         boolean extension = request.map.containsKey("extension");
-        int first = header.getFirstIndex(request.start);
-        int last = header.getLastIndex(request.end);
-        int[] raw = hits.histogram(first,
-                                   last,
-                                   request.start,
-                                   request.end,
-                                   binsize,
-                                   dedup,
-                                   request.minWeight,
-                                   request.isPlusStrand,
-                                   extension);
+        int[] raw = HistogramPyramid.histogramFor(getPyramid(binsize, dedup, extension), header, hits,
+                                                  request.start, request.end, binsize, dedup,
+                                                  request.minWeight, request.isPlusStrand, extension);
         int n = 0;
         for (int i = 0; i< raw.length; i++) {
             if (raw[i] > 0) {
@@ -1165,12 +1440,10 @@ public class ServerTask {
     public void processWeightHistogram(Header header, Hits hits) throws IOException {
         int binsize = 10;
         if (request.start == null) {
-            IntBP ib = hits.getPositionsBuffer();
-            request.start = ib.get(0);
+            request.start = hits.getFirstPosition();
         }
         if (request.end == null) {
-            IntBP ib = hits.getPositionsBuffer();
-            request.end = ib.get(ib.limit()-1);
+            request.end = hits.getLastPosition();
         }
         try {
             binsize = Integer.parseInt(request.map.get("binsize"));
@@ -1184,17 +1457,9 @@ public class ServerTask {
             dedup = Integer.parseInt(request.map.get("dedup"));
         }
         boolean extension = request.map.containsKey("extension");
-        int first = header.getFirstIndex(request.start);
-        int last = header.getLastIndex(request.end);
-        float[] raw = hits.weightHistogram(first,
-                                           last,
-                                           request.start,
-                                           request.end,
-                                           binsize,
-                                           dedup,
-                                           request.minWeight,
-                                           request.isPlusStrand,
-                                           extension);
+        float[] raw = HistogramPyramid.weightHistogramFor(getPyramid(binsize, dedup, extension), header, hits,
+                                                          request.start, request.end, binsize, dedup,
+                                                          request.minWeight, request.isPlusStrand, extension);
         int n = 0;
         for (int i = 0; i< raw.length; i++) {
             if (raw[i] > 0) {
@@ -1216,6 +1481,23 @@ public class ServerTask {
         Bits.sendInts(parray, outstream, buffer);        
         Bits.sendFloats(farray, outstream, buffer);
     }
+    /* returns the histogram pyramid for the current request if it exists and can answer a
+       histogram with these options.  Otherwise null and the histogram is computed from the hits.
+    */
+    private HistogramPyramid getPyramid(int binsize, int dedup, boolean extension) {
+        if (!HistogramPyramid.canAnswer(binsize, dedup, request.minWeight, extension)) {
+            return null;
+        }
+        HistogramPyramid pyramid;
+        try {
+            pyramid = request.isPaired ? server.getPairedPyramid(request.alignid, request.chromid, request.isLeft) :
+                server.getSinglePyramid(request.alignid, request.chromid);
+        } catch (IOException e) {
+            server.getLogger().logp(Level.INFO,"ServerTask","getPyramid "+toString(), "Can't read histogram pyramid : " + e.toString(),e);
+            return null;
+        }
+        return pyramid;
+    }
     public void processCheckSort(Header header, Hits hits) throws IOException {
         IntBP ints = hits.getPositionsBuffer();
         boolean needsort = false;
@@ -1236,9 +1518,12 @@ public class ServerTask {
                 server.removeSingleHeader(request.alignid, request.chromid);       
                 hits = server.getSingleHits(request.alignid, request.chromid);
                 
-                header = new Header(hits.getPositionsBuffer().ib);
+                header = hits.makeHeader();
                 header.writeIndexFile(server.getSingleHeaderFileName(request.alignid,
                                                                      request.chromid));
+                HistogramPyramid.writePyramidFile(hits, server.getSinglePyramidFileName(request.alignid,
+                                                                                        request.chromid));
+                server.removeSinglePyramid(request.alignid, request.chromid);
 
             } else {
                 printString("Can't resort paired hits");
@@ -20,6 +20,20 @@ public class SingleHits extends Hits {
               getWeightsFname(prefix,chrom), 
               getLaSFname(prefix,chrom));
     }
+    protected SingleHits (int chrom) {
+        super(chrom);
+    }
+    /**
+     * Opens the hits of a chromosome in whichever format they are stored in:
+     * a CompressedSingleHits if the compressed file exists, otherwise the three
+     * uncompressed files.
+     */
+    public static SingleHits open(String prefix, int chrom) throws FileNotFoundException, SecurityException, IOException {
+        if ((new File(CompressedSingleHits.getCompressedFname(prefix,chrom))).exists()) {
+            return new CompressedSingleHits(prefix,chrom);
+        }
+        return new SingleHits(prefix,chrom);
+    }
     public static void writeSingleHits(IntBP positions,
                                        FloatBP weights,
                                        IntBP las,
@@ -201,13 +215,13 @@ public class SingleHits extends Hits {
         (new File(lastmp)).renameTo(new File(getLaSFname(prefix,chrom)));
 
     }
-    private static String getPositionsFname(String prefix, int chrom) {
+    static String getPositionsFname(String prefix, int chrom) {
         return prefix + chrom + ".spositions";
     }
-    private static String getWeightsFname(String prefix, int chrom) {
+    static String getWeightsFname(String prefix, int chrom) {
         return prefix + chrom + ".sweights";
     }
-    private static String getLaSFname(String prefix, int chrom) {
+    static String getLaSFname(String prefix, int chrom) {
         return prefix + chrom + ".slas";
     }
 
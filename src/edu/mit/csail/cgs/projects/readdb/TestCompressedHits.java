@@ -0,0 +1,208 @@
+package edu.mit.csail.cgs.projects.readdb;
+
+import java.util.*;
+import java.io.*;
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/**
+ * Compares CompressedSingleHits with the uncompressed SingleHits of the same reads:
+ * the decoded buffers, every range query, appends, and converting back to the uncompressed files.
+ * The reads have long runs of equal positions, so that some blocks start in the middle of a run
+ * and some blocks hold nothing but one position.
+ */
+public class TestCompressedHits {
+
+    private static int chrom = 3;
+    private static int NUMHITS = 20000;
+    private static int MAXVALUE = 6000;
+    private static float MAXWEIGHT = 4f;
+
+    private Random random;
+    private String rawprefix, compressedprefix;
+    private SingleHits raw, compressed;
+    private Header rawheader, compressedheader;
+
+    public TestCompressedHits() throws IOException {
+        random = new Random(1234);
+        int[] positions = new int[NUMHITS];
+        for (int i = 0; i < NUMHITS; i++) {
+            positions[i] = random.nextInt(MAXVALUE);
+        }
+        /* runs of one position across block boundaries, one of them longer than a block */
+        int b = CompressedSingleHits.BLOCKSIZE;
+        Arrays.fill(positions, 0, 10, 2000);
+        Arrays.fill(positions, b - 5, b + 5, 2500);
+        Arrays.fill(positions, 3 * b - 100, 5 * b + 100, 4000);
+        Arrays.sort(positions);
+        IntBP p = new IntBP(NUMHITS);
+        FloatBP w = new FloatBP(NUMHITS);
+        IntBP l = new IntBP(NUMHITS);
+        for (int i = 0; i < NUMHITS; i++) {
+            p.put(i, positions[i]);
+            /* runs of equal weights and, after the first blocks, few distinct lengths and strands */
+            w.put(i, i % 7 < 4 ? 1f : random.nextFloat() * MAXWEIGHT);
+            int length = i < 2 * b ? 20 + random.nextInt(500) : 36 + random.nextInt(3);
+            l.put(i, Hits.makeLAS((short)length, random.nextBoolean()));
+        }
+        rawprefix = tempDir("raw");
+        compressedprefix = tempDir("compressed");
+        SingleHits.writeSingleHits(p, w, l, rawprefix, chrom);
+        CompressedSingleHits.writeCompressedHits(p, w, l, compressedprefix, chrom);
+        open();
+    }
+    private void open() throws IOException {
+        raw = SingleHits.open(rawprefix, chrom);
+        compressed = SingleHits.open(compressedprefix, chrom);
+        assertFalse(raw instanceof CompressedSingleHits);
+        assertTrue(compressed instanceof CompressedSingleHits);
+        rawheader = raw.makeHeader();
+        compressedheader = compressed.makeHeader();
+    }
+    private static String tempDir(String name) throws IOException {
+        File dir = File.createTempFile("TestCompressedHits", name);
+        dir.delete();
+        dir.mkdir();
+        dir.deleteOnExit();
+        return dir.getAbsolutePath() + System.getProperty("file.separator");
+    }
+    @After public void cleanUp() throws IOException {
+        raw.close();
+        compressed.close();
+        for (String prefix : new String[]{rawprefix, compressedprefix}) {
+            File dir = new File(prefix);
+            for (File f : dir.listFiles()) {
+                f.delete();
+            }
+            dir.delete();
+        }
+    }
+
+    @Test public void testRoundTrip() {
+        assertBuffersEqual(raw, compressed);
+        assertEquals(raw.getFirstPosition(), compressed.getFirstPosition());
+        assertEquals(raw.getLastPosition(), compressed.getLastPosition());
+        assertEquals(rawheader.getNumHits(), compressedheader.getNumHits());
+        assertTrue(compressed.getMappedBytes() < raw.getMappedBytes());
+    }
+
+    @Test public void testUncompress() throws IOException {
+        ((CompressedSingleHits)compressed).uncompress(compressedprefix, chrom);
+        assertFalse((new File(CompressedSingleHits.getCompressedFname(compressedprefix, chrom))).exists());
+        SingleHits uncompressed = SingleHits.open(compressedprefix, chrom);
+        assertFalse(uncompressed instanceof CompressedSingleHits);
+        assertBuffersEqual(raw, uncompressed);
+        uncompressed.close();
+    }
+
+    @Test public void testQueries() throws IOException {
+        for (int q = 0; q < 200; q++) {
+            int start = random.nextInt(MAXVALUE + 20) - 10;
+            int end = start + random.nextInt(q % 2 == 0 ? 200 : MAXVALUE);
+            assertQueriesEqual(start, end);
+        }
+        /* ranges that start or end at the runs */
+        int[] edges = {-5, 0, 1999, 2000, 2001, 2500, 4000, MAXVALUE - 1, MAXVALUE + 5};
+        for (int start : edges) {
+            for (int end : edges) {
+                if (end >= start) {
+                    assertQueriesEqual(start, end);
+                }
+            }
+        }
+    }
+
+    @Test public void testAppend() throws IOException {
+        /* hits in the middle of the chromosome, including at the runs, are merged */
+        SingleHit[] merged = newHits(300, 0, MAXVALUE);
+        merged[0].pos = 4000;
+        merged[1].pos = 2500;
+        Arrays.sort(merged);
+        raw.appendSingleHits(merged, rawprefix, chrom);
+        compressed.appendSingleHits(merged, compressedprefix, chrom);
+        reopen();
+        assertEquals(NUMHITS + merged.length, compressedheader.getNumHits());
+        assertBuffersEqual(raw, compressed);
+
+        /* hits past the end are appended */
+        SingleHit[] appended = newHits(2000, MAXVALUE, MAXVALUE + 1000);
+        raw.appendSingleHits(appended, rawprefix, chrom);
+        compressed.appendSingleHits(appended, compressedprefix, chrom);
+        reopen();
+        assertEquals(NUMHITS + merged.length + appended.length, compressedheader.getNumHits());
+        assertBuffersEqual(raw, compressed);
+        for (int q = 0; q < 100; q++) {
+            int start = random.nextInt(MAXVALUE + 1000);
+            assertQueriesEqual(start, start + random.nextInt(1000));
+        }
+    }
+    private SingleHit[] newHits(int n, int from, int to) {
+        SingleHit[] hits = new SingleHit[n];
+        for (int i = 0; i < n; i++) {
+            hits[i] = new SingleHit(chrom, from + random.nextInt(to - from), random.nextFloat() * MAXWEIGHT,
+                                    random.nextBoolean(), (short)(36 + random.nextInt(3)));
+        }
+        Arrays.sort(hits);
+        return hits;
+    }
+    private void reopen() throws IOException {
+        raw.close();
+        compressed.close();
+        open();
+    }
+
+    private static void assertBuffersEqual(SingleHits expected, SingleHits actual) {
+        IntBP p = expected.getPositionsBuffer(), cp = actual.getPositionsBuffer();
+        FloatBP w = expected.getWeightsBuffer(), cw = actual.getWeightsBuffer();
+        IntBP l = expected.getLASBuffer(), cl = actual.getLASBuffer();
+        assertEquals(p.limit(), cp.limit());
+        for (int i = 0; i < p.limit(); i++) {
+            assertEquals("position " + i, p.get(i), cp.get(i));
+            assertEquals("weight " + i, Float.floatToRawIntBits(w.get(i)), Float.floatToRawIntBits(cw.get(i)));
+            assertEquals("las " + i, l.get(i), cl.get(i));
+        }
+    }
+
+    /* every query of Hits gives the same answer on both files, each searched with its own header */
+    private void assertQueriesEqual(int start, int end) throws IOException {
+        int rf = rawheader.getFirstIndex(start), rl = rawheader.getLastIndex(end);
+        int cf = compressedheader.getFirstIndex(start), cl = compressedheader.getLastIndex(end);
+        String range = start + "-" + end;
+        assertArrayEquals(range, raw.getIndices(rf, rl, start, end), compressed.getIndices(cf, cl, start, end));
+        Float[] minweights = {null, 1f, MAXWEIGHT / 2};
+        Boolean[] strands = {null, true, false};
+        for (Float minweight : minweights) {
+            for (Boolean isPlus : strands) {
+                String query = range + " " + minweight + " " + isPlus;
+                assertEquals(query, raw.getCountBetween(rf, rl, start, end, minweight, isPlus),
+                             compressed.getCountBetween(cf, cl, start, end, minweight, isPlus));
+                assertEquals(query, raw.getWeightBetween(rf, rl, start, end, minweight, isPlus),
+                             compressed.getWeightBetween(cf, cl, start, end, minweight, isPlus), 0);
+                assertIntsEqual(query, raw.getHitsBetween(rf, rl, start, end, minweight, isPlus),
+                                compressed.getHitsBetween(cf, cl, start, end, minweight, isPlus));
+                assertIntsEqual(query, raw.getLASBetween(rf, rl, start, end, minweight, isPlus),
+                                compressed.getLASBetween(cf, cl, start, end, minweight, isPlus));
+                FloatBP rw = raw.getWeightsBetween(rf, rl, start, end, minweight, isPlus);
+                FloatBP cw = compressed.getWeightsBetween(cf, cl, start, end, minweight, isPlus);
+                assertEquals(query, rw.limit(), cw.limit());
+                for (int i = 0; i < rw.limit(); i++) {
+                    assertEquals(query, rw.get(i), cw.get(i), 0);
+                }
+                int binsize = 1 + random.nextInt(50);
+                for (int dedup = 0; dedup <= 2; dedup++) {
+                    boolean extension = random.nextBoolean();
+                    assertArrayEquals(query, raw.histogram(rf, rl, start, end, binsize, dedup, minweight, isPlus, extension),
+                                      compressed.histogram(cf, cl, start, end, binsize, dedup, minweight, isPlus, extension));
+                    assertTrue(query, Arrays.equals(raw.weightHistogram(rf, rl, start, end, binsize, dedup, minweight, isPlus, extension),
+                                                    compressed.weightHistogram(cf, cl, start, end, binsize, dedup, minweight, isPlus, extension)));
+                }
+            }
+        }
+    }
+    private static void assertIntsEqual(String query, IntBP expected, IntBP actual) {
+        assertEquals(query, expected.limit(), actual.limit());
+        for (int i = 0; i < expected.limit(); i++) {
+            assertEquals(query, expected.get(i), actual.get(i));
+        }
+    }
+}
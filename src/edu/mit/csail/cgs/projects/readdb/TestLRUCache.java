@@ -0,0 +1,180 @@
+package edu.mit.csail.cgs.projects.readdb;
+
+import java.util.*;
+import java.io.*;
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/**
+ * Checks that LRUCache evicts by the number of entries and by their total size, in access order, and
+ * that an entry that falls out of the cache is closed only once no thread references it.
+ * The caches whose order is checked have fewer than 32 entries so that they have a single stripe and are a true LRU.
+ */
+public class TestLRUCache {
+
+    private static class Resource implements Closeable {
+        int closes = 0;
+        public void close() {
+            closes++;
+        }
+    }
+
+    @After public void cleanUp() {
+        LRUCache.releaseAll();
+    }
+
+    @Test public void testEvictionBySize() {
+        LRUCache<Resource> cache = new LRUCache<Resource>(3);
+        Resource[] r = new Resource[4];
+        for (int i = 0; i < 3; i++) {
+            r[i] = new Resource();
+            cache.add("r" + i, r[i]);
+        }
+        LRUCache.releaseAll();
+        cache.get("r0");
+        r[3] = new Resource();
+        cache.add("r3", r[3]);
+        /* r1 is the least recently used */
+        assertFalse(cache.contains("r1"));
+        assertTrue(cache.contains("r0"));
+        assertTrue(cache.contains("r2"));
+        assertTrue(cache.contains("r3"));
+        assertEquals(1, r[1].closes);
+        assertEquals(1, cache.getStats().get("evictions").longValue());
+        LRUCache.releaseAll();
+        assertEquals(0, r[0].closes + r[2].closes + r[3].closes);
+    }
+
+    @Test public void testEvictionByBytes() {
+        LRUCache<Resource> cache = new LRUCache<Resource>(10, 100);
+        Resource a = new Resource(), b = new Resource(), c = new Resource(), d = new Resource();
+        cache.add("a", a, 40);
+        cache.add("b", b, 40);
+        LRUCache.releaseAll();
+        assertSame(a, cache.get("a"));
+        LRUCache.releaseAll();
+        cache.add("c", c, 40);
+        LRUCache.releaseAll();
+        assertFalse(cache.contains("b"));
+        assertTrue(cache.contains("a"));
+        assertTrue(cache.contains("c"));
+        assertEquals(1, b.closes);
+        assertEquals(80, cache.getStats().get("bytes").longValue());
+
+        /* an entry larger than the limit pushes out everything else but stays itself */
+        cache.add("d", d, 150);
+        LRUCache.releaseAll();
+        assertTrue(cache.contains("d"));
+        assertFalse(cache.contains("a"));
+        assertFalse(cache.contains("c"));
+        assertEquals(1, a.closes);
+        assertEquals(1, c.closes);
+        assertEquals(0, d.closes);
+        assertEquals(150, cache.getStats().get("bytes").longValue());
+
+        /* replacing an entry gives back its bytes */
+        Resource e = new Resource();
+        cache.add("d", e, 10);
+        LRUCache.releaseAll();
+        assertEquals(1, d.closes);
+        assertEquals(10, cache.getStats().get("bytes").longValue());
+    }
+
+    @Test public void testCloseAfterRelease() throws InterruptedException {
+        final LRUCache<Resource> cache = new LRUCache<Resource>(10, 100);
+        Resource a = new Resource();
+        cache.add("a", a, 10);
+        LRUCache.releaseAll();
+
+        /* this thread and another one both hold a when it's removed */
+        assertSame(a, cache.get("a"));
+        final Resource[] got = new Resource[1];
+        final Object step = new Object();
+        final boolean[] release = new boolean[1];
+        Thread other = new Thread() {
+                public void run() {
+                    got[0] = cache.get("a");
+                    synchronized(step) {
+                        step.notifyAll();
+                        while (!release[0]) {
+                            try {
+                                step.wait();
+                            } catch (InterruptedException e) {
+                                return;
+                            }
+                        }
+                    }
+                    LRUCache.releaseAll();
+                }
+            };
+        synchronized(step) {
+            other.start();
+            while (got[0] == null) {
+                step.wait();
+            }
+        }
+        assertSame(a, got[0]);
+        cache.remove("a");
+        assertFalse(cache.contains("a"));
+        assertEquals(0, a.closes);
+
+        LRUCache.releaseAll();
+        assertEquals("closed while another thread holds it", 0, a.closes);
+        synchronized(step) {
+            release[0] = true;
+            step.notifyAll();
+        }
+        other.join();
+        assertEquals(1, a.closes);
+
+        /* an entry that nobody holds is closed when it falls out, and only once */
+        Resource b = new Resource();
+        cache.add("b", b, 10);
+        LRUCache.releaseAll();
+        cache.remove("b");
+        assertEquals(1, b.closes);
+        LRUCache.releaseAll();
+        assertEquals(1, b.closes);
+    }
+
+    @Test public void testRemovedCount() throws InterruptedException {
+        final int perThread = 50000;
+        final LRUCache<Resource> cache = new LRUCache<Resource>(64);
+        Thread[] threads = new Thread[8];
+        LRUCache.resetRemoved();
+        for (int i = 0; i < threads.length; i++) {
+            final int t = i;
+            threads[i] = new Thread() {
+                    public void run() {
+                        for (int j = 0; j < perThread; j++) {
+                            cache.add(t + "/" + j, new Resource());
+                            LRUCache.releaseAll();
+                            cache.remove(t + "/" + j);
+                        }
+                    }
+                };
+            threads[i].start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        assertEquals(threads.length * perThread, LRUCache.removed());
+        LRUCache.resetRemoved();
+        assertEquals(0, LRUCache.removed());
+    }
+
+    @Test public void testHeldAcrossCaches() {
+        LRUCache<Resource> first = new LRUCache<Resource>(1);
+        LRUCache<Resource> second = new LRUCache<Resource>(1);
+        Resource a = new Resource(), b = new Resource();
+        first.add("x", a);
+        second.add("x", b);
+        /* pushes a and b out of their caches while this thread still holds them */
+        first.add("y", new Resource());
+        second.add("y", new Resource());
+        assertEquals(0, a.closes + b.closes);
+        LRUCache.releaseAll();
+        assertEquals(1, a.closes);
+        assertEquals(1, b.closes);
+    }
+}
@@ -0,0 +1,429 @@
+package edu.mit.csail.cgs.projects.readdb;
+
+import java.util.*;
+import java.io.*;
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/**
+ * Checks hits files with segments (see Segments) against a reference hits file that holds all the
+ * hits in the merged order:  by position and, at equal positions, newer parts first.
+ * Queries through SegmentedSingleHits and SegmentedPairedHits, including dedup histograms, which depend
+ * on that order, and the files the Compactor writes when it merges the segments into one or into the
+ * hits file.
+ */
+public class TestSegments {
+
+    private static String ALIGNID = "segtest";
+    private static int chrom = 7;
+    private static int MAXVALUE = 3000;
+    private static float MAXWEIGHT = 4f;
+
+    private Random random;
+    private String topdir, prefix, refprefix;
+    private Server server;
+
+    public TestSegments() throws IOException {
+        random = new Random(4321);
+        File dir = File.createTempFile("TestSegments", "");
+        dir.delete();
+        dir.mkdir();
+        topdir = dir.getAbsolutePath();
+        (new File(topdir, "users.txt")).createNewFile();
+        (new File(topdir, "groups.txt")).createNewFile();
+        server = new Server(topdir, 10);
+        prefix = server.getAlignmentDir(ALIGNID) + System.getProperty("file.separator");
+        (new File(prefix)).mkdir();
+        refprefix = topdir + System.getProperty("file.separator") + "ref_";
+    }
+    @After public void cleanUp() {
+        server.keepRunning(false);
+        Lock.releaseLocks();
+        LRUCache.releaseAll();
+        delete(new File(topdir));
+    }
+    private static void delete(File f) {
+        File[] files = f.listFiles();
+        if (files != null) {
+            for (File g : files) {
+                delete(g);
+            }
+        }
+        f.delete();
+    }
+
+    @Test public void testSingleQueries() throws IOException {
+        checkSingleQueries(false);
+    }
+    @Test public void testCompressedSingleQueries() throws IOException {
+        checkSingleQueries(true);
+    }
+    private void checkSingleQueries(boolean compressed) throws IOException {
+        List<Part> parts = new ArrayList<Part>();
+        parts.add(writeMain(new Part(5000, false), compressed));
+        for (int id = 1; id <= 3; id++) {
+            parts.add(writeSegment(new Part(400, false), id));
+        }
+        SingleHits ref = (SingleHits)writeReference(parts, false);
+        SingleHits main = SingleHits.open(prefix, chrom);
+        Segments segments = new Segments(prefix, chrom, false, false);
+        assertEquals(3, segments.size());
+        Hits segmented = new SegmentedSingleHits(main, main.makeHeader(), segments);
+        assertQueriesEqual(ref, segmented, false);
+        segments.close();
+        main.close();
+        ref.close();
+    }
+
+    @Test public void testPairedQueries() throws IOException {
+        List<Part> parts = new ArrayList<Part>();
+        parts.add(writeMain(new Part(5000, true), false));
+        for (int id = 2; id <= 6; id += 2) {
+            parts.add(writeSegment(new Part(400, true), id));
+        }
+        PairedHits ref = (PairedHits)writeReference(parts, true);
+        PairedHits main = new PairedHits(prefix, chrom, true);
+        Segments segments = new Segments(prefix, chrom, true, true);
+        assertEquals(3, segments.size());
+        Hits segmented = new SegmentedPairedHits(main, main.makeHeader(), segments);
+        assertQueriesEqual(ref, segmented, true);
+        segments.close();
+        main.close();
+        ref.close();
+    }
+
+    /* segments holding less than Compactor.MERGEFRACTION of the hits file are merged into one once there are MAXSEGMENTS */
+    @Test public void testSegmentMerge() throws IOException, InterruptedException {
+        List<Part> parts = new ArrayList<Part>();
+        parts.add(writeMain(new Part(20000, false), false));
+        for (int id = 1; id <= Compactor.MAXSEGMENTS; id++) {
+            parts.add(writeSegment(new Part(100, false), id));
+        }
+        File mainfile = new File(SingleHits.getPositionsFname(prefix, chrom));
+        long mainstamp = mainfile.lastModified();
+        compact(false, 1);
+
+        /* the merged segment takes the id of the newest one and holds the segments in merged order */
+        assertArrayEquals(new int[]{Compactor.MAXSEGMENTS}, Segments.list(prefix, chrom, false, false));
+        assertEquals(mainstamp, mainfile.lastModified());
+        SingleHits segref = (SingleHits)writeReference(parts.subList(1, parts.size()), false);
+        Hits segment = Segments.open(prefix, Compactor.MAXSEGMENTS, chrom, false, false);
+        assertBuffersEqual(segref, segment, false);
+        segment.close();
+        segref.close();
+
+        SingleHits ref = (SingleHits)writeReference(parts, false);
+        SingleHits main = SingleHits.open(prefix, chrom);
+        Segments segments = new Segments(prefix, chrom, false, false);
+        assertQueriesEqual(ref, new SegmentedSingleHits(main, main.makeHeader(), segments), false);
+        segments.close();
+        main.close();
+        ref.close();
+    }
+
+    /* segments holding MERGEFRACTION of the hits file are merged into it, which stays compressed */
+    @Test public void testFullMerge() throws IOException, InterruptedException {
+        List<Part> parts = new ArrayList<Part>();
+        parts.add(writeMain(new Part(8000, false), true));
+        for (int id = 1; id <= 3; id++) {
+            parts.add(writeSegment(new Part(800, false), id));
+        }
+        compact(false, 0);
+
+        SingleHits ref = (SingleHits)writeReference(parts, false);
+        SingleHits main = SingleHits.open(prefix, chrom);
+        assertTrue(main instanceof CompressedSingleHits);
+        assertBuffersEqual(ref, main, false);
+        Header header = Header.readIndexFile(server.getSingleHeaderFileName(ALIGNID, chrom));
+        assertEquals(8000 + 3 * 800, header.getNumHits());
+        assertQueriesEqual(ref, main, header, false);
+        main.close();
+        ref.close();
+    }
+
+    @Test public void testPairedFullMerge() throws IOException, InterruptedException {
+        List<Part> parts = new ArrayList<Part>();
+        parts.add(writeMain(new Part(4000, true), false));
+        for (int id = 1; id <= 2; id++) {
+            parts.add(writeSegment(new Part(600, true), id));
+        }
+        compact(true, 0);
+
+        PairedHits ref = (PairedHits)writeReference(parts, true);
+        PairedHits main = new PairedHits(prefix, chrom, true);
+        assertBuffersEqual(ref, main, true);
+        Header header = Header.readIndexFile(server.getPairedHeaderFileName(ALIGNID, chrom, true));
+        assertEquals(4000 + 2 * 600, header.getNumHits());
+        assertQueriesEqual(ref, main, header, true);
+        main.close();
+        ref.close();
+    }
+
+    /* a merge of segments 1-3 into segment 3 whose commit stopped after its first rename */
+    @Test public void testRecoverCommit() throws IOException {
+        List<Part> parts = new ArrayList<Part>();
+        parts.add(writeMain(new Part(3000, false), false));
+        File commit = writeSegmentCommit(parts);
+        String[] staged = Segments.getFileNames(prefix + "compact_", chrom, false, false);
+        String[] newest = Segments.getFileNames(Segments.getSegmentPrefix(prefix, 3), chrom, false, false);
+        assertTrue((new File(staged[0])).renameTo(new File(newest[0])));
+        /* left over from merges of other chromosomes that never got to commit */
+        File strayhits = new File(SingleHits.getPositionsFname(prefix + "compact_", chrom + 1));
+        File strayindex = new File(server.getSingleHeaderFileName(ALIGNID, chrom + 1) + ".compact");
+        strayhits.createNewFile();
+        strayindex.createNewFile();
+
+        server.getCompactor().recover();
+        assertFalse(commit.exists());
+        assertFalse(strayhits.exists());
+        assertFalse(strayindex.exists());
+        for (String f : staged) {
+            assertFalse(f, (new File(f)).exists());
+        }
+        assertMergedSegment(parts);
+    }
+
+    /* a commit whose rename fails keeps its commit file and segments, and the Compactor finishes it once it can */
+    @Test public void testRetryCommit() throws IOException, InterruptedException {
+        List<Part> parts = new ArrayList<Part>();
+        parts.add(writeMain(new Part(3000, false), false));
+        File commit = writeSegmentCommit(parts);
+        File target = new File(Segments.getFileNames(Segments.getSegmentPrefix(prefix, 3), chrom, false, false)[1]);
+        target.delete();
+        target.mkdir();
+        File blocker = new File(target, "x");
+        blocker.createNewFile();
+
+        assertFalse(Compactor.finishCommit(commit));
+        assertTrue(commit.exists());
+        assertArrayEquals(new int[]{1, 2, 3}, Segments.list(prefix, chrom, false, false));
+        assertTrue(Segments.exists(prefix, 1, chrom, false, false));
+
+        blocker.delete();
+        target.delete();
+        compact(false, 1);
+        assertFalse(commit.exists());
+        assertMergedSegment(parts);
+    }
+
+    /* writes segments 1-3 after the hits file in parts, their merge, and the commit file that replaces them with it */
+    private File writeSegmentCommit(List<Part> parts) throws IOException {
+        Hits[] segments = new Hits[3];
+        for (int id = 1; id <= 3; id++) {
+            parts.add(writeSegment(new Part(200, false), id));
+            segments[id - 1] = Segments.open(prefix, id, chrom, false, false);
+        }
+        String[] staged = Segments.getFileNames(prefix + "compact_", chrom, false, false);
+        Segments.writeMerged(segments, staged);
+        for (Hits h : segments) {
+            h.close();
+        }
+        String[] newest = Segments.getFileNames(Segments.getSegmentPrefix(prefix, 3), chrom, false, false);
+        File commit = new File(Compactor.getCommitFname(server.getSingleHeaderFileName(ALIGNID, chrom)));
+        PrintWriter out = new PrintWriter(new FileWriter(commit));
+        for (int i = 0; i < staged.length; i++) {
+            out.println("rename\t" + (new File(staged[i])).getName() + "\t" + (new File(newest[i])).getName());
+        }
+        for (int id = 1; id <= 2; id++) {
+            for (String f : Segments.getFileNames(Segments.getSegmentPrefix(prefix, id), chrom, false, false)) {
+                out.println("delete\t" + (new File(f)).getName());
+            }
+        }
+        out.close();
+        return commit;
+    }
+    private void assertMergedSegment(List<Part> parts) throws IOException {
+        assertArrayEquals(new int[]{3}, Segments.list(prefix, chrom, false, false));
+        SingleHits segref = (SingleHits)writeReference(parts.subList(1, parts.size()), false);
+        Hits segment = Segments.open(prefix, 3, chrom, false, false);
+        assertBuffersEqual(segref, segment, false);
+        segment.close();
+        segref.close();
+    }
+
+    /* runs the Compactor until the chromosome has the given number of segments */
+    private void compact(boolean paired, int segments) throws InterruptedException {
+        Thread t = new Thread(server.getCompactor());
+        t.start();
+        server.getCompactor().schedule(ALIGNID, chrom, paired, paired);
+        long deadline = System.currentTimeMillis() + 20000;
+        while (Segments.list(prefix, chrom, paired, paired).length != segments && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        server.keepRunning(false);
+        t.join();
+        assertEquals(segments, Segments.list(prefix, chrom, paired, paired).length);
+    }
+
+    /* the columns of a set of sorted hits.  Positions are drawn from a small range so that parts share positions */
+    private class Part {
+        int[] positions, las, otherchroms, otherpositions;
+        float[] weights;
+        boolean paired;
+
+        Part(int n, boolean paired) {
+            this.paired = paired;
+            positions = new int[n];
+            for (int i = 0; i < n; i++) {
+                positions[i] = random.nextInt(MAXVALUE);
+            }
+            Arrays.sort(positions);
+            weights = new float[n];
+            las = new int[n];
+            otherchroms = new int[n];
+            otherpositions = new int[n];
+            for (int i = 0; i < n; i++) {
+                weights[i] = random.nextFloat() * MAXWEIGHT;
+                short length = (short)(20 + random.nextInt(80));
+                las[i] = paired ? Hits.makeLAS(length, random.nextBoolean(), (short)(20 + random.nextInt(80)), random.nextBoolean()) :
+                    Hits.makeLAS(length, random.nextBoolean());
+                otherchroms[i] = random.nextInt(5);
+                otherpositions[i] = random.nextInt(1000000);
+            }
+        }
+        int size() {return positions.length;}
+    }
+    private Part writeMain(Part p, boolean compressed) throws IOException {
+        write(p, prefix, compressed);
+        Hits hits = p.paired ? new PairedHits(prefix, chrom, true) : SingleHits.open(prefix, chrom);
+        hits.makeHeader().writeIndexFile(p.paired ? server.getPairedHeaderFileName(ALIGNID, chrom, true) :
+                                         server.getSingleHeaderFileName(ALIGNID, chrom));
+        hits.close();
+        return p;
+    }
+    private Part writeSegment(Part p, int id) throws IOException {
+        write(p, Segments.getSegmentPrefix(prefix, id), false);
+        return p;
+    }
+    private void write(Part p, String prefix, boolean compressed) throws IOException {
+        write(p.positions, p.weights, p.las, p.otherchroms, p.otherpositions, prefix, p.paired, compressed);
+    }
+    private void write(int[] positions, float[] weights, int[] las, int[] otherchroms, int[] otherpositions,
+                       String prefix, boolean paired, boolean compressed) throws IOException {
+        int n = positions.length;
+        IntBP p = new IntBP(n), l = new IntBP(n), oc = new IntBP(n), op = new IntBP(n);
+        FloatBP w = new FloatBP(n);
+        for (int i = 0; i < n; i++) {
+            p.put(i, positions[i]);
+            w.put(i, weights[i]);
+            l.put(i, las[i]);
+            oc.put(i, otherchroms[i]);
+            op.put(i, otherpositions[i]);
+        }
+        if (paired) {
+            PairedHits.writePairedHits(p, w, l, oc, op, prefix, chrom, true);
+        } else if (compressed) {
+            CompressedSingleHits.writeCompressedHits(p, w, l, prefix, chrom);
+        } else {
+            SingleHits.writeSingleHits(p, w, l, prefix, chrom);
+        }
+    }
+    /* writes the hits of the parts, oldest first, to one file in merged order */
+    private Hits writeReference(List<Part> parts, boolean paired) throws IOException {
+        /* newest first, so that the stable sort by position puts newer parts first at equal positions */
+        final List<int[]> order = new ArrayList<int[]>();
+        for (int j = parts.size() - 1; j >= 0; j--) {
+            for (int i = 0; i < parts.get(j).size(); i++) {
+                order.add(new int[]{parts.get(j).positions[i], j, i});
+            }
+        }
+        Collections.sort(order, new Comparator<int[]>() {
+                public int compare(int[] a, int[] b) {
+                    return a[0] < b[0] ? -1 : (a[0] == b[0] ? 0 : 1);
+                }
+            });
+        int n = order.size();
+        int[] positions = new int[n], las = new int[n], otherchroms = new int[n], otherpositions = new int[n];
+        float[] weights = new float[n];
+        for (int k = 0; k < n; k++) {
+            Part p = parts.get(order.get(k)[1]);
+            int i = order.get(k)[2];
+            positions[k] = p.positions[i];
+            weights[k] = p.weights[i];
+            las[k] = p.las[i];
+            otherchroms[k] = p.otherchroms[i];
+            otherpositions[k] = p.otherpositions[i];
+        }
+        write(positions, weights, las, otherchroms, otherpositions, refprefix, paired, false);
+        return paired ? new PairedHits(refprefix, chrom, true) : new SingleHits(refprefix, chrom);
+    }
+
+    private static void assertBuffersEqual(Hits expected, Hits actual, boolean paired) {
+        int n = expected.getPositionsBuffer().limit();
+        assertEquals(n, actual.getPositionsBuffer().limit());
+        for (int i = 0; i < n; i++) {
+            assertEquals("position " + i, expected.getPositionsBuffer().get(i), actual.getPositionsBuffer().get(i));
+            assertEquals("weight " + i, expected.getWeightsBuffer().get(i), actual.getWeightsBuffer().get(i), 0);
+            assertEquals("las " + i, expected.getLASBuffer().get(i), actual.getLASBuffer().get(i));
+            if (paired) {
+                assertEquals("chrom " + i, ((PairedHits)expected).getChromsBuffer().get(i), ((PairedHits)actual).getChromsBuffer().get(i));
+                assertEquals("other position " + i, ((PairedHits)expected).getOtherPosBuffer().get(i), ((PairedHits)actual).getOtherPosBuffer().get(i));
+            }
+        }
+    }
+
+    private void assertQueriesEqual(Hits ref, Hits actual, boolean paired) throws IOException {
+        /* the segmented hits search each part with its own header */
+        assertQueriesEqual(ref, actual, null, paired);
+    }
+    private void assertQueriesEqual(Hits ref, Hits actual, Header header, boolean paired) throws IOException {
+        Header refheader = ref.makeHeader();
+        assertEquals(refheader.getNumHits(), actual.makeHeader().getNumHits());
+        assertEquals(ref.getFirstPosition(), actual.getFirstPosition());
+        assertEquals(ref.getLastPosition(), actual.getLastPosition());
+        Float[] minweights = {null, MAXWEIGHT / 2};
+        Boolean[] strands = {null, true, false};
+        for (int q = 0; q < 40; q++) {
+            int start = random.nextInt(MAXVALUE + 20) - 10;
+            int end = start + random.nextInt(q % 2 == 0 ? 100 : MAXVALUE);
+            int rf = refheader.getFirstIndex(start), rl = refheader.getLastIndex(end);
+            int af = header == null ? 0 : header.getFirstIndex(start), al = header == null ? 0 : header.getLastIndex(end);
+            for (Float minweight : minweights) {
+                for (Boolean isPlus : strands) {
+                    String query = start + "-" + end + " " + minweight + " " + isPlus;
+                    assertEquals(query, ref.getCountBetween(rf, rl, start, end, minweight, isPlus),
+                                 actual.getCountBetween(af, al, start, end, minweight, isPlus));
+                    assertEquals(query, ref.getWeightBetween(rf, rl, start, end, minweight, isPlus),
+                                 actual.getWeightBetween(af, al, start, end, minweight, isPlus), .01);
+                    assertIntsEqual(query, ref.getHitsBetween(rf, rl, start, end, minweight, isPlus),
+                                    actual.getHitsBetween(af, al, start, end, minweight, isPlus));
+                    assertIntsEqual(query, ref.getLASBetween(rf, rl, start, end, minweight, isPlus),
+                                    actual.getLASBetween(af, al, start, end, minweight, isPlus));
+                    FloatBP rw = ref.getWeightsBetween(rf, rl, start, end, minweight, isPlus);
+                    FloatBP aw = actual.getWeightsBetween(af, al, start, end, minweight, isPlus);
+                    assertEquals(query, rw.limit(), aw.limit());
+                    for (int i = 0; i < rw.limit(); i++) {
+                        assertEquals(query, rw.get(i), aw.get(i), 0);
+                    }
+                    if (paired) {
+                        PairedHits r = (PairedHits)ref, a = (PairedHits)actual;
+                        assertIntsEqual(query, r.getOtherChromsBetween(rf, rl, start, end, minweight, isPlus),
+                                        a.getOtherChromsBetween(af, al, start, end, minweight, isPlus));
+                        assertIntsEqual(query, r.getOtherPositionsBetween(rf, rl, start, end, minweight, isPlus),
+                                        a.getOtherPositionsBetween(af, al, start, end, minweight, isPlus));
+                    }
+                    /* dedup keeps the first hits at a position that pass minweight and isPlus, so it depends on the merged order */
+                    int binsize = 1 + random.nextInt(30);
+                    for (int dedup = 0; dedup <= 2; dedup++) {
+                        boolean extension = random.nextBoolean();
+                        assertArrayEquals(query + " dedup " + dedup,
+                                          ref.histogram(rf, rl, start, end, binsize, dedup, minweight, isPlus, extension),
+                                          actual.histogram(af, al, start, end, binsize, dedup, minweight, isPlus, extension));
+                        float[] rh = ref.weightHistogram(rf, rl, start, end, binsize, dedup, minweight, isPlus, extension);
+                        float[] ah = actual.weightHistogram(af, al, start, end, binsize, dedup, minweight, isPlus, extension);
+                        assertEquals(query, rh.length, ah.length);
+                        for (int i = 0; i < rh.length; i++) {
+                            assertEquals(query + " dedup " + dedup, rh[i], ah[i], .01);
+                        }
+                    }
+                }
+            }
+        }
+    }
+    private static void assertIntsEqual(String query, IntBP expected, IntBP actual) {
+        assertEquals(query, expected.limit(), actual.limit());
+        for (int i = 0; i < expected.limit(); i++) {
+            assertEquals(query, expected.get(i), actual.get(i));
+        }
+    }
+}
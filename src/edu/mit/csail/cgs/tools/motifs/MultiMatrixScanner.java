@@ -0,0 +1,240 @@
+package edu.mit.csail.cgs.tools.motifs;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import edu.mit.csail.cgs.datasets.general.Region;
+import edu.mit.csail.cgs.datasets.motifs.WMHit;
+import edu.mit.csail.cgs.datasets.motifs.WeightMatrix;
+import edu.mit.csail.cgs.ewok.verbs.SequenceGenerator;
+
+/**
+ * Scans sequences for many weight matrices in one pass.  The sequence is split into chunks that are
+ * scanned in parallel; each chunk is fetched once and all the matrices are run over it block by block,
+ * so that a block stays in cache while it is scored by every matrix.  The minus strand is scored from the
+ * same sequence with a reverse-complement score table instead of reverse complementing the sequence.
+ *
+ * Scores are computed in the same order as WeightMatrixScanner.scanSequence(), and a window is abandoned
+ * with the same scoreleft lookahead bound, so a hit has the same score as there.  The hits of each matrix
+ * are given to the sink in order of region and start, plus strand before minus strand.
+ */
+public class MultiMatrixScanner {
+
+    /** receives the hits of one matrix in one chunk of sequence */
+    public interface HitSink {
+        public void consume(int matrixIndex, List<WMHit> hits);
+    }
+
+    public static final int CHUNKSIZE = 8000000;
+    /* bases scored by all matrices before moving on */
+    private static final int BLOCKSIZE = 1 << 16;
+    private static final int LETTERS = WeightMatrix.MAXLETTERVAL;
+    private static final char[] COMPLEMENT = new char[LETTERS];
+    static {
+        String from = "ACGTacgtNnXx";
+        String to = "TGCAtgcaNnXx";
+        for (int i = 0; i < from.length(); i++) {
+            if (from.charAt(i) < LETTERS && to.charAt(i) < LETTERS) {
+                COMPLEMENT[from.charAt(i)] = to.charAt(i);
+            }
+        }
+    }
+
+    private int numMatrices, minLength, maxLength, numThreads;
+    private int[] lengths;
+    private float[] cutoffs;
+    /* [matrix][position * LETTERS + base] */
+    private float[][] plusScores, minusScores;
+    /* [matrix][position], the best score of the rest of the matrix from the position */
+    private float[][] scoreleft;
+
+    /**
+     * @param cutoffs the score cutoff of each matrix
+     */
+    public MultiMatrixScanner(List<WeightMatrix> matrices, float[] cutoffs, int numThreads) {
+        numMatrices = matrices.size();
+        this.cutoffs = cutoffs.clone();
+        this.numThreads = Math.max(1, numThreads);
+        lengths = new int[numMatrices];
+        plusScores = new float[numMatrices][];
+        minusScores = new float[numMatrices][];
+        scoreleft = new float[numMatrices][];
+        minLength = Integer.MAX_VALUE;
+        maxLength = 0;
+        for (int m = 0; m < numMatrices; m++) {
+            float[][] matrix = matrices.get(m).matrix;
+            int length = matrix.length;
+            lengths[m] = length;
+            minLength = Math.min(minLength, length);
+            maxLength = Math.max(maxLength, length);
+            plusScores[m] = new float[length * LETTERS];
+            minusScores[m] = new float[length * LETTERS];
+            for (int j = 0; j < length; j++) {
+                for (int c = 0; c < LETTERS; c++) {
+                    plusScores[m][j * LETTERS + c] = matrix[j][c];
+                    minusScores[m][j * LETTERS + c] = matrix[j][COMPLEMENT[c]];
+                }
+            }
+            /* same bound as WeightMatrixScanner.scanSequence() */
+            scoreleft[m] = new float[length + 1];
+            for (int i = length - 1; i >= 0; i--) {
+                double maxval = Double.NEGATIVE_INFINITY;
+                if (matrix[i]['A'] > maxval) {maxval = matrix[i]['A'];}
+                if (matrix[i]['C'] > maxval) {maxval = matrix[i]['C'];}
+                if (matrix[i]['T'] > maxval) {maxval = matrix[i]['T'];}
+                if (matrix[i]['G'] > maxval) {maxval = matrix[i]['G'];}
+                scoreleft[m][i] = scoreleft[m][i+1] + (float)maxval;
+            }
+        }
+    }
+
+    public int getMaxLength() {return maxLength;}
+
+    /**
+     * Scans the regions, fetching each chunk of a region from the sequence generator.
+     * Hits are on the chromosome of the region, in chromosome coordinates.  A region is
+     * scanned if the shortest matrix fits in it; each matrix is scanned up to its own last window.
+     */
+    public void scanRegions(List<Region> regions, SequenceGenerator<Region> seqgen, HitSink sink) {
+        List<Chunk> chunks = new ArrayList<Chunk>();
+        for (Region region : regions) {
+            int chromid = region.getGenome().getChromID(region.getChrom());
+            for (int start = region.getStart(); start <= region.getEnd() - minLength + 1; start += CHUNKSIZE) {
+                int end = Math.min(region.getEnd(), start + CHUNKSIZE + maxLength - 2);
+                chunks.add(new Chunk(chromid, start, new Region(region.getGenome(), region.getChrom(), start, end), seqgen));
+            }
+        }
+        scan(chunks, sink);
+    }
+
+    /**
+     * Scans the whole sequence, which is not changed.  Hit coordinates are offset by the given offset.
+     */
+    public void scanSequence(char[] sequence, int chromid, int offset, HitSink sink) {
+        List<Chunk> chunks = new ArrayList<Chunk>();
+        for (int from = 0; from < sequence.length; from += CHUNKSIZE) {
+            chunks.add(new Chunk(chromid, offset, sequence, from, Math.min(sequence.length, from + CHUNKSIZE)));
+        }
+        scan(chunks, sink);
+    }
+
+    /* scans the chunks in parallel and hands their hits to the sink in the order of the chunks.
+       At most numThreads chunks are held ahead of the one being written out. */
+    private void scan(List<Chunk> chunks, HitSink sink) {
+        if (numThreads == 1 || chunks.size() <= 1) {
+            for (Chunk c : chunks) {
+                emit(scanChunk(c), sink);
+            }
+            return;
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(numThreads, chunks.size()));
+        LinkedList<Future<List<List<WMHit>>>> pending = new LinkedList<Future<List<List<WMHit>>>>();
+        try {
+            Iterator<Chunk> iter = chunks.iterator();
+            while (iter.hasNext() || !pending.isEmpty()) {
+                while (iter.hasNext() && pending.size() < 2 * numThreads) {
+                    final Chunk c = iter.next();
+                    pending.add(pool.submit(new Callable<List<List<WMHit>>>() {
+                            public List<List<WMHit>> call() {
+                                return scanChunk(c);
+                            }
+                        }));
+                }
+                emit(pending.removeFirst().get(), sink);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private void emit(List<List<WMHit>> hits, HitSink sink) {
+        for (int m = 0; m < numMatrices; m++) {
+            if (!hits.get(m).isEmpty()) {
+                sink.consume(m, hits.get(m));
+            }
+        }
+    }
+
+    /* the hits of every matrix in the chunk, both strands, in order of start */
+    private List<List<WMHit>> scanChunk(Chunk chunk) {
+        char[] seq = chunk.getSequence();
+        List<List<WMHit>> hits = new ArrayList<List<WMHit>>(numMatrices);
+        for (int m = 0; m < numMatrices; m++) {
+            hits.add(new ArrayList<WMHit>());
+        }
+        for (int block = chunk.from; block < chunk.to; block += BLOCKSIZE) {
+            int blockEnd = Math.min(chunk.to, block + BLOCKSIZE);
+            for (int m = 0; m < numMatrices; m++) {
+                /* the last window of matrix m, which may end before the chunk does */
+                scanBlock(m, seq, block, Math.min(blockEnd, seq.length - lengths[m] + 1), chunk, hits.get(m));
+            }
+        }
+        return hits;
+    }
+
+    /* scores the windows of matrix m starting in [from, to) */
+    private void scanBlock(int m, char[] seq, int from, int to, Chunk chunk, List<WMHit> hits) {
+        int length = lengths[m];
+        float cutoff = cutoffs[m];
+        float[] plus = plusScores[m];
+        float[] minus = minusScores[m];
+        float[] left = scoreleft[m];
+        for (int i = from; i < to; i++) {
+            float score = 0;
+            for (int j = 0; j < length && left[j] + score > cutoff; j++) {
+                score += plus[j * LETTERS + letter(seq[i+j])];
+            }
+            if (score >= cutoff) {
+                hits.add(new WMHit(-1, chunk.chromid, i + chunk.offset, i + length - 1 + chunk.offset, "+", score));
+            }
+            /* the minus strand window is read backwards, so that the matrix positions are scored in the same order */
+            score = 0;
+            for (int j = 0; j < length && left[j] + score > cutoff; j++) {
+                score += minus[j * LETTERS + letter(seq[i+length-1-j])];
+            }
+            if (score >= cutoff) {
+                hits.add(new WMHit(-1, chunk.chromid, i + chunk.offset, i + length - 1 + chunk.offset, "-", score));
+            }
+        }
+    }
+
+    private static int letter(char c) {
+        return c < LETTERS ? c : 0;
+    }
+
+    /* a piece of sequence to scan: the windows starting in [from, to) of the sequence */
+    private static class Chunk {
+        int chromid, offset, from, to;
+        char[] seq;
+        Region region;
+        SequenceGenerator<Region> seqgen;
+
+        Chunk(int chromid, int offset, char[] seq, int from, int to) {
+            this.chromid = chromid;
+            this.offset = offset;
+            this.seq = seq;
+            this.from = from;
+            this.to = to;
+        }
+        /* a chunk that is fetched when it is scanned */
+        Chunk(int chromid, int offset, Region region, SequenceGenerator<Region> seqgen) {
+            this.chromid = chromid;
+            this.offset = offset;
+            this.region = region;
+            this.seqgen = seqgen;
+            this.from = 0;
+            this.to = CHUNKSIZE;
+        }
+        char[] getSequence() {
+            if (seq == null) {
+                return seqgen.execute(region).toCharArray();
+            }
+            return seq;
+        }
+    }
+}
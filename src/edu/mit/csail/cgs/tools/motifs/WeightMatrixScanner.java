@@ -35,6 +35,9 @@ import edu.mit.csail.cgs.tools.utils.Args;
  * [--print]  print results rather than storing to db
  * [--loadfile foo.txt]  load results from file rather than doing a new scan
  * [--cutoff .9] as a fraction of maximum log-odds score
+ * [--threads 8] number of threads to scan with, defaults to the number of processors
+ *
+ * All the matrices are scanned in one pass over the sequence (see MultiMatrixScanner).
  */
 
 public class WeightMatrixScanner {
@@ -52,7 +55,9 @@ public class WeightMatrixScanner {
     private String loadfile, scanname;
     private boolean print;
     private WMConsumer consumer;
+    private WMConsumer[] consumers;
     private String outfile;
+    private int threads;
 
     public static void main(String args[]) throws Exception {
         WeightMatrixScanner scanner = new WeightMatrixScanner();
@@ -78,7 +83,13 @@ public class WeightMatrixScanner {
         }
         core.close();
         cxn.close();
-        consumer.close();
+        if (consumers != null) {
+            for (WMConsumer c : consumers) {
+                c.close();
+            }
+        } else {
+            consumer.close();
+        }
     }
     public void parseArgs(String args[]) throws Exception {
         boolean scan = true;
@@ -94,6 +105,7 @@ public class WeightMatrixScanner {
         print = Args.parseFlags(args).contains("print");
         regions = Args.parseRegionsOrDefault(args);
         outfile = Args.parseString(args, "outfile", "");
+        threads = Args.parseInteger(args, "threads", Runtime.getRuntime().availableProcessors());
 
         if (!print) {            
             if (scanname == null) {
@@ -147,71 +159,60 @@ public class WeightMatrixScanner {
         }
     } 
     public void scanMatrices() throws SQLException, FileNotFoundException {
-    	DateFormat dfm = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
-    	if (print) {
-    		if (!outfile.equals("")) {
-    			consumer = new PrintConsumer(genome, null, outfile);
-    		}
-    	}
-    	int count = 0;
-        for (WeightMatrix matrix : matrices) {
-            int scanid;
-            float cutoffscore =(float) (matrix.getMaxScore() * cutoff);
-
+        /* one consumer and scan per matrix, the sequence is then scanned once for all of them */
+        consumers = new WMConsumer[matrices.size()];
+        int[] scanids = new int[matrices.size()];
+        float[] cutoffscores = new float[matrices.size()];
+        if (print && !outfile.equals("")) {
+            consumer = new PrintConsumer(genome, null, outfile);
+        }
+        for (int m = 0; m < matrices.size(); m++) {
+            WeightMatrix matrix = matrices.get(m);
+            cutoffscores[m] = (float) (matrix.getMaxScore() * cutoff);
             if (print) {
-                scanid = -1;
-                if (outfile.equals("")) {
-                	consumer = new PrintConsumer(genome, matrix);
-                } else {
-                	consumer.setMatrix(matrix);
-                }
+                scanids[m] = -1;
+                consumers[m] = outfile.equals("") ? new PrintConsumer(genome, matrix) : consumer;
             } else {
-                scanid = getScanID(matrix.dbid,scanname,cutoffscore);
-                System.err.println("SCAN ID is " + scanid);
+                scanids[m] = getScanID(matrix.dbid,scanname,cutoffscores[m]);
+                System.err.println("SCAN ID is " + scanids[m]);
                 insertHit = cxn.prepareStatement("insert into wms_hits(scan,chromosome,startpos,stoppos,strand,score) " +
-                                                 " values (" + scanid + ",?,?,?,?,?)");
-                consumer = new StoreConsumer(cxn,
-                                             insertHit);
-                getScannedGenome.setInt(1,scanid);
+                                                 " values (" + scanids[m] + ",?,?,?,?,?)");
+                consumers[m] = new StoreConsumer(cxn,
+                                                 insertHit);
+                getScannedGenome.setInt(1,scanids[m]);
                 getScannedGenome.setInt(2,genome.getDBID());
                 ResultSet rs = getScannedGenome.executeQuery();
                 rs.next();
                 if (rs.getInt(1) == 0) {
-                    insertScannedGenome.setInt(1,scanid);
+                    insertScannedGenome.setInt(1,scanids[m]);
                     insertScannedGenome.setInt(2,genome.getDBID());
                     insertScannedGenome.execute();
                 }
                 rs.close();
             }
-        
-            if (fastafiles.size() != 0) {
-                regions.clear();
-                for (String fastafile : fastafiles) {
-                    scanFasta(genome,
-                              matrix,
-                              consumer,
-                              cutoffscore,
-                              fastafile,
-                              regions);
-                    
-                }                
-            } else {
-                try {
-                    scanFromDB(genome,
-                               matrix,
-                               consumer,
-                               (float)cutoff,
-                               regions);
-                } catch (NotFoundException ex) {
-                    ex.printStackTrace();
-                }
-            }
-            if (!print) {
-                storeRegionList(genome,scanid,regions);
+        }
+
+        if (fastafiles.size() != 0) {
+            regions.clear();
+            MultiMatrixScanner scanner = new MultiMatrixScanner(matrices, cutoffscores, threads);
+            for (String fastafile : fastafiles) {
+                scanFasta(genome,
+                          scanner,
+                          consumers,
+                          fastafile,
+                          regions);
             }
-            count++;
-            if (count % (matrices.size()/100)==0) {
-            	System.err.println(count+" "+dfm.format(new Date()));
+        } else {
+            /* the database scan has always used the cutoff fraction as the score cutoff */
+            float[] cutoffs = new float[matrices.size()];
+            Arrays.fill(cutoffs, (float)cutoff);
+            scanFromDB(new MultiMatrixScanner(matrices, cutoffs, threads),
+                       consumers,
+                       regions);
+        }
+        if (!print) {
+            for (int m = 0; m < matrices.size(); m++) {
+                storeRegionList(genome,scanids[m],regions);
             }
         }
     }
@@ -435,6 +436,87 @@ public class WeightMatrixScanner {
         return new ArrayList<WMHit>();
     }
 
+    /* scans a FASTA file for all the matrices of the scanner, reading each sequence once.
+       The hits of matrix i go to consumers[i]. */
+    public void scanFasta(Genome genome,
+                          MultiMatrixScanner scanner,
+                          final WMConsumer[] consumers,
+                          String fastafile,
+                          List<Region> regions) {
+        try {
+            File file = new File(fastafile);
+            FASTAStream stream = new FASTAStream(file);
+            Pattern p = Pattern.compile("(.*):(\\d*)\\-(\\d*)");
+            while (stream.hasNext()) {
+                Pair<String,String> pair = stream.next();
+                String name = pair.getFirst();
+                char[] aschars = pair.getLast().toCharArray();
+                pair = null;
+
+                int chromid = -1;
+                int offset = 0, end = -1;
+                if(name.startsWith("chr")) { name = name.substring(3, name.length()); }
+                Matcher m = p.matcher(name);
+                if (m.matches()) {
+                    try {
+                        Region tmp = Region.fromString(genome, name);
+                        name = tmp.getChrom();
+                        offset = tmp.getStart();
+                        end = tmp.getEnd();
+                    } catch (Exception e) {
+                        System.err.println(name);
+                    }
+                }
+                try {
+                    if (genome != null) {
+                        chromid = genome.getChromID(name);
+                    }
+                } catch (NullPointerException e) {
+                    chromid = madeupChromosomeID--;
+                    madeupChromMap.put(chromid, name);                    
+                }
+                if (chromid >= 0) {
+                    regions.add(new Region(genome,
+                                           name,
+                                           end == -1 ? 0 : offset,
+                                           end == -1 ? aschars.length : end));
+                }
+
+                for (int i = 0; i < aschars.length; i++) {
+                    if (aschars[i] == 'a') {aschars[i]='A';}
+                    if (aschars[i] == 'c') {aschars[i]='C';}
+                    if (aschars[i] == 'g') {aschars[i]='G';}
+                    if (aschars[i] == 't') {aschars[i]='T';}
+                }
+                scanner.scanSequence(aschars, chromid, chromid > 0 ? offset : 0, new MultiMatrixScanner.HitSink() {
+                        public void consume(int matrixIndex, List<WMHit> hits) {
+                            consumeHits(consumers, matrixIndex, hits);
+                        }
+                    });
+            }            
+            stream.close();
+        } catch (IOException ex) {
+            System.err.println(ex.toString());
+            ex.printStackTrace();
+        }
+    }
+
+    /* Scans a list of regions for all the matrices of the scanner.  The hits of matrix i go to consumers[i]. */
+    public void scanFromDB(MultiMatrixScanner scanner,
+                           final WMConsumer[] consumers,
+                           List<Region> regions) {
+        scanner.scanRegions(regions, new SequenceGenerator<Region>(), new MultiMatrixScanner.HitSink() {
+                public void consume(int matrixIndex, List<WMHit> hits) {
+                    consumeHits(consumers, matrixIndex, hits);
+                }
+            });
+    }
+
+    private void consumeHits(WMConsumer[] consumers, int matrixIndex, List<WMHit> hits) {
+        consumers[matrixIndex].setMatrix(matrices.get(matrixIndex));
+        consumers[matrixIndex].consume(hits);
+    }
+
     /* Scans a list of regions for a weight matrix using the given cutoff. */
     public void scanFromDB(Genome genome,
                            WeightMatrix matrix,
@@ -29,7 +29,7 @@ import edu.mit.csail.cgs.utils.probability.NormalDistribution;
 
 public class StatUtil {
 //	static cern.jet.random.engine.RandomEngine engine = new cern.jet.random.engine.MersenneTwister();
-	static private double[] logFactorials;
+	static private volatile double[] logFactorials = new double[]{0};
 	static private ConcurrentHashMap<String, Double> HGP_table = new ConcurrentHashMap<String, Double>();
 	static private ConcurrentHashMap<String, Double> log10_HGP_table = new ConcurrentHashMap<String, Double>();
 	static private ConcurrentHashMap<String, Double> HGPDF_table = new ConcurrentHashMap<String, Double>();
@@ -1311,10 +1311,31 @@ public class StatUtil {
 				sum += Math.pow(10, log10_hyperGeometricPDF_cache(k,N,s,n)-Lx);
 			}
 			Lx += Math.log10(sum);
-			HGP_table.put(key, Lx);
+			log10_HGP_table.put(key, Lx);
 			return Lx;
 		}
 	}
+	/**
+	 * Get the table of log(i!) for i=0..N, extending the shared table if it is shorter. <br>
+	 * A table is never modified after it is published, so the returned array is safe to read by any thread.
+	 */
+	private static double[] getLogFactorials(int N){
+		double[] table = logFactorials;
+		if (table.length >= N+1)
+			return table;
+		synchronized(StatUtil.class){
+			table = logFactorials;
+			if (table.length < N+1){
+				double[] extended = Arrays.copyOf(table, N+1);
+				for (int i=table.length;i<=N;i++)
+					extended[i] = extended[i-1]+Math.log(i);
+				logFactorials = extended;
+				table = extended;
+			}
+			return table;
+		}
+	}
+	
 	/**
 	 * Returns the hypergeometric density probability of number <tt>x</tt> 
 	 * when the sample size is <tt>n</tt>, the size of the positive set <tt>s</tt>
@@ -1337,20 +1358,7 @@ public class StatUtil {
 		}
 		else{
 	
-			// extend the cache if N is large than existing cache
-			int len = (logFactorials==null)?0:logFactorials.length;
-			if (logFactorials==null || logFactorials.length < N+1){
-				double[] old = logFactorials;
-				logFactorials = new double[N+1];
-				if (len!=0)
-					System.arraycopy(old, 0, logFactorials, 0, len);
-				else{
-					logFactorials[0]=0;
-					len++;
-				}
-				for (int i=len;i<=N;i++)
-					logFactorials[i] = logFactorials[i-1]+Math.log(i);
-			}
+			double[] logFactorials = getLogFactorials(N);
 			// compute
 			double kx = logFactorials[s]-logFactorials[x]-logFactorials[s-x];
 			double mknx = logFactorials[N-s]-logFactorials[n-x]-logFactorials[N-s-(n-x)];
@@ -1370,20 +1378,7 @@ public class StatUtil {
 			return log10_HGPDF_table.get(key);
 		}
 		else{
-		// extend the cache if N is large than existing cache
-		int len = (logFactorials==null)?0:logFactorials.length;
-		if (logFactorials==null || logFactorials.length < N+1){
-			double[] old = logFactorials;
-			logFactorials = new double[N+1];
-			if (len!=0)
-				System.arraycopy(old, 0, logFactorials, 0, len);
-			else{
-				logFactorials[0]=0;
-				len++;
-			}
-			for (int i=len;i<=N;i++)
-				logFactorials[i] = logFactorials[i-1]+Math.log(i);
-		}
+		double[] logFactorials = getLogFactorials(N);
 		// compute
 		double kx = logFactorials[s]-logFactorials[x]-logFactorials[s-x];
 		double mknx = logFactorials[N-s]-logFactorials[n-x]-logFactorials[N-s-(n-x)];
@@ -1404,20 +1399,7 @@ public class StatUtil {
 	public static BigDecimal hyperGeometricPDF_cache_BIG (int x, int N, int s, int n) {
 		if (x+N-s-n<0)
 			return BigDecimal.ZERO;
-		// extend the cache if N is large than existing cache
-		int len = (logFactorials==null)?0:logFactorials.length;
-		if (logFactorials==null || logFactorials.length < N+1){
-			double[] old = logFactorials;
-			logFactorials = new double[N+1];
-			if (len!=0)
-				System.arraycopy(old, 0, logFactorials, 0, len);
-			else{
-				logFactorials[0]=0;
-				len++;
-			}
-			for (int i=len;i<=N;i++)
-				logFactorials[i] = logFactorials[i-1]+Math.log(i);
-		}
+		double[] logFactorials = getLogFactorials(N);
 		// compute
 		double kx = logFactorials[s]-logFactorials[x]-logFactorials[s-x];
 		double mknx = logFactorials[N-s]-logFactorials[n-x]-logFactorials[N-s-(n-x)];